@@ -9,7 +9,7 @@ if [ "${VERBE}" = "start" ]
 then
   rm %ROOT%/conf/dip_stop.txt
   echo Create %ROOT%/conf/dip_stop.txt to stop DIP Monitor
-  java -cp %ROOT%/lib/r66/%WaarpVitam%:%VITAM% -Dlogback.configurationFile=%ROOT%/conf/r66/logback-client.xml -Dvitam.tmp.folder=%ROOT%/tmp/r66 -Dvitam.config.folder=%ROOT%/conf/r66/vitam -Dvitam.data.folder=%ROOT%/data/r66 -Dvitam.log.folder=%ROOT%/log/r66 org.waarp.vitam.dip.DipMonitor -e 10 -s %ROOT%/conf/r66/dip_stop.txt -w %ROOT%/conf/r66/config-clientSubmitA.xml
+  java -cp %ROOT%/lib/r66/%WaarpVitam%:%VITAM% -Dlogback.configurationFile=%ROOT%/conf/r66/logback-client.xml -Dvitam.tmp.folder=%ROOT%/tmp/r66 -Dvitam.config.folder=%ROOT%/conf/r66/vitam -Dvitam.data.folder=%ROOT%/data/r66 -Dvitam.log.folder=%ROOT%/log/r66 -Dorg.waarp.vitam.operation.cache.dir=%ROOT%/data/r66/OperationCache org.waarp.vitam.dip.DipMonitor -e 10 -s %ROOT%/conf/r66/dip_stop.txt -w %ROOT%/conf/r66/config-clientSubmitA.xml
 elif [ "${VERBE}" = "stop" ]
 then
   echo DIP Monitor will stop
@@ -9,7 +9,7 @@ if [ "${VERBE}" = "start" ]
 then
   rm %ROOT%/conf/ingest_stop.txt
   echo Create %ROOT%/conf/ingest_stop.txt to stop Ingest Monitor
-  java -cp %ROOT%/lib/r66/%WaarpVitam%:%VITAM% -Dlogback.configurationFile=%ROOT%/conf/r66/logback-client.xml -Dvitam.tmp.folder=%ROOT%/tmp/r66 -Dvitam.config.folder=%ROOT%/conf/r66/vitam -Dvitam.data.folder=%ROOT%/data/r66 -Dvitam.log.folder=%ROOT%/log/r66 org.waarp.vitam.ingest.IngestMonitor -e 10 -s %ROOT%/conf/r66/ingest_stop.txt -w %ROOT%/conf/r66/config-clientSubmitA.xml
+  java -cp %ROOT%/lib/r66/%WaarpVitam%:%VITAM% -Dlogback.configurationFile=%ROOT%/conf/r66/logback-client.xml -Dvitam.tmp.folder=%ROOT%/tmp/r66 -Dvitam.config.folder=%ROOT%/conf/r66/vitam -Dvitam.data.folder=%ROOT%/data/r66 -Dvitam.log.folder=%ROOT%/log/r66 -Dorg.waarp.vitam.operation.cache.dir=%ROOT%/data/r66/OperationCache org.waarp.vitam.ingest.IngestMonitor -e 10 -s %ROOT%/conf/r66/ingest_stop.txt -w %ROOT%/conf/r66/config-clientSubmitA.xml
 elif [ "${VERBE}" = "stop" ]
 then
   echo Ingest Monitor will stop
@@ -0,0 +1,92 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common;
+
+import org.waarp.vitam.common.FileDownloaderTest.GeneratedInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+
+import static java.nio.file.StandardCopyOption.*;
+
+/**
+ * Compare the FileDownloader with Files.copy (MB/s and CPU/GB).<br>
+ * <br>
+ * Not a unit test: run with the bench profile
+ * {@code mvn -Pbench test-compile exec:exec}, optionally with
+ * {@code -Dbench.args="size_in_MB rounds"} (default 64 MB, 5 rounds, the
+ * first one as warm up).
+ */
+public final class FileDownloaderBench {
+  private static final long MB = 1024L * 1024;
+  private static final long GB = 1024L * MB;
+
+  private FileDownloaderBench() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    final long size = (args.length > 0? Long.parseLong(args[0]) : 64) * MB + 17;
+    final int rounds = args.length > 1? Integer.parseInt(args[1]) : 5;
+    final File target = File.createTempFile("downloader", ".zip");
+    final FileDownloader direct =
+        new FileDownloader(FileDownloader.DEFAULT_BUFFER, true, true, false);
+    final FileDownloader heap =
+        new FileDownloader(FileDownloader.DEFAULT_BUFFER, false, true, false);
+    try {
+      for (int round = 0; round < rounds; round++) {
+        final boolean print = round > 0 || rounds == 1;
+        bench("Files.copy", print, () -> Files
+            .copy(new GeneratedInputStream(size), target.toPath(),
+                  REPLACE_EXISTING));
+        bench("FileDownloader direct", print, () -> direct
+            .download(new GeneratedInputStream(size), target, size));
+        bench("FileDownloader heap", print, () -> heap
+            .download(new GeneratedInputStream(size), target, size));
+        bench("FileDownloader direct with digest", print, () -> direct
+            .download(new GeneratedInputStream(size), target, size,
+                      FileDownloader.newDigest()));
+      }
+    } finally {
+      target.delete();
+    }
+  }
+
+  private static void bench(String name, boolean print, Copier copier)
+      throws IOException {
+    final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    final long startCpu = threadMXBean.getCurrentThreadCpuTime();
+    final long start = System.nanoTime();
+    final long size = copier.copy();
+    final long elapsed = Math.max(1, System.nanoTime() - start);
+    final long cpu = threadMXBean.getCurrentThreadCpuTime() - startCpu;
+    if (print) {
+      System.out.println(name + ": " + size * 1000 / elapsed + " MB/s, " +
+                         cpu / 1000000.0 * GB / size + " ms CPU/GB");
+    }
+  }
+
+  private interface Copier {
+    long copy() throws IOException;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.ingest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare AtrTemplate.render with the previous chain of String.replace of
+ * IngestManager.buildAtrInternal (ns per pseudo ATR).<br>
+ * <br>
+ * Not a unit test: run with the bench profile
+ * {@code mvn -Pbench test-compile exec:exec -Dbench.main=org.openjdk.jmh.Main
+ * -Dbench.args="AtrTemplateBenchmark"}, adding {@code -prof gc} to the
+ * arguments to compare allocations too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AtrTemplateBenchmark {
+  /**
+   * Status of step 2 (STARTED) and of an error (KO)
+   */
+  @Param({ "STARTED", "KO" })
+  public String code;
+
+  private String xml;
+  private AtrTemplate template;
+  private String[] values;
+
+  @Setup
+  public void setup() throws IOException {
+    xml = AtrTemplateTest.readTemplate();
+    template = AtrTemplate.getInstance();
+    values = AtrTemplateTest.getValues(code, "(Accepted by Vitam)");
+    if (!AtrTemplateTest.replace(xml, values).equals(template.render(values))) {
+      throw new IllegalStateException("Template and replace differ");
+    }
+  }
+
+  @Benchmark
+  public String render() {
+    return template.render(values);
+  }
+
+  @Benchmark
+  public String replace() {
+    return AtrTemplateTest.replace(xml, values);
+  }
+}
@@ -38,6 +38,10 @@ import org.waarp.vitam.common.WaarpCommon.TaskOption;
  * Common part for Vitam Request
  */
 public abstract class AbstractVitamRequest {
+  /**
+   * Prefix of the digest within File Information
+   */
+  public static final String DIGEST_INFO = "digest=";
   /**
    * Internal Logger
    */
@@ -74,6 +78,14 @@ public abstract class AbstractVitamRequest {
   private long waarpId;
   @JsonProperty("waarpModel")
   private String waarpModel;
+  @JsonProperty("operationStartTime")
+  private long operationStartTime;
+  @JsonProperty("nextCheckTime")
+  private long nextCheckTime;
+  @JsonProperty("digest")
+  private String digest;
+  @JsonProperty("waarpForward")
+  private String waarpForward;
 
   public AbstractVitamRequest() {
     // Empty constructor for Json
@@ -241,6 +253,21 @@ public abstract class AbstractVitamRequest {
     return this;
   }
 
+  /**
+   * @return the file and information of the Waarp transfer identified by
+   *     waarpId, in order to restart it rather than submit a new one
+   */
+  @JsonGetter("waarpForward")
+  public String getWaarpForward() {
+    return waarpForward;
+  }
+
+  @JsonSetter("waarpForward")
+  public AbstractVitamRequest setWaarpForward(final String waarpForward) {
+    this.waarpForward = waarpForward;
+    return this;
+  }
+
   @JsonGetter("waarpModel")
   public String getWaarpModel() {
     return waarpModel;
@@ -321,6 +348,71 @@ public abstract class AbstractVitamRequest {
     return this;
   }
 
+  /**
+   * @return the time of the Vitam operation submission, 0 if unknown or
+   *     once its duration is recorded
+   */
+  @JsonGetter("operationStartTime")
+  public long getOperationStartTime() {
+    return operationStartTime;
+  }
+
+  @JsonSetter("operationStartTime")
+  public AbstractVitamRequest setOperationStartTime(
+      final long operationStartTime) {
+    this.operationStartTime = operationStartTime;
+    return this;
+  }
+
+  /**
+   * @return the time before which checking the Vitam operation is useless
+   */
+  @JsonGetter("nextCheckTime")
+  public long getNextCheckTime() {
+    return nextCheckTime;
+  }
+
+  @JsonSetter("nextCheckTime")
+  public AbstractVitamRequest setNextCheckTime(final long nextCheckTime) {
+    this.nextCheckTime = nextCheckTime;
+    return this;
+  }
+
+  /**
+   * @return the digest of the downloaded file as "algorithm:hexadecimal
+   *     value", or null if none
+   */
+  @JsonGetter("digest")
+  public String getDigest() {
+    return digest;
+  }
+
+  @JsonSetter("digest")
+  public AbstractVitamRequest setDigest(final String digest) {
+    this.digest = digest;
+    return this;
+  }
+
+  /**
+   * @param prefix the kind of file sent (as ATR or DIP)
+   *
+   * @return the File Information to send with the downloaded file,
+   *     including its digest if known
+   */
+  @JsonIgnore
+  public String getFileInfo(final String prefix) {
+    if (digest == null) {
+      return prefix;
+    }
+    return prefix + ' ' + DIGEST_INFO + digest;
+  }
+
+  /**
+   * @return the kind of Vitam operation, used to learn its usual duration
+   */
+  @JsonIgnore
+  public abstract String getOperationKey();
+
   @JsonGetter("status")
   public int getStatus() {
     return status;
@@ -0,0 +1,672 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common;
+
+import org.waarp.common.digest.FilesystemBasedDigest;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+
+import javax.ws.rs.core.Response;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Download engine for ATR and DIP content from Vitam responses to local
+ * files.<br>
+ * <br>
+ * Content is read in large chunks and written through a FileChannel from a
+ * reusable buffer (direct by default). When the length is known, the file is
+ * extended to this length first (the JDK has no fallocate, so the space is
+ * not reserved on sparse filesystems, but the size metadata is set once),
+ * and an fsync can be requested at the end. The digest of the content can be
+ * computed on the fly, so that it is never read again. A content read by
+ * someone else (as a parser) can be written the same way through
+ * {@link #newSink(File, long, MessageDigest)}.<br>
+ * <br>
+ * A download can be resumed from a previous partial one: the already received
+ * bytes are kept (and digested again from the local file), and skipped from
+ * the InputStream since Vitam does not support Range requests. Progress is
+ * reported through a {@link Checkpoint} every
+ * {@value #ORG_WAARP_VITAM_DOWNLOAD_CHECKPOINT} bytes and when the
+ * InputStream fails, so that the offset can be saved.
+ */
+public class FileDownloader {
+  /**
+   * Size in bytes of the buffer
+   */
+  public static final String ORG_WAARP_VITAM_DOWNLOAD_BUFFER =
+      "org.waarp.vitam.download.buffer";
+  /**
+   * True (default) to use direct buffers
+   */
+  public static final String ORG_WAARP_VITAM_DOWNLOAD_DIRECT =
+      "org.waarp.vitam.download.direct";
+  /**
+   * True (default) to set the file length first when known
+   */
+  public static final String ORG_WAARP_VITAM_DOWNLOAD_PREALLOCATE =
+      "org.waarp.vitam.download.preallocate";
+  /**
+   * True to force data to the storage device at the end (default False)
+   */
+  public static final String ORG_WAARP_VITAM_DOWNLOAD_FSYNC =
+      "org.waarp.vitam.download.fsync";
+  /**
+   * Digest computed during download: SHA-256 (default), SHA-512 or NONE
+   */
+  public static final String ORG_WAARP_VITAM_DOWNLOAD_DIGEST =
+      "org.waarp.vitam.download.digest";
+  /**
+   * No digest computed during download
+   */
+  public static final String NO_DIGEST = "NONE";
+  /**
+   * Number of bytes between 2 checkpoints of a download
+   */
+  public static final String ORG_WAARP_VITAM_DOWNLOAD_CHECKPOINT =
+      "org.waarp.vitam.download.checkpoint";
+  /**
+   * Metric prefix for downloads
+   */
+  public static final String DOWNLOAD = "download";
+  /**
+   * Metric name for resumed downloads
+   */
+  public static final String DOWNLOAD_RESUMED = DOWNLOAD + ".resumed";
+  static final int DEFAULT_BUFFER = 1024 * 1024;
+  static final long DEFAULT_CHECKPOINT = 64L * 1024 * 1024;
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(FileDownloader.class);
+  private static final long GB = 1024L * 1024 * 1024;
+  private static final String DIGEST_ALGORITHM = SystemPropertyUtil
+      .get(ORG_WAARP_VITAM_DOWNLOAD_DIGEST, "SHA-256");
+  private static final FileDownloader INSTANCE = new FileDownloader(
+      SystemPropertyUtil
+          .getInt(ORG_WAARP_VITAM_DOWNLOAD_BUFFER, DEFAULT_BUFFER),
+      SystemPropertyUtil.getBoolean(ORG_WAARP_VITAM_DOWNLOAD_DIRECT, true),
+      SystemPropertyUtil
+          .getBoolean(ORG_WAARP_VITAM_DOWNLOAD_PREALLOCATE, true),
+      SystemPropertyUtil.getBoolean(ORG_WAARP_VITAM_DOWNLOAD_FSYNC, false),
+      SystemPropertyUtil
+          .getLong(ORG_WAARP_VITAM_DOWNLOAD_CHECKPOINT, DEFAULT_CHECKPOINT));
+
+  private final ConcurrentLinkedQueue<Chunk> chunks =
+      new ConcurrentLinkedQueue<>();
+  private final int bufferSize;
+  private final boolean direct;
+  private final boolean preallocate;
+  private final boolean fsync;
+  private final long checkpointInterval;
+
+  /**
+   * @param bufferSize
+   * @param direct True to use direct buffers
+   * @param preallocate True to set the file length first when known
+   * @param fsync True to force data to the storage device at the end
+   */
+  public FileDownloader(final int bufferSize, final boolean direct,
+                        final boolean preallocate, final boolean fsync) {
+    this(bufferSize, direct, preallocate, fsync, DEFAULT_CHECKPOINT);
+  }
+
+  /**
+   * @param bufferSize
+   * @param direct True to use direct buffers
+   * @param preallocate True to set the file length first when known
+   * @param fsync True to force data to the storage device at the end
+   * @param checkpointInterval number of bytes between 2 checkpoints
+   */
+  public FileDownloader(final int bufferSize, final boolean direct,
+                        final boolean preallocate, final boolean fsync,
+                        final long checkpointInterval) {
+    this.bufferSize = Math.max(8192, bufferSize);
+    this.direct = direct;
+    this.preallocate = preallocate;
+    this.fsync = fsync;
+    this.checkpointInterval = Math.max(this.bufferSize, checkpointInterval);
+  }
+
+  /**
+   * @return the FileDownloader configured from properties
+   */
+  public static FileDownloader getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param response
+   *
+   * @return the length of the content of the response if known, else -1
+   */
+  public static long getContentLength(final Response response) {
+    try {
+      return response.getLength();
+    } catch (RuntimeException e) {
+      // Some Response implementations do not support it
+      logger.trace(e);
+      return -1;
+    }
+  }
+
+  /**
+   * @return a new MessageDigest according to
+   *     {@value #ORG_WAARP_VITAM_DOWNLOAD_DIGEST}, or null if none
+   */
+  public static MessageDigest newDigest() {
+    if (NO_DIGEST.equalsIgnoreCase(DIGEST_ALGORITHM)) {
+      return null;
+    }
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      logger.error("Unknown digest algorithm {}", DIGEST_ALGORITHM, e);
+      return null;
+    }
+  }
+
+  /**
+   * @param digest the MessageDigest once all content is digested, or null
+   *
+   * @return the digest as "algorithm:hexadecimal value", or null if none
+   */
+  public static String getDigestInfo(final MessageDigest digest) {
+    if (digest == null) {
+      return null;
+    }
+    return digest.getAlgorithm() + ':' +
+           FilesystemBasedDigest.getHex(digest.digest());
+  }
+
+  /**
+   * Copy the InputStream to the target file, replacing it if any
+   *
+   * @param inputStream
+   * @param target
+   * @param expectedLength the length if known, else -1
+   *
+   * @return the number of bytes written
+   *
+   * @throws IOException
+   */
+  public long download(final InputStream inputStream, final File target,
+                       final long expectedLength) throws IOException {
+    return download(inputStream, target, expectedLength, null);
+  }
+
+  /**
+   * Copy the InputStream to the target file, replacing it if any, while
+   * computing its digest
+   *
+   * @param inputStream
+   * @param target
+   * @param expectedLength the length if known, else -1
+   * @param digest the MessageDigest to update with the content, or null
+   *
+   * @return the number of bytes written
+   *
+   * @throws IOException
+   */
+  public long download(final InputStream inputStream, final File target,
+                       final long expectedLength, final MessageDigest digest)
+      throws IOException {
+    return download(inputStream, target, expectedLength, digest, 0, null);
+  }
+
+  /**
+   * Copy the InputStream to the target file, resuming from offset, while
+   * computing its digest.<br>
+   * <br>
+   * The first offset bytes of the target file, from a previous partial
+   * download of the very same content, are kept and digested again, and the
+   * same number of bytes are skipped from the InputStream. If the
+   * InputStream fails, the checkpoint is called with the number of bytes
+   * safely written before the {@link SourceException} is thrown, so that
+   * the download can be resumed later on.
+   *
+   * @param inputStream the full content
+   * @param target
+   * @param expectedLength the full length if known, else -1
+   * @param digest the MessageDigest to update with the content, or null
+   * @param offset the number of bytes already received in target, 0 to
+   *     replace it
+   * @param checkpoint called with the number of bytes safely written, or
+   *     null
+   *
+   * @return the total number of bytes of the target file
+   *
+   * @throws SourceException if reading the InputStream failed
+   * @throws IOException if writing the target file failed
+   */
+  public long download(final InputStream inputStream, final File target,
+                       final long expectedLength, final MessageDigest digest,
+                       final long offset, final Checkpoint checkpoint)
+      throws IOException {
+    final long start = System.nanoTime();
+    final long startCpu = getCpuTime();
+    final Chunk chunk = getChunk();
+    final byte[] array = chunk.array;
+    long size = 0;
+    try (final FileChannel channel = open(target, offset)) {
+      if (offset > 0) {
+        if (channel.size() < offset) {
+          throw new IOException(
+              "Partial file shorter than expected: " + channel.size() + " < " +
+              offset);
+        }
+        // Remove what was not confirmed (preallocation or last chunk)
+        channel.truncate(offset);
+        resume(inputStream, channel, digest, offset, chunk);
+        WaarpVitamMetrics.getInstance().increment(DOWNLOAD_RESUMED);
+        logger.info("Resume download to {} from {}", target, offset);
+      }
+      size = offset;
+      preallocate(channel, size, expectedLength);
+      long nextCheckpoint = size + checkpointInterval;
+      int read;
+      try {
+        while ((read = fill(inputStream, array)) > 0) {
+          if (digest != null) {
+            digest.update(array, 0, read);
+          }
+          size = write(channel, chunk, read, size);
+          if (checkpoint != null && size >= nextCheckpoint) {
+            channel.force(false);
+            checkpoint.reached(size);
+            nextCheckpoint = size + checkpointInterval;
+          }
+        }
+      } catch (SourceException e) {
+        if (checkpoint != null && size > offset) {
+          channel.force(false);
+          checkpoint.reached(size);
+        }
+        logger.warn("Download to {} interrupted at {}", target, size);
+        throw e;
+      }
+      finish(channel, size);
+    } finally {
+      chunks.offer(chunk);
+    }
+    record(target, size - offset, start, startCpu);
+    return size;
+  }
+
+  /**
+   * Open an OutputStream to the target file, replacing it if any, for a
+   * content pushed by the caller instead of read from an InputStream (as
+   * when parsed on the fly), written as by
+   * {@link #download(InputStream, File, long, MessageDigest)}. The download
+   * is done once the OutputStream is closed.
+   *
+   * @param target
+   * @param expectedLength the length if known, else -1
+   * @param digest the MessageDigest to update with the content, or null
+   *
+   * @return the OutputStream to write the content to, to be closed
+   *
+   * @throws IOException
+   */
+  public OutputStream newSink(final File target, final long expectedLength,
+                              final MessageDigest digest) throws IOException {
+    return new Sink(target, expectedLength, digest);
+  }
+
+  /**
+   * @param target
+   * @param offset the number of bytes already received, 0 for a new file
+   *
+   * @return the FileChannel of the target file, emptied if offset is 0
+   *
+   * @throws IOException
+   */
+  private static FileChannel open(final File target, final long offset)
+      throws IOException {
+    if (offset == 0) {
+      // New file, so never write through a hard link (as a cached DIP)
+      Files.deleteIfExists(target.toPath());
+    }
+    final FileChannel channel =
+        FileChannel.open(target.toPath(), CREATE, READ, WRITE);
+    if (offset == 0) {
+      channel.truncate(0);
+    }
+    return channel;
+  }
+
+  /**
+   * Set the length of the file first if known and allowed
+   *
+   * @param channel
+   * @param size the current size
+   * @param expectedLength the length if known, else -1
+   *
+   * @throws IOException
+   */
+  private void preallocate(final FileChannel channel, final long size,
+                           final long expectedLength) throws IOException {
+    if (preallocate && expectedLength > size) {
+      channel.write(ByteBuffer.wrap(new byte[1]), expectedLength - 1);
+    }
+  }
+
+  /**
+   * Write the first length bytes of the array of the chunk
+   *
+   * @param channel
+   * @param chunk
+   * @param length
+   * @param position where to write
+   *
+   * @return the new position
+   *
+   * @throws IOException
+   */
+  private static long write(final FileChannel channel, final Chunk chunk,
+                            final int length, final long position)
+      throws IOException {
+    final ByteBuffer buffer = chunk.buffer;
+    buffer.clear();
+    if (buffer.hasArray()) {
+      buffer.limit(length);
+    } else {
+      buffer.put(chunk.array, 0, length);
+      buffer.flip();
+    }
+    long size = position;
+    while (buffer.hasRemaining()) {
+      size += channel.write(buffer, size);
+    }
+    return size;
+  }
+
+  /**
+   * Remove what remains of the preallocation and fsync if requested
+   *
+   * @param channel
+   * @param size the final size
+   *
+   * @throws IOException
+   */
+  private void finish(final FileChannel channel, final long size)
+      throws IOException {
+    if (size != channel.size()) {
+      channel.truncate(size);
+    }
+    if (fsync) {
+      channel.force(true);
+    }
+  }
+
+  /**
+   * @return the CPU time of the current thread in ns, 0 if not supported
+   */
+  private static long getCpuTime() {
+    final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    return threadMXBean.isCurrentThreadCpuTimeSupported()?
+        threadMXBean.getCurrentThreadCpuTime() : 0;
+  }
+
+  /**
+   * Record the metrics of a download
+   *
+   * @param target
+   * @param received the number of bytes received
+   * @param start start time in ns
+   * @param startCpu CPU time of the thread at start in ns
+   */
+  private static void record(final File target, final long received,
+                             final long start, final long startCpu) {
+    final long elapsed = Math.max(1, System.nanoTime() - start);
+    final long cpu = startCpu > 0? getCpuTime() - startCpu : 0;
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    metrics.increment(DOWNLOAD + ".count");
+    metrics.add(DOWNLOAD + ".bytes", received);
+    metrics.add(DOWNLOAD + ".ms", elapsed / 1000000);
+    metrics.add(DOWNLOAD + ".cpu.ms", cpu / 1000000);
+    logger.info("Downloaded {} bytes to {} at {} MB/s using {} ms CPU/GB",
+                received, target, received * 1000 / elapsed,
+                received > 0? cpu / 1000000.0 * GB / received : 0);
+  }
+
+  /**
+   * Digest again the first offset bytes of the file and skip them from the
+   * InputStream
+   *
+   * @param inputStream
+   * @param channel
+   * @param digest
+   * @param offset
+   * @param chunk
+   *
+   * @throws IOException
+   */
+  private static void resume(final InputStream inputStream,
+                             final FileChannel channel,
+                             final MessageDigest digest, final long offset,
+                             final Chunk chunk) throws IOException {
+    final ByteBuffer buffer = chunk.buffer;
+    final byte[] array = chunk.array;
+    if (digest != null) {
+      long position = 0;
+      while (position < offset) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), offset - position));
+        final int read = channel.read(buffer, position);
+        if (read < 0) {
+          throw new IOException("Partial file shorter than expected");
+        }
+        buffer.flip();
+        if (buffer.hasArray()) {
+          digest.update(array, 0, read);
+        } else {
+          buffer.get(array, 0, read);
+          digest.update(array, 0, read);
+        }
+        position += read;
+      }
+    }
+    // No Range support: already received bytes must be read again
+    long skipped = 0;
+    while (skipped < offset) {
+      final int read;
+      try {
+        read = inputStream
+            .read(array, 0, (int) Math.min(array.length, offset - skipped));
+      } catch (IOException e) {
+        throw new SourceException(e);
+      }
+      if (read < 0) {
+        throw new IOException(
+            "Content shorter than already received: " + skipped + " < " +
+            offset);
+      }
+      skipped += read;
+    }
+  }
+
+  /**
+   * Fill as much as possible the array to limit the number of writes
+   *
+   * @param inputStream
+   * @param array
+   *
+   * @return the number of bytes read, 0 or less if the end is reached
+   *
+   * @throws SourceException
+   */
+  private static int fill(final InputStream inputStream, final byte[] array)
+      throws SourceException {
+    int offset = 0;
+    while (offset < array.length) {
+      final int read;
+      try {
+        read = inputStream.read(array, offset, array.length - offset);
+      } catch (IOException e) {
+        throw new SourceException(e);
+      }
+      if (read < 0) {
+        break;
+      }
+      offset += read;
+    }
+    return offset;
+  }
+
+  private Chunk getChunk() {
+    final Chunk chunk = chunks.poll();
+    if (chunk != null) {
+      return chunk;
+    }
+    return new Chunk(bufferSize, direct);
+  }
+
+  /**
+   * Progress of a download
+   */
+  public interface Checkpoint {
+    /**
+     * @param offset the number of bytes safely written to the target file
+     *
+     * @throws IOException if the offset cannot be saved
+     */
+    void reached(long offset) throws IOException;
+  }
+
+  /**
+   * Failure while reading the content (connection reset, timeout...), as
+   * opposed to a failure while writing the target file
+   */
+  public static class SourceException extends IOException {
+    private static final long serialVersionUID = 4547396547539452376L;
+
+    public SourceException(final IOException cause) {
+      super(cause.getMessage(), cause);
+    }
+  }
+
+  /**
+   * OutputStream writing to the target file through a pooled chunk
+   */
+  private final class Sink extends OutputStream {
+    private final File target;
+    private final MessageDigest digest;
+    private final FileChannel channel;
+    private final long start = System.nanoTime();
+    private final long startCpu = getCpuTime();
+    private Chunk chunk;
+    private int length;
+    private long size;
+
+    private Sink(final File target, final long expectedLength,
+                 final MessageDigest digest) throws IOException {
+      this.target = target;
+      this.digest = digest;
+      channel = open(target, 0);
+      try {
+        preallocate(channel, 0, expectedLength);
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+      chunk = getChunk();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      if (length == chunk.array.length) {
+        flushChunk();
+      }
+      chunk.array[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+      int done = 0;
+      while (done < len) {
+        if (length == chunk.array.length) {
+          flushChunk();
+        }
+        final int copied = Math.min(len - done, chunk.array.length - length);
+        System.arraycopy(b, off + done, chunk.array, length, copied);
+        length += copied;
+        done += copied;
+      }
+    }
+
+    private void flushChunk() throws IOException {
+      if (length > 0) {
+        if (digest != null) {
+          digest.update(chunk.array, 0, length);
+        }
+        size = FileDownloader.write(channel, chunk, length, size);
+        length = 0;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (chunk == null) {
+        return;
+      }
+      try {
+        flushChunk();
+        finish(channel, size);
+      } finally {
+        chunks.offer(chunk);
+        chunk = null;
+        channel.close();
+      }
+      record(target, size, start, startCpu);
+    }
+  }
+
+  /**
+   * Reusable buffer: a heap array to read from the InputStream, and, if
+   * direct, a direct buffer to write to the FileChannel without the JDK
+   * temporary direct buffers
+   */
+  private static class Chunk {
+    private final byte[] array;
+    private final ByteBuffer buffer;
+
+    private Chunk(final int size, final boolean direct) {
+      array = new byte[size];
+      buffer = direct? ByteBuffer.allocateDirect(size) : ByteBuffer.wrap(array);
+    }
+  }
+}
@@ -22,20 +22,27 @@ package org.waarp.vitam.common;
 
 import fr.gouv.vitam.access.external.client.AdminExternalClient;
 import fr.gouv.vitam.access.external.client.AdminExternalClientFactory;
-import fr.gouv.vitam.access.external.client.VitamPoolingClient;
+import fr.gouv.vitam.common.client.VitamContext;
 import fr.gouv.vitam.common.exception.InvalidParseOperationException;
 import fr.gouv.vitam.common.exception.VitamClientException;
-import fr.gouv.vitam.common.exception.VitamException;
 import fr.gouv.vitam.common.json.JsonHandler;
+import fr.gouv.vitam.common.model.ItemStatus;
+import fr.gouv.vitam.common.model.RequestResponse;
+import fr.gouv.vitam.common.model.RequestResponseOK;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.vitam.dip.DipRequest;
 
 import java.io.File;
-import java.util.concurrent.TimeUnit;
 
 /**
- * Class that pool the result from an asynchrone Vitam operation
+ * Class that pool the result from an asynchrone Vitam operation.<br>
+ * <br>
+ * Results are shared through {@link OperationStatusCache}, so that monitors
+ * and command line checks do not query Vitam again for the same operation.
+ * Retries follow the {@link PollingPolicy} of the caller, possibly
+ * overridden per tenant; an instance holds no mutable state and may be
+ * shared between threads.
  */
 public class OperationCheck {
   /**
@@ -43,14 +50,37 @@ public class OperationCheck {
    */
   private static final WaarpLogger logger =
       WaarpLoggerFactory.getLogger(OperationCheck.class);
+  /**
+   * Metric name for status requests sent to Vitam
+   */
+  public static final String STATUS_CALLS = "operation.status.calls";
+  /**
+   * Metric name for status served from cache
+   */
+  public static final String STATUS_CACHED = "operation.status.cached";
 
-  private static int retry = 3;
-  private static int delay = 100;
-  private static boolean result;
+  private static volatile boolean result;
   private final AdminExternalClient client;
+  private final PollingPolicy pollingPolicy;
 
+  /**
+   * Use the default PollingPolicy, unless overridden per tenant
+   *
+   * @param client
+   */
   public OperationCheck(AdminExternalClient client) {
+    this(client, null);
+  }
+
+  /**
+   * @param client
+   * @param pollingPolicy the PollingPolicy of the caller, null for the
+   *     default one (tenant specific policies take precedence)
+   */
+  public OperationCheck(AdminExternalClient client,
+                        PollingPolicy pollingPolicy) {
     this.client = client;
+    this.pollingPolicy = pollingPolicy;
   }
 
   /**
@@ -60,22 +90,21 @@ public class OperationCheck {
    * @param delayToSet
    */
   public static void setRetry(int retryToSet, int delayToSet) {
-    retry = retryToSet;
-    delay = delayToSet;
+    PollingPolicy.setDefault(new PollingPolicy(retryToSet, delayToSet));
   }
 
   /**
-   * @return the number of retries for pooling of operation
+   * @return the default number of retries for pooling of operation
    */
   public static int getRetry() {
-    return retry;
+    return PollingPolicy.getDefault().getRetry();
   }
 
   /**
-   * @return the current delay between 2 retries for pooling of operation
+   * @return the default delay between 2 retries for pooling of operation
    */
   public static int getDelay() {
-    return delay;
+    return (int) PollingPolicy.getDefault().getDelay();
   }
 
   public static boolean getResult() {
@@ -121,7 +150,8 @@ public class OperationCheck {
   }
 
   /**
-   * Check if the corresponding operation is done
+   * Check if the corresponding operation is done, using first the
+   * {@link OperationStatusCache}
    *
    * @param tenantId the tenantId associated with the operation
    * @param requestId the operation Id
@@ -129,16 +159,53 @@ public class OperationCheck {
    * @return True if done
    */
   public boolean checkAvailabilityAtr(int tenantId, String requestId) {
+    final OperationStatusCache cache = OperationStatusCache.getInstance();
+    ItemStatus itemStatus = cache.get(tenantId, requestId);
+    if (itemStatus != null) {
+      logger.debug("Operation {} for tenant {} status from cache", requestId,
+                   tenantId);
+      WaarpVitamMetrics.getInstance().increment(STATUS_CACHED);
+      return OperationStatusCache.isAvailable(itemStatus);
+    }
+    final PollingPolicy policy =
+        PollingPolicy.resolve(pollingPolicy, tenantId);
+    final long deadline = policy.getDeadline() > 0?
+        System.currentTimeMillis() + policy.getDeadline() : Long.MAX_VALUE;
+    final VitamContext vitamContext = new VitamContext(tenantId);
     try {
-      VitamPoolingClient vitamPoolingClient = new VitamPoolingClient(client);
-      return vitamPoolingClient
-          .wait(tenantId, requestId, retry, delay, TimeUnit.MILLISECONDS);
+      for (int i = 0; i < policy.getRetry(); i++) {
+        if (i > 0) {
+          final long delay = policy.getDelay(i);
+          if (System.currentTimeMillis() + delay > deadline) {
+            logger.debug("Operation {} for tenant {} deadline reached",
+                         requestId, tenantId);
+            return false;
+          }
+          Thread.sleep(delay);
+        }
+        WaarpVitamMetrics.getInstance().increment(STATUS_CALLS);
+        final RequestResponse<ItemStatus> requestResponse =
+            client.getOperationProcessStatus(vitamContext, requestId);
+        if (!requestResponse.isOk()) {
+          logger.info("Operation {} for tenant {} in error: {}", requestId,
+                      tenantId, requestResponse);
+          return false;
+        }
+        itemStatus =
+            ((RequestResponseOK<ItemStatus>) requestResponse).getFirstResult();
+        if (itemStatus == null) {
+          return false;
+        }
+        cache.put(tenantId, requestId, itemStatus);
+        if (OperationStatusCache.isAvailable(itemStatus)) {
+          return true;
+        }
+      }
     } catch (VitamClientException e) {
       logger.warn(e);
-      return false;
-    } catch (VitamException e) {
+    } catch (InterruptedException e) {//NOSONAR
       logger.info(e);
-      return false;
     }
+    return false;
   }
 }
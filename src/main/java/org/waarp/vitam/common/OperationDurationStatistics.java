@@ -0,0 +1,352 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import fr.gouv.vitam.common.exception.InvalidParseOperationException;
+import fr.gouv.vitam.common.json.JsonHandler;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.*;
+
+/**
+ * Observed completion times of Vitam operations, by kind of operation (see
+ * {@link AbstractVitamRequest#getOperationKey()}), used to schedule the
+ * checks of operation status.<br>
+ * <br>
+ * Once an operation is submitted, no check is done before the 10th
+ * percentile of observed durations, then checks are spread until the 90th
+ * percentile, then done at each Monitor cycle. Checks on not yet finished
+ * operations are counted as wasted in {@link WaarpVitamMetrics}, in total
+ * and per kind of operation for the first {@value #MAX_METRIC_KEYS} kinds
+ * (the others being counted together as {@value #OTHER_KEY}).<br>
+ * <br>
+ * The durations are saved into {@value #FILENAME} within the directory of
+ * the requests of the Monitor (see {@link #setFile(File)}), so that they are
+ * kept when the Monitor is restarted.
+ */
+public final class OperationDurationStatistics {
+  /**
+   * Minimum number of samples before using statistics
+   */
+  public static final String ORG_WAARP_VITAM_POLLING_MIN_SAMPLES =
+      "org.waarp.vitam.polling.minsamples";
+  /**
+   * Metric name for checks done while operation not finished
+   */
+  public static final String WASTED_CHECKS = "operation.check.wasted";
+  /**
+   * Metric name for checks deferred according to statistics
+   */
+  public static final String DEFERRED_CHECKS = "operation.check.deferred";
+  /**
+   * Name of the file keeping the durations within the directory of requests
+   */
+  public static final String FILENAME = "operation-durations.json";
+  static final int DEFAULT_MIN_SAMPLES = 5;
+  /**
+   * Maximum number of kinds of operation with their own wasted checks metric
+   */
+  static final int MAX_METRIC_KEYS = 32;
+  static final String OTHER_KEY = "other";
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(OperationDurationStatistics.class);
+  static final int CAPACITY = 128;
+  private static final int STEPS = 8;
+  private static final OperationDurationStatistics INSTANCE =
+      new OperationDurationStatistics();
+
+  private final ConcurrentHashMap<String, Durations> durations =
+      new ConcurrentHashMap<>();
+  private final Set<String> metricKeys = ConcurrentHashMap.newKeySet();
+  private final int minSamples;
+  private File file;
+
+  private OperationDurationStatistics() {
+    this(SystemPropertyUtil
+             .getInt(ORG_WAARP_VITAM_POLLING_MIN_SAMPLES, DEFAULT_MIN_SAMPLES));
+  }
+
+  /**
+   * @param minSamples minimum number of samples before using statistics
+   */
+  OperationDurationStatistics(final int minSamples) {
+    this.minSamples = minSamples;
+  }
+
+  /**
+   * @return the instance of the statistics
+   */
+  public static OperationDurationStatistics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Load the durations saved into this file if any, then save them into it
+   * once changed
+   *
+   * @param file the file of durations, null for none
+   */
+  public synchronized void setFile(final File file) {
+    this.file = file;
+    if (file == null || !file.canRead()) {
+      return;
+    }
+    try {
+      final JsonNode node = JsonHandler.getFromFile(file);
+      final Iterator<Entry<String, JsonNode>> iterator = node.fields();
+      while (iterator.hasNext()) {
+        final Entry<String, JsonNode> entry = iterator.next();
+        final Durations observed =
+            durations.computeIfAbsent(entry.getKey(), k -> new Durations());
+        for (JsonNode duration : entry.getValue()) {
+          observed.add(duration.asLong());
+        }
+      }
+      logger.info("Operation durations loaded from {}", file);
+    } catch (InvalidParseOperationException e) {
+      logger.warn("Cannot load operation durations from {}", file, e);
+    }
+  }
+
+  /**
+   * Forget all durations in memory
+   */
+  public void clear() {
+    durations.clear();
+  }
+
+  /**
+   * Save the durations into the file if any
+   */
+  private synchronized void save() {
+    if (file == null) {
+      return;
+    }
+    final ObjectNode node = JsonHandler.createObjectNode();
+    for (Entry<String, Durations> entry : durations.entrySet()) {
+      final ArrayNode values = node.putArray(entry.getKey());
+      for (long duration : entry.getValue().getValues()) {
+        values.add(duration);
+      }
+    }
+    final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    try {
+      JsonHandler.writeAsFile(node, tmp);
+      Files.move(tmp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    } catch (InvalidParseOperationException | IOException e) {
+      logger.warn("Cannot save operation durations into {}", file, e);
+    }
+  }
+
+  /**
+   * Set the start of the operation and the time of its first check according
+   * to statistics
+   *
+   * @param request
+   */
+  public void onSubmitted(final AbstractVitamRequest request) {
+    final long now = System.currentTimeMillis();
+    request.setOperationStartTime(now);
+    final long delay = getNextCheckDelay(request.getOperationKey(), 0);
+    request.setNextCheckTime(delay > 0? now + delay : 0);
+  }
+
+  /**
+   * @param request
+   *
+   * @return True if the operation status shall be checked now
+   */
+  public boolean isCheckDue(final AbstractVitamRequest request) {
+    if (request.getNextCheckTime() <= System.currentTimeMillis()) {
+      return true;
+    }
+    WaarpVitamMetrics.getInstance().increment(DEFERRED_CHECKS);
+    return false;
+  }
+
+  /**
+   * Record the duration of the operation once finished
+   *
+   * @param request
+   */
+  public void onCheckDone(final AbstractVitamRequest request) {
+    final long start = request.getOperationStartTime();
+    request.setNextCheckTime(0);
+    if (start <= 0) {
+      // Already recorded or unknown
+      return;
+    }
+    final long duration = System.currentTimeMillis() - start;
+    record(request.getOperationKey(), duration);
+    request.setOperationStartTime(0);
+    logger.debug("Operation {} done in {} ms", request.getOperationKey(),
+                 duration);
+  }
+
+  /**
+   * @param key the kind of operation
+   * @param duration the observed duration in ms
+   */
+  void record(final String key, final long duration) {
+    durations.computeIfAbsent(key, k -> new Durations()).add(duration);
+    save();
+  }
+
+  /**
+   * Count a wasted check and set the time of the next check according to
+   * statistics
+   *
+   * @param request
+   */
+  public void onCheckNotDone(final AbstractVitamRequest request) {
+    final String key = request.getOperationKey();
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    metrics.increment(WASTED_CHECKS);
+    metrics.increment(WASTED_CHECKS + '.' + getMetricKey(key));
+    final long start = request.getOperationStartTime();
+    if (start <= 0) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    final long delay = getNextCheckDelay(key, now - start);
+    request.setNextCheckTime(delay > 0? now + delay : 0);
+  }
+
+  /**
+   * @param key the kind of operation
+   *
+   * @return the key itself within the first {@link #MAX_METRIC_KEYS} ones,
+   *     else {@link #OTHER_KEY}
+   */
+  String getMetricKey(final String key) {
+    if (metricKeys.contains(key)) {
+      return key;
+    }
+    synchronized (metricKeys) {
+      if (metricKeys.size() < MAX_METRIC_KEYS) {
+        metricKeys.add(key);
+        return key;
+      }
+    }
+    return OTHER_KEY;
+  }
+
+  /**
+   * @param key the kind of operation
+   * @param elapsed the time elapsed since operation submission
+   *
+   * @return the delay in ms before next useful check (0 for next cycle)
+   */
+  long getNextCheckDelay(final String key, final long elapsed) {
+    final Durations observed = durations.get(key);
+    if (observed == null) {
+      return 0;
+    }
+    final long[] sorted = observed.getSorted();
+    if (sorted.length < minSamples) {
+      return 0;
+    }
+    final long low = percentile(sorted, 10);
+    final long high = percentile(sorted, 90);
+    if (elapsed < low) {
+      return low - elapsed;
+    }
+    if (elapsed < high) {
+      return Math.min((high - low) / STEPS, high - elapsed);
+    }
+    return 0;
+  }
+
+  /**
+   * @param key the kind of operation
+   * @param percent between 0 and 100
+   *
+   * @return the observed percentile, or -1 if no statistics
+   */
+  public long getPercentile(final String key, final int percent) {
+    final Durations observed = durations.get(key);
+    if (observed == null) {
+      return -1;
+    }
+    final long[] sorted = observed.getSorted();
+    if (sorted.length == 0) {
+      return -1;
+    }
+    return percentile(sorted, percent);
+  }
+
+  private static long percentile(final long[] sorted, final int percent) {
+    final int rank = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+  }
+
+  /**
+   * Bounded ring of the last observed durations
+   */
+  private static class Durations {
+    private final long[] values = new long[CAPACITY];
+    private int count;
+    private int next;
+
+    synchronized void add(final long duration) {
+      values[next] = duration;
+      next = (next + 1) % CAPACITY;
+      if (count < CAPACITY) {
+        count++;
+      }
+    }
+
+    /**
+     * @return the durations from the oldest to the newest
+     */
+    synchronized long[] getValues() {
+      final long[] ordered = new long[count];
+      final int first = count < CAPACITY? 0 : next;
+      for (int i = 0; i < count; i++) {
+        ordered[i] = values[(first + i) % CAPACITY];
+      }
+      return ordered;
+    }
+
+    synchronized long[] getSorted() {
+      final long[] sorted = Arrays.copyOf(values, count);
+      Arrays.sort(sorted);
+      return sorted;
+    }
+  }
+}
@@ -0,0 +1,433 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common;
+
+import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonSetter;
+import fr.gouv.vitam.common.exception.InvalidParseOperationException;
+import fr.gouv.vitam.common.json.JsonHandler;
+import fr.gouv.vitam.common.model.ItemStatus;
+import fr.gouv.vitam.common.model.ProcessState;
+import fr.gouv.vitam.common.model.StatusCode;
+import org.waarp.common.logging.SysErrLogger;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.*;
+
+/**
+ * Process-wide cache of Vitam operation status (ItemStatus) per tenant and
+ * requestId.<br>
+ * <br>
+ * Running operations are kept for a short TTL while terminal ones
+ * (COMPLETED, KO or FATAL) are kept until explicitly removed. If a cache
+ * directory is set (property {@link #ORG_WAARP_VITAM_OPERATION_CACHE_DIR}),
+ * entries are also shared between processes (Monitors and OperationCheck
+ * command line). Since entries written by OperationCheck are never removed,
+ * files older than {@link #ORG_WAARP_VITAM_OPERATION_CACHE_MAXAGE} ms are
+ * deleted from this directory.
+ */
+public final class OperationStatusCache {
+  /**
+   * TTL in ms for running operations (0 means no cache for them)
+   */
+  public static final String ORG_WAARP_VITAM_OPERATION_CACHE_TTL =
+      "org.waarp.vitam.operation.cache.ttl";
+  /**
+   * Optional directory to share the cache between processes
+   */
+  public static final String ORG_WAARP_VITAM_OPERATION_CACHE_DIR =
+      "org.waarp.vitam.operation.cache.dir";
+  /**
+   * Maximum number of entries kept in memory
+   */
+  public static final String ORG_WAARP_VITAM_OPERATION_CACHE_MAX =
+      "org.waarp.vitam.operation.cache.max";
+  /**
+   * Age in ms after which files of the cache directory are deleted (0 for
+   * never)
+   */
+  public static final String ORG_WAARP_VITAM_OPERATION_CACHE_MAXAGE =
+      "org.waarp.vitam.operation.cache.maxage";
+  static final long DEFAULT_TTL = 1000;
+  static final int DEFAULT_MAX = 10000;
+  static final long DEFAULT_MAXAGE = 86400000;
+  /**
+   * Maximum interval in ms between two cleanups of the cache directory
+   */
+  private static final long PURGE_INTERVAL = 3600000;
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(OperationStatusCache.class);
+  private static final String EXTENSION = ".json";
+  private static final String TMP_EXTENSION = ".tmp";
+  private static final OperationStatusCache INSTANCE =
+      new OperationStatusCache();
+
+  private final ConcurrentHashMap<String, CachedStatus> cache =
+      new ConcurrentHashMap<>();
+  private final int maxEntries;
+  private final long maxAge;
+  private volatile long ttl;
+  private volatile File cacheDir;
+  private volatile long lastPurge = System.currentTimeMillis();
+
+  private OperationStatusCache() {
+    this(SystemPropertyUtil
+             .getLong(ORG_WAARP_VITAM_OPERATION_CACHE_TTL, DEFAULT_TTL),
+         SystemPropertyUtil
+             .getInt(ORG_WAARP_VITAM_OPERATION_CACHE_MAX, DEFAULT_MAX),
+         SystemPropertyUtil
+             .getLong(ORG_WAARP_VITAM_OPERATION_CACHE_MAXAGE, DEFAULT_MAXAGE));
+    final String dir =
+        SystemPropertyUtil.get(ORG_WAARP_VITAM_OPERATION_CACHE_DIR, null);
+    if (dir != null && !dir.isEmpty()) {
+      setCacheDir(new File(dir));
+    }
+  }
+
+  /**
+   * @param ttl the TTL in ms for running operations (0 to disable)
+   * @param maxEntries maximum number of entries kept in memory
+   * @param maxAge age in ms after which files of the cache directory are
+   *     deleted (0 for never)
+   */
+  OperationStatusCache(final long ttl, final int maxEntries,
+                       final long maxAge) {
+    this.ttl = ttl;
+    this.maxEntries = maxEntries;
+    this.maxAge = maxAge;
+  }
+
+  /**
+   * @return the instance of the cache
+   */
+  public static OperationStatusCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param itemStatus
+   *
+   * @return True if the operation is in a terminal state (COMPLETED, KO or
+   *     FATAL)
+   */
+  public static boolean isTerminal(ItemStatus itemStatus) {
+    final StatusCode statusCode = itemStatus.getGlobalStatus();
+    return itemStatus.getGlobalState() == ProcessState.COMPLETED ||
+           statusCode == StatusCode.KO || statusCode == StatusCode.FATAL;
+  }
+
+  /**
+   * Same logic than VitamPoolingClient
+   *
+   * @param itemStatus
+   *
+   * @return True if the operation is done from Waarp point of view
+   */
+  public static boolean isAvailable(ItemStatus itemStatus) {
+    final ProcessState processState = itemStatus.getGlobalState();
+    final StatusCode statusCode = itemStatus.getGlobalStatus();
+    if (processState == null) {
+      return false;
+    }
+    switch (processState) {
+      case COMPLETED:
+        return true;
+      case PAUSE:
+        return statusCode != null &&
+               StatusCode.STARTED.compareTo(statusCode) <= 0;
+      case RUNNING:
+        return statusCode != null &&
+               StatusCode.STARTED.compareTo(statusCode) < 0;
+      default:
+        return false;
+    }
+  }
+
+  private static String getKey(int tenantId, String requestId) {
+    return tenantId + "_" + requestId;
+  }
+
+  /**
+   * @param ttl the TTL in ms for running operations (0 to disable)
+   *
+   * @return this
+   */
+  public OperationStatusCache setTtl(final long ttl) {
+    this.ttl = ttl;
+    return this;
+  }
+
+  /**
+   * @return the TTL in ms for running operations
+   */
+  public long getTtl() {
+    return ttl;
+  }
+
+  /**
+   * @param cacheDirToSet the directory to share the cache between
+   *     processes, or null to keep it in memory only
+   *
+   * @return this
+   */
+  public OperationStatusCache setCacheDir(final File cacheDirToSet) {
+    if (cacheDirToSet != null) {
+      cacheDirToSet.mkdirs();
+    }
+    cacheDir = cacheDirToSet;
+    return this;
+  }
+
+  /**
+   * @return the current shared cache directory if any
+   */
+  public File getCacheDir() {
+    return cacheDir;
+  }
+
+  /**
+   * @param tenantId
+   * @param requestId
+   *
+   * @return the cached ItemStatus, or null if absent or expired
+   */
+  public ItemStatus get(final int tenantId, final String requestId) {
+    final String key = getKey(tenantId, requestId);
+    CachedStatus cachedStatus = cache.get(key);
+    if (cachedStatus == null) {
+      cachedStatus = load(key);
+      if (cachedStatus == null) {
+        return null;
+      }
+      cache.put(key, cachedStatus);
+    }
+    if (cachedStatus.isExpired()) {
+      cache.remove(key, cachedStatus);
+      return null;
+    }
+    return cachedStatus.getItemStatus();
+  }
+
+  /**
+   * Cache the ItemStatus for this operation
+   *
+   * @param tenantId
+   * @param requestId
+   * @param itemStatus
+   */
+  public void put(final int tenantId, final String requestId,
+                  final ItemStatus itemStatus) {
+    final boolean terminal = isTerminal(itemStatus);
+    if (!terminal && ttl <= 0) {
+      return;
+    }
+    final long expireTime = terminal? 0 : System.currentTimeMillis() + ttl;
+    final CachedStatus cachedStatus =
+        new CachedStatus().setItemStatus(itemStatus).setExpireTime(expireTime);
+    final String key = getKey(tenantId, requestId);
+    if (cache.size() >= maxEntries) {
+      purge();
+    }
+    cache.put(key, cachedStatus);
+    store(key, cachedStatus);
+    if (maxAge > 0 && System.currentTimeMillis() - lastPurge >
+                      Math.min(maxAge, PURGE_INTERVAL)) {
+      purgeDirectory();
+    }
+  }
+
+  /**
+   * Remove this operation from the cache (once the request is over)
+   *
+   * @param tenantId
+   * @param requestId
+   */
+  public void remove(final int tenantId, final String requestId) {
+    if (requestId == null) {
+      return;
+    }
+    final String key = getKey(tenantId, requestId);
+    cache.remove(key);
+    final File dir = cacheDir;
+    if (dir != null) {
+      final File file = new File(dir, key + EXTENSION);
+      try {
+        Files.deleteIfExists(file.toPath());
+      } catch (IOException e) {
+        logger.debug("Cannot delete cached status {}", file, e);
+      }
+    }
+  }
+
+  /**
+   * Clear the memory part of the cache
+   */
+  public void clear() {
+    cache.clear();
+  }
+
+  /**
+   * @return the number of entries in memory
+   */
+  int size() {
+    return cache.size();
+  }
+
+  /**
+   * Remove expired entries, and if still too many, all of them
+   */
+  void purge() {
+    final Iterator<Entry<String, CachedStatus>> iterator =
+        cache.entrySet().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().getValue().isExpired()) {
+        iterator.remove();
+      }
+    }
+    if (cache.size() >= maxEntries) {
+      logger.info("Operation status cache full, clearing {} entries",
+                  cache.size());
+      cache.clear();
+    }
+  }
+
+  /**
+   * Delete the files of the cache directory older than the maximum age,
+   * including the ones written by other processes
+   */
+  void purgeDirectory() {
+    final long now = System.currentTimeMillis();
+    lastPurge = now;
+    final File dir = cacheDir;
+    if (dir == null || maxAge <= 0) {
+      return;
+    }
+    final File[] files = dir.listFiles(
+        (directory, name) -> name.endsWith(EXTENSION) ||
+                             name.endsWith(TMP_EXTENSION));
+    if (files == null) {
+      return;
+    }
+    int deleted = 0;
+    for (File file : files) {
+      if (now - file.lastModified() > maxAge) {
+        try {
+          Files.deleteIfExists(file.toPath());
+          deleted++;
+        } catch (IOException e) {
+          logger.debug("Cannot delete cached status {}", file, e);
+        }
+      }
+    }
+    logger.debug("{} old cached status deleted from {}", deleted, dir);
+  }
+
+  private CachedStatus load(final String key) {
+    final File dir = cacheDir;
+    if (dir == null) {
+      return null;
+    }
+    final File file = new File(dir, key + EXTENSION);
+    if (!file.canRead()) {
+      return null;
+    }
+    try {
+      return JsonHandler.getFromFile(file, CachedStatus.class);
+    } catch (InvalidParseOperationException e) {
+      // File could be written or deleted concurrently
+      SysErrLogger.FAKE_LOGGER.ignoreLog(e);
+      return null;
+    }
+  }
+
+  private void store(final String key, final CachedStatus cachedStatus) {
+    final File dir = cacheDir;
+    if (dir == null) {
+      return;
+    }
+    final File tmp = new File(dir, key + TMP_EXTENSION);
+    final File file = new File(dir, key + EXTENSION);
+    try {
+      JsonHandler.writeAsFile(cachedStatus, tmp);
+      Files.move(tmp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    } catch (InvalidParseOperationException | IOException e) {
+      logger.info("Cannot share cached status {}", file, e);
+    }
+  }
+
+  /**
+   * Cached entry, also used for JSON sharing between processes
+   */
+  static class CachedStatus {
+    @JsonProperty("itemStatus")
+    private ItemStatus itemStatus;
+    @JsonProperty("expireTime")
+    private long expireTime;
+
+    public CachedStatus() {
+      // Empty constructor for Json
+    }
+
+    @JsonGetter("itemStatus")
+    public ItemStatus getItemStatus() {
+      return itemStatus;
+    }
+
+    @JsonSetter("itemStatus")
+    public CachedStatus setItemStatus(final ItemStatus itemStatus) {
+      this.itemStatus = itemStatus;
+      return this;
+    }
+
+    /**
+     * @return the expiration time in ms, 0 meaning never
+     */
+    @JsonGetter("expireTime")
+    public long getExpireTime() {
+      return expireTime;
+    }
+
+    @JsonSetter("expireTime")
+    public CachedStatus setExpireTime(final long expireTime) {
+      this.expireTime = expireTime;
+      return this;
+    }
+
+    @JsonIgnore
+    boolean isExpired() {
+      return expireTime > 0 && expireTime < System.currentTimeMillis();
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable polling policy for Vitam operation checks: number of retries,
+ * initial delay, backoff factor, maximum delay and overall deadline.<br>
+ * <br>
+ * A policy can be set per Manager (hence per step), and overridden per
+ * tenant either by {@link #setTenantPolicy(int, PollingPolicy)} or by the
+ * property {@value #ORG_WAARP_VITAM_POLLING_TENANT}tenantId with value
+ * "retry,delay[,backoff[,maxDelay[,deadline]]]".
+ */
+public final class PollingPolicy {
+  /**
+   * Prefix of the property for a tenant specific policy
+   */
+  public static final String ORG_WAARP_VITAM_POLLING_TENANT =
+      "org.waarp.vitam.polling.tenant.";
+  /**
+   * Default number of retries
+   */
+  public static final int DEFAULT_RETRY = 3;
+  /**
+   * Default delay in ms between 2 retries
+   */
+  public static final long DEFAULT_DELAY = 100;
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(PollingPolicy.class);
+  private static final ConcurrentHashMap<Integer, PollingPolicy>
+      tenantPolicies = new ConcurrentHashMap<>();
+  private static volatile PollingPolicy defaultPolicy =
+      new PollingPolicy(DEFAULT_RETRY, DEFAULT_DELAY);
+
+  private final int retry;
+  private final long delay;
+  private final double backoff;
+  private final long maxDelay;
+  private final long deadline;
+
+  /**
+   * Constant delay policy without deadline
+   *
+   * @param retry number of tries, at least 1
+   * @param delay delay in ms between 2 tries
+   */
+  public PollingPolicy(final int retry, final long delay) {
+    this(retry, delay, 1.0, delay, 0);
+  }
+
+  /**
+   * @param retry number of tries, at least 1
+   * @param delay initial delay in ms between 2 tries
+   * @param backoff factor applied to the delay after each try, at least 1
+   * @param maxDelay maximum delay in ms between 2 tries
+   * @param deadline maximum total time in ms for one check, 0 for none
+   */
+  public PollingPolicy(final int retry, final long delay, final double backoff,
+                       final long maxDelay, final long deadline) {
+    if (retry < 1 || delay < 0 || backoff < 1.0 || maxDelay < delay ||
+        deadline < 0) {
+      throw new IllegalArgumentException("Incorrect polling policy");
+    }
+    this.retry = retry;
+    this.delay = delay;
+    this.backoff = backoff;
+    this.maxDelay = maxDelay;
+    this.deadline = deadline;
+  }
+
+  /**
+   * @param value as "retry,delay[,backoff[,maxDelay[,deadline]]]"
+   *
+   * @return the corresponding PollingPolicy
+   *
+   * @throws IllegalArgumentException if the value is incorrect
+   */
+  public static PollingPolicy parse(final String value) {
+    final String[] args = value.split(",");
+    try {
+      final int retry = Integer.parseInt(args[0].trim());
+      final long delay =
+          args.length > 1? Long.parseLong(args[1].trim()) : DEFAULT_DELAY;
+      final double backoff =
+          args.length > 2? Double.parseDouble(args[2].trim()) : 1.0;
+      final long maxDelay =
+          args.length > 3? Long.parseLong(args[3].trim()) : delay;
+      if (backoff > 1.0 && args.length <= 3) {
+        throw new IllegalArgumentException(
+            "Incorrect polling policy, backoff needs a maxDelay: " + value);
+      }
+      final long deadline = args.length > 4? Long.parseLong(args[4].trim()) : 0;
+      return new PollingPolicy(retry, delay, backoff, maxDelay, deadline);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Incorrect polling policy: " + value,
+                                         e);
+    }
+  }
+
+  /**
+   * @return the default policy
+   */
+  public static PollingPolicy getDefault() {
+    return defaultPolicy;
+  }
+
+  /**
+   * @param policy the new default policy
+   */
+  public static void setDefault(final PollingPolicy policy) {
+    defaultPolicy = policy;
+  }
+
+  /**
+   * @param tenantId
+   * @param policy the policy for this tenant, or null to remove it
+   */
+  public static void setTenantPolicy(final int tenantId,
+                                     final PollingPolicy policy) {
+    if (policy == null) {
+      tenantPolicies.remove(tenantId);
+    } else {
+      tenantPolicies.put(tenantId, policy);
+    }
+  }
+
+  /**
+   * @param tenantId
+   *
+   * @return the tenant specific policy if any, else null
+   */
+  public static PollingPolicy getTenantPolicy(final int tenantId) {
+    PollingPolicy policy = tenantPolicies.get(tenantId);
+    if (policy == null) {
+      final String value =
+          SystemPropertyUtil.get(ORG_WAARP_VITAM_POLLING_TENANT + tenantId, null);
+      if (value != null && !value.isEmpty()) {
+        try {
+          policy = parse(value);
+          tenantPolicies.putIfAbsent(tenantId, policy);
+        } catch (IllegalArgumentException e) {
+          logger.error("Tenant {} polling policy ignored", tenantId, e);
+        }
+      }
+    }
+    return policy;
+  }
+
+  /**
+   * @param managerPolicy the policy of the Manager, possibly null
+   * @param tenantId
+   *
+   * @return the tenant policy if any, else the manager one if any, else the
+   *     default one
+   */
+  public static PollingPolicy resolve(final PollingPolicy managerPolicy,
+                                      final int tenantId) {
+    final PollingPolicy policy = getTenantPolicy(tenantId);
+    if (policy != null) {
+      return policy;
+    }
+    return managerPolicy != null? managerPolicy : defaultPolicy;
+  }
+
+  /**
+   * @param tryRank the rank of the try that failed, starting at 1
+   *
+   * @return the delay in ms before the next try
+   */
+  public long getDelay(final int tryRank) {
+    double next = delay;
+    for (int i = 1; i < tryRank && next < maxDelay; i++) {
+      next *= backoff;
+    }
+    return Math.min((long) next, maxDelay);
+  }
+
+  public int getRetry() {
+    return retry;
+  }
+
+  public long getDelay() {
+    return delay;
+  }
+
+  public double getBackoff() {
+    return backoff;
+  }
+
+  public long getMaxDelay() {
+    return maxDelay;
+  }
+
+  public long getDeadline() {
+    return deadline;
+  }
+
+  @Override
+  public String toString() {
+    return "PollingPolicy: retry=" + retry + " delay=" + delay + " backoff=" +
+           backoff + " maxDelay=" + maxDelay + " deadline=" + deadline;
+  }
+}
@@ -0,0 +1,355 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage tiers used to spool ATR and DIP files, chosen according to the
+ * expected size of each file.<br>
+ * <br>
+ * Tiers are configured by {@value #ORG_WAARP_VITAM_STORAGE_TIERS} as
+ * "directory,maxFileSize,quota;directory2,maxFileSize2,quota2", sizes in
+ * bytes, 0 meaning unlimited. A file goes to the first tier accepting its
+ * size, so small tiers (as a local SSD or tmpfs) are to be declared first.
+ * Before a download starts, its expected size is reserved within the tier
+ * if both the quota of the tier (against the total size of the files
+ * already within its directory, requests and selections excluded) and the
+ * free space of its volume (minus {@value #ORG_WAARP_VITAM_STORAGE_MINFREE})
+ * allow it, taking into account the other downloads in progress. The full
+ * expected size stays reserved until the download is over, whatever is
+ * already written (as the file may be preallocated).<br>
+ * If not set, a single unlimited tier is used, the work directory of the
+ * factory.
+ */
+public class StorageTiers {
+  /**
+   * Storage tiers as "directory,maxFileSize,quota;..."
+   */
+  public static final String ORG_WAARP_VITAM_STORAGE_TIERS =
+      "org.waarp.vitam.storage.tiers";
+  /**
+   * Size to use when the size of a file is unknown
+   */
+  public static final long UNKNOWN_SIZE = -1;
+  /**
+   * Free space in bytes to keep on each volume (default 0)
+   */
+  public static final String ORG_WAARP_VITAM_STORAGE_MINFREE =
+      "org.waarp.vitam.storage.minfree";
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(StorageTiers.class);
+  /**
+   * Extensions of the files within a tier that are not spooled files
+   * (requests, manifests, selections)
+   */
+  private static final String[] NOT_PAYLOAD = { ".json", ".dsl" };
+
+  private final List<Tier> tiers;
+  private final Map<String, Reservation> reservations = new HashMap<>();
+  private final long minFree;
+
+  /**
+   * @param tiers the tiers, the smallest ones first
+   * @param minFree the free space in bytes to keep on each volume
+   */
+  StorageTiers(final List<Tier> tiers, final long minFree) {
+    this.tiers = Collections.unmodifiableList(tiers);
+    this.minFree = minFree;
+    for (Tier tier : tiers) {
+      tier.directory.mkdirs();
+    }
+  }
+
+  /**
+   * @param workDir the directory to use if no tier is configured
+   *
+   * @return the StorageTiers configured from properties
+   */
+  public static StorageTiers getStorageTiers(final File workDir) {
+    return parse(SystemPropertyUtil.get(ORG_WAARP_VITAM_STORAGE_TIERS, null),
+                 workDir, SystemPropertyUtil
+                     .getLong(ORG_WAARP_VITAM_STORAGE_MINFREE, 0));
+  }
+
+  /**
+   * @param definition "directory,maxFileSize,quota;..."
+   * @param workDir the directory to use if no tier is configured
+   * @param minFree the free space in bytes to keep on each volume
+   *
+   * @return the StorageTiers from this definition
+   */
+  static StorageTiers parse(final String definition, final File workDir,
+                            final long minFree) {
+    final List<Tier> list = new ArrayList<>();
+    if (definition != null && !definition.trim().isEmpty()) {
+      for (String item : definition.split(";")) {
+        final String[] values = item.trim().split(",");
+        try {
+          list.add(new Tier(new File(values[0].trim()),
+                            values.length > 1?
+                                Long.parseLong(values[1].trim()) : 0,
+                            values.length > 2?
+                                Long.parseLong(values[2].trim()) : 0));
+        } catch (NumberFormatException e) {
+          logger.error("Storage tier ignored since incorrect: {}", item, e);
+        }
+      }
+    }
+    if (list.isEmpty()) {
+      list.add(new Tier(workDir, 0, 0));
+    }
+    return new StorageTiers(list, minFree);
+  }
+
+  /**
+   * Get the File with this name, without quota check
+   *
+   * @param name the name of the file
+   * @param size the expected size of the file, {@link #UNKNOWN_SIZE} if
+   *     unknown
+   *
+   * @return the existing File within any tier, else the File within the
+   *     first tier accepting this size
+   */
+  public File getFile(final String name, final long size) {
+    final File existing = getExisting(name);
+    if (existing != null) {
+      return existing;
+    }
+    for (Tier tier : tiers) {
+      if (tier.accepts(size)) {
+        return new File(tier.directory, name);
+      }
+    }
+    return new File(tiers.get(tiers.size() - 1).directory, name);
+  }
+
+  /**
+   * @return the directories of the tiers, the smallest tiers first
+   */
+  public List<File> getDirectories() {
+    final List<File> directories = new ArrayList<>(tiers.size());
+    for (Tier tier : tiers) {
+      directories.add(tier.directory);
+    }
+    return directories;
+  }
+
+  /**
+   * Allocate the File with this name before a download, reserving its
+   * expected size until {@link #release(String)} is called, so that
+   * concurrent downloads cannot fill the volume or the quota together
+   *
+   * @param name the name of the file
+   * @param size the expected size of the file, {@link #UNKNOWN_SIZE} if
+   *     unknown
+   *
+   * @return the existing File within any tier (observed size kept), else
+   *     the File within the first tier accepting this size within its quota
+   *     and the free space of its volume
+   *
+   * @throws QuotaExceededException if no tier can accept this size now
+   */
+  public synchronized File allocate(final String name, final long size)
+      throws QuotaExceededException {
+    // A new reservation replaces the previous one for the same file
+    reservations.remove(name);
+    final File existing = getExisting(name);
+    for (Tier tier : tiers) {
+      if (existing != null) {
+        if (!existing.getParentFile().equals(tier.directory)) {
+          continue;
+        }
+      } else if (!tier.accepts(size)) {
+        continue;
+      }
+      final File file =
+          existing != null? existing : new File(tier.directory, name);
+      final Reservation reservation = new Reservation(tier, size);
+      if (hasRoom(tier, name, reservation.getReserved())) {
+        reservations.put(name, reservation);
+        return file;
+      }
+      if (existing != null) {
+        break;
+      }
+    }
+    throw new QuotaExceededException(
+        "No storage tier has room for " + name + " of size " + size);
+  }
+
+  /**
+   * Release the reservation done by {@link #allocate(String, long)}
+   *
+   * @param name the name of the file
+   */
+  public synchronized void release(final String name) {
+    reservations.remove(name);
+  }
+
+  /**
+   * @param tier
+   * @param name the name of the file to reserve
+   * @param size the number of bytes to reserve
+   *
+   * @return True if the quota of this tier and the free space of its volume
+   *     allow this size now, taking into account the current reservations
+   */
+  private boolean hasRoom(final Tier tier, final String name,
+                          final long size) {
+    long reserved = 0;
+    for (Reservation reservation : reservations.values()) {
+      if (reservation.tier == tier) {
+        reserved += reservation.getReserved();
+      }
+    }
+    if (tier.quota > 0 &&
+        tier.getUsed(name, reservations) + reserved + size > tier.quota) {
+      return false;
+    }
+    return tier.directory.getUsableSpace() - reserved - size >= minFree;
+  }
+
+  /**
+   * @param name
+   *
+   * @return True if the file is a spooled file, not a request or a selection
+   */
+  private static boolean isPayload(final String name) {
+    for (String extension : NOT_PAYLOAD) {
+      if (name.endsWith(extension)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private File getExisting(final String name) {
+    for (Tier tier : tiers) {
+      final File file = new File(tier.directory, name);
+      if (file.exists()) {
+        return file;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * One storage tier
+   */
+  static class Tier {
+    private final File directory;
+    private final long maxFileSize;
+    private final long quota;
+
+    /**
+     * @param directory the directory of the tier
+     * @param maxFileSize the maximum size of one file, 0 for unlimited
+     * @param quota the maximum total size of the files, 0 for unlimited
+     */
+    Tier(final File directory, final long maxFileSize, final long quota) {
+      this.directory = directory;
+      this.maxFileSize = maxFileSize;
+      this.quota = quota;
+    }
+
+    /**
+     * @param size the expected size, negative if unknown
+     *
+     * @return True if a file of this size may go to this tier
+     */
+    private boolean accepts(final long size) {
+      return maxFileSize <= 0 || size >= 0 && size <= maxFileSize;
+    }
+
+    /**
+     * @param name the name of the file being reserved
+     * @param reservations the current reservations
+     *
+     * @return the total size of the spooled files within this tier, except
+     *     those reserved (counted by their reservation)
+     */
+    private long getUsed(final String name,
+                         final Map<String, Reservation> reservations) {
+      final File[] files = directory.listFiles(File::isFile);
+      long used = 0;
+      if (files != null) {
+        for (File file : files) {
+          if (isPayload(file.getName()) && !file.getName().equals(name) &&
+              !reservations.containsKey(file.getName())) {
+            used += file.length();
+          }
+        }
+      }
+      return used;
+    }
+  }
+
+  /**
+   * Space reserved for one file being downloaded
+   */
+  private static class Reservation {
+    private final Tier tier;
+    private final long size;
+
+    private Reservation(final Tier tier, final long size) {
+      this.tier = tier;
+      this.size = size;
+    }
+
+    /**
+     * @return the number of bytes reserved, the file itself being not
+     *     counted within the used space until released
+     */
+    private long getReserved() {
+      return Math.max(0, size);
+    }
+  }
+
+  /**
+   * Exception raised when no storage tier has room for a file, so the
+   * download is to be retried later
+   */
+  public static class QuotaExceededException extends IOException {
+    private static final long serialVersionUID = 2486385102578926512L;
+
+    /**
+     * @param message
+     */
+    public QuotaExceededException(final String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * JVM-wide pool of Vitam external clients, one shared client per Vitam
+ * client factory.<br>
+ * <br>
+ * Each call to {@link #getClient(Object, Class, Supplier)} returns a lease on
+ * the shared client: closing the lease releases it without closing the
+ * underlying client, so that its HTTP connections (and their TLS sessions)
+ * are kept alive between Tasks running in the same Waarp R66 server. The
+ * number of concurrent leases per client is bounded by
+ * {@value #ORG_WAARP_VITAM_CLIENT_MAX}; when exhausted for longer than
+ * {@value #ORG_WAARP_VITAM_CLIENT_WAIT} ms, a dedicated client is returned.
+ * Shared clients not used for {@value #ORG_WAARP_VITAM_CLIENT_IDLE} ms are
+ * closed, and all of them are closed when the Monitor stops.
+ */
+public final class VitamClientPool {
+  /**
+   * False to disable the pool (one client per call)
+   */
+  public static final String ORG_WAARP_VITAM_CLIENT_POOL =
+      "org.waarp.vitam.client.pool";
+  /**
+   * Maximum number of concurrent leases per shared client
+   */
+  public static final String ORG_WAARP_VITAM_CLIENT_MAX =
+      "org.waarp.vitam.client.max";
+  /**
+   * Maximum time in ms to wait for a lease
+   */
+  public static final String ORG_WAARP_VITAM_CLIENT_WAIT =
+      "org.waarp.vitam.client.wait";
+  /**
+   * Idle time in ms before closing a shared client (0 for never)
+   */
+  public static final String ORG_WAARP_VITAM_CLIENT_IDLE =
+      "org.waarp.vitam.client.idle";
+  /**
+   * Metric name for shared clients created
+   */
+  public static final String CLIENT_CREATED = "vitam.client.created";
+  /**
+   * Metric name for leases on shared clients
+   */
+  public static final String CLIENT_LEASED = "vitam.client.leased";
+  /**
+   * Metric name for dedicated clients created when the pool is exhausted
+   */
+  public static final String CLIENT_DEDICATED = "vitam.client.dedicated";
+  static final int DEFAULT_MAX = 32;
+  static final long DEFAULT_WAIT = 10000;
+  static final long DEFAULT_IDLE = 300000;
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(VitamClientPool.class);
+  private static final String CLOSE = "close";
+  private static final VitamClientPool INSTANCE = new VitamClientPool();
+
+  private final ConcurrentHashMap<Object, SharedClient> clients =
+      new ConcurrentHashMap<>();
+  private final boolean enabled;
+  private final int maxLeases;
+  private final long wait;
+  private final long idle;
+
+  private VitamClientPool() {
+    enabled = SystemPropertyUtil.getBoolean(ORG_WAARP_VITAM_CLIENT_POOL, true);
+    maxLeases = Math.max(1, SystemPropertyUtil
+        .getInt(ORG_WAARP_VITAM_CLIENT_MAX, DEFAULT_MAX));
+    wait = SystemPropertyUtil.getLong(ORG_WAARP_VITAM_CLIENT_WAIT,
+                                      DEFAULT_WAIT);
+    idle = SystemPropertyUtil.getLong(ORG_WAARP_VITAM_CLIENT_IDLE,
+                                      DEFAULT_IDLE);
+  }
+
+  /**
+   * @return the instance of the pool
+   */
+  public static VitamClientPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param key the Vitam client factory the client comes from
+   * @param type the interface of the client
+   * @param supplier how to create a new client from the factory
+   * @param <T> the type of client
+   *
+   * @return a lease on the shared client, to close after use as any client
+   */
+  public <T extends AutoCloseable> T getClient(final Object key,
+                                               final Class<T> type,
+                                               final Supplier<T> supplier) {
+    if (!enabled) {
+      return supplier.get();
+    }
+    evictIdle();
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    try {
+      while (true) {
+        final SharedClient shared = clients.computeIfAbsent(key, k -> {
+          metrics.increment(CLIENT_CREATED);
+          return new SharedClient(supplier.get(), maxLeases);
+        });
+        if (!shared.permits.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+          logger.info("All {} leases on {} in use, dedicated client",
+                      maxLeases, type.getSimpleName());
+          metrics.increment(CLIENT_DEDICATED);
+          return supplier.get();
+        }
+        if (shared.closed) {
+          // Evicted concurrently
+          shared.permits.release();
+          continue;
+        }
+        shared.lastUse = System.currentTimeMillis();
+        metrics.increment(CLIENT_LEASED);
+        return lease(type, shared);
+      }
+    } catch (InterruptedException e) {//NOSONAR
+      logger.info(e);
+      metrics.increment(CLIENT_DEDICATED);
+      return supplier.get();
+    }
+  }
+
+  private <T> T lease(final Class<T> type, final SharedClient shared) {
+    final AtomicBoolean released = new AtomicBoolean(false);
+    final Object proxy = Proxy
+        .newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                          (target, method, args) -> {
+                            if (CLOSE.equals(method.getName()) &&
+                                method.getParameterCount() == 0) {
+                              if (released.compareAndSet(false, true)) {
+                                shared.lastUse = System.currentTimeMillis();
+                                shared.permits.release();
+                              }
+                              return null;
+                            }
+                            try {
+                              return method.invoke(shared.client, args);
+                            } catch (InvocationTargetException e) {
+                              throw e.getCause();
+                            }
+                          });
+    return type.cast(proxy);
+  }
+
+  /**
+   * Close the shared clients not leased and not used since idle time
+   */
+  private void evictIdle() {
+    if (idle <= 0) {
+      return;
+    }
+    final long limit = System.currentTimeMillis() - idle;
+    final Iterator<Entry<Object, SharedClient>> iterator =
+        clients.entrySet().iterator();
+    while (iterator.hasNext()) {
+      final SharedClient shared = iterator.next().getValue();
+      if (shared.lastUse < limit && shared.permits.tryAcquire(maxLeases)) {
+        shared.closed = true;
+        iterator.remove();
+        shared.permits.release(maxLeases);
+        shared.close();
+      }
+    }
+  }
+
+  /**
+   * Close all shared clients, whatever their leases
+   */
+  public void closeAll() {
+    final Iterator<Entry<Object, SharedClient>> iterator =
+        clients.entrySet().iterator();
+    while (iterator.hasNext()) {
+      final SharedClient shared = iterator.next().getValue();
+      shared.closed = true;
+      iterator.remove();
+      shared.close();
+    }
+  }
+
+  /**
+   * Shared client with its leases
+   */
+  private static class SharedClient {
+    private final AutoCloseable client;
+    private final Semaphore permits;
+    private volatile long lastUse = System.currentTimeMillis();
+    private volatile boolean closed;
+
+    private SharedClient(final AutoCloseable client, final int maxLeases) {
+      this.client = client;
+      permits = new Semaphore(maxLeases);
+    }
+
+    private void close() {
+      try {
+        client.close();
+      } catch (Exception e) {
+        logger.debug("Error while closing shared client", e);
+      }
+    }
+  }
+}
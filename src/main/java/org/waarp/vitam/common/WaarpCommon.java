@@ -51,8 +51,8 @@ public class WaarpCommon {
             .desc("(*) Waarp configuration file").build();
   private static final Option WAARP_MODEL =
       Option.builder("m").longOpt("model").hasArg(true).required(false).desc(
-          "Waarp model between R66 or a specific script file " +
-          "that do send to the partner").build();
+          "Waarp model between R66, R66_DIRECT, OUTBOX or a specific " +
+          "script file that do send to the partner").build();
   private static final Option WAARP_NR =
       Option.builder("w").longOpt("waarp").hasArg(true).required(false)
             .desc("(*) Waarp configuration file").build();
@@ -325,6 +325,7 @@ public class WaarpCommon {
     private final String stopFilePath;
     private final String waarpConfiguration;
     private final int elapseInSecond;
+    private PollingPolicy pollingPolicy;
 
     public MonitorOption(final String stopFilePath,
                          final String waarpConfiguration,
@@ -370,7 +371,19 @@ public class WaarpCommon {
              .addOption(Option.builder("d").longOpt("delay").hasArg(true)
                               .type(Number.class).desc(
                      "Delay between 2 retries for pooling in ms greater than " +
-                     "50 (default 100)").build());
+                     "50 (default 100)").build())
+             .addOption(Option.builder("b").longOpt("backoff").hasArg(true)
+                              .type(Number.class).desc(
+                     "Factor applied to the delay after each retry, at least" +
+                     " 1 (default 1), greater than 1 needs -x").build())
+             .addOption(Option.builder("x").longOpt("maxdelay").hasArg(true)
+                              .type(Number.class).desc(
+                     "Maximum delay between 2 retries in ms (default delay)")
+                              .build())
+             .addOption(Option.builder("l").longOpt("deadline").hasArg(true)
+                              .type(Number.class).desc(
+                     "Maximum time in ms for one check of operation, 0 for " +
+                     "none (default 0)").build());
     }
 
     /**
@@ -399,8 +412,27 @@ public class WaarpCommon {
       } else {
         elapseInSecond = 10;
       }
-      int retry = OperationCheck.getRetry();
-      int delay = OperationCheck.getDelay();
+      final MonitorOption monitorOption =
+          new MonitorOption(stopFilePath, waarpConfiguration, elapseInSecond);
+      if (cmd.hasOption('r') || cmd.hasOption('d') || cmd.hasOption('b') ||
+          cmd.hasOption('x') || cmd.hasOption('l')) {
+        monitorOption.pollingPolicy = getPollingPolicy(cmd);
+      }
+      return monitorOption;
+    }
+
+    /**
+     * @param cmd
+     *
+     * @return the PollingPolicy from CommandLine
+     *
+     * @throws ParseException
+     */
+    private static PollingPolicy getPollingPolicy(CommandLine cmd)
+        throws ParseException {
+      final PollingPolicy defaultPolicy = PollingPolicy.getDefault();
+      int retry = defaultPolicy.getRetry();
+      long delay = defaultPolicy.getDelay();
       if (cmd.hasOption('r')) {
         String sretry = cmd.getOptionValue('r');
         try {
@@ -423,9 +455,39 @@ public class WaarpCommon {
           throw new ParseException("Delay must be greater than 50");
         }
       }
-      OperationCheck.setRetry(retry, delay);
-      return new MonitorOption(stopFilePath, waarpConfiguration,
-                               elapseInSecond);
+      double backoff = 1.0;
+      if (cmd.hasOption('b')) {
+        try {
+          backoff = Double.parseDouble(cmd.getOptionValue('b'));
+        } catch (NumberFormatException e) {
+          throw new ParseException("Backoff must be a number");
+        }
+      }
+      long maxDelay = delay;
+      if (cmd.hasOption('x')) {
+        try {
+          maxDelay = Long.parseLong(cmd.getOptionValue('x'));
+        } catch (NumberFormatException e) {
+          throw new ParseException("Maximum delay must be an integer");
+        }
+      } else if (backoff > 1.0) {
+        // maxDelay would default to delay, leaving the backoff without effect
+        throw new ParseException(
+            "Backoff greater than 1 needs a maximum delay (-x)");
+      }
+      long deadline = 0;
+      if (cmd.hasOption('l')) {
+        try {
+          deadline = Long.parseLong(cmd.getOptionValue('l'));
+        } catch (NumberFormatException e) {
+          throw new ParseException("Deadline must be an integer");
+        }
+      }
+      try {
+        return new PollingPolicy(retry, delay, backoff, maxDelay, deadline);
+      } catch (IllegalArgumentException e) {
+        throw new ParseException(e.getMessage());
+      }
     }
 
     public String getStopFilePath() {
@@ -439,6 +501,13 @@ public class WaarpCommon {
     public int getElapseInSecond() {
       return elapseInSecond;
     }
+
+    /**
+     * @return the PollingPolicy from options, null if none specified
+     */
+    public PollingPolicy getPollingPolicy() {
+      return pollingPolicy;
+    }
   }
 
 }
@@ -0,0 +1,143 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters for Waarp-Vitam, exported through JMX as
+ * {@value #OBJECT_NAME}
+ */
+public final class WaarpVitamMetrics implements WaarpVitamMetricsMXBean {
+  /**
+   * JMX name of the metrics
+   */
+  public static final String OBJECT_NAME = "org.waarp.vitam:type=Metrics";
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(WaarpVitamMetrics.class);
+  private static final WaarpVitamMetrics INSTANCE = new WaarpVitamMetrics();
+
+  static {
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+                       .registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+    } catch (JMException e) {
+      logger.info("Metrics not registered in JMX", e);
+    }
+  }
+
+  private final ConcurrentHashMap<String, AtomicLong> counters =
+      new ConcurrentHashMap<>();
+
+  private WaarpVitamMetrics() {
+    // Singleton
+  }
+
+  /**
+   * @return the instance of the metrics
+   */
+  public static WaarpVitamMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  private AtomicLong getCounter(final String name) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      counter = counters.computeIfAbsent(name, key -> new AtomicLong());
+    }
+    return counter;
+  }
+
+  /**
+   * Increment by 1 the named counter
+   *
+   * @param name
+   */
+  public void increment(final String name) {
+    getCounter(name).incrementAndGet();
+  }
+
+  /**
+   * Add the value to the named counter
+   *
+   * @param name
+   * @param value
+   */
+  public void add(final String name, final long value) {
+    getCounter(name).addAndGet(value);
+  }
+
+  /**
+   * Keep the maximum between the current value and this one
+   *
+   * @param name
+   * @param value
+   */
+  public void max(final String name, final long value) {
+    final AtomicLong counter = getCounter(name);
+    long current = counter.get();
+    while (value > current && !counter.compareAndSet(current, value)) {
+      current = counter.get();
+    }
+  }
+
+  /**
+   * @param name
+   *
+   * @return the current value of the named counter
+   */
+  public long get(final String name) {
+    final AtomicLong counter = counters.get(name);
+    return counter == null? 0 : counter.get();
+  }
+
+  @Override
+  public Map<String, Long> getCounters() {
+    final Map<String, Long> map = new TreeMap<>();
+    for (final Entry<String, AtomicLong> entry : counters.entrySet()) {
+      map.put(entry.getKey(), entry.getValue().get());
+    }
+    return map;
+  }
+
+  @Override
+  public void reset() {
+    counters.clear();
+  }
+
+  @Override
+  public String toString() {
+    return "Metrics: " + getCounters();
+  }
+}
@@ -23,6 +23,7 @@ package org.waarp.vitam.common;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.common.utility.WaarpShutdownHook;
+import org.waarp.vitam.common.waarp.ManagerToWaarpFactory;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -50,6 +51,9 @@ public class WaarpVitamShutdownHook extends WaarpShutdownHook {
     } catch (IOException e) {
       logger.error(e);
     }
+    // Helpers, network and Vitam clients are not stopped by the JVM exit
+    ManagerToWaarpFactory.close();
+    VitamClientPool.getInstance().closeAll();
   }
 
   /**
@@ -0,0 +1,299 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common.waarp;
+
+import fr.gouv.vitam.common.exception.InvalidParseOperationException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+import org.waarp.vitam.common.AbstractVitamRequest;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide limiter of asynchronous forwards (see
+ * {@link ManagerToWaarp#sendBackInformationAsync}).<br>
+ * <br>
+ * Once a forward is started, the Manager thread is released: the request
+ * keeps its forward step (saved). When the transfer is over, its next step
+ * is queued and run by the next pass of the Manager (see
+ * {@link #runCompleted(Class)}), so never concurrently with the Manager
+ * threads working on the same requests. Forwards in progress are limited in
+ * total
+ * ({@link #ORG_WAARP_VITAM_FORWARD_MAX}) and per Waarp Partner
+ * ({@link #ORG_WAARP_VITAM_FORWARD_MAX_PARTNER}); above, the request is
+ * simply retried later on as any forward not done. A request has at most one
+ * forward in progress.
+ */
+public final class ForwardLimiter {
+  /**
+   * True to use asynchronous forwards when the ManagerToWaarp supports it
+   */
+  public static final String ORG_WAARP_VITAM_FORWARD_ASYNC =
+      "org.waarp.vitam.forward.async";
+  /**
+   * Maximum number of asynchronous forwards in progress
+   */
+  public static final String ORG_WAARP_VITAM_FORWARD_MAX =
+      "org.waarp.vitam.forward.max";
+  /**
+   * Maximum number of asynchronous forwards in progress per Waarp Partner
+   */
+  public static final String ORG_WAARP_VITAM_FORWARD_MAX_PARTNER =
+      "org.waarp.vitam.forward.max.partner";
+  /**
+   * Metric name for asynchronous forwards started
+   */
+  public static final String FORWARD_ASYNC = "waarp.forward.async";
+  /**
+   * Metric name for asynchronous forwards postponed due to limits
+   */
+  public static final String FORWARD_THROTTLED = "waarp.forward.throttled";
+  /**
+   * Metric name for the maximum number of forwards in progress at once
+   */
+  public static final String FORWARD_INFLIGHT_MAX =
+      "waarp.forward.inflight.max";
+  static final int DEFAULT_MAX = 64;
+  static final int DEFAULT_MAX_PARTNER = 16;
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(ForwardLimiter.class);
+  private static final ForwardLimiter INSTANCE = new ForwardLimiter(
+      SystemPropertyUtil.getBoolean(ORG_WAARP_VITAM_FORWARD_ASYNC, false),
+      SystemPropertyUtil.getInt(ORG_WAARP_VITAM_FORWARD_MAX, DEFAULT_MAX),
+      SystemPropertyUtil.getInt(ORG_WAARP_VITAM_FORWARD_MAX_PARTNER,
+                                DEFAULT_MAX_PARTNER));
+
+  private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+  private final ConcurrentHashMap<String, AtomicInteger> perPartner =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger total = new AtomicInteger();
+  private final ConcurrentHashMap<Class<?>, Queue<Completed>> completed =
+      new ConcurrentHashMap<>();
+  private final boolean async;
+  private final int max;
+  private final int maxPartner;
+
+  /**
+   * @param async
+   * @param max total limit, at least 1
+   * @param maxPartner limit per Waarp Partner, at least 1
+   */
+  ForwardLimiter(final boolean async, final int max, final int maxPartner) {
+    this.async = async;
+    this.max = Math.max(1, max);
+    this.maxPartner = Math.max(1, maxPartner);
+  }
+
+  /**
+   * @return the instance
+   */
+  public static ForwardLimiter getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param managerToWaarp
+   *
+   * @return True if forwards through this ManagerToWaarp shall be
+   *     asynchronous
+   */
+  public boolean isAsync(final ManagerToWaarp managerToWaarp) {
+    return async && managerToWaarp.supportsAsync();
+  }
+
+  /**
+   * Start an asynchronous forward for this request if limits allow it
+   *
+   * @param abstractVitamRequest
+   * @param sender starts the forward
+   * @param whenDone called by {@link #runCompleted(Class)} once a started
+   *     forward is over, before any new forward for this request
+   *
+   * @return True if started, False if already in progress or postponed due
+   *     to limits
+   *
+   * @throws InvalidParseOperationException
+   */
+  public boolean forward(final AbstractVitamRequest abstractVitamRequest,
+                         final AsyncForward sender, final AfterForward whenDone)
+      throws InvalidParseOperationException {
+    return forward(abstractVitamRequest.getClass(),
+                   abstractVitamRequest.getJsonPath(),
+                   abstractVitamRequest.getWaarpPartner(), sender, whenDone);
+  }
+
+  /**
+   * @param type type of the request, as given to {@link #runCompleted}
+   * @param key unique key of the request
+   * @param partner
+   * @param sender
+   * @param whenDone
+   *
+   * @return True if started
+   *
+   * @throws InvalidParseOperationException
+   */
+  boolean forward(final Class<?> type, final String key,
+                  final String partner, final AsyncForward sender,
+                  final AfterForward whenDone)
+      throws InvalidParseOperationException {
+    if (!inFlight.add(key)) {
+      logger.debug("Forward already in progress for {}", key);
+      return false;
+    }
+    if (!acquire(partner)) {
+      inFlight.remove(key);
+      WaarpVitamMetrics.getInstance().increment(FORWARD_THROTTLED);
+      logger.info("Too many forwards in progress, postponed: {}", key);
+      return false;
+    }
+    final CompletableFuture<Boolean> future;
+    try {
+      future = sender.send();
+    } catch (InvalidParseOperationException | RuntimeException e) {
+      release(key, partner);
+      throw e;
+    }
+    WaarpVitamMetrics.getInstance().increment(FORWARD_ASYNC);
+    future.whenComplete((sent, e) -> {
+      if (e != null) {
+        logger.error("Forward failed for {}", key, e);
+      }
+      // Kept in progress until its next step is run by the Manager
+      completed.computeIfAbsent(type, k -> new ConcurrentLinkedQueue<>()).add(
+          new Completed(key, partner, whenDone,
+                        e == null && sent != null && sent));
+    });
+    return true;
+  }
+
+  /**
+   * Run the next step of all forwards over for this type of request, to be
+   * called by the Manager before each pass on its requests
+   *
+   * @param type type of the requests
+   *
+   * @return the number of forwards over
+   */
+  public int runCompleted(final Class<?> type) {
+    final Queue<Completed> queue = completed.get(type);
+    if (queue == null) {
+      return 0;
+    }
+    int count = 0;
+    Completed forward;
+    while ((forward = queue.poll()) != null) {
+      count++;
+      try {
+        forward.whenDone.done(forward.sent);
+      } catch (InvalidParseOperationException | RuntimeException e) {
+        logger.error("Very bad since cannot continue after forward", e);
+      } finally {
+        release(forward.key, forward.partner);
+      }
+    }
+    return count;
+  }
+
+  private boolean acquire(final String partner) {
+    final AtomicInteger partnerCount =
+        perPartner.computeIfAbsent(partner, k -> new AtomicInteger());
+    if (partnerCount.incrementAndGet() > maxPartner) {
+      partnerCount.decrementAndGet();
+      return false;
+    }
+    final int current = total.incrementAndGet();
+    if (current > max) {
+      total.decrementAndGet();
+      partnerCount.decrementAndGet();
+      return false;
+    }
+    WaarpVitamMetrics.getInstance().max(FORWARD_INFLIGHT_MAX, current);
+    return true;
+  }
+
+  private void release(final String key, final String partner) {
+    total.decrementAndGet();
+    perPartner.get(partner).decrementAndGet();
+    inFlight.remove(key);
+  }
+
+  /**
+   * @return the number of forwards in progress
+   */
+  int getInFlight() {
+    return total.get();
+  }
+
+  /**
+   * Forward over, waiting for its next step
+   */
+  private static class Completed {
+    private final String key;
+    private final String partner;
+    private final AfterForward whenDone;
+    private final boolean sent;
+
+    private Completed(final String key, final String partner,
+                      final AfterForward whenDone, final boolean sent) {
+      this.key = key;
+      this.partner = partner;
+      this.whenDone = whenDone;
+      this.sent = sent;
+    }
+  }
+
+  /**
+   * Start of a forward
+   */
+  @FunctionalInterface
+  public interface AsyncForward {
+    /**
+     * @return the future completed with True once the file is sent
+     *
+     * @throws InvalidParseOperationException
+     */
+    CompletableFuture<Boolean> send() throws InvalidParseOperationException;
+  }
+
+  /**
+   * Next step of the request once its forward is over
+   */
+  @FunctionalInterface
+  public interface AfterForward {
+    /**
+     * @param sent True if the file is sent
+     *
+     * @throws InvalidParseOperationException
+     */
+    void done(boolean sent) throws InvalidParseOperationException;
+  }
+}
@@ -26,6 +26,9 @@ import org.waarp.vitam.dip.DipRequestFactory;
 import org.waarp.vitam.ingest.IngestRequest;
 import org.waarp.vitam.ingest.IngestRequestFactory;
 
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+
 public interface ManagerToWaarp {
   /**
    * Launch a SubmitTransfer according to arguments for IngestRequest
@@ -58,4 +61,102 @@ public interface ManagerToWaarp {
                               DipRequest dipRequest, String filename,
                               String fileInfo)
       throws InvalidParseOperationException;
+
+  /**
+   * @return True if this ManagerToWaarp can send a content directly from an
+   *     InputStream, without a local file
+   */
+  default boolean supportsStreaming() {
+    return false;
+  }
+
+  /**
+   * Send the content of the InputStream for IngestRequest, without a local
+   * file. Only valid if {@link #supportsStreaming()} is True.
+   *
+   * @param ingestRequestFactory
+   * @param ingestRequest
+   * @param inputStream the content to send, read until its end
+   * @param fileInfo
+   *
+   * @return True if done
+   *
+   * @throws InvalidParseOperationException
+   */
+  default boolean sendBackStream(IngestRequestFactory ingestRequestFactory,
+                                 IngestRequest ingestRequest,
+                                 InputStream inputStream, String fileInfo)
+      throws InvalidParseOperationException {
+    return false;
+  }
+
+  /**
+   * Send the content of the InputStream for DipRequest, without a local
+   * file. Only valid if {@link #supportsStreaming()} is True.
+   *
+   * @param dipRequestFactory
+   * @param dipRequest
+   * @param inputStream the content to send, read until its end
+   * @param fileInfo
+   *
+   * @return True if done
+   *
+   * @throws InvalidParseOperationException
+   */
+  default boolean sendBackStream(DipRequestFactory dipRequestFactory,
+                                 DipRequest dipRequest,
+                                 InputStream inputStream, String fileInfo)
+      throws InvalidParseOperationException {
+    return false;
+  }
+
+  /**
+   * @return True if this ManagerToWaarp can send a file without blocking
+   *     until the end of the transfer
+   */
+  default boolean supportsAsync() {
+    return false;
+  }
+
+  /**
+   * Launch a transfer for IngestRequest, without waiting for its end. The
+   * default is to wait for it.
+   *
+   * @param ingestRequestFactory
+   * @param ingestRequest
+   * @param filename
+   * @param fileInfo
+   *
+   * @return the future completed with True once done
+   *
+   * @throws InvalidParseOperationException
+   */
+  default CompletableFuture<Boolean> sendBackInformationAsync(
+      IngestRequestFactory ingestRequestFactory, IngestRequest ingestRequest,
+      String filename, String fileInfo) throws InvalidParseOperationException {
+    return CompletableFuture.completedFuture(
+        sendBackInformation(ingestRequestFactory, ingestRequest, filename,
+                            fileInfo));
+  }
+
+  /**
+   * Launch a transfer for DipRequest, without waiting for its end. The
+   * default is to wait for it.
+   *
+   * @param dipRequestFactory
+   * @param dipRequest
+   * @param filename
+   * @param fileInfo
+   *
+   * @return the future completed with True once done
+   *
+   * @throws InvalidParseOperationException
+   */
+  default CompletableFuture<Boolean> sendBackInformationAsync(
+      DipRequestFactory dipRequestFactory, DipRequest dipRequest,
+      String filename, String fileInfo) throws InvalidParseOperationException {
+    return CompletableFuture.completedFuture(
+        sendBackInformation(dipRequestFactory, dipRequest, filename,
+                            fileInfo));
+  }
 }
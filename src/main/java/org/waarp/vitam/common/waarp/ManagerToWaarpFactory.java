@@ -30,6 +30,14 @@ public class ManagerToWaarpFactory {
      * Native R66 model
      */
     R66,
+    /**
+     * Native R66 model, transfers run directly from this JVM
+     */
+    R66_DIRECT,
+    /**
+     * Local outbox model, files published into a directory
+     */
+    OUTBOX,
     /**
      * Script base model
      */
@@ -37,15 +45,29 @@ public class ManagerToWaarpFactory {
   }
 
   /**
-   * @param commandLine
+   * @param commandLine null or R66 for native R66, R66_DIRECT for native
+   *     R66 run directly, OUTBOX for the local outbox, else the script
    *
    * @return the associated ManagerToWaarp
    */
   public static ManagerToWaarp getManagerToWaarp(String commandLine) {
-    if (commandLine == null) {
+    if (commandLine == null || WaarpModel.R66.name().equals(commandLine)) {
       return new ManagerToWaarpR66();
+    } else if (WaarpModel.R66_DIRECT.name().equals(commandLine)) {
+      return new ManagerToWaarpR66Direct();
+    } else if (WaarpModel.OUTBOX.name().equals(commandLine)) {
+      return new ManagerToWaarpOutbox();
     } else {
       return new ManagerToWaarpScript(commandLine);
     }
   }
+
+  /**
+   * Release the resources shared by the ManagerToWaarp of this JVM, once the
+   * Monitor is stopped
+   */
+  public static void close() {
+    ManagerToWaarpR66Direct.closeNetworkTransaction();
+    ScriptHelperPool.closeAll();
+  }
 }
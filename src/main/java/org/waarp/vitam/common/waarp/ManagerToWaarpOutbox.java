@@ -0,0 +1,363 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common.waarp;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import fr.gouv.vitam.common.exception.InvalidParseOperationException;
+import fr.gouv.vitam.common.json.JsonHandler;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+import org.waarp.vitam.common.AbstractVitamRequest;
+import org.waarp.vitam.common.FileDownloader;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+import org.waarp.vitam.dip.DipRequest;
+import org.waarp.vitam.dip.DipRequestFactory;
+import org.waarp.vitam.ingest.IngestRequest;
+import org.waarp.vitam.ingest.IngestRequestFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+import static java.nio.file.StandardCopyOption.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Class for Waarp sending back to a local outbox directory from Monitor, for
+ * partners reading the files directly from this directory.<br>
+ * <br>
+ * Each file is published in the subdirectory of its Waarp Partner within
+ * {@value #ORG_WAARP_VITAM_OUTBOX_DIR}, as a hard link to the local file (so
+ * without copy). If not possible, the local file is moved there, and only if
+ * on another file system it is copied. A local file sharing its content
+ * with another name (as an entry of the DIP cache) is always copied, so
+ * that the partner never gets the cached content itself. The file then
+ * appears at once under its final name.<br>
+ * <br>
+ * Once the file is published, a manifest named as the file with
+ * {@value #MANIFEST_EXTENSION} is written (atomically too) with the
+ * requestId, the fileInfo, the digest and the size of the file: the partner
+ * shall only read a file once its manifest is there.<br>
+ * <br>
+ * There is no transfer, so the request gets a waarpId generated locally and
+ * is done as soon as published. The waarpIds are reserved by blocks from the
+ * file {@value #WAARP_ID_FILE} of the outbox directory (locked while
+ * updated), so that they are unique among all the Monitors publishing into
+ * this outbox, even once restarted.
+ */
+class ManagerToWaarpOutbox implements ManagerToWaarp {
+  /**
+   * Outbox directory, containing one subdirectory per Waarp Partner
+   */
+  static final String ORG_WAARP_VITAM_OUTBOX_DIR = "org.waarp.vitam.outbox.dir";
+  static final String DEFAULT_OUTBOX_DIR = "/waarp/data/r66/outbox";
+  /**
+   * Extension of the manifest of a published file
+   */
+  static final String MANIFEST_EXTENSION = ".manifest.json";
+  /**
+   * Metric name for files published as hard links
+   */
+  static final String OUTBOX_LINKED = "waarp.outbox.linked";
+  /**
+   * Metric name for files published by moving the local file
+   */
+  static final String OUTBOX_MOVED = "waarp.outbox.moved";
+  /**
+   * Metric name for files published by copy
+   */
+  static final String OUTBOX_COPIED = "waarp.outbox.copied";
+  /**
+   * File of the outbox directory keeping the next waarpId not reserved yet
+   */
+  static final String WAARP_ID_FILE = ".waarpId";
+  /**
+   * Number of waarpIds reserved at once
+   */
+  static final int WAARP_ID_BLOCK = 100;
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(ManagerToWaarpOutbox.class);
+  private static final String TMP_EXTENSION = ".tmp";
+  private static final int BUFFER_SIZE = 65536;
+  /**
+   * Guards the lock of {@link #WAARP_ID_FILE} within this JVM
+   */
+  private static final Object WAARP_ID_LOCK = new Object();
+
+  private final File outbox;
+  private long nextWaarpId;
+  private long lastWaarpId;
+
+  ManagerToWaarpOutbox() {
+    this(new File(SystemPropertyUtil
+                      .get(ORG_WAARP_VITAM_OUTBOX_DIR, DEFAULT_OUTBOX_DIR)));
+  }
+
+  /**
+   * @param outbox the outbox directory
+   */
+  ManagerToWaarpOutbox(final File outbox) {
+    this.outbox = outbox;
+  }
+
+  @Override
+  public boolean sendBackInformation(
+      final IngestRequestFactory ingestRequestFactory,
+      final IngestRequest ingestRequest, final String filename,
+      final String fileInfo) throws InvalidParseOperationException {
+    logger.debug("Will publish {} while step is {}", filename,
+                 ingestRequest.getStep());
+    final long waarpId = publish(ingestRequest, filename, fileInfo);
+    if (waarpId == 0) {
+      return false;
+    }
+    ingestRequest.setWaarpId(waarpId);
+    ingestRequest.save(ingestRequestFactory);
+    return true;
+  }
+
+  @Override
+  public boolean sendBackInformation(final DipRequestFactory dipRequestFactory,
+                                     final DipRequest dipRequest,
+                                     final String filename,
+                                     final String fileInfo)
+      throws InvalidParseOperationException {
+    logger.debug("Will publish {} while step is {}", filename,
+                 dipRequest.getStep());
+    final long waarpId = publish(dipRequest, filename, fileInfo);
+    if (waarpId == 0) {
+      return false;
+    }
+    dipRequest.setWaarpId(waarpId);
+    dipRequest.save(dipRequestFactory);
+    return true;
+  }
+
+  /**
+   * Publish the file and its manifest into the outbox of the Waarp Partner
+   *
+   * @param request
+   * @param filename
+   * @param fileInfo
+   *
+   * @return the waarpId, or 0 if not published (so retried later on)
+   */
+  long publish(final AbstractVitamRequest request, final String filename,
+               final String fileInfo) {
+    final File source = new File(filename);
+    final File directory = new File(outbox, request.getWaarpPartner());
+    final File target = new File(directory, source.getName());
+    final File manifest =
+        new File(directory, source.getName() + MANIFEST_EXTENSION);
+    final File tmp = new File(directory, manifest.getName() + TMP_EXTENSION);
+    final long waarpId;
+    try {
+      waarpId = nextWaarpId();
+      Files.createDirectories(directory.toPath());
+      // The manifest of a previous try, if any, is no more valid
+      Files.deleteIfExists(manifest.toPath());
+      publish(source, target);
+      final String digest = getDigest(request, target, fileInfo);
+      final ObjectNode node = JsonHandler.createObjectNode();
+      node.put("requestId", request.getRequestId());
+      node.put("waarpId", waarpId);
+      node.put("file", target.getName());
+      node.put("size", target.length());
+      node.put("fileInfo", fileInfo);
+      node.put("digest", digest);
+      JsonHandler.writeAsFile(node, tmp);
+      Files.move(tmp.toPath(), manifest.toPath(), REPLACE_EXISTING,
+                 ATOMIC_MOVE);
+    } catch (IOException | InvalidParseOperationException e) {
+      logger.error("Cannot publish {} into {}", filename, directory, e);
+      try {
+        Files.deleteIfExists(tmp.toPath());
+      } catch (IOException ignored) {
+        // nothing
+      }
+      return 0;
+    }
+    logger.info("Published {} as {} for {}", target, waarpId, request);
+    return waarpId;
+  }
+
+  /**
+   * @return the next waarpId, reserving a new block if needed
+   *
+   * @throws IOException
+   */
+  synchronized long nextWaarpId() throws IOException {
+    if (nextWaarpId >= lastWaarpId) {
+      nextWaarpId = reserveWaarpIds(outbox);
+      lastWaarpId = nextWaarpId + WAARP_ID_BLOCK;
+    }
+    return nextWaarpId++;
+  }
+
+  /**
+   * Reserve {@link #WAARP_ID_BLOCK} waarpIds from the file
+   * {@link #WAARP_ID_FILE} of the outbox, locked against other Monitors
+   *
+   * @param outbox
+   *
+   * @return the first waarpId reserved
+   *
+   * @throws IOException
+   */
+  private static long reserveWaarpIds(final File outbox) throws IOException {
+    Files.createDirectories(outbox.toPath());
+    final File file = new File(outbox, WAARP_ID_FILE);
+    synchronized (WAARP_ID_LOCK) {
+      try (final FileChannel channel = FileChannel
+          .open(file.toPath(), CREATE, READ, WRITE);
+           final FileLock ignored = channel.lock()) {
+        final ByteBuffer buffer = ByteBuffer.allocate(32);
+        channel.read(buffer, 0);
+        buffer.flip();
+        final String current =
+            StandardCharsets.US_ASCII.decode(buffer).toString().trim();
+        long first;
+        try {
+          first = Long.parseLong(current);
+        } catch (NumberFormatException e) {
+          // First use (or lost): above the previous waarpIds based on time
+          logger.info("No valid {}, restarting waarpIds from now", file);
+          first = System.currentTimeMillis();
+        }
+        channel.truncate(0);
+        channel.write(StandardCharsets.US_ASCII.encode(
+            Long.toString(first + WAARP_ID_BLOCK)), 0);
+        channel.force(false);
+        return first;
+      }
+    }
+  }
+
+  /**
+   * Hard link source as target if possible, else move it on the same file
+   * system, else copy it through a temporary file. A source sharing its
+   * content with another file (as a DIP cache entry) is always copied.
+   *
+   * @param source
+   * @param target
+   *
+   * @throws IOException
+   */
+  private static void publish(final File source, final File target)
+      throws IOException {
+    if (!source.canRead()) {
+      if (target.canRead()) {
+        // Already moved by a previous try
+        return;
+      }
+      throw new IOException("File not found: " + source);
+    }
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    Files.deleteIfExists(target.toPath());
+    if (isShared(source)) {
+      logger.debug("Shared with another file, so copy: {}", source);
+    } else {
+      try {
+        Files.createLink(target.toPath(), source.toPath());
+        metrics.increment(OUTBOX_LINKED);
+        return;
+      } catch (IOException | UnsupportedOperationException e) {
+        logger.debug("Cannot link, so move", e);
+      }
+      try {
+        Files.move(source.toPath(), target.toPath(), ATOMIC_MOVE);
+        metrics.increment(OUTBOX_MOVED);
+        return;
+      } catch (IOException e) {
+        logger.debug("Cannot move, so copy", e);
+      }
+    }
+    final File tmp = new File(target.getParentFile(),
+                              target.getName() + TMP_EXTENSION);
+    try {
+      Files.copy(source.toPath(), tmp.toPath(), REPLACE_EXISTING);
+      Files.move(tmp.toPath(), target.toPath(), REPLACE_EXISTING,
+                 ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+    metrics.increment(OUTBOX_COPIED);
+  }
+
+  /**
+   * @param file
+   *
+   * @return True if this file has other hard links (as the DIP cache entry
+   *     of a DIP), or if it cannot be known
+   */
+  private static boolean isShared(final File file) {
+    try {
+      return (Integer) Files.getAttribute(file.toPath(), "unix:nlink") > 1;
+    } catch (IOException | UnsupportedOperationException |
+        IllegalArgumentException e) {
+      logger.debug("Cannot count links of {}", file, e);
+      return true;
+    }
+  }
+
+  /**
+   * @param request
+   * @param file the published file
+   * @param fileInfo
+   *
+   * @return the digest of the request if given within the fileInfo (so
+   *     computed while downloaded), else the one of the file, or null if
+   *     none
+   *
+   * @throws IOException
+   */
+  private static String getDigest(final AbstractVitamRequest request,
+                                  final File file, final String fileInfo)
+      throws IOException {
+    if (request.getDigest() != null && fileInfo != null &&
+        fileInfo.contains(request.getDigest())) {
+      return request.getDigest();
+    }
+    final MessageDigest digest = FileDownloader.newDigest();
+    if (digest == null) {
+      return null;
+    }
+    try (final InputStream inputStream = new DigestInputStream(
+        Files.newInputStream(file.toPath()), digest)) {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      while (inputStream.read(buffer) >= 0) {
+        // Only digest
+      }
+    }
+    return FileDownloader.getDigestInfo(digest);
+  }
+}
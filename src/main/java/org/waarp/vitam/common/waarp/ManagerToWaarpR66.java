@@ -22,33 +22,57 @@ package org.waarp.vitam.common.waarp;
 
 import fr.gouv.vitam.common.exception.InvalidParseOperationException;
 import org.waarp.common.database.exception.WaarpDatabaseException;
+import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.openr66.client.SubmitTransfer;
 import org.waarp.openr66.database.DbConstantR66;
-import org.waarp.openr66.database.data.DbHostAuth;
 import org.waarp.openr66.database.data.DbTaskRunner;
 import org.waarp.openr66.protocol.configuration.Configuration;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolNoSslException;
+import org.waarp.openr66.protocol.exception.OpenR66RunnerErrorException;
 import org.waarp.openr66.protocol.utils.R66Future;
 import org.waarp.vitam.common.AbstractVitamRequest;
+import org.waarp.vitam.common.WaarpVitamMetrics;
 import org.waarp.vitam.dip.DipRequest;
 import org.waarp.vitam.dip.DipRequestFactory;
 import org.waarp.vitam.ingest.IngestRequest;
 import org.waarp.vitam.ingest.IngestRequestFactory;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Class for Waarp sending back to Waarp Partner from Monitor using native R66
+ * <br>
+ * The transfer submitted for a file is kept within the request (waarpId and
+ * waarpForward), so that a retry for the same file restarts this transfer
+ * from its last restart marker instead of sending the whole file again.<br>
+ * <br>
+ * Transfers can also be submitted without waiting for their end (see
+ * {@link ForwardLimiter}).
  */
 class ManagerToWaarpR66 implements ManagerToWaarp {
+  /**
+   * Metric name for forwards restarted instead of submitted again
+   */
+  static final String FORWARD_RESTARTED = "waarp.forward.restarted";
   /**
    * Internal Logger
    */
   private static final WaarpLogger logger =
       WaarpLoggerFactory.getLogger(ManagerToWaarpR66.class);
 
+  private final R66ForwardCompletion forwardCompletion;
+
   ManagerToWaarpR66() {
-    // nothing
+    this(R66ForwardCompletion.getInstance());
+  }
+
+  /**
+   * @param forwardCompletion the checker of the end of the transfers
+   */
+  ManagerToWaarpR66(final R66ForwardCompletion forwardCompletion) {
+    this.forwardCompletion = forwardCompletion;
   }
 
   @Override
@@ -58,21 +82,10 @@ class ManagerToWaarpR66 implements ManagerToWaarp {
       final String fileInfo) throws InvalidParseOperationException {
     logger.debug("Will send {} while step is {}", filename,
                  ingestRequest.getStep());
-    R66Future future = new R66Future(true);
-    SubmitTransfer submitTransfer =
-        new SubmitTransfer(future, ingestRequest.getWaarpPartner(), filename,
-                           ingestRequest.getWaarpRule(),
-                           ingestRequest.getRequestId() + ' ' + fileInfo, true,
-                           Configuration.configuration.getBlockSize(),
-                           DbConstantR66.ILLEGALVALUE, null);
-    submitTransfer.run();
-    future.awaitOrInterruptible();
-    if (future.isSuccess()) {
-      ingestRequest.setWaarpId(future.getResult().getRunner().getSpecialId());
-      ingestRequest.save(ingestRequestFactory);
-      return waitForAllDone(ingestRequest);
-    }
-    return false;
+    return waitForAllDone(ingestRequest,
+                          submit(ingestRequest, filename, fileInfo,
+                                 () -> ingestRequest
+                                     .save(ingestRequestFactory), false));
   }
 
   @Override
@@ -83,59 +96,161 @@ class ManagerToWaarpR66 implements ManagerToWaarp {
       throws InvalidParseOperationException {
     logger
         .debug("Will send {} while step is {}", filename, dipRequest.getStep());
+    return waitForAllDone(dipRequest,
+                          submit(dipRequest, filename, fileInfo,
+                                 () -> dipRequest.save(dipRequestFactory),
+                                 false));
+  }
+
+  @Override
+  public boolean supportsAsync() {
+    return true;
+  }
+
+  @Override
+  public CompletableFuture<Boolean> sendBackInformationAsync(
+      final IngestRequestFactory ingestRequestFactory,
+      final IngestRequest ingestRequest, final String filename,
+      final String fileInfo) throws InvalidParseOperationException {
+    logger.debug("Will send async {} while step is {}", filename,
+                 ingestRequest.getStep());
+    return submit(ingestRequest, filename, fileInfo,
+                  () -> ingestRequest.save(ingestRequestFactory), true);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> sendBackInformationAsync(
+      final DipRequestFactory dipRequestFactory, final DipRequest dipRequest,
+      final String filename, final String fileInfo)
+      throws InvalidParseOperationException {
+    logger.debug("Will send async {} while step is {}", filename,
+                 dipRequest.getStep());
+    return submit(dipRequest, filename, fileInfo,
+                  () -> dipRequest.save(dipRequestFactory), true);
+  }
+
+  /**
+   * Submit the transfer of the file, or restart the previous one
+   *
+   * @param abstractVitamRequest
+   * @param filename
+   * @param fileInfo
+   * @param saver to save the request once the transfer is submitted
+   * @param async True if the caller does not wait for the end of the
+   *     transfer
+   *
+   * @return the future completed with True once the transfer is done
+   *
+   * @throws InvalidParseOperationException
+   */
+  CompletableFuture<Boolean> submit(
+      final AbstractVitamRequest abstractVitamRequest, final String filename,
+      final String fileInfo, final RequestSaver saver, final boolean async)
+      throws InvalidParseOperationException {
+    final CompletableFuture<Boolean> restarted =
+        restartForward(abstractVitamRequest, filename, fileInfo);
+    if (restarted != null) {
+      return restarted;
+    }
     R66Future future = new R66Future(true);
     SubmitTransfer submitTransfer =
-        new SubmitTransfer(future, dipRequest.getWaarpPartner(), filename,
-                           dipRequest.getWaarpRule(),
-                           dipRequest.getRequestId() + ' ' + fileInfo, true,
+        new SubmitTransfer(future, abstractVitamRequest.getWaarpPartner(),
+                           filename, abstractVitamRequest.getWaarpRule(),
+                           abstractVitamRequest.getRequestId() + ' ' +
+                           fileInfo, true,
                            Configuration.configuration.getBlockSize(),
                            DbConstantR66.ILLEGALVALUE, null);
     submitTransfer.run();
     future.awaitOrInterruptible();
     if (future.isSuccess()) {
-      dipRequest.setWaarpId(future.getResult().getRunner().getSpecialId());
-      dipRequest.save(dipRequestFactory);
-      return waitForAllDone(dipRequest);
+      abstractVitamRequest
+          .setWaarpId(future.getResult().getRunner().getSpecialId())
+          .setWaarpForward(getForwardKey(filename, fileInfo));
+      saver.save();
+      return forwardCompletion.register(abstractVitamRequest);
     }
-    return false;
+    return CompletableFuture.completedFuture(false);
   }
 
   /**
-   * Ensure that SubmitTransfer is done totally (file sent) before continuing
+   * @param filename
+   * @param fileInfo
+   *
+   * @return the key identifying the forward of this file
+   */
+  static String getForwardKey(final String filename,
+                                      final String fileInfo) {
+    return fileInfo + ' ' + filename;
+  }
+
+  /**
+   * Restart the previous transfer of the very same file if any, from its
+   * last restart marker
    *
    * @param abstractVitamRequest
+   * @param filename
+   * @param fileInfo
    *
-   * @return True if done
+   * @return the future completed with True once done, False if still in
+   *     error, null if a new transfer must be submitted
    */
-  private boolean waitForAllDone(AbstractVitamRequest abstractVitamRequest) {
-    while (true) {
-      try {
-        DbHostAuth dbHostAuth =
-            new DbHostAuth(abstractVitamRequest.getWaarpPartner());
-        DbTaskRunner checkedRunner =
-            new DbTaskRunner(abstractVitamRequest.getWaarpId(),
-                             Configuration.configuration
-                                 .getHostId(dbHostAuth.isSsl()),
-                             abstractVitamRequest.getWaarpPartner());
-        if (checkedRunner.isAllDone()) {
-          logger.info("DbTaskRunner done");
-          return true;
-        } else if (checkedRunner.isInError()) {
-          logger.warn("DbTaskRunner in error for {}", abstractVitamRequest);
-          return false;
+  CompletableFuture<Boolean> restartForward(
+      final AbstractVitamRequest abstractVitamRequest, final String filename,
+      final String fileInfo) {
+    if (abstractVitamRequest.getWaarpId() == DbConstantR66.ILLEGALVALUE ||
+        !getForwardKey(filename, fileInfo)
+            .equals(abstractVitamRequest.getWaarpForward())) {
+      return null;
+    }
+    try {
+      final DbTaskRunner runner =
+          forwardCompletion.getRunner(abstractVitamRequest);
+      if (runner.isAllDone()) {
+        logger.info("Previous transfer already done for {}",
+                    abstractVitamRequest);
+        return CompletableFuture.completedFuture(true);
+      }
+      if (runner.isInError()) {
+        if (!runner.restart(true)) {
+          logger.warn("Previous transfer cannot be restarted for {}",
+                      abstractVitamRequest);
+          return null;
         }
-        Thread.sleep(500);
-      } catch (InterruptedException e) {//NOSONAR
-        logger.error("Interrupted", e);
-        return false;
-      } catch (WaarpDatabaseException e) {
-        logger.error("Cannot found DbTaskRunner", e);
-        return false;
-      } catch (OpenR66ProtocolNoSslException e) {
-        logger.error("Cannot found HostSslId", e);
-        return false;
+        runner.update();
+        WaarpVitamMetrics.getInstance().increment(FORWARD_RESTARTED);
+        logger.info("Previous transfer restarted from rank {} for {}",
+                    runner.getRank(), abstractVitamRequest);
       }
+      // Restarted or still running
+      return forwardCompletion.register(abstractVitamRequest);
+    } catch (WaarpDatabaseNoDataException e) {
+      logger.info("Previous transfer not found for {}", abstractVitamRequest);
+    } catch (WaarpDatabaseException | OpenR66ProtocolNoSslException |
+        OpenR66RunnerErrorException e) {
+      logger.warn("Previous transfer cannot be restarted for {}",
+                  abstractVitamRequest, e);
     }
+    return null;
   }
 
+  /**
+   * Ensure that SubmitTransfer is done totally (file sent) before continuing
+   *
+   * @param abstractVitamRequest
+   * @param future
+   *
+   * @return True if done
+   */
+  private boolean waitForAllDone(AbstractVitamRequest abstractVitamRequest,
+                                 CompletableFuture<Boolean> future) {
+    return forwardCompletion.await(abstractVitamRequest, future);
+  }
+
+  /**
+   * Save of the request once its transfer is submitted
+   */
+  @FunctionalInterface
+  interface RequestSaver {
+    void save() throws InvalidParseOperationException;
+  }
 }
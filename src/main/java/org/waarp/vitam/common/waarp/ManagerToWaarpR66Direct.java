@@ -0,0 +1,190 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common.waarp;
+
+import fr.gouv.vitam.common.exception.InvalidParseOperationException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+import org.waarp.openr66.client.DirectTransfer;
+import org.waarp.openr66.context.R66Result;
+import org.waarp.openr66.database.DbConstantR66;
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
+import org.waarp.openr66.protocol.utils.R66Future;
+import org.waarp.vitam.common.AbstractVitamRequest;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Class for Waarp sending back to Waarp Partner from Monitor using native R66
+ * directly from this JVM (as DirectTransfer), for Monitors running within or
+ * next to the R66 server.<br>
+ * <br>
+ * The transfer is started at once, without being submitted to the R66 server
+ * through the database, and its end is known from its in memory future, so
+ * without polling the database. Only a retry of a previous transfer of the
+ * same file reads the database, to restart it as with
+ * {@link ManagerToWaarpR66}.<br>
+ * <br>
+ * A synchronous forward runs the transfer within the calling thread, an
+ * asynchronous one within a thread of its own.<br>
+ * <br>
+ * Within the R66 server JVM, the network of the server is used; else one
+ * network is shared by all direct transfers of this JVM, closed once the
+ * Monitor is stopped (see {@link ManagerToWaarpFactory#close()}).
+ */
+class ManagerToWaarpR66Direct extends ManagerToWaarpR66 {
+  /**
+   * Metric name for direct transfers done
+   */
+  static final String FORWARD_DIRECT = "waarp.forward.direct";
+  /**
+   * Metric name for cumulated duration in ms of direct transfers
+   */
+  static final String FORWARD_DIRECT_MS = "waarp.forward.direct.ms";
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(ManagerToWaarpR66Direct.class);
+  /**
+   * Threads running direct transfers, bounded by the callers (one per
+   * synchronous forward, or {@link ForwardLimiter})
+   */
+  private static final ExecutorService EXECUTOR = Executors
+      .newCachedThreadPool(new WaarpThreadFactory("R66DirectTransfer", true));
+  private static NetworkTransaction networkTransaction;
+
+  ManagerToWaarpR66Direct() {
+    // nothing
+  }
+
+  /**
+   * @param forwardCompletion the checker of the end of the restarted
+   *     transfers
+   */
+  ManagerToWaarpR66Direct(final R66ForwardCompletion forwardCompletion) {
+    super(forwardCompletion);
+  }
+
+  @Override
+  CompletableFuture<Boolean> submit(
+      final AbstractVitamRequest abstractVitamRequest, final String filename,
+      final String fileInfo, final RequestSaver saver, final boolean async)
+      throws InvalidParseOperationException {
+    final CompletableFuture<Boolean> restarted =
+        restartForward(abstractVitamRequest, filename, fileInfo);
+    if (restarted != null) {
+      return restarted;
+    }
+    if (!async) {
+      // No need of another thread since the caller waits for the end
+      return CompletableFuture.completedFuture(
+          transfer(abstractVitamRequest, filename, fileInfo, saver));
+    }
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return transfer(abstractVitamRequest, filename, fileInfo, saver);
+      } catch (InvalidParseOperationException e) {
+        logger.error("Very bad since cannot save request", e);
+        return false;
+      }
+    }, EXECUTOR);
+  }
+
+  /**
+   * Run the transfer until its end
+   *
+   * @param abstractVitamRequest
+   * @param filename
+   * @param fileInfo
+   * @param saver
+   *
+   * @return True if done
+   *
+   * @throws InvalidParseOperationException
+   */
+  boolean transfer(final AbstractVitamRequest abstractVitamRequest,
+                   final String filename, final String fileInfo,
+                   final RequestSaver saver)
+      throws InvalidParseOperationException {
+    final long start = System.currentTimeMillis();
+    final R66Future future = new R66Future(true);
+    final DirectTransfer directTransfer =
+        new DirectTransfer(future, abstractVitamRequest.getWaarpPartner(),
+                           filename, abstractVitamRequest.getWaarpRule(),
+                           abstractVitamRequest.getRequestId() + ' ' +
+                           fileInfo, true,
+                           Configuration.configuration.getBlockSize(),
+                           DbConstantR66.ILLEGALVALUE,
+                           getNetworkTransaction());
+    directTransfer.run();
+    future.awaitOrInterruptible();
+    final R66Result result = future.getResult();
+    if (result != null && result.getRunner() != null) {
+      // Kept so that a retry restarts this transfer
+      abstractVitamRequest.setWaarpId(result.getRunner().getSpecialId())
+                          .setWaarpForward(getForwardKey(filename, fileInfo));
+      saver.save();
+    }
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    metrics.increment(FORWARD_DIRECT);
+    metrics.add(FORWARD_DIRECT_MS, System.currentTimeMillis() - start);
+    if (future.isSuccess()) {
+      logger.info("Direct transfer done for {}", abstractVitamRequest);
+      return true;
+    }
+    logger.warn("Direct transfer in error for {}", abstractVitamRequest,
+                future.getCause());
+    return false;
+  }
+
+  /**
+   * @return the network of the R66 server if within its JVM, else the one
+   *     shared by direct transfers
+   */
+  private static synchronized NetworkTransaction getNetworkTransaction() {
+    if (Configuration.configuration.getInternalRunner() != null) {
+      return Configuration.configuration.getInternalRunner()
+                                        .getNetworkTransaction();
+    }
+    if (networkTransaction == null) {
+      // As DirectTransfer run alone
+      Configuration.configuration.pipelineInit();
+      networkTransaction = new NetworkTransaction();
+    }
+    return networkTransaction;
+  }
+
+  /**
+   * Close the network shared by direct transfers, if any
+   */
+  static synchronized void closeNetworkTransaction() {
+    if (networkTransaction != null) {
+      networkTransaction.closeAll();
+      networkTransaction = null;
+    }
+  }
+}
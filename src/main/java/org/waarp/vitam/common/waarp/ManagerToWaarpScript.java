@@ -24,25 +24,38 @@ import fr.gouv.vitam.common.exception.InvalidParseOperationException;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
 import org.apache.commons.exec.ExecuteException;
+import org.apache.commons.exec.ExecuteWatchdog;
 import org.apache.commons.exec.PumpStreamHandler;
 import org.waarp.common.file.FileUtils;
 import org.waarp.common.logging.SysErrLogger;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.common.utility.WaarpStringUtils;
+import org.waarp.vitam.common.AbstractVitamRequest;
 import org.waarp.vitam.dip.DipRequest;
 import org.waarp.vitam.dip.DipRequestFactory;
 import org.waarp.vitam.ingest.IngestRequest;
 import org.waarp.vitam.ingest.IngestRequestFactory;
 
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Class for Waarp sending back to Waarp Partner from Monitor using external
- * scripts
+ * scripts<br>
+ * <br>
+ * Files can be sent through long-lived helpers of the script instead of
+ * running the script for each file (see {@link ScriptHelperPool}); contents
+ * given on the standard input still run the script.<br>
+ * <br>
+ * Running scripts are bounded in number and killed when over a timeout (see
+ * {@link ScriptLimiter}).
  */
 class ManagerToWaarpScript implements ManagerToWaarp {
   /**
@@ -54,6 +67,10 @@ class ManagerToWaarpScript implements ManagerToWaarp {
       "Exception while answered: ";
   private static final String EXEC_IN_ERROR_WITH = " Exec in error with ";
   private static final String EXCEPTION = "Exception: ";
+  /**
+   * Filename given to the script when the content is on its standard input
+   */
+  static final String STDIN = "-";
 
   final private String command;
 
@@ -71,19 +88,27 @@ class ManagerToWaarpScript implements ManagerToWaarp {
       final String fileInfo) throws InvalidParseOperationException {
     logger.debug("Will send {} while step is {}", filename,
                  ingestRequest.getStep());
-    String baseDir = command.split(" ")[0];
-    File homeDir = new File(baseDir);
-    // Create command with parameters
-    final CommandLine commandLine = new CommandLine(command);
-    commandLine.addArgument(ingestRequest.getWaarpPartner());
-    commandLine.addArgument(ingestRequest.getWaarpRule());
-    commandLine.addArgument(ingestRequest.getRequestId());
-    commandLine.addArgument(ingestRequest.getApplicationSessionId());
-    commandLine.addArgument(Integer.toString(ingestRequest.getTenantId()));
-    commandLine.addArgument(filename);
-    commandLine.addArgument(fileInfo);
-
-    StatusIdResult statusIdResult = new StatusIdResult(commandLine).invoke();
+    StatusIdResult statusIdResult = send(ingestRequest, filename, fileInfo);
+    return setWaarpId(ingestRequestFactory, ingestRequest, statusIdResult);
+  }
+
+  @Override
+  public boolean sendBackStream(
+      final IngestRequestFactory ingestRequestFactory,
+      final IngestRequest ingestRequest, final InputStream inputStream,
+      final String fileInfo) throws InvalidParseOperationException {
+    logger.debug("Will stream while step is {}", ingestRequest.getStep());
+    final CommandLine commandLine =
+        getCommandLine(ingestRequest, STDIN, fileInfo);
+    StatusIdResult statusIdResult =
+        new StatusIdResult(commandLine, inputStream).invoke();
+    return setWaarpId(ingestRequestFactory, ingestRequest, statusIdResult);
+  }
+
+  private boolean setWaarpId(final IngestRequestFactory ingestRequestFactory,
+                             final IngestRequest ingestRequest,
+                             final StatusIdResult statusIdResult)
+      throws InvalidParseOperationException {
     if (statusIdResult.isKO()) {
       return false;
     }
@@ -104,19 +129,84 @@ class ManagerToWaarpScript implements ManagerToWaarp {
       throws InvalidParseOperationException {
     logger
         .debug("Will send {} while step is {}", filename, dipRequest.getStep());
-    String baseDir = command.split(" ")[0];
-    File homeDir = new File(baseDir);
+    StatusIdResult statusIdResult = send(dipRequest, filename, fileInfo);
+    return setWaarpId(dipRequestFactory, dipRequest, statusIdResult);
+  }
+
+  /**
+   * The script is called with {@value #STDIN} as filename and shall read the
+   * content from its standard input. Only used when enabled by the
+   * streaming options of the DIP or of the pseudo ATR, since a script may
+   * not read its standard input.
+   *
+   * @return True
+   */
+  @Override
+  public boolean supportsStreaming() {
+    return true;
+  }
+
+  @Override
+  public boolean sendBackStream(final DipRequestFactory dipRequestFactory,
+                                final DipRequest dipRequest,
+                                final InputStream inputStream,
+                                final String fileInfo)
+      throws InvalidParseOperationException {
+    logger.debug("Will stream while step is {}", dipRequest.getStep());
+    final CommandLine commandLine = getCommandLine(dipRequest, STDIN, fileInfo);
+    StatusIdResult statusIdResult =
+        new StatusIdResult(commandLine, inputStream).invoke();
+    return setWaarpId(dipRequestFactory, dipRequest, statusIdResult);
+  }
+
+  /**
+   * Send the file through a helper of the script if enabled (see
+   * {@link ScriptHelperPool}), else by running the script
+   *
+   * @param request
+   * @param filename
+   * @param fileInfo
+   *
+   * @return the result
+   */
+  private StatusIdResult send(final AbstractVitamRequest request,
+                              final String filename, final String fileInfo) {
+    final ScriptHelperPool scriptHelperPool =
+        ScriptHelperPool.getPool(command);
+    if (scriptHelperPool != null) {
+      return new StatusIdResult(null).invoke(scriptHelperPool,
+                                             getArguments(request, filename,
+                                                          fileInfo));
+    }
+    return new StatusIdResult(getCommandLine(request, filename, fileInfo))
+        .invoke();
+  }
+
+  private static String[] getArguments(final AbstractVitamRequest request,
+                                       final String filename,
+                                       final String fileInfo) {
+    return new String[] {
+        request.getWaarpPartner(), request.getWaarpRule(),
+        request.getRequestId(), request.getApplicationSessionId(),
+        Integer.toString(request.getTenantId()), filename, fileInfo
+    };
+  }
+
+  private CommandLine getCommandLine(final AbstractVitamRequest request,
+                                     final String filename,
+                                     final String fileInfo) {
     // Create command with parameters
     final CommandLine commandLine = new CommandLine(command);
-    commandLine.addArgument(dipRequest.getWaarpPartner());
-    commandLine.addArgument(dipRequest.getWaarpRule());
-    commandLine.addArgument(dipRequest.getRequestId());
-    commandLine.addArgument(dipRequest.getApplicationSessionId());
-    commandLine.addArgument(Integer.toString(dipRequest.getTenantId()));
-    commandLine.addArgument(filename);
-    commandLine.addArgument(fileInfo);
-
-    StatusIdResult statusIdResult = new StatusIdResult(commandLine).invoke();
+    for (String argument : getArguments(request, filename, fileInfo)) {
+      commandLine.addArgument(argument);
+    }
+    return commandLine;
+  }
+
+  private boolean setWaarpId(final DipRequestFactory dipRequestFactory,
+                             final DipRequest dipRequest,
+                             final StatusIdResult statusIdResult)
+      throws InvalidParseOperationException {
     if (statusIdResult.isKO()) {
       return false;
     }
@@ -131,12 +221,23 @@ class ManagerToWaarpScript implements ManagerToWaarp {
 
   private class StatusIdResult {
     private final CommandLine commandLine;
+    private final InputStream inputStream;
     private boolean myResult;
     private int status;
     private long waarpId;
 
     public StatusIdResult(final CommandLine commandLine) {
+      this(commandLine, null);
+    }
+
+    /**
+     * @param commandLine
+     * @param inputStream if not null, the standard input of the command
+     */
+    public StatusIdResult(final CommandLine commandLine,
+                          final InputStream inputStream) {
       this.commandLine = commandLine;
+      this.inputStream = inputStream;
     }
 
     boolean isKO() {
@@ -151,21 +252,119 @@ class ManagerToWaarpScript implements ManagerToWaarp {
       return waarpId;
     }
 
+    /**
+     * Send through a helper of the script, waiting for its answer, measured
+     * as a run of the script (see {@link ScriptLimiter})
+     *
+     * @param scriptHelperPool
+     * @param arguments
+     *
+     * @return this
+     */
+    public StatusIdResult invoke(final ScriptHelperPool scriptHelperPool,
+                                 final String[] arguments) {
+      status = -1;
+      myResult = true;
+      final ScriptLimiter scriptLimiter = ScriptLimiter.getInstance();
+      final long start = System.currentTimeMillis();
+      boolean timedOut = false;
+      final CompletableFuture<ScriptHelperPool.Answer> future =
+          scriptHelperPool.send(arguments);
+      try {
+        final ScriptHelperPool.Answer answer =
+            scriptLimiter.getTimeout() > 0?
+                future.get(scriptLimiter.getTimeout(), TimeUnit.MILLISECONDS) :
+                future.get();
+        if (answer != null) {
+          status = answer.getStatus();
+          waarpId = answer.getWaarpId();
+          myResult = false;
+        }
+      } catch (InterruptedException e) {//NOSONAR
+        logger.error("Interrupted while waiting for script helper {}",
+                     command);
+      } catch (ExecutionException e) {
+        logger.error("Script helper {} in error", command, e);
+      } catch (TimeoutException e) {
+        logger.error("Script helper {} not answering after {} ms", command,
+                     scriptLimiter.getTimeout());
+        timedOut = true;
+        scriptHelperPool.timedOut(future);
+      } finally {
+        scriptLimiter.ended(start, status, timedOut);
+      }
+      return this;
+    }
+
+    /**
+     * Run the script once its turn comes (see {@link ScriptLimiter})
+     *
+     * @return this
+     */
     public StatusIdResult invoke() {
+      status = -1;
+      myResult = true;
+      final ScriptLimiter scriptLimiter = ScriptLimiter.getInstance();
+      if (!scriptLimiter.acquire()) {
+        return this;
+      }
+      try {
+        return run(scriptLimiter);
+      } finally {
+        scriptLimiter.release();
+      }
+    }
+
+    /**
+     * Execute the script, killed if over the timeout
+     *
+     * @param defaultExecutor
+     * @param scriptLimiter
+     *
+     * @return the exit value
+     *
+     * @throws IOException
+     */
+    private int execute(final DefaultExecutor defaultExecutor,
+                        final ScriptLimiter scriptLimiter)
+        throws IOException {
+      final ExecuteWatchdog watchdog = new ExecuteWatchdog(
+          scriptLimiter.getTimeout() > 0? scriptLimiter.getTimeout() :
+              ExecuteWatchdog.INFINITE_TIMEOUT);
+      defaultExecutor.setWatchdog(watchdog);
+      final long start = System.currentTimeMillis();
+      int exitValue = -1;
+      try {
+        exitValue = defaultExecutor.execute(commandLine);//NOSONAR
+        return exitValue;
+      } catch (final ExecuteException e) {
+        exitValue = e.getExitValue();
+        throw e;
+      } finally {
+        if (watchdog.killedProcess()) {
+          logger.error("Script killed after {} ms: {}",
+                       scriptLimiter.getTimeout(), commandLine);
+        }
+        scriptLimiter.ended(start, exitValue, watchdog.killedProcess());
+      }
+    }
+
+    private StatusIdResult run(final ScriptLimiter scriptLimiter) {
       final DefaultExecutor defaultExecutor = new DefaultExecutor();
       ByteArrayOutputStream outputStream;
       outputStream = new ByteArrayOutputStream();
       final PumpStreamHandler pumpStreamHandler =
-          new PumpStreamHandler(outputStream);
+          new PumpStreamHandler(outputStream, outputStream, inputStream);
       defaultExecutor.setStreamHandler(pumpStreamHandler);
       final int[] correctValues = { 0, 1 };
       defaultExecutor.setExitValues(correctValues);
-      status = -1;
       try {
         // Execute the command
-        status = defaultExecutor.execute(commandLine);//NOSONAR
+        status = execute(defaultExecutor, scriptLimiter);
       } catch (final ExecuteException e) {
-        if (e.getExitValue() == -559038737) {
+        // A content given on the standard input may be consumed already, so
+        // never run again
+        if (inputStream == null && e.getExitValue() == -559038737) {
           // Cannot run immediately so retry once
           try {
             Thread.sleep(10);
@@ -173,7 +372,7 @@ class ManagerToWaarpScript implements ManagerToWaarp {
             SysErrLogger.FAKE_LOGGER.ignoreLog(e1);
           }
           try {
-            status = defaultExecutor.execute(commandLine);//NOSONAR
+            status = execute(defaultExecutor, scriptLimiter);
           } catch (final ExecuteException e1) {
             try {
               pumpStreamHandler.stop();
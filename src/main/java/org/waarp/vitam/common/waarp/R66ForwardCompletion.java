@@ -0,0 +1,498 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common.waarp;
+
+import org.waarp.common.database.exception.WaarpDatabaseException;
+import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+import org.waarp.common.utility.WaarpThreadFactory;
+import org.waarp.openr66.context.task.AbstractExecJavaTask;
+import org.waarp.openr66.dao.DAOFactory;
+import org.waarp.openr66.dao.Filter;
+import org.waarp.openr66.dao.TransferDAO;
+import org.waarp.openr66.dao.database.DBTransferDAO;
+import org.waarp.openr66.dao.exception.DAOConnectionException;
+import org.waarp.openr66.database.data.DbHostAuth;
+import org.waarp.openr66.database.data.DbTaskRunner;
+import org.waarp.openr66.pojo.Transfer;
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolNoSslException;
+import org.waarp.vitam.common.AbstractVitamRequest;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide completion of R66 forwards (transfers submitted through
+ * {@link ManagerToWaarpR66}).<br>
+ * <br>
+ * Each outstanding forward (waarpId and partner) has a future. The future is
+ * completed as soon as the R66 server notifies the end of the transfer
+ * through {@link JavaTask} (JAVAEXEC as post and error task of the send
+ * rule, when the Monitor runs within the R66 server JVM). Otherwise one
+ * shared poller reads the status of all outstanding forwards with one
+ * select on their specialIds (owned by this server) every
+ * {@link #ORG_WAARP_VITAM_FORWARD_CHECK_DELAY} ms, so that no forwarding
+ * thread polls nor sleeps by itself.<br>
+ * <br>
+ * The requester host id of each partner (SSL or not) is cached for
+ * {@link #ORG_WAARP_VITAM_FORWARD_HOSTAUTH_TTL} ms instead of reading
+ * DbHostAuth for each check.
+ */
+public class R66ForwardCompletion {
+  /**
+   * Delay in ms between 2 checks of all outstanding forwards
+   */
+  public static final String ORG_WAARP_VITAM_FORWARD_CHECK_DELAY =
+      "org.waarp.vitam.forward.check.delay";
+  /**
+   * TTL in ms of the cached requester host id per partner
+   */
+  public static final String ORG_WAARP_VITAM_FORWARD_HOSTAUTH_TTL =
+      "org.waarp.vitam.forward.hostauth.ttl";
+  /**
+   * Metric name for database reads to check forwards
+   */
+  public static final String FORWARD_DB_CHECKS = "waarp.forward.db.checks";
+  /**
+   * Metric name for database reads saved compared to a check of each
+   * forward every {@link #LEGACY_CHECK_DELAY} ms
+   */
+  public static final String FORWARD_DB_SAVED = "waarp.forward.db.saved";
+  /**
+   * Metric name for DbHostAuth reads saved by the cache
+   */
+  public static final String FORWARD_HOSTAUTH_CACHED =
+      "waarp.forward.hostauth.cached";
+  /**
+   * Metric name for forwards completed by notification
+   */
+  public static final String FORWARD_NOTIFIED = "waarp.forward.notified";
+  /**
+   * Metric name for the maximum number of forwards checked by one select
+   */
+  public static final String FORWARD_BATCH_MAX = "waarp.forward.batch.max";
+  static final long DEFAULT_CHECK_DELAY = 200;
+  static final long DEFAULT_HOSTAUTH_TTL = 60000;
+  /**
+   * Previous constant delay between 2 checks of one forward
+   */
+  static final long LEGACY_CHECK_DELAY = 500;
+  /**
+   * Maximum number of specialIds within one select
+   */
+  static final int MAX_IN_LIST = 1000;
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(R66ForwardCompletion.class);
+  private static final R66ForwardCompletion INSTANCE =
+      new R66ForwardCompletion();
+
+  private final ConcurrentHashMap<Long, Forward> pending =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, CachedHostId> hostIds =
+      new ConcurrentHashMap<>();
+  private final long checkDelay;
+  private final long hostAuthTtl;
+  private ScheduledExecutorService poller;
+
+  private R66ForwardCompletion() {
+    this(SystemPropertyUtil
+             .getLong(ORG_WAARP_VITAM_FORWARD_CHECK_DELAY, DEFAULT_CHECK_DELAY),
+         SystemPropertyUtil.getLong(ORG_WAARP_VITAM_FORWARD_HOSTAUTH_TTL,
+                                    DEFAULT_HOSTAUTH_TTL));
+  }
+
+  /**
+   * @param checkDelay delay in ms between 2 checks of the database
+   * @param hostAuthTtl time to live in ms of the requester host ids, 0 to
+   *     not cache them
+   */
+  R66ForwardCompletion(final long checkDelay, final long hostAuthTtl) {
+    this.checkDelay = Math.max(10, checkDelay);
+    this.hostAuthTtl = hostAuthTtl;
+  }
+
+  /**
+   * @return the instance
+   */
+  public static R66ForwardCompletion getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Notify the end of a transfer
+   *
+   * @param waarpId the specialId of the transfer
+   * @param success True if the transfer is done, False if in error
+   *
+   * @return True if a forward was waiting for this transfer
+   */
+  public boolean notifyCompletion(final long waarpId, final boolean success) {
+    final Forward forward = pending.get(waarpId);
+    if (forward == null) {
+      return false;
+    }
+    if (forward.future.complete(success)) {
+      WaarpVitamMetrics.getInstance().increment(FORWARD_NOTIFIED);
+    }
+    return true;
+  }
+
+  /**
+   * Register the transfer of this request (waarpId) as outstanding
+   *
+   * @param abstractVitamRequest
+   *
+   * @return the future completed with True if done, False if in error or
+   *     not found
+   */
+  CompletableFuture<Boolean> register(
+      final AbstractVitamRequest abstractVitamRequest) {
+    final long waarpId = abstractVitamRequest.getWaarpId();
+    final Forward forward = pending.computeIfAbsent(waarpId, k -> {
+      final Forward created =
+          new Forward(abstractVitamRequest.getWaarpPartner());
+      created.future.whenComplete((status, e) -> done(waarpId, created));
+      return created;
+    });
+    startPoller();
+    return forward.future;
+  }
+
+  /**
+   * Wait for the end of the transfer of this request (waarpId)
+   *
+   * @param abstractVitamRequest
+   * @param future as given by {@link #register(AbstractVitamRequest)}
+   *
+   * @return True if done, False if in error, not found or interrupted
+   */
+  boolean await(final AbstractVitamRequest abstractVitamRequest,
+                final CompletableFuture<Boolean> future) {
+    try {
+      final boolean status = future.get();
+      if (status) {
+        logger.info("DbTaskRunner done");
+      } else {
+        logger.warn("DbTaskRunner in error for {}", abstractVitamRequest);
+      }
+      return status;
+    } catch (InterruptedException e) {//NOSONAR
+      logger.error("Interrupted", e);
+      return false;
+    } catch (ExecutionException e) {
+      logger.error("Cannot get transfer status", e);
+      return false;
+    }
+  }
+
+  /**
+   * Forget a completed forward
+   *
+   * @param waarpId
+   * @param forward
+   */
+  private void done(final long waarpId, final Forward forward) {
+    pending.remove(waarpId, forward);
+    final long legacy =
+        (System.currentTimeMillis() - forward.start) / LEGACY_CHECK_DELAY + 1;
+    WaarpVitamMetrics.getInstance().add(FORWARD_DB_SAVED, legacy);
+  }
+
+  private synchronized void startPoller() {
+    if (poller == null) {
+      poller = Executors.newSingleThreadScheduledExecutor(
+          new WaarpThreadFactory("R66ForwardCompletion", true));
+      poller.scheduleWithFixedDelay(this::checkAll, checkDelay, checkDelay,
+                                    TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Check all outstanding forwards with one select on their specialIds, then
+   * one by one only those not found
+   */
+  void checkAll() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    try {
+      final Map<Long, Forward> outstanding = new HashMap<>(pending);
+      final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+      metrics.max(FORWARD_BATCH_MAX, outstanding.size());
+      try {
+        for (Transfer transfer : findTransfers(
+            new ArrayList<>(outstanding.keySet()))) {
+          final Forward forward = outstanding.get(transfer.getId());
+          if (forward != null &&
+              forward.partner.equals(transfer.getRequested())) {
+            outstanding.remove(transfer.getId());
+            complete(forward, getRunner(transfer));
+          }
+        }
+      } catch (DAOConnectionException e) {
+        logger.warn("Cannot check forwards at once, one by one instead", e);
+      }
+      // Not found in batch (other partner) or database issue
+      for (Entry<Long, Forward> entry : outstanding.entrySet()) {
+        checkOne(entry.getKey(), entry.getValue());
+      }
+    } catch (Throwable e) {//NOSONAR
+      // Never stop the poller
+      logger.error("Issue while checking forwards", e);
+    }
+  }
+
+  /**
+   * @param waarpIds the specialIds of the outstanding forwards
+   *
+   * @return the transfers owned by this server with one of these specialIds,
+   *     with one select per {@link #MAX_IN_LIST} specialIds
+   *
+   * @throws DAOConnectionException
+   */
+  private List<Transfer> findTransfers(final List<Long> waarpIds)
+      throws DAOConnectionException {
+    final List<Transfer> transfers = new ArrayList<>(waarpIds.size());
+    TransferDAO transferDAO = null;
+    try {
+      transferDAO = getTransferDAO();
+      for (int from = 0; from < waarpIds.size(); from += MAX_IN_LIST) {
+        final List<Long> ids = waarpIds
+            .subList(from, Math.min(waarpIds.size(), from + MAX_IN_LIST));
+        final List<Filter> filters = new ArrayList<>(2);
+        filters.add(new Filter(DBTransferDAO.ID_FIELD, "IN", ids.toArray()));
+        filters.add(new Filter(DBTransferDAO.OWNER_REQUEST_FIELD, "=",
+                               Configuration.configuration.getHostId()));
+        countCheck();
+        transfers.addAll(transferDAO.find(filters));
+      }
+      return transfers;
+    } finally {
+      DAOFactory.closeDAO(transferDAO);
+    }
+  }
+
+  /**
+   * @return a new TransferDAO, to close once used
+   *
+   * @throws DAOConnectionException
+   */
+  TransferDAO getTransferDAO() throws DAOConnectionException {
+    return DAOFactory.getInstance().getTransferDAO();
+  }
+
+  /**
+   * @param transfer
+   *
+   * @return the DbTaskRunner of this transfer as read by the select
+   */
+  DbTaskRunner getRunner(final Transfer transfer) {
+    return new DbTaskRunner(transfer);
+  }
+
+  /**
+   * @param waarpId
+   * @param forward
+   */
+  private void checkOne(final long waarpId, final Forward forward) {
+    try {
+      countCheck();
+      complete(forward, getRunner(waarpId, forward.partner));
+    } catch (WaarpDatabaseNoDataException e) {
+      logger.warn("Cannot found DbTaskRunner {}", waarpId, e);
+      forward.future.complete(false);
+    } catch (WaarpDatabaseException e) {
+      logger.warn("Cannot check DbTaskRunner {}", waarpId, e);
+    } catch (OpenR66ProtocolNoSslException e) {
+      logger.error("Cannot found HostSslId", e);
+      forward.future.complete(false);
+    }
+  }
+
+  private static void countCheck() {
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    metrics.increment(FORWARD_DB_CHECKS);
+    metrics.add(FORWARD_DB_SAVED, -1);
+  }
+
+  /**
+   * Complete the forward if the transfer is over
+   *
+   * @param forward
+   * @param runner
+   */
+  private static void complete(final Forward forward,
+                               final DbTaskRunner runner) {
+    if (runner.isAllDone()) {
+      forward.future.complete(true);
+    } else if (runner.isInError()) {
+      forward.future.complete(false);
+    }
+  }
+
+  /**
+   * @param abstractVitamRequest
+   *
+   * @return the DbTaskRunner of the last transfer submitted for this request
+   *
+   * @throws WaarpDatabaseException
+   * @throws OpenR66ProtocolNoSslException
+   */
+  DbTaskRunner getRunner(final AbstractVitamRequest abstractVitamRequest)
+      throws WaarpDatabaseException, OpenR66ProtocolNoSslException {
+    return getRunner(abstractVitamRequest.getWaarpId(),
+                     abstractVitamRequest.getWaarpPartner());
+  }
+
+  /**
+   * @param waarpId
+   * @param partner
+   *
+   * @return the DbTaskRunner of this transfer sent to this partner
+   *
+   * @throws WaarpDatabaseException
+   * @throws OpenR66ProtocolNoSslException
+   */
+  DbTaskRunner getRunner(final long waarpId, final String partner)
+      throws WaarpDatabaseException, OpenR66ProtocolNoSslException {
+    return new DbTaskRunner(waarpId, getRequesterHostId(partner), partner);
+  }
+
+  /**
+   * @param partner
+   *
+   * @return the host id of this server as requester for this partner,
+   *     according to SSL or not
+   *
+   * @throws WaarpDatabaseException
+   * @throws OpenR66ProtocolNoSslException
+   */
+  String getRequesterHostId(final String partner)
+      throws WaarpDatabaseException, OpenR66ProtocolNoSslException {
+    final long now = System.currentTimeMillis();
+    final CachedHostId cached = hostIds.get(partner);
+    if (cached != null && cached.expiry > now) {
+      WaarpVitamMetrics.getInstance().increment(FORWARD_HOSTAUTH_CACHED);
+      return cached.hostId;
+    }
+    final String hostId = lookupRequesterHostId(partner);
+    if (hostAuthTtl > 0) {
+      hostIds.put(partner, new CachedHostId(hostId, now + hostAuthTtl));
+    }
+    return hostId;
+  }
+
+  /**
+   * @param partner
+   *
+   * @return the host id of this server as requester for this partner, read
+   *     from DbHostAuth without cache
+   *
+   * @throws WaarpDatabaseException
+   * @throws OpenR66ProtocolNoSslException
+   */
+  String lookupRequesterHostId(final String partner)
+      throws WaarpDatabaseException, OpenR66ProtocolNoSslException {
+    final DbHostAuth dbHostAuth = new DbHostAuth(partner);
+    return Configuration.configuration.getHostId(dbHostAuth.isSsl());
+  }
+
+  /**
+   * @return the number of forwards currently waiting
+   */
+  int getPending() {
+    return pending.size();
+  }
+
+  /**
+   * Outstanding forward
+   */
+  private static class Forward {
+    private final String partner;
+    private final long start = System.currentTimeMillis();
+    private final CompletableFuture<Boolean> future =
+        new CompletableFuture<>();
+
+    private Forward(final String partner) {
+      this.partner = partner;
+    }
+  }
+
+  /**
+   * Requester host id with its expiry time
+   */
+  private static class CachedHostId {
+    private final String hostId;
+    private final long expiry;
+
+    private CachedHostId(final String hostId, final long expiry) {
+      this.hostId = hostId;
+      this.expiry = expiry;
+    }
+  }
+
+  /**
+   * JAVAEXEC task to set as post task (argument "done") and error task
+   * (argument "error") of the rule used to send back files to the Waarp
+   * Partner, so that the waiting forward is completed immediately
+   */
+  public static class JavaTask extends AbstractExecJavaTask {
+    private static final String ERROR = "error";
+
+    @Override
+    public void run() {
+      final boolean success = !fullarg.trim().startsWith(ERROR);
+      try {
+        final long waarpId = this.session.getRunner().getSpecialId();
+        if (!getForwardCompletion().notifyCompletion(waarpId, success)) {
+          logger.debug("No forward waiting for {}", waarpId);
+        }
+      } catch (Throwable e) {//NOSONAR
+        logger.warn("Cannot notify the end of the transfer", e);
+      }
+      // Never change the status of the transfer itself
+      status = 0;
+    }
+
+    /**
+     * @return the completion to notify
+     */
+    R66ForwardCompletion getForwardCompletion() {
+      return getInstance();
+    }
+  }
+}
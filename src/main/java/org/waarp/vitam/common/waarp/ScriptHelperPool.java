@@ -0,0 +1,357 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common.waarp;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+import org.waarp.common.utility.WaarpThreadFactory;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Pool of long-lived helper processes for one send script, instead of
+ * starting the script for each file.<br>
+ * <br>
+ * Each helper is the script started once as "script
+ * {@value #HELPER_ARGUMENT}". It reads send requests from its standard input,
+ * one per line, as tab separated fields: sequence, partner, rule,
+ * requestId, applicationSessionId, tenantId, filename and fileInfo. For each
+ * request it writes one line on its standard output: sequence, status (0 if
+ * sent) and waarpId, tab separated. Several requests can be sent to a helper
+ * before its answers (pipelining), and answers may come in any order.<br>
+ * <br>
+ * A helper that exits or closes its output is restarted on next request,
+ * and requests waiting for its answers are failed (so retried later on).
+ * The number of helpers per script is set by
+ * {@value #ORG_WAARP_VITAM_SCRIPT_HELPERS} (0, the default, disables them).
+ * All helpers are stopped with the Monitor (see
+ * {@link ManagerToWaarpFactory#close()}).
+ */
+final class ScriptHelperPool {
+  /**
+   * Number of helper processes per script, 0 to start the script for each
+   * file
+   */
+  static final String ORG_WAARP_VITAM_SCRIPT_HELPERS =
+      "org.waarp.vitam.script.helpers";
+  /**
+   * Argument given to the script to start it as a helper
+   */
+  static final String HELPER_ARGUMENT = "--helper";
+  /**
+   * Metric name for helper processes started
+   */
+  static final String SCRIPT_HELPER_STARTED = "waarp.script.helper.started";
+  /**
+   * Metric name for helper processes ended unexpectedly
+   */
+  static final String SCRIPT_HELPER_CRASHED = "waarp.script.helper.crashed";
+  /**
+   * Metric name for requests sent to helper processes
+   */
+  static final String SCRIPT_HELPER_REQUESTS = "waarp.script.helper.requests";
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(ScriptHelperPool.class);
+  private static final String SEPARATOR = "\t";
+  private static final Pattern SPLIT = Pattern.compile(SEPARATOR);
+  private static final Pattern FORBIDDEN = Pattern.compile("[\t\r\n]");
+  private static final ConcurrentHashMap<String, ScriptHelperPool> POOLS =
+      new ConcurrentHashMap<>();
+  private static final ExecutorService READERS = Executors
+      .newCachedThreadPool(new WaarpThreadFactory("ScriptHelper", true));
+
+  private final String command;
+  private final Helper[] helpers;
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * @param command the script
+   * @param size number of helpers, at least 1
+   */
+  ScriptHelperPool(final String command, final int size) {
+    this.command = command;
+    helpers = new Helper[Math.max(1, size)];
+    for (int i = 0; i < helpers.length; i++) {
+      helpers[i] = new Helper();
+    }
+  }
+
+  /**
+   * @param command the script
+   *
+   * @return the pool of helpers for this script, or null if helpers are
+   *     disabled
+   */
+  static ScriptHelperPool getPool(final String command) {
+    final int size =
+        SystemPropertyUtil.getInt(ORG_WAARP_VITAM_SCRIPT_HELPERS, 0);
+    if (size <= 0) {
+      return null;
+    }
+    return POOLS.computeIfAbsent(command, k -> new ScriptHelperPool(k, size));
+  }
+
+  /**
+   * Send a request to the least busy helper
+   *
+   * @param arguments partner, rule, requestId, applicationSessionId,
+   *     tenantId, filename and fileInfo
+   *
+   * @return the future completed with the answer, or with null if the
+   *     helper failed
+   */
+  CompletableFuture<Answer> send(final String... arguments) {
+    Helper selected = helpers[0];
+    for (Helper helper : helpers) {
+      if (helper.getLoad() < selected.getLoad()) {
+        selected = helper;
+      }
+    }
+    final long seq = sequence.incrementAndGet();
+    final StringBuilder line = new StringBuilder().append(seq);
+    for (String argument : arguments) {
+      line.append(SEPARATOR);
+      if (argument != null) {
+        line.append(FORBIDDEN.matcher(argument).replaceAll(" "));
+      }
+    }
+    WaarpVitamMetrics.getInstance().increment(SCRIPT_HELPER_REQUESTS);
+    return selected.send(seq, line.append('\n').toString());
+  }
+
+  /**
+   * Kill the helper not answering in time to this request, so that it is
+   * restarted on next request
+   *
+   * @param future the request as returned by {@link #send(String...)}
+   */
+  void timedOut(final CompletableFuture<Answer> future) {
+    for (Helper helper : helpers) {
+      helper.kill(future);
+    }
+  }
+
+  /**
+   * Stop all helpers of this pool
+   */
+  void close() {
+    for (Helper helper : helpers) {
+      helper.close();
+    }
+  }
+
+  /**
+   * Stop all helpers of all scripts, once the Monitor is stopped
+   */
+  static void closeAll() {
+    final Iterator<ScriptHelperPool> iterator = POOLS.values().iterator();
+    while (iterator.hasNext()) {
+      iterator.next().close();
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Answer of a helper
+   */
+  static final class Answer {
+    private final int status;
+    private final long waarpId;
+
+    Answer(final int status, final long waarpId) {
+      this.status = status;
+      this.waarpId = waarpId;
+    }
+
+    /**
+     * @return 0 if sent
+     */
+    int getStatus() {
+      return status;
+    }
+
+    long getWaarpId() {
+      return waarpId;
+    }
+  }
+
+  /**
+   * One helper slot, restarting its process when needed
+   */
+  private final class Helper {
+    private Connection connection;
+
+    private synchronized int getLoad() {
+      return connection == null? 0 : connection.pending.size();
+    }
+
+    private synchronized CompletableFuture<Answer> send(final long seq,
+                                                        final String line) {
+      final CompletableFuture<Answer> future = new CompletableFuture<>();
+      try {
+        if (connection == null || connection.ended ||
+            !connection.process.isAlive()) {
+          connection = new Connection();
+        }
+        connection.pending.put(seq, future);
+        if (connection.ended) {
+          // Ended meanwhile
+          throw new IOException("Script helper ended");
+        }
+        connection.writer.write(line);
+        connection.writer.flush();
+      } catch (IOException e) {
+        logger.warn("Script helper {} not available", command, e);
+        if (connection != null) {
+          connection.ended();
+          connection = null;
+        }
+        future.complete(null);
+      }
+      return future;
+    }
+
+    private synchronized void kill(final CompletableFuture<Answer> future) {
+      if (connection != null && connection.pending.containsValue(future)) {
+        logger.warn("Script helper {} not answering, killed", command);
+        connection.closing = true;
+        connection.ended();
+        connection = null;
+      }
+    }
+
+    private synchronized void close() {
+      if (connection != null) {
+        connection.closing = true;
+        connection.process.destroy();
+        connection = null;
+      }
+    }
+  }
+
+  /**
+   * One running helper process
+   */
+  private final class Connection {
+    private final Process process;
+    private final Writer writer;
+    private final ConcurrentHashMap<Long, CompletableFuture<Answer>> pending =
+        new ConcurrentHashMap<>();
+    private volatile boolean closing;
+    private volatile boolean ended;
+
+    private Connection() throws IOException {
+      process = new ProcessBuilder(command, HELPER_ARGUMENT)
+          .redirectError(Redirect.INHERIT).start();
+      writer = new BufferedWriter(
+          new OutputStreamWriter(process.getOutputStream(),
+                                 StandardCharsets.UTF_8));
+      WaarpVitamMetrics.getInstance().increment(SCRIPT_HELPER_STARTED);
+      logger.info("Script helper {} started", command);
+      READERS.execute(this::readAnswers);
+    }
+
+    private void readAnswers() {
+      try (final BufferedReader reader = new BufferedReader(
+          new InputStreamReader(process.getInputStream(),
+                                StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          answered(line);
+        }
+      } catch (IOException e) {
+        logger.debug("Script helper {} output closed", command, e);
+      } finally {
+        if (!closing) {
+          WaarpVitamMetrics.getInstance().increment(SCRIPT_HELPER_CRASHED);
+          logger.warn("Script helper {} ended with {} requests waiting",
+                      command, pending.size());
+        }
+        ended();
+      }
+    }
+
+    private void answered(final String line) {
+      final String[] fields = SPLIT.split(line.trim());
+      final long seq;
+      try {
+        seq = Long.parseLong(fields[0]);
+      } catch (NumberFormatException e) {
+        logger.warn("Unexpected answer from script helper {}: {}", command,
+                    line);
+        return;
+      }
+      // Parsed before being removed, so that a wrong answer fails the request
+      Answer answer = null;
+      try {
+        if (fields.length >= 3) {
+          answer = new Answer(Integer.parseInt(fields[1]),
+                              Long.parseLong(fields[2]));
+        }
+      } catch (NumberFormatException e) {
+        // answer stays null
+      }
+      final CompletableFuture<Answer> future = pending.remove(seq);
+      if (future == null) {
+        logger.warn("Unexpected answer from script helper {}: {}", command,
+                    line);
+        return;
+      }
+      if (answer == null) {
+        logger.warn("Wrong answer from script helper {}: {}", command, line);
+      }
+      future.complete(answer);
+    }
+
+    /**
+     * Fail all requests waiting for an answer and stop the process
+     */
+    private void ended() {
+      ended = true;
+      process.destroy();
+      final Iterator<CompletableFuture<Answer>> iterator =
+          pending.values().iterator();
+      while (iterator.hasNext()) {
+        iterator.next().complete(null);
+        iterator.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common.waarp;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits and measures the runs of send scripts by
+ * {@link ManagerToWaarpScript}.<br>
+ * <br>
+ * Both limits are off unless set, so that the scripts run as before. If
+ * {@value #ORG_WAARP_VITAM_SCRIPT_MAX} is set, at most this number of
+ * scripts run at once in this JVM; a send waiting more than
+ * {@value #ORG_WAARP_VITAM_SCRIPT_WAIT} ms for its turn is not done (so
+ * retried later on). If {@value #ORG_WAARP_VITAM_SCRIPT_TIMEOUT} is set, a
+ * script (or the answer of a helper) taking more than this number of ms is
+ * killed and the send is not done.
+ */
+final class ScriptLimiter {
+  /**
+   * Maximum number of scripts running at once (0, the default, for no
+   * limit)
+   */
+  static final String ORG_WAARP_VITAM_SCRIPT_MAX = "org.waarp.vitam.script.max";
+  /**
+   * Maximum time in ms to wait for running a script, when limited
+   */
+  static final String ORG_WAARP_VITAM_SCRIPT_WAIT =
+      "org.waarp.vitam.script.wait";
+  /**
+   * Maximum duration in ms of a script before being killed (0, the default,
+   * for never)
+   */
+  static final String ORG_WAARP_VITAM_SCRIPT_TIMEOUT =
+      "org.waarp.vitam.script.timeout";
+  /**
+   * Metric name for scripts not run since too many were running
+   */
+  static final String SCRIPT_THROTTLED = "waarp.script.throttled";
+  /**
+   * Metric name for scripts (or helper answers) over the timeout
+   */
+  static final String SCRIPT_TIMEOUT = "waarp.script.timeout";
+  /**
+   * Metric name prefix for scripts ended per exit value
+   */
+  static final String SCRIPT_EXIT = "waarp.script.exit.";
+  /**
+   * Metric name prefix for scripts ended per duration in ms (upper bound of
+   * the bucket, or "more")
+   */
+  static final String SCRIPT_DURATION = "waarp.script.ms.";
+  static final int DEFAULT_MAX = 0;
+  static final long DEFAULT_WAIT = 10000;
+  static final long DEFAULT_TIMEOUT = 0;
+  /**
+   * Upper bounds in ms of the duration buckets
+   */
+  private static final long[] BUCKETS = { 100, 1000, 10000, 60000 };
+  private static final String MORE = "more";
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(ScriptLimiter.class);
+  private static final ScriptLimiter INSTANCE = new ScriptLimiter(
+      SystemPropertyUtil.getInt(ORG_WAARP_VITAM_SCRIPT_MAX, DEFAULT_MAX),
+      SystemPropertyUtil.getLong(ORG_WAARP_VITAM_SCRIPT_WAIT, DEFAULT_WAIT),
+      SystemPropertyUtil
+          .getLong(ORG_WAARP_VITAM_SCRIPT_TIMEOUT, DEFAULT_TIMEOUT));
+
+  /**
+   * Null if no limit
+   */
+  private final Semaphore permits;
+  private final long wait;
+  private final long timeout;
+
+  /**
+   * @param max maximum number of scripts running at once (0 for no limit)
+   * @param wait maximum time in ms to wait for running a script
+   * @param timeout maximum duration in ms of a script (0 for never)
+   */
+  ScriptLimiter(final int max, final long wait, final long timeout) {
+    permits = max > 0? new Semaphore(max, true) : null;
+    this.wait = Math.max(0, wait);
+    this.timeout = Math.max(0, timeout);
+  }
+
+  /**
+   * @return the instance of the limiter
+   */
+  static ScriptLimiter getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return the maximum duration in ms of a script, 0 for never
+   */
+  long getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * Wait for the turn of a script to run, to be followed by
+   * {@link #release()} if True
+   *
+   * @return True if the script can run
+   */
+  boolean acquire() {
+    if (permits == null) {
+      return true;
+    }
+    try {
+      if (permits.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    } catch (InterruptedException e) {//NOSONAR
+      logger.warn("Interrupted while waiting to run a script");
+      return false;
+    }
+    WaarpVitamMetrics.getInstance().increment(SCRIPT_THROTTLED);
+    logger.warn("Too many scripts running, send retried later on");
+    return false;
+  }
+
+  /**
+   * Release the turn given by {@link #acquire()}
+   */
+  void release() {
+    if (permits != null) {
+      permits.release();
+    }
+  }
+
+  /**
+   * Record the end of a script
+   *
+   * @param start start time in ms
+   * @param exitValue exit value of the script
+   * @param timedOut True if killed since over the timeout
+   */
+  void ended(final long start, final int exitValue, final boolean timedOut) {
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    final long duration = System.currentTimeMillis() - start;
+    String bucket = MORE;
+    for (long bound : BUCKETS) {
+      if (duration <= bound) {
+        bucket = Long.toString(bound);
+        break;
+      }
+    }
+    metrics.increment(SCRIPT_DURATION + bucket);
+    if (timedOut) {
+      timedOut();
+    } else {
+      metrics.increment(SCRIPT_EXIT + exitValue);
+    }
+  }
+
+  /**
+   * Record a script (or a helper answer) over the timeout
+   */
+  void timedOut() {
+    WaarpVitamMetrics.getInstance().increment(SCRIPT_TIMEOUT);
+  }
+}
@@ -0,0 +1,415 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.dip;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import fr.gouv.vitam.common.exception.InvalidParseOperationException;
+import fr.gouv.vitam.common.json.JsonHandler;
+import org.waarp.common.digest.FilesystemBasedDigest;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import static java.nio.file.StandardCopyOption.*;
+
+/**
+ * Cache of DIP zip files, keyed by a hash of the normalized DSL and of the
+ * tenant, access contract and certificate of the request.<br>
+ * <br>
+ * When enabled ({@value #ORG_WAARP_VITAM_DIP_CACHE_MAXSIZE} greater than 0),
+ * each downloaded DIP is hard linked (copied if not possible, counted by
+ * {@value #DIP_CACHE_COPY}) into the cache directory of its storage tier,
+ * and a request for the same selection within
+ * {@value #ORG_WAARP_VITAM_DIP_CACHE_TTL} ms is served from it without
+ * calling Vitam. The least recently used DIPs are removed when the total
+ * size exceeds the maximum size. Links and copies are done outside the lock,
+ * only the lookup, the rename into the cache and the eviction being
+ * synchronized.
+ */
+class DipCache {
+  /**
+   * Maximum total size in bytes of the cache (0, the default, to disable it)
+   */
+  static final String ORG_WAARP_VITAM_DIP_CACHE_MAXSIZE =
+      "org.waarp.vitam.dip.cache.maxsize";
+  /**
+   * Freshness in ms of a cached DIP
+   */
+  static final String ORG_WAARP_VITAM_DIP_CACHE_TTL =
+      "org.waarp.vitam.dip.cache.ttl";
+  /**
+   * Directory of the cache (default is "cache" within each storage tier of
+   * the DipFactory, to allow hard links)
+   */
+  static final String ORG_WAARP_VITAM_DIP_CACHE_DIR =
+      "org.waarp.vitam.dip.cache.dir";
+  /**
+   * Metric name for DIP served from the cache
+   */
+  static final String DIP_CACHE_HIT = "dip.cache.hit";
+  /**
+   * Metric name for DIP not found in the cache
+   */
+  static final String DIP_CACHE_MISS = "dip.cache.miss";
+  /**
+   * Metric name for DIP evicted from the cache
+   */
+  static final String DIP_CACHE_EVICTED = "dip.cache.evicted";
+  /**
+   * Metric name for DIP copied into or from the cache since not linkable
+   */
+  static final String DIP_CACHE_COPY = "dip.cache.copy";
+  static final long DEFAULT_TTL = 600000;
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(DipCache.class);
+  private static final String CACHE = "cache";
+  private static final String ZIP_EXTENSION = ".zip";
+  private static final String INFO_EXTENSION = ".json";
+  private static final String TMP_EXTENSION = ".tmp";
+  private static final String CREATED = "created";
+  private static final String DIGEST = "digest";
+  private static final DipCache INSTANCE = new DipCache(
+      SystemPropertyUtil.getLong(ORG_WAARP_VITAM_DIP_CACHE_MAXSIZE, 0),
+      SystemPropertyUtil.getLong(ORG_WAARP_VITAM_DIP_CACHE_TTL, DEFAULT_TTL),
+      SystemPropertyUtil.get(ORG_WAARP_VITAM_DIP_CACHE_DIR, null));
+
+  private final long maxSize;
+  private final long ttl;
+  private final String directory;
+
+  /**
+   * @param maxSize maximum total size in bytes, 0 to disable the cache
+   * @param ttl freshness in ms of a cached DIP
+   * @param directory the cache directory, null for the default one
+   */
+  DipCache(final long maxSize, final long ttl, final String directory) {
+    this.maxSize = maxSize;
+    this.ttl = ttl;
+    this.directory = directory;
+  }
+
+  /**
+   * @return the DipCache configured from properties
+   */
+  static DipCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return True if the cache is enabled
+   */
+  boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  /**
+   * Set the hash of the selection of this request and, if a fresh DIP is
+   * cached for it, make it the DIP File of this request
+   *
+   * @param dipRequestFactory
+   * @param dipRequest
+   *
+   * @return True if the DIP File of this request comes from the cache
+   *
+   * @throws InvalidParseOperationException
+   */
+  boolean get(final DipRequestFactory dipRequestFactory,
+              final DipRequest dipRequest)
+      throws InvalidParseOperationException {
+    if (!isEnabled()) {
+      return false;
+    }
+    final String hash =
+        getSelectHash(dipRequest, dipRequest.getSelectJson());
+    dipRequest.setSelectHash(hash);
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    final File zip;
+    final JsonNode node;
+    synchronized (this) {
+      zip = getCached(dipRequestFactory, hash);
+      if (zip == null) {
+        metrics.increment(DIP_CACHE_MISS);
+        return false;
+      }
+      final File info = getInfo(zip);
+      node = JsonHandler.getFromFile(info);
+      if (System.currentTimeMillis() - node.get(CREATED).asLong() > ttl) {
+        logger.debug("Cached DIP too old for {}", dipRequest);
+        remove(zip, info);
+        metrics.increment(DIP_CACHE_MISS);
+        return false;
+      }
+      try {
+        // Last modified time as last access for LRU, so evicted last
+        Files.setLastModifiedTime(zip.toPath(), FileTime
+            .fromMillis(System.currentTimeMillis()));
+      } catch (IOException e) {
+        logger.warn("Cannot use cached DIP for {}", dipRequest, e);
+        metrics.increment(DIP_CACHE_MISS);
+        return false;
+      }
+    }
+    // Outside the lock since it may be a copy of several GB
+    File dipFile = dipRequest.getDipFile(dipRequestFactory);
+    if (directory == null) {
+      // Within the tier of the cached DIP, to be hard linked
+      dipFile = new File(zip.getParentFile().getParentFile(),
+                         dipFile.getName());
+    }
+    try {
+      link(zip, dipFile);
+    } catch (IOException e) {
+      logger.warn("Cannot use cached DIP for {}", dipRequest, e);
+      metrics.increment(DIP_CACHE_MISS);
+      return false;
+    }
+    final JsonNode digest = node.get(DIGEST);
+    dipRequest.setDigest(
+        digest == null || digest.isNull()? null : digest.asText());
+    metrics.increment(DIP_CACHE_HIT);
+    logger.info("DIP served from cache for {}", dipRequest);
+    return true;
+  }
+
+  /**
+   * Cache the DIP File of this request, then evict the least recently used
+   * DIPs if needed
+   *
+   * @param dipRequestFactory
+   * @param dipRequest
+   * @param dipFile
+   */
+  void put(final DipRequestFactory dipRequestFactory,
+           final DipRequest dipRequest, final File dipFile) {
+    final String hash = dipRequest.getSelectHash();
+    if (!isEnabled() || hash == null || dipFile.length() > maxSize) {
+      return;
+    }
+    final File cacheDir = directory != null? new File(directory) :
+        new File(dipFile.getParentFile(), CACHE);
+    cacheDir.mkdirs();
+    final File zip = new File(cacheDir, hash + ZIP_EXTENSION);
+    final File info = getInfo(zip);
+    File tmp = null;
+    try {
+      // Own temporary file, since linked or copied outside the lock
+      tmp = File.createTempFile(hash, TMP_EXTENSION, cacheDir);
+      link(dipFile, tmp);
+    } catch (IOException e) {
+      logger.warn("Cannot cache DIP of {}", dipRequest, e);
+      if (tmp != null) {
+        remove(tmp);
+      }
+      return;
+    }
+    synchronized (this) {
+      try {
+        final File previous = getCached(dipRequestFactory, hash);
+        if (previous != null && !previous.equals(zip)) {
+          // Previous DIP of this selection within another tier
+          remove(previous, getInfo(previous));
+        }
+        Files.move(tmp.toPath(), zip.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        final ObjectNode node = JsonHandler.createObjectNode();
+        node.put(CREATED, System.currentTimeMillis());
+        node.put(DIGEST, dipRequest.getDigest());
+        node.put("requestId", dipRequest.getRequestId());
+        JsonHandler.writeAsFile(node, info);
+      } catch (IOException | InvalidParseOperationException e) {
+        logger.warn("Cannot cache DIP of {}", dipRequest, e);
+        remove(tmp, zip, info);
+        return;
+      }
+      evict(getCacheDirs(dipRequestFactory));
+    }
+  }
+
+  /**
+   * Remove the least recently used DIPs until the total size is less than
+   * the maximum size
+   *
+   * @param cacheDirs
+   */
+  private void evict(final List<File> cacheDirs) {
+    final List<File> list = new ArrayList<>();
+    for (File cacheDir : cacheDirs) {
+      final File[] files =
+          cacheDir.listFiles((dir, name) -> name.endsWith(ZIP_EXTENSION));
+      if (files != null) {
+        list.addAll(Arrays.asList(files));
+      }
+    }
+    long total = 0;
+    for (File file : list) {
+      total += file.length();
+    }
+    list.sort(Comparator.comparingLong(File::lastModified));
+    final Iterator<File> iterator = list.iterator();
+    while (total > maxSize && iterator.hasNext()) {
+      final File zip = iterator.next();
+      total -= zip.length();
+      remove(zip, getInfo(zip));
+      WaarpVitamMetrics.getInstance().increment(DIP_CACHE_EVICTED);
+      logger.debug("Evict {} from DIP cache", zip.getName());
+    }
+  }
+
+  /**
+   * @param dipRequestFactory
+   * @param hash
+   *
+   * @return the cached DIP of this selection within any cache directory, or
+   *     null if none
+   */
+  private File getCached(final DipRequestFactory dipRequestFactory,
+                         final String hash) {
+    for (File cacheDir : getCacheDirs(dipRequestFactory)) {
+      final File zip = new File(cacheDir, hash + ZIP_EXTENSION);
+      if (zip.canRead() && getInfo(zip).canRead()) {
+        return zip;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param dipRequestFactory
+   *
+   * @return the cache directories, the given one or "cache" within each
+   *     storage tier
+   */
+  private List<File> getCacheDirs(final DipRequestFactory dipRequestFactory) {
+    if (directory != null) {
+      return Collections.singletonList(new File(directory));
+    }
+    final List<File> cacheDirs = new ArrayList<>();
+    for (File dipDir : dipRequestFactory.getDipDirs()) {
+      cacheDirs.add(new File(dipDir, CACHE));
+    }
+    return cacheDirs;
+  }
+
+  private static File getInfo(final File zip) {
+    final String name = zip.getName();
+    return new File(zip.getParentFile(),
+                    name.substring(0, name.length() - ZIP_EXTENSION.length()) +
+                    INFO_EXTENSION);
+  }
+
+  /**
+   * Hard link source as target if possible, else copy it
+   *
+   * @param source
+   * @param target
+   *
+   * @throws IOException
+   */
+  private static void link(final File source, final File target)
+      throws IOException {
+    Files.deleteIfExists(target.toPath());
+    try {
+      Files.createLink(target.toPath(), source.toPath());
+    } catch (IOException | UnsupportedOperationException e) {
+      logger.debug("Cannot link, so copy", e);
+      WaarpVitamMetrics.getInstance().increment(DIP_CACHE_COPY);
+      Files.copy(source.toPath(), target.toPath(), REPLACE_EXISTING);
+    }
+  }
+
+  private static void remove(final File... files) {
+    for (File file : files) {
+      try {
+        Files.deleteIfExists(file.toPath());
+      } catch (IOException e) {
+        logger.warn("Cannot delete {}", file, e);
+      }
+    }
+  }
+
+  /**
+   * @param dipRequest
+   * @param select
+   *
+   * @return the hash of the normalized DSL (fields sorted) and of the
+   *     tenant, access contract and certificate
+   */
+  static String getSelectHash(final DipRequest dipRequest,
+                              final JsonNode select) {
+    final StringBuilder builder = new StringBuilder();
+    builder.append(dipRequest.getTenantId()).append('\n')
+           .append(dipRequest.getAccessContract()).append('\n')
+           .append(dipRequest.getPersonalCertificate()).append('\n');
+    normalize(select, builder);
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      return FilesystemBasedDigest.getHex(
+          digest.digest(builder.toString().getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      // SHA-256 is always supported
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void normalize(final JsonNode node,
+                                final StringBuilder builder) {
+    if (node.isObject()) {
+      final List<String> names = new ArrayList<>();
+      node.fieldNames().forEachRemaining(names::add);
+      Collections.sort(names);
+      builder.append('{');
+      for (String name : names) {
+        builder.append(new TextNode(name)).append(':');
+        normalize(node.get(name), builder);
+        builder.append(',');
+      }
+      builder.append('}');
+    } else if (node.isArray()) {
+      builder.append('[');
+      for (JsonNode element : node) {
+        normalize(element, builder);
+        builder.append(',');
+      }
+      builder.append(']');
+    } else {
+      builder.append(node);
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.dip;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import fr.gouv.vitam.access.external.client.AccessExternalClient;
+import fr.gouv.vitam.common.exception.InvalidParseOperationException;
+import fr.gouv.vitam.common.exception.VitamClientException;
+import fr.gouv.vitam.common.model.RequestResponse;
+import fr.gouv.vitam.common.model.RequestResponseOK;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+
+/**
+ * Split of a broad DIP export DSL into several bounded exports.<br>
+ * <br>
+ * When {@value #ORG_WAARP_VITAM_DIP_SPLIT_MAXUNITS} is set, the number of
+ * Units selected by the DSL is counted first. If greater, the DSL is split
+ * into exports of at most this number of Units (using $offset and $limit on
+ * a stable order ending with #id), each one handled by its own DipRequest.
+ * Those are run concurrently by the DipMonitor and each DIP is forwarded as
+ * soon as ready, with "export=rank/total" within the File Information.<br>
+ * <br>
+ * Vitam refuses to page beyond its result window
+ * ({@value #ORG_WAARP_VITAM_DIP_SPLIT_WINDOW}, 10000 by default), and #id is
+ * not usable as a range, so a DSL selecting more Units than this window is
+ * not split but exported as is.
+ */
+class DipExportSplitter {
+  /**
+   * Maximum number of Units per export (0, the default, for no split)
+   */
+  static final String ORG_WAARP_VITAM_DIP_SPLIT_MAXUNITS =
+      "org.waarp.vitam.dip.split.maxunits";
+  /**
+   * Maximum $offset + $limit accepted by Vitam (default 10000)
+   */
+  static final String ORG_WAARP_VITAM_DIP_SPLIT_WINDOW =
+      "org.waarp.vitam.dip.split.window";
+  /**
+   * Default result window of Vitam
+   */
+  static final long DEFAULT_WINDOW = 10000;
+  /**
+   * Prefix of the export rank within File Information
+   */
+  static final String EXPORT_INFO = "export=";
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(DipExportSplitter.class);
+  private static final String FILTER = "$filter";
+  private static final String LIMIT = "$limit";
+  private static final String OFFSET = "$offset";
+  private static final String ORDERBY = "$orderby";
+  private static final String PROJECTION = "$projection";
+  private static final String ID = "#id";
+
+  private final long maxUnits;
+  private final long window;
+
+  /**
+   * @param maxUnits maximum number of Units per export, 0 for no split
+   * @param window maximum $offset + $limit accepted by Vitam
+   */
+  DipExportSplitter(final long maxUnits, final long window) {
+    this.maxUnits = maxUnits;
+    this.window = window;
+  }
+
+  /**
+   * @return the DipExportSplitter configured from properties, or null if
+   *     disabled
+   */
+  static DipExportSplitter getSplitter() {
+    final long maxUnits =
+        SystemPropertyUtil.getLong(ORG_WAARP_VITAM_DIP_SPLIT_MAXUNITS, 0);
+    final long window = SystemPropertyUtil
+        .getLong(ORG_WAARP_VITAM_DIP_SPLIT_WINDOW, DEFAULT_WINDOW);
+    return maxUnits > 0? new DipExportSplitter(maxUnits, window) : null;
+  }
+
+  /**
+   * @param dipRequest
+   * @param prefix the kind of file sent
+   *
+   * @return the prefix of File Information, with the export rank if any
+   */
+  static String getInfoPrefix(final DipRequest dipRequest,
+                              final String prefix) {
+    if (dipRequest.getDipSplit() == null) {
+      return prefix;
+    }
+    return prefix + ' ' + EXPORT_INFO + dipRequest.getDipSplit();
+  }
+
+  /**
+   * Split the DSL of this request into several DipRequests if it selects
+   * too many Units
+   *
+   * @param dipRequestFactory
+   * @param dipRequest
+   * @param client
+   *
+   * @return True if split, so this request is replaced by the new ones,
+   *     False if this request is to be exported as is
+   *
+   * @throws InvalidParseOperationException
+   */
+  boolean split(final DipRequestFactory dipRequestFactory,
+                final DipRequest dipRequest, final AccessExternalClient client)
+      throws InvalidParseOperationException {
+    if (dipRequest.getDipSplit() != null) {
+      return false;
+    }
+    final JsonNode select = dipRequest.getSelectJson();
+    final JsonNode filter = select.get(FILTER);
+    if (filter != null && (filter.has(LIMIT) || filter.has(OFFSET))) {
+      // Already bounded by the user
+      return false;
+    }
+    final long total = count(dipRequest, select, client);
+    final int exports = getExports(total, maxUnits, window);
+    if (exports == 0) {
+      logger.warn("DSL selecting {} Units beyond the Vitam result window of " +
+                  "{} ($offset + $limit), export not split: {}", total,
+                  window, dipRequest);
+      return false;
+    }
+    if (exports == 1) {
+      return false;
+    }
+    for (int rank = 1; rank <= exports; rank++) {
+      dipRequestFactory
+          .newDipSplitRequest(dipRequest, rank + "/" + exports,
+                              getSplitSelect(select, rank, exports, maxUnits));
+    }
+    logger.warn("DSL selecting {} Units split into {} exports: {}", total,
+                exports, dipRequest);
+    return true;
+  }
+
+  /**
+   * @param total the number of Units selected, -1 if unknown
+   * @param maxUnits the maximum number of Units per export
+   * @param window the maximum $offset + $limit accepted by Vitam
+   *
+   * @return the number of exports, 1 if no split is needed, 0 if the Units
+   *     cannot be reached within the window
+   */
+  static int getExports(final long total, final long maxUnits,
+                        final long window) {
+    if (total <= maxUnits) {
+      return 1;
+    }
+    if (total > window) {
+      return 0;
+    }
+    return (int) ((total + maxUnits - 1) / maxUnits);
+  }
+
+  /**
+   * @param dipRequest
+   * @param select
+   * @param client
+   *
+   * @return the number of Units selected, or -1 if unknown
+   */
+  private static long count(final DipRequest dipRequest,
+                            final JsonNode select,
+                            final AccessExternalClient client) {
+    final ObjectNode countSelect = select.deepCopy();
+    countSelect.putObject(FILTER).put(LIMIT, 1);
+    countSelect.putObject(PROJECTION).putObject("$fields").put(ID, 1);
+    try {
+      final RequestResponse<JsonNode> response =
+          client.selectUnits(dipRequest.getVitamContext(), countSelect);
+      if (response.isOk()) {
+        return ((RequestResponseOK<JsonNode>) response).getHits().getTotal();
+      }
+      logger.warn("Cannot count Units, export not split: {}", response);
+    } catch (VitamClientException e) {
+      logger.warn("Cannot count Units, export not split", e);
+    }
+    return -1;
+  }
+
+  /**
+   * The last export has no $limit, so that Units added since the count are
+   * not lost. #id is always the last sort key, so that the order is stable
+   * between exports even if the user's $orderby has ties.
+   *
+   * @param select the original DSL
+   * @param rank the rank of the export, from 1
+   * @param exports the number of exports
+   * @param maxUnits the maximum number of Units per export
+   *
+   * @return the DSL of this export
+   */
+  static JsonNode getSplitSelect(final JsonNode select, final int rank,
+                                 final int exports, final long maxUnits) {
+    final ObjectNode splitSelect = select.deepCopy();
+    final ObjectNode filter = splitSelect.has(FILTER)?
+        (ObjectNode) splitSelect.get(FILTER) : splitSelect.putObject(FILTER);
+    final ObjectNode orderby = filter.has(ORDERBY)?
+        (ObjectNode) filter.get(ORDERBY) : filter.putObject(ORDERBY);
+    if (!orderby.has(ID)) {
+      orderby.put(ID, 1);
+    }
+    filter.put(OFFSET, (rank - 1) * maxUnits);
+    if (rank < exports) {
+      filter.put(LIMIT, maxUnits);
+    }
+    return splitSelect;
+  }
+}
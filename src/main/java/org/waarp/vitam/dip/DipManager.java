@@ -32,28 +32,37 @@ import fr.gouv.vitam.common.model.RequestResponse;
 import fr.gouv.vitam.common.model.RequestResponseOK;
 import fr.gouv.vitam.common.stream.StreamUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.waarp.common.logging.SysErrLogger;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
 import org.waarp.common.utility.WaarpThreadFactory;
+import org.waarp.vitam.common.FileDownloader;
 import org.waarp.vitam.common.OperationCheck;
+import org.waarp.vitam.common.OperationDurationStatistics;
+import org.waarp.vitam.common.OperationStatusCache;
+import org.waarp.vitam.common.PollingPolicy;
+import org.waarp.vitam.common.StorageTiers;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+import org.waarp.vitam.common.waarp.ForwardLimiter;
+import org.waarp.vitam.common.waarp.ManagerToWaarp;
 import org.waarp.vitam.dip.DipRequest.DIPStep;
 
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
-import static java.nio.file.StandardCopyOption.*;
-
 /**
  * DipManager is the central logic for DIP management between Waarp and
  * Vitam
@@ -67,6 +76,32 @@ public class DipManager implements Runnable {
    * Prefix of File Information for DIP
    */
   public static final String DIP = "DIP";
+  /**
+   * True to stream DIP directly to the Waarp Partner when possible
+   */
+  public static final String ORG_WAARP_VITAM_DIP_STREAMING =
+      "org.waarp.vitam.dip.streaming";
+  /**
+   * Size of the buffer between Vitam and the Waarp Partner when streaming
+   */
+  public static final String ORG_WAARP_VITAM_DIP_STREAMING_BUFFER =
+      "org.waarp.vitam.dip.streaming.buffer";
+  /**
+   * Metric prefix for DIP streamed to Waarp Partner
+   */
+  public static final String DIP_STREAMED = "dip.streamed";
+  /**
+   * Metric prefix for DIP spooled to local file before sending
+   */
+  public static final String DIP_SPOOLED = "dip.spooled";
+  /**
+   * Metric name for the largest DIP spooled to local file
+   */
+  public static final String DIP_SPOOL_PEAK = "dip.spooled.peak";
+  /**
+   * Metric name for DIP downloads postponed for lack of space
+   */
+  public static final String DIP_DOWNLOAD_QUEUED = "dip.download.queued";
   protected static final String ERROR_MESSAGE = "{}\n\t{}";
   /**
    * Internal Logger
@@ -75,11 +110,19 @@ public class DipManager implements Runnable {
       WaarpLoggerFactory.getLogger(DipManager.class);
   private static final String ISSUE_SINCE_SELECT_PRODUCES_AN_ERROR =
       "Issue since Select produces an error";
+  private static final String COUNT = ".count";
+  private static final String BYTES = ".bytes";
+  private static final String MS = ".ms";
+  private static boolean streaming =
+      SystemPropertyUtil.getBoolean(ORG_WAARP_VITAM_DIP_STREAMING, false);
+  private static final int streamingBuffer = SystemPropertyUtil
+      .getInt(ORG_WAARP_VITAM_DIP_STREAMING_BUFFER, 65536);
 
   private DipRequest dipRequest;
   private AdminExternalClient adminExternalClient;
   private AccessExternalClient client;
   private DipRequestFactory dipRequestFactory;
+  private PollingPolicy pollingPolicy;
 
   DipManager() {
     // Empty
@@ -88,11 +131,28 @@ public class DipManager implements Runnable {
   private DipManager(final DipRequest dipRequest,
                      final AdminExternalClient adminExternalClient,
                      final AccessExternalClient client,
-                     final DipRequestFactory dipRequestFactory) {
+                     final DipRequestFactory dipRequestFactory,
+                     final PollingPolicy pollingPolicy) {
     this.dipRequest = dipRequest;
     this.adminExternalClient = adminExternalClient;
     this.client = client;
     this.dipRequestFactory = dipRequestFactory;
+    this.pollingPolicy = pollingPolicy;
+  }
+
+  /**
+   * @param pollingPolicy the PollingPolicy for operation checks of this
+   *     Manager, null for the default one
+   */
+  void setPollingPolicy(final PollingPolicy pollingPolicy) {
+    this.pollingPolicy = pollingPolicy;
+  }
+
+  /**
+   * @return the PollingPolicy of this Manager, null for the default one
+   */
+  PollingPolicy getPollingPolicy() {
+    return pollingPolicy;
   }
 
   /**
@@ -108,6 +168,8 @@ public class DipManager implements Runnable {
                              final AccessExternalClient client,
                              final AdminExternalClient adminExternalClient,
                              final DipMonitor dipMonitor) {
+    // Next steps of the forwards over, before reading the requests again
+    ForwardLimiter.getInstance().runCompleted(DipRequest.class);
     List<DipRequest> dipRequests = dipRequestFactory.getExistingDips();
     if (dipRequests.isEmpty()) {
       return;
@@ -120,7 +182,7 @@ public class DipManager implements Runnable {
         return;
       }
       DipManager task = new DipManager(dipRequest, adminExternalClient, client,
-                                       dipRequestFactory);
+                                       dipRequestFactory, pollingPolicy);
       executorService.execute(task);
     }
     try {
@@ -230,6 +292,19 @@ public class DipManager implements Runnable {
     try {
       // Inform Vitam of an Ingest to proceed locally
       dipRequest.setStep(DIPStep.RETRY_SELECT, 0, dipRequestFactory);
+      if (DipCache.getInstance().get(dipRequestFactory, dipRequest)) {
+        // Same selection recently exported: no need for Vitam
+        sendDipFile(dipRequestFactory, dipRequest,
+                    dipRequest.getDipFile(dipRequestFactory));
+        return 0;
+      }
+      final DipExportSplitter splitter = DipExportSplitter.getSplitter();
+      if (splitter != null &&
+          splitter.split(dipRequestFactory, dipRequest, client)) {
+        // Replaced by the bounded exports
+        toDelete(dipRequestFactory, dipRequest);
+        return 0;
+      }
       VitamContext vitamContext = dipRequest.getVitamContext();
       JsonNode jsonNode = dipRequest.getSelectJson();
       RequestResponse requestResponse =
@@ -264,6 +339,8 @@ public class DipManager implements Runnable {
       // Select sent and accepted
       RequestResponseOK responseOK = (RequestResponseOK) requestResponse;
       dipRequest.setFromRequestResponse(responseOK);
+      // First check not before the usual duration of such an operation
+      OperationDurationStatistics.getInstance().onSubmitted(dipRequest);
 
       // Now will start DIP pooling
       dipRequest
@@ -309,9 +386,23 @@ public class DipManager implements Runnable {
     Response response = null;
     try {
       dipRequest.setStep(DIPStep.RETRY_DIP, 0, dipRequestFactory);
-      OperationCheck operationCheck = new OperationCheck(adminExternalClient);
-      if (operationCheck.checkAvailabilityAtr(dipRequest.getTenantId(),
-                                              dipRequest.getRequestId())) {
+      final OperationDurationStatistics statistics =
+          OperationDurationStatistics.getInstance();
+      if (!statistics.isCheckDue(dipRequest)) {
+        logger.debug("Too early to check {}", dipRequest);
+        return false;
+      }
+      OperationCheck operationCheck =
+          new OperationCheck(adminExternalClient, pollingPolicy);
+      if (!operationCheck.checkAvailabilityAtr(dipRequest.getTenantId(),
+                                               dipRequest.getRequestId())) {
+        statistics.onCheckNotDone(dipRequest);
+        dipRequest.save(dipRequestFactory);
+      } else {
+        statistics.onCheckDone(dipRequest);
+        if (!reserveDipSpace(dipRequestFactory, dipRequest)) {
+          return false;
+        }
         response = client.getDIPById(vitamContext, dipRequest.getRequestId());
         Status status = Status.fromStatusCode(response.getStatus());
         switch (status) {
@@ -338,13 +429,43 @@ public class DipManager implements Runnable {
     } finally {
       // Shall read all InputStream
       StreamUtils.consumeAnyEntityAndClose(response);
+      dipRequestFactory.releaseDipFile(dipRequest);
     }
     return false;
   }
 
+  /**
+   * Reserve the space for the DIP File before asking Vitam for the DIP, if
+   * its size is known from a previous response and it is to be spooled
+   *
+   * @param dipRequestFactory
+   * @param dipRequest
+   *
+   * @return True if the DIP can be downloaded now, False if it is to wait
+   *     for enough space
+   */
+  private boolean reserveDipSpace(final DipRequestFactory dipRequestFactory,
+                                  final DipRequest dipRequest) {
+    if (dipRequest.getDipSize() <= 0 || isStreamed(dipRequest)) {
+      return true;
+    }
+    try {
+      dipRequestFactory.allocateDipFile(dipRequest, dipRequest.getDipSize());
+      return true;
+    } catch (StorageTiers.QuotaExceededException e) {
+      logger.info("DIP download queued: {} {}", e.getMessage(), dipRequest);
+      WaarpVitamMetrics.getInstance().increment(DIP_DOWNLOAD_QUEUED);
+      return false;
+    }
+  }
+
   /**
    * Send the DIP back to the Waarp Partner, directly from step 2 (DIP
-   * retrieve) (step 3)
+   * retrieve) (step 3).<br>
+   * <br>
+   * If streaming is enabled and supported by the ManagerToWaarp, the DIP is
+   * sent directly from the Vitam response. It is spooled to a local file
+   * first only if the partner cannot take it.
    *
    * @param dipRequestFactory
    * @param dipRequest
@@ -357,10 +478,54 @@ public class DipManager implements Runnable {
       throws InvalidParseOperationException {
     try (final InputStream inputStream = response
         .readEntity(InputStream.class)) {
+      if (isStreamed(dipRequest) &&
+          streamDIP(dipRequestFactory, dipRequest, inputStream)) {
+        return;
+      }
       // Write file to be forwarded
-      File targetFile = dipRequest.getDipFile(dipRequestFactory);
-      Path target = targetFile.toPath();
-      Files.copy(inputStream, target, REPLACE_EXISTING);
+      final long expected = FileDownloader.getContentLength(response);
+      if (expected > 0) {
+        dipRequest.setDipSize(expected);
+      }
+      final long reserved = dipRequest.getDipSize() > 0?
+          dipRequest.getDipSize() : StorageTiers.UNKNOWN_SIZE;
+      final File targetFile;
+      try {
+        targetFile = dipRequestFactory.allocateDipFile(dipRequest, reserved);
+      } catch (StorageTiers.QuotaExceededException e) {
+        // No room yet: queued until next retry, without asking Vitam again
+        // before enough space
+        logger.warn("DIP download queued: {} {}", e.getMessage(), dipRequest);
+        WaarpVitamMetrics.getInstance().increment(DIP_DOWNLOAD_QUEUED);
+        dipRequest.save(dipRequestFactory);
+        return;
+      }
+      long offset = dipRequest.getDipOffset();
+      if (offset > 0 && targetFile.length() < offset) {
+        logger.warn("Partial DIP lost, download from start: {}", dipRequest);
+        offset = 0;
+      }
+      final MessageDigest digest = FileDownloader.newDigest();
+      final long start = System.currentTimeMillis();
+      final long size;
+      try {
+        size = FileDownloader.getInstance()
+                             .download(inputStream, targetFile, expected,
+                                       digest, offset,
+                                       reached -> saveDipOffset(
+                                           dipRequestFactory, dipRequest,
+                                           reached));
+      } catch (FileDownloader.SourceException e) {
+        // Connection lost: will resume from the saved offset on next retry
+        logger.warn("DIP download interrupted at {}, will resume: {}",
+                    dipRequest.getDipOffset(), dipRequest, e);
+        return;
+      }
+      dipRequest.setDipOffset(size);
+      dipRequest.setDigest(FileDownloader.getDigestInfo(digest));
+      recordTransfer(DIP_SPOOLED, dipRequest, size - offset, start);
+      WaarpVitamMetrics.getInstance().max(DIP_SPOOL_PEAK, size);
+      DipCache.getInstance().put(dipRequestFactory, dipRequest, targetFile);
       // Write back the content of the DIP through Waarp
       sendDipFile(dipRequestFactory, dipRequest, targetFile);
     } catch (IOException e) {
@@ -373,7 +538,129 @@ public class DipManager implements Runnable {
   }
 
   /**
-   * Step to send DIP before finished (step 3)
+   * Save the number of bytes of the DIP safely downloaded
+   *
+   * @param dipRequestFactory
+   * @param dipRequest
+   * @param offset
+   *
+   * @throws IOException if the DipRequest cannot be saved
+   */
+  private static void saveDipOffset(final DipRequestFactory dipRequestFactory,
+                                    final DipRequest dipRequest,
+                                    final long offset) throws IOException {
+    dipRequest.setDipOffset(offset);
+    try {
+      dipRequest.save(dipRequestFactory);
+    } catch (InvalidParseOperationException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @param enabled True to stream DIP directly to the Waarp Partner when
+   *     possible, overriding {@value #ORG_WAARP_VITAM_DIP_STREAMING}
+   */
+  static void setStreaming(final boolean enabled) {
+    streaming = enabled;
+  }
+
+  /**
+   * @param dipRequest
+   *
+   * @return True if the DIP is to be streamed: streaming enabled, not
+   *     partially downloaded and not already failed for this request
+   */
+  private static boolean isStreamed(final DipRequest dipRequest) {
+    return streaming && dipRequest.getDipOffset() == 0 &&
+           !dipRequest.isDipSpool();
+  }
+
+  /**
+   * Try to stream the DIP to the Waarp Partner without local copy.<br>
+   * <br>
+   * The bytes read from Vitam are not the bytes accepted by the partner, so
+   * a failed stream is never retried: the DIP is spooled from the same
+   * response if nothing was read from it, else it is asked again to Vitam
+   * on next retry and spooled.
+   *
+   * @param dipRequestFactory
+   * @param dipRequest
+   * @param inputStream
+   *
+   * @return True if the DIP is handled (sent or to get again from Vitam),
+   *     False if it shall be spooled
+   *
+   * @throws InvalidParseOperationException
+   */
+  private boolean streamDIP(final DipRequestFactory dipRequestFactory,
+                            final DipRequest dipRequest,
+                            final InputStream inputStream)
+      throws InvalidParseOperationException {
+    final ManagerToWaarp managerToWaarp =
+        dipRequestFactory.getManagerToWaarp(dipRequest);
+    if (!managerToWaarp.supportsStreaming()) {
+      return false;
+    }
+    final MessageDigest digest = FileDownloader.newDigest();
+    final InputStream bufferedInputStream =
+        new BufferedInputStream(inputStream, streamingBuffer);
+    final CountingInputStream countingInputStream = new CountingInputStream(
+        digest != null? new DigestInputStream(bufferedInputStream, digest) :
+            bufferedInputStream);
+    final long start = System.currentTimeMillis();
+    final String prefix = DipExportSplitter.getInfoPrefix(dipRequest, DIP);
+    if (managerToWaarp.sendBackStream(dipRequestFactory, dipRequest,
+                                      countingInputStream, prefix)) {
+      recordTransfer(DIP_STREAMED, dipRequest,
+                     countingInputStream.getByteCount(), start);
+      // Digest known only once sent, so only logged
+      dipRequest.setDigest(FileDownloader.getDigestInfo(digest));
+      logger.info("DIP streamed with {}", dipRequest.getFileInfo(prefix));
+      toDelete(dipRequestFactory, dipRequest);
+      return true;
+    }
+    dipRequest.setDipSpool(true);
+    if (countingInputStream.getByteCount() > 0) {
+      // Response partially read: will get again the DIP from Vitam on next
+      // retry, then spool it
+      logger.warn("Streaming of DIP failed, will retry spooled: {}",
+                  dipRequest);
+      dipRequest.save(dipRequestFactory);
+      return true;
+    }
+    logger.info("Partner not available for streaming, DIP spooled: {}",
+                dipRequest);
+    return false;
+  }
+
+  /**
+   * Record size and duration of DIP transfer for the given metric prefix
+   *
+   * @param prefix
+   * @param dipRequest
+   * @param size
+   * @param start
+   */
+  private static void recordTransfer(final String prefix,
+                                     final DipRequest dipRequest,
+                                     final long size, final long start) {
+    final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    metrics.increment(prefix + COUNT);
+    metrics.add(prefix + BYTES, size);
+    metrics.add(prefix + MS, elapsed);
+    logger.info("{} {} bytes in {} ms ({} KB/s) for {}", prefix, size, elapsed,
+                size / elapsed, dipRequest.getRequestId());
+  }
+
+  /**
+   * Step to send DIP before finished (step 3)<br>
+   * <br>
+   * If configured for the Waarp Partner and the DIP is large enough, it is
+   * sent as parts in parallel (see {@link DipPartForwarder}). Else if
+   * forwards are asynchronous (see {@link ForwardLimiter}), the step is kept
+   * and the DipRequest is finalized once the DIP is sent.
    *
    * @param dipRequestFactory
    * @param dipRequest
@@ -385,11 +672,51 @@ public class DipManager implements Runnable {
                            final DipRequest dipRequest, final File targetFile)
       throws InvalidParseOperationException {
     dipRequest.setStep(DIPStep.RETRY_DIP_FORWARD, 0, dipRequestFactory);
-    if (!dipRequestFactory.getManagerToWaarp(dipRequest)
-                          .sendBackInformation(dipRequestFactory, dipRequest,
-                                               targetFile.getAbsolutePath(),
-                                               DIP)) {
-      // ATR already there but not sent, so retry
+    final DipPartForwarder partForwarder =
+        DipPartForwarder.getForwarder(dipRequest);
+    final boolean sent;
+    if (partForwarder != null &&
+        partForwarder.isApplicable(dipRequest, targetFile)) {
+      sent = partForwarder.forward(dipRequestFactory, dipRequest, targetFile);
+    } else {
+      final ManagerToWaarp managerToWaarp =
+          dipRequestFactory.getManagerToWaarp(dipRequest);
+      final String filename = targetFile.getAbsolutePath();
+      final String fileInfo = dipRequest.getFileInfo(
+          DipExportSplitter.getInfoPrefix(dipRequest, DIP));
+      final ForwardLimiter forwardLimiter = ForwardLimiter.getInstance();
+      if (forwardLimiter.isAsync(managerToWaarp)) {
+        // If not started, will retry later on: keep as is
+        forwardLimiter.forward(dipRequest, () -> managerToWaarp
+                                   .sendBackInformationAsync(dipRequestFactory,
+                                                             dipRequest,
+                                                             filename,
+                                                             fileInfo),
+                               done -> afterDipFile(dipRequestFactory,
+                                                    dipRequest, done));
+        return;
+      }
+      sent = managerToWaarp
+          .sendBackInformation(dipRequestFactory, dipRequest, filename,
+                               fileInfo);
+    }
+    afterDipFile(dipRequestFactory, dipRequest, sent);
+  }
+
+  /**
+   * Next step once the DIP forward is over
+   *
+   * @param dipRequestFactory
+   * @param dipRequest
+   * @param sent
+   *
+   * @throws InvalidParseOperationException
+   */
+  private void afterDipFile(final DipRequestFactory dipRequestFactory,
+                            final DipRequest dipRequest, final boolean sent)
+      throws InvalidParseOperationException {
+    if (!sent) {
+      // DIP already there but not sent, so retry
       dipRequest.setStep(DIPStep.RETRY_DIP_FORWARD, 0, dipRequestFactory);
     } else {
       toDelete(dipRequestFactory, dipRequest);
@@ -410,6 +737,9 @@ public class DipManager implements Runnable {
       throws InvalidParseOperationException {
     // Ensure it will not be reloaded
     dipRequest.setStep(DIPStep.END, 0, dipRequestFactory);
+    OperationStatusCache.getInstance()
+                        .remove(dipRequest.getTenantId(),
+                                dipRequest.getRequestId());
     if (!dipRequestFactory.removeDipRequest(dipRequest)) {
       logger.error("Issue while cleaning this DipRequest: {}", dipRequest);
     } else {
@@ -450,7 +780,9 @@ public class DipManager implements Runnable {
     if (dipRequestFactory.getManagerToWaarp(dipRequest)
                          .sendBackInformation(dipRequestFactory, dipRequest,
                                               file.getAbsolutePath(),
-                                              DIP_FAILED)) {
+                                              DipExportSplitter
+                                                  .getInfoPrefix(dipRequest,
+                                                                 DIP_FAILED))) {
       // Very end of this IngestRequest
       toDelete(dipRequestFactory, dipRequest);
     }
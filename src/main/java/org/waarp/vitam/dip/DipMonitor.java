@@ -35,11 +35,15 @@ import org.waarp.common.utility.Version;
 import org.waarp.common.utility.WaarpShutdownHook;
 import org.waarp.openr66.configuration.FileBasedConfiguration;
 import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.vitam.common.OperationDurationStatistics;
+import org.waarp.vitam.common.VitamClientPool;
 import org.waarp.vitam.common.WaarpCommon;
 import org.waarp.vitam.common.WaarpCommon.MonitorOption;
 import org.waarp.vitam.common.WaarpMonitor;
+import org.waarp.vitam.common.WaarpVitamMetrics;
 import org.waarp.vitam.common.WaarpVitamShutdownHook;
 import org.waarp.vitam.common.WaarpVitamShutdownHook.WaarpVitamShutdownConfiguration;
+import org.waarp.vitam.common.waarp.ManagerToWaarpFactory;
 
 import java.io.File;
 
@@ -155,11 +159,13 @@ public class DipMonitor extends WaarpMonitor {
     MonitorOption monitorOption =
         WaarpCommon.MonitorOption.gestMonitorOption(cmd, args);
     waarpConfigurationFile = new File(monitorOption.getWaarpConfiguration());
+    final DipManager dipManager = new DipManager();
+    dipManager.setPollingPolicy(monitorOption.getPollingPolicy());
     return new DipMonitor(monitorOption.getElapseInSecond() * 1000L,
                           new File(monitorOption.getStopFilePath()),
                           DipRequestFactory.getInstance(),
                           AdminExternalClientFactory.getInstance(),
-                          new DipManager());
+                          dipManager);
   }
 
   /**
@@ -170,15 +176,21 @@ public class DipMonitor extends WaarpMonitor {
          AdminExternalClient adminExternalClient = getAdminFactory()
              .getClient()) {
       logger.warn("Start of {}", DipMonitor.class.getName());
+      OperationDurationStatistics.getInstance().setFile(
+          new File(factory.getBaseDir(), OperationDurationStatistics.FILENAME));
       while (!isShutdown()) {
         dipManager
             .retryAllExistingFiles(factory, client, adminExternalClient, this);
         Thread.sleep(getElapseTime());
       }
       setShutdown(true);
-      logger.warn("Stop of {}", DipMonitor.class.getName());
+      logger.warn("Stop of {} with {}", DipMonitor.class.getName(),
+                  WaarpVitamMetrics.getInstance());
     } catch (InterruptedException e) {//NOSONAR
       logger.error("{} will stop", DipMonitor.class.getName(), e);
+    } finally {
+      ManagerToWaarpFactory.close();
+      VitamClientPool.getInstance().closeAll();
     }
   }
 
@@ -0,0 +1,496 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.dip;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import fr.gouv.vitam.common.exception.InvalidParseOperationException;
+import fr.gouv.vitam.common.json.JsonHandler;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
+import org.waarp.common.utility.WaarpThreadFactory;
+import org.waarp.vitam.common.FileDownloader;
+import org.waarp.vitam.common.StorageTiers;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+import org.waarp.vitam.common.waarp.ManagerToWaarp;
+import org.waarp.vitam.dip.DipRequest.DIPStep;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Forward of a large DIP as parts sent in parallel to the Waarp Partner.<br>
+ * <br>
+ * The DIP file is split once into parts of partSize bytes, each one with its
+ * own request (so its own Waarp transfer, restartable on its own), and the
+ * parts are sent by at most parallelism concurrent transfers, with
+ * "DIP_PART rank/total" as File Information. Once all parts are sent, a JSON
+ * manifest giving the order, size and digest of each part and the digest of
+ * the whole DIP is sent with "DIP_MANIFEST total" as File Information, so
+ * that the receiving side can reassemble the DIP.<br>
+ * <br>
+ * The parts are cut from the end of the DIP file, the space of each one
+ * being reserved within the storage tiers first, and the DIP file is
+ * truncated once a part is cut, so that the split needs one more part of
+ * disk space, not the size of the DIP. If the DIP file is shared with the
+ * {@link DipCache}, it is copied instead, so needing its size again. If no
+ * tier has room for the next part, the split is postponed and resumed where
+ * it stopped on next retry.<br>
+ * <br>
+ * It is enabled per Waarp Partner by {@link #setPartnerConfiguration} or by
+ * the property {@value #ORG_WAARP_VITAM_DIP_PARTS}partnerId with value
+ * "parallelism,partSize".
+ */
+class DipPartForwarder {
+  /**
+   * Prefix of the property for a partner specific configuration
+   */
+  static final String ORG_WAARP_VITAM_DIP_PARTS = "org.waarp.vitam.dip.parts.";
+  /**
+   * Prefix of File Information for a part of a DIP
+   */
+  static final String DIP_PART = "DIP_PART";
+  /**
+   * Prefix of File Information for the manifest of the parts of a DIP
+   */
+  static final String DIP_MANIFEST = "DIP_MANIFEST";
+  /**
+   * Metric name for the DIP parts sent
+   */
+  static final String DIP_PARTS_SENT = "dip.parts.sent";
+  /**
+   * Metric name for the DIP splits postponed for lack of space
+   */
+  static final String DIP_SPLIT_QUEUED = "dip.split.queued";
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(DipPartForwarder.class);
+  private static final int BUFFER_SIZE = 1024 * 1024;
+  private static final ConcurrentHashMap<String, DipPartForwarder>
+      partnerForwarders = new ConcurrentHashMap<>();
+
+  private final int parallelism;
+  private final long partSize;
+
+  /**
+   * @param parallelism maximum number of concurrent transfers, at least 1
+   * @param partSize size in bytes of each part, at least 1
+   */
+  DipPartForwarder(final int parallelism, final long partSize) {
+    if (parallelism < 1 || partSize < 1) {
+      throw new IllegalArgumentException("Incorrect DIP parts configuration");
+    }
+    this.parallelism = parallelism;
+    this.partSize = partSize;
+  }
+
+  /**
+   * @param value as "parallelism,partSize"
+   *
+   * @return the corresponding DipPartForwarder
+   *
+   * @throws IllegalArgumentException if the value is incorrect
+   */
+  static DipPartForwarder parse(final String value) {
+    final String[] args = value.split(",");
+    if (args.length != 2) {
+      throw new IllegalArgumentException(
+          "Incorrect DIP parts configuration: " + value);
+    }
+    try {
+      return new DipPartForwarder(Integer.parseInt(args[0].trim()),
+                                  Long.parseLong(args[1].trim()));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(
+          "Incorrect DIP parts configuration: " + value, e);
+    }
+  }
+
+  /**
+   * @param partner the Waarp Partner
+   * @param forwarder the configuration for this partner, or null to remove
+   *     it
+   */
+  static void setPartnerConfiguration(final String partner,
+                                      final DipPartForwarder forwarder) {
+    if (forwarder == null) {
+      partnerForwarders.remove(partner);
+    } else {
+      partnerForwarders.put(partner, forwarder);
+    }
+  }
+
+  /**
+   * @param dipRequest
+   *
+   * @return the DipPartForwarder to use for this request, or null if the DIP
+   *     is to be sent as one file
+   */
+  static DipPartForwarder getForwarder(final DipRequest dipRequest) {
+    final String partner = dipRequest.getWaarpPartner();
+    DipPartForwarder forwarder = partnerForwarders.get(partner);
+    if (forwarder == null) {
+      final String value =
+          SystemPropertyUtil.get(ORG_WAARP_VITAM_DIP_PARTS + partner, null);
+      if (value != null && !value.isEmpty()) {
+        try {
+          forwarder = parse(value);
+          partnerForwarders.putIfAbsent(partner, forwarder);
+        } catch (IllegalArgumentException e) {
+          logger.error("Partner {} DIP parts configuration ignored", partner,
+                       e);
+        }
+      }
+    }
+    if (forwarder == null && dipRequest.getDipParts() > 0) {
+      // Already split while configuration is gone: keep going with parts
+      forwarder = new DipPartForwarder(1, Long.MAX_VALUE);
+    }
+    return forwarder;
+  }
+
+  /**
+   * @param dipRequest
+   * @param dipFile
+   *
+   * @return True if the DIP is (or is already) to be sent as parts
+   */
+  boolean isApplicable(final DipRequest dipRequest, final File dipFile) {
+    return dipRequest.getDipParts() > 0 || dipFile.length() > partSize;
+  }
+
+  /**
+   * Split the DIP if not already done, then send the parts not yet sent and
+   * finally the manifest
+   *
+   * @param dipRequestFactory
+   * @param dipRequest
+   * @param dipFile
+   *
+   * @return True if all parts and the manifest are sent
+   *
+   * @throws InvalidParseOperationException
+   */
+  boolean forward(final DipRequestFactory dipRequestFactory,
+                  final DipRequest dipRequest, final File dipFile)
+      throws InvalidParseOperationException {
+    final File manifest = dipRequestFactory.getDipManifestFile(dipRequest);
+    if (dipRequest.getDipParts() == 0 || !manifest.exists()) {
+      try {
+        if (!split(dipRequestFactory, dipRequest, dipFile)) {
+          return false;
+        }
+        // Parts are now the reference, so free the space of the DIP
+        Files.deleteIfExists(dipFile.toPath());
+      } catch (IOException e) {
+        logger.error("Cannot split DIP {}", dipRequest, e);
+        return false;
+      }
+    }
+    final int parts = dipRequest.getDipParts();
+    final ExecutorService executorService = Executors
+        .newFixedThreadPool(Math.min(parallelism, parts),
+                            new WaarpThreadFactory("DipPartForwarder"));
+    final List<Future<Boolean>> futures = new ArrayList<>(parts);
+    try {
+      for (int rank = 1; rank <= parts; rank++) {
+        final int partRank = rank;
+        futures.add(executorService.submit(
+            () -> sendPart(dipRequestFactory, dipRequest, partRank, parts)));
+      }
+      boolean allSent = true;
+      for (Future<Boolean> future : futures) {
+        try {
+          allSent &= future.get();
+        } catch (ExecutionException e) {
+          logger.error("Issue while sending a part of {}", dipRequest, e);
+          allSent = false;
+        }
+      }
+      if (!allSent) {
+        return false;
+      }
+    } catch (InterruptedException e) {//NOSONAR
+      logger.error("Interrupted", e);
+      return false;
+    } finally {
+      executorService.shutdownNow();
+    }
+    return dipRequestFactory.getManagerToWaarp(dipRequest)
+                            .sendBackInformation(dipRequestFactory, dipRequest,
+                                                 manifest.getAbsolutePath(),
+                                                 dipRequest.getFileInfo(
+                                                     DipExportSplitter
+                                                         .getInfoPrefix(
+                                                             dipRequest,
+                                                             DIP_MANIFEST +
+                                                             ' ' + parts)));
+  }
+
+  /**
+   * Send one part if not already done
+   *
+   * @param dipRequestFactory
+   * @param dipRequest
+   * @param rank
+   * @param parts
+   *
+   * @return True if sent
+   *
+   * @throws InvalidParseOperationException
+   */
+  private static boolean sendPart(final DipRequestFactory dipRequestFactory,
+                                  final DipRequest dipRequest, final int rank,
+                                  final int parts)
+      throws InvalidParseOperationException {
+    final DipRequest partRequest =
+        dipRequestFactory.getDipPartRequest(dipRequest, rank);
+    if (partRequest.getStep() == DIPStep.END) {
+      return true;
+    }
+    final File partFile = dipRequestFactory.getDipPartFile(dipRequest, rank);
+    final ManagerToWaarp managerToWaarp =
+        dipRequestFactory.getManagerToWaarp(partRequest);
+    if (managerToWaarp.sendBackInformation(dipRequestFactory, partRequest,
+                                           partFile.getAbsolutePath(),
+                                           partRequest.getFileInfo(
+                                               DipExportSplitter.getInfoPrefix(
+                                                   partRequest,
+                                                   DIP_PART + ' ' + rank +
+                                                   '/' + parts)))) {
+      partRequest.setStep(DIPStep.END, 0, dipRequestFactory);
+      WaarpVitamMetrics.getInstance().increment(DIP_PARTS_SENT);
+      return true;
+    }
+    logger.warn("Part {}/{} not sent, will retry: {}", rank, parts,
+                dipRequest);
+    return false;
+  }
+
+  /**
+   * Split the DIP file into parts, from the last one, with one request and
+   * digest per part, then write the manifest. Resumed where it stopped if
+   * interrupted or postponed.
+   *
+   * @param dipRequestFactory
+   * @param dipRequest
+   * @param dipFile
+   *
+   * @return True if split, False if postponed for lack of space
+   *
+   * @throws IOException
+   * @throws InvalidParseOperationException
+   */
+  private boolean split(final DipRequestFactory dipRequestFactory,
+                        final DipRequest dipRequest, final File dipFile)
+      throws IOException, InvalidParseOperationException {
+    if (dipRequest.getDipParts() == 0) {
+      // Size of the DIP kept since the DIP file is truncated while split
+      final long size = dipFile.length();
+      dipRequest.setDipSize(size)
+                .setDipParts((int) Math.max(1, (size + partSize - 1) /
+                                               partSize))
+                .save(dipRequestFactory);
+    }
+    final long size = dipRequest.getDipSize();
+    final int parts = dipRequest.getDipParts();
+    final boolean inPlace = !isShared(dipFile);
+    for (int rank = parts; rank >= 1; rank--) {
+      final long start = (rank - 1) * partSize;
+      final long end = Math.min(size, start + partSize);
+      if (!cutPart(dipRequestFactory, dipRequest, dipFile, rank, start, end,
+                   inPlace)) {
+        return false;
+      }
+    }
+    final ObjectNode manifest = JsonHandler.createObjectNode();
+    manifest.put("requestId", dipRequest.getRequestId());
+    manifest.put("size", size);
+    manifest.put("digest", dipRequest.getDigest());
+    manifest.put("export", dipRequest.getDipSplit());
+    final ArrayNode partNodes = manifest.putArray("parts");
+    for (int rank = 1; rank <= parts; rank++) {
+      final File partFile = dipRequestFactory.getDipPartFile(dipRequest, rank);
+      final ObjectNode partNode = partNodes.addObject();
+      partNode.put("rank", rank);
+      partNode.put("file", partFile.getName());
+      partNode.put("size", partFile.length());
+      partNode.put("digest", dipRequestFactory.getDipPartRequest(dipRequest,
+                                                                  rank)
+                                              .getDigest());
+    }
+    JsonHandler.writeAsFile(manifest,
+                            dipRequestFactory.getDipManifestFile(dipRequest));
+    logger.info("DIP of {} bytes split into {} parts{}: {}", size, parts,
+                inPlace? "" : " (copied)", dipRequest);
+    return true;
+  }
+
+  /**
+   * Cut one part from the DIP file if not already done, then truncate the
+   * DIP file to the start of this part if in place
+   *
+   * @param dipRequestFactory
+   * @param dipRequest
+   * @param dipFile
+   * @param rank the rank of the part, from 1
+   * @param start the position of the part within the DIP
+   * @param end the position after the part within the DIP
+   * @param inPlace True if the DIP file may be truncated
+   *
+   * @return True if cut, False if no tier has room for it yet
+   *
+   * @throws IOException
+   * @throws InvalidParseOperationException
+   */
+  private static boolean cutPart(final DipRequestFactory dipRequestFactory,
+                                 final DipRequest dipRequest,
+                                 final File dipFile, final int rank,
+                                 final long start, final long end,
+                                 final boolean inPlace)
+      throws IOException, InvalidParseOperationException {
+    if (!dipRequestFactory.hasDipPartRequest(dipRequest, rank)) {
+      final MessageDigest digest = FileDownloader.newDigest();
+      if (inPlace && rank == 1) {
+        // What remains of the DIP is the first part: renamed, not copied
+        final File partFile =
+            dipRequestFactory.getDipPartFile(dipRequest, rank);
+        if (dipFile.exists()) {
+          Files.move(dipFile.toPath(), partFile.toPath(),
+                     StandardCopyOption.REPLACE_EXISTING);
+        }
+        copy(partFile, null, start, end, digest);
+      } else {
+        final File partFile;
+        try {
+          partFile = dipRequestFactory
+              .allocateDipPartFile(dipRequest, rank, end - start);
+        } catch (StorageTiers.QuotaExceededException e) {
+          logger.warn("DIP split postponed at part {}: {} {}", rank,
+                      e.getMessage(), dipRequest);
+          WaarpVitamMetrics.getInstance().increment(DIP_SPLIT_QUEUED);
+          return false;
+        }
+        try {
+          copy(dipFile, partFile, start, end, digest);
+        } finally {
+          dipRequestFactory.releaseDipPartFile(dipRequest, rank);
+        }
+      }
+      // Written once the part is complete, so marking it as cut
+      dipRequestFactory.newDipPartRequest(dipRequest, rank,
+                                          FileDownloader
+                                              .getDigestInfo(digest));
+    }
+    if (inPlace && rank > 1 && dipFile.length() > start) {
+      try (final FileChannel channel = FileChannel
+          .open(dipFile.toPath(), WRITE)) {
+        channel.truncate(start);
+        channel.force(false);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Copy a range of the source file into the target file, the target being
+   * forced to the storage device so that the source may be truncated next
+   *
+   * @param source
+   * @param target the target file, or null to only compute the digest
+   * @param start
+   * @param end
+   * @param digest the digest to update, or null
+   *
+   * @throws IOException
+   */
+  private static void copy(final File source, final File target,
+                           final long start, final long end,
+                           final MessageDigest digest) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    try (final FileChannel in = FileChannel.open(source.toPath(), READ);
+         final FileChannel out = target == null? null : FileChannel
+             .open(target.toPath(), CREATE, WRITE, TRUNCATE_EXISTING)) {
+      long position = start;
+      while (position < end) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+        final int read = in.read(buffer, position);
+        if (read < 0) {
+          throw new IOException("DIP shorter than expected");
+        }
+        buffer.flip();
+        if (digest != null) {
+          digest.update(buffer.array(), 0, read);
+        }
+        while (out != null && buffer.hasRemaining()) {
+          out.write(buffer);
+        }
+        position += read;
+      }
+      if (out != null) {
+        out.force(false);
+      }
+    }
+  }
+
+  /**
+   * @param file
+   *
+   * @return True if the file has other links, as the one of the DipCache,
+   *     so that it cannot be truncated
+   */
+  private static boolean isShared(final File file) {
+    try {
+      return ((Number) Files.getAttribute(file.toPath(), "unix:nlink"))
+                 .intValue() > 1;
+    } catch (IOException | UnsupportedOperationException |
+        IllegalArgumentException e) {
+      // Unknown if missing or without unix attributes: truncated only if
+      // missing (nothing left to copy from)
+      logger.debug("Cannot get the links of {}", file, e);
+      return file.exists();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "DipPartForwarder: parallelism=" + parallelism + " partSize=" +
+           partSize;
+  }
+}
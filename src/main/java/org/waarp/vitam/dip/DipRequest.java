@@ -20,7 +20,9 @@
 
 package org.waarp.vitam.dip;
 
+import com.fasterxml.jackson.annotation.JsonGetter;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonSetter;
 import com.fasterxml.jackson.databind.JsonNode;
 import fr.gouv.vitam.common.GlobalDataRest;
@@ -50,6 +52,20 @@ public class DipRequest extends AbstractVitamRequest {
       WaarpLoggerFactory.getLogger(DipRequest.class);
   @JsonIgnore
   MachineState<DIPStep> step = DIPStep.newSessionMachineState();
+  @JsonProperty("dipOffset")
+  private long dipOffset;
+  @JsonProperty("dipSize")
+  private long dipSize;
+  @JsonProperty("dipParts")
+  private int dipParts;
+  @JsonProperty("dipPart")
+  private int dipPart;
+  @JsonProperty("dipSplit")
+  private String dipSplit;
+  @JsonProperty("selectHash")
+  private String selectHash;
+  @JsonProperty("dipSpool")
+  private boolean dipSpool;
 
   public DipRequest() {
     // Empty constructor for Json
@@ -82,6 +98,15 @@ public class DipRequest extends AbstractVitamRequest {
            JsonHandler.unprettyPrint(this);
   }
 
+  /**
+   * @return the kind of operation as DIP.tenant
+   */
+  @Override
+  @JsonIgnore
+  public String getOperationKey() {
+    return "DIP.t" + getTenantId();
+  }
+
   /**
    * Set extra information from first response from operation submission
    *
@@ -199,6 +224,110 @@ public class DipRequest extends AbstractVitamRequest {
     return factory.getDipFile(this);
   }
 
+  /**
+   * @return the number of bytes of the DIP File already downloaded, to
+   *     resume from after an interruption
+   */
+  @JsonGetter("dipOffset")
+  public long getDipOffset() {
+    return dipOffset;
+  }
+
+  @JsonSetter("dipOffset")
+  public DipRequest setDipOffset(final long dipOffset) {
+    this.dipOffset = dipOffset;
+    return this;
+  }
+
+  /**
+   * @return the expected size of the DIP File, as known from a previous
+   *     response of Vitam, else 0
+   */
+  @JsonGetter("dipSize")
+  public long getDipSize() {
+    return dipSize;
+  }
+
+  @JsonSetter("dipSize")
+  public DipRequest setDipSize(final long dipSize) {
+    this.dipSize = dipSize;
+    return this;
+  }
+
+  /**
+   * @return the number of parts the DIP File is split into, 0 if not split
+   */
+  @JsonGetter("dipParts")
+  public int getDipParts() {
+    return dipParts;
+  }
+
+  @JsonSetter("dipParts")
+  public DipRequest setDipParts(final int dipParts) {
+    this.dipParts = dipParts;
+    return this;
+  }
+
+  /**
+   * @return the rank (from 1) of the part forwarded by this request, 0 if
+   *     this request is the DIP one
+   */
+  @JsonGetter("dipPart")
+  public int getDipPart() {
+    return dipPart;
+  }
+
+  @JsonSetter("dipPart")
+  public DipRequest setDipPart(final int dipPart) {
+    this.dipPart = dipPart;
+    return this;
+  }
+
+  /**
+   * @return the rank and total number of exports as "rank/total" if this
+   *     request is one of the exports of a split DSL, else null
+   */
+  @JsonGetter("dipSplit")
+  public String getDipSplit() {
+    return dipSplit;
+  }
+
+  @JsonSetter("dipSplit")
+  public DipRequest setDipSplit(final String dipSplit) {
+    this.dipSplit = dipSplit;
+    return this;
+  }
+
+  /**
+   * @return the hash identifying the selection of this request within the
+   *     DIP cache, null if not computed
+   */
+  @JsonGetter("selectHash")
+  public String getSelectHash() {
+    return selectHash;
+  }
+
+  @JsonSetter("selectHash")
+  public DipRequest setSelectHash(final String selectHash) {
+    this.selectHash = selectHash;
+    return this;
+  }
+
+  /**
+   * @return True if the streaming of the DIP failed, so that the DIP is to be
+   *     spooled on next try
+   */
+  @JsonGetter("dipSpool")
+  public boolean isDipSpool() {
+    return dipSpool;
+  }
+
+  @JsonSetter("dipSpool")
+  public DipRequest setDipSpool(final boolean dipSpool) {
+    this.dipSpool = dipSpool;
+    return this;
+  }
+
   /**
    * @return the Error File pointer according to this
    */
@@ -317,7 +446,8 @@ public class DipRequest extends AbstractVitamRequest {
 
     private enum IngestTransition {
       T_STARTUP(STARTUP, EnumSet.of(RETRY_SELECT, ERROR)),
-      T_RETRY_SELECT(RETRY_SELECT, EnumSet.of(RETRY_DIP, ERROR)),
+      T_RETRY_SELECT(RETRY_SELECT,
+                     EnumSet.of(RETRY_DIP, RETRY_DIP_FORWARD, ERROR, END)),
       T_RETRY_DIP(RETRY_DIP, EnumSet.of(RETRY_DIP_FORWARD, ERROR, END)),
       T_RETRY_DIP_FORWARD(RETRY_DIP_FORWARD, EnumSet.of(END, ERROR)),
       T_ERROR(ERROR, EnumSet.of(ERROR, END)), T_END(END, EnumSet.of(END));
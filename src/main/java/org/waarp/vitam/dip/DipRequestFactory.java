@@ -20,6 +20,7 @@
 
 package org.waarp.vitam.dip;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import fr.gouv.vitam.access.external.client.AccessExternalClient;
 import fr.gouv.vitam.access.external.client.AccessExternalClientFactory;
 import fr.gouv.vitam.common.exception.InvalidParseOperationException;
@@ -31,6 +32,8 @@ import org.waarp.common.logging.SysErrLogger;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.common.utility.SystemPropertyUtil;
+import org.waarp.vitam.common.StorageTiers;
+import org.waarp.vitam.common.VitamClientPool;
 import org.waarp.vitam.common.waarp.ManagerToWaarp;
 import org.waarp.vitam.common.waarp.ManagerToWaarpFactory;
 
@@ -39,7 +42,9 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -57,8 +62,17 @@ public class DipRequestFactory {
   private static final String BASENAME = DipRequest.class.getSimpleName() + ".";
   private static final String EXTENSION = ".json";
   private static final String RESULT_EXTENSION = ".zip";
+  private static final String PART_EXTENSION = ".part";
+  private static final String MANIFEST_EXTENSION = ".manifest.json";
+  private static final String SELECT_EXTENSION = ".dsl";
   private static final FilenameFilter JSON_ONLY =
       (dir, name) -> name.startsWith(BASENAME) && name.endsWith(EXTENSION);
+  /**
+   * Last request of each part in use, per DIP request (json path), so that
+   * their Session MachineState are ended with the DIP request
+   */
+  private static final Map<String, Map<Integer, DipRequest>> PART_REQUESTS =
+      new HashMap<>();
   private static final DipRequestFactory FACTORY = new DipRequestFactory();
 
   static {
@@ -67,6 +81,7 @@ public class DipRequestFactory {
 
   private File baseDir;
   private File workDir;
+  private StorageTiers storageTiers;
   private AccessExternalClientFactory clientFactory =
       AccessExternalClientFactory.getInstance();
 
@@ -116,6 +131,7 @@ public class DipRequestFactory {
     FACTORY.baseDir.mkdirs();
     FACTORY.workDir = new File(FACTORY.baseDir, WORK);
     FACTORY.workDir.mkdirs();
+    FACTORY.storageTiers = StorageTiers.getStorageTiers(FACTORY.workDir);
   }
 
   /**
@@ -131,6 +147,7 @@ public class DipRequestFactory {
   void setBaseDir() {
     baseDir = FACTORY.baseDir;
     workDir = FACTORY.workDir;
+    storageTiers = FACTORY.storageTiers;
   }
 
   /**
@@ -141,10 +158,13 @@ public class DipRequestFactory {
   }
 
   /**
-   * @return the Access Vitam client
+   * @return a lease on the shared Access Vitam client (see
+   *     {@link VitamClientPool}), to close after use
    */
   public AccessExternalClient getClient() {
-    return clientFactory.getClient();
+    return VitamClientPool.getInstance()
+                          .getClient(clientFactory, AccessExternalClient.class,
+                                     clientFactory::getClient);
   }
 
   /**
@@ -191,6 +211,12 @@ public class DipRequestFactory {
    */
   synchronized boolean saveDipRequest(DipRequest dipRequest)
       throws InvalidParseOperationException {
+    int rank = dipRequest.getDipPart();
+    if (rank > 0) {
+      JsonHandler.writeAsFile(dipRequest,
+                              getDipPartRequestFile(dipRequest, rank));
+      return true;
+    }
     File existingFile = new File(baseDir, dipRequest.getJsonPath());
     if (existingFile.canRead()) {
       JsonHandler.writeAsFile(dipRequest, existingFile);
@@ -215,6 +241,17 @@ public class DipRequestFactory {
       status &= deleteFile(zipDipFile);
       File errorFile = getErrorFile(dipRequest);
       status &= deleteFile(errorFile);
+      for (int rank = 1; rank <= dipRequest.getDipParts(); rank++) {
+        status &= deleteFile(getDipPartFile(dipRequest, rank));
+        status &= deleteFile(getDipPartRequestFile(dipRequest, rank));
+      }
+      if (dipRequest.getDipParts() > 0) {
+        status &= deleteFile(getDipManifestFile(dipRequest));
+      }
+      if (dipRequest.getDipSplit() != null) {
+        status &= deleteFile(getSelectFile(dipRequest));
+      }
+      endPartRequests(dipRequest);
       DipRequest.DIPStep.endSessionMachineSate(dipRequest.step);
       // Ensure file are deleted there
       while (existingFile.exists()) {
@@ -254,7 +291,43 @@ public class DipRequestFactory {
    * @return the File pointer to the DIP file
    */
   File getDipFile(DipRequest dipRequest) {
-    return new File(workDir, dipRequest.getJsonPath() + RESULT_EXTENSION);
+    return storageTiers.getFile(dipRequest.getJsonPath() + RESULT_EXTENSION,
+                                StorageTiers.UNKNOWN_SIZE);
+  }
+
+  /**
+   * @return the directories of the storage tiers, where DIP files are
+   */
+  List<File> getDipDirs() {
+    return storageTiers.getDirectories();
+  }
+
+  /**
+   * Allocate the DIP file before its download, within the first storage tier
+   * accepting this size within its quota and free space, reserving this size
+   * until {@link #releaseDipFile(DipRequest)}
+   *
+   * @param dipRequest
+   * @param expectedSize the expected size of the DIP, or
+   *     {@link StorageTiers#UNKNOWN_SIZE}
+   *
+   * @return the File pointer to the DIP file
+   *
+   * @throws StorageTiers.QuotaExceededException if no tier has room yet
+   */
+  File allocateDipFile(DipRequest dipRequest, long expectedSize)
+      throws StorageTiers.QuotaExceededException {
+    return storageTiers
+        .allocate(dipRequest.getJsonPath() + RESULT_EXTENSION, expectedSize);
+  }
+
+  /**
+   * Release the space reserved by {@link #allocateDipFile(DipRequest, long)}
+   *
+   * @param dipRequest
+   */
+  void releaseDipFile(DipRequest dipRequest) {
+    storageTiers.release(dipRequest.getJsonPath() + RESULT_EXTENSION);
   }
 
   /**
@@ -263,7 +336,202 @@ public class DipRequestFactory {
    * @return the error file pointer
    */
   File getErrorFile(DipRequest dipRequest) {
-    return new File(workDir, dipRequest.getJsonPath() + EXTENSION);
+    return storageTiers.getFile(dipRequest.getJsonPath() + EXTENSION, 0);
+  }
+
+  /**
+   * @param dipRequest
+   * @param rank the rank of the part, from 1
+   *
+   * @return the File pointer to the part of the DIP file
+   */
+  File getDipPartFile(DipRequest dipRequest, int rank) {
+    return storageTiers
+        .getFile(getDipPartName(dipRequest, rank), StorageTiers.UNKNOWN_SIZE);
+  }
+
+  /**
+   * Allocate the file of one part of the DIP before writing it, within the
+   * first storage tier accepting this size within its quota and free space,
+   * reserving this size until {@link #releaseDipPartFile(DipRequest, int)}
+   *
+   * @param dipRequest
+   * @param rank the rank of the part, from 1
+   * @param size the size of the part
+   *
+   * @return the File pointer to the part of the DIP file
+   *
+   * @throws StorageTiers.QuotaExceededException if no tier has room yet
+   */
+  File allocateDipPartFile(DipRequest dipRequest, int rank, long size)
+      throws StorageTiers.QuotaExceededException {
+    return storageTiers.allocate(getDipPartName(dipRequest, rank), size);
+  }
+
+  /**
+   * Release the space reserved by
+   * {@link #allocateDipPartFile(DipRequest, int, long)}
+   *
+   * @param dipRequest
+   * @param rank the rank of the part, from 1
+   */
+  void releaseDipPartFile(DipRequest dipRequest, int rank) {
+    storageTiers.release(getDipPartName(dipRequest, rank));
+  }
+
+  /**
+   * @param dipRequest
+   * @param rank the rank of the part, from 1
+   *
+   * @return the name of the file of the part of the DIP
+   */
+  private static String getDipPartName(DipRequest dipRequest, int rank) {
+    return dipRequest.getJsonPath() + PART_EXTENSION + rank + RESULT_EXTENSION;
+  }
+
+  /**
+   * @param dipRequest
+   *
+   * @return the File pointer to the manifest of the parts of the DIP file
+   */
+  File getDipManifestFile(DipRequest dipRequest) {
+    return storageTiers
+        .getFile(dipRequest.getJsonPath() + MANIFEST_EXTENSION, 0);
+  }
+
+  /**
+   * @param dipRequest
+   * @param rank the rank of the part, from 1
+   *
+   * @return the File pointer to the request forwarding the part
+   */
+  private File getDipPartRequestFile(DipRequest dipRequest, int rank) {
+    return new File(workDir,
+                    dipRequest.getJsonPath() + PART_EXTENSION + rank +
+                    EXTENSION);
+  }
+
+  /**
+   * @param dipRequest
+   *
+   * @return the File pointer to the DSL of one export of a split DSL
+   */
+  private File getSelectFile(DipRequest dipRequest) {
+    return new File(workDir, dipRequest.getJsonPath() + SELECT_EXTENSION);
+  }
+
+  /**
+   * Create and save a new DipRequest for one export of a split DSL, ready
+   * to be selected
+   *
+   * @param dipRequest the original request
+   * @param dipSplit as "rank/total"
+   * @param select the DSL of this export
+   *
+   * @return the new DipRequest
+   *
+   * @throws InvalidParseOperationException
+   */
+  synchronized DipRequest newDipSplitRequest(DipRequest dipRequest,
+                                             String dipSplit, JsonNode select)
+      throws InvalidParseOperationException {
+    DipRequest splitRequest = JsonHandler
+        .getFromString(JsonHandler.unprettyPrint(dipRequest), DipRequest.class);
+    File newFile = new File(baseDir, getNewName());
+    splitRequest.setDipSplit(dipSplit).setJsonPath(newFile.getName());
+    File selectFile = getSelectFile(splitRequest);
+    JsonHandler.writeAsFile(select, selectFile);
+    splitRequest.setPath(selectFile.getAbsolutePath());
+    // Written last so that it is complete when listed
+    JsonHandler.writeAsFile(splitRequest, newFile);
+    return splitRequest;
+  }
+
+  /**
+   * Create the request forwarding one part of the DIP file, replacing the
+   * previous one if any
+   *
+   * @param dipRequest
+   * @param rank the rank of the part, from 1
+   * @param digest the digest of the part, or null
+   *
+   * @return the new DipRequest for this part
+   *
+   * @throws InvalidParseOperationException
+   */
+  synchronized DipRequest newDipPartRequest(DipRequest dipRequest, int rank,
+                                            String digest)
+      throws InvalidParseOperationException {
+    DipRequest partRequest = JsonHandler
+        .getFromString(JsonHandler.unprettyPrint(dipRequest), DipRequest.class);
+    partRequest.setDipPart(rank).setWaarpForward(null).setDigest(digest);
+    JsonHandler
+        .writeAsFile(partRequest, getDipPartRequestFile(dipRequest, rank));
+    return addPartRequest(dipRequest, partRequest);
+  }
+
+  /**
+   * @param dipRequest
+   * @param rank the rank of the part, from 1
+   *
+   * @return the request forwarding one part of the DIP file
+   *
+   * @throws InvalidParseOperationException
+   */
+  synchronized DipRequest getDipPartRequest(DipRequest dipRequest, int rank)
+      throws InvalidParseOperationException {
+    File file = getDipPartRequestFile(dipRequest, rank);
+    if (file.exists()) {
+      return addPartRequest(dipRequest,
+                            JsonHandler.getFromFile(file, DipRequest.class));
+    }
+    return newDipPartRequest(dipRequest, rank, null);
+  }
+
+  /**
+   * @param dipRequest
+   * @param rank the rank of the part, from 1
+   *
+   * @return True if the request forwarding this part exists, so if the part
+   *     is already cut from the DIP file
+   */
+  boolean hasDipPartRequest(DipRequest dipRequest, int rank) {
+    return getDipPartRequestFile(dipRequest, rank).exists();
+  }
+
+  /**
+   * Keep the part request in use until its DIP request is removed, ending
+   * the Session MachineState of the previous one for this part if any
+   *
+   * @param dipRequest
+   * @param partRequest
+   *
+   * @return the part request
+   */
+  private static DipRequest addPartRequest(DipRequest dipRequest,
+                                           DipRequest partRequest) {
+    DipRequest previous = PART_REQUESTS
+        .computeIfAbsent(dipRequest.getJsonPath(), k -> new HashMap<>())
+        .put(partRequest.getDipPart(), partRequest);
+    if (previous != null && previous != partRequest) {
+      DipRequest.DIPStep.endSessionMachineSate(previous.step);
+    }
+    return partRequest;
+  }
+
+  /**
+   * End the Session MachineState of all part requests of this DIP request
+   *
+   * @param dipRequest
+   */
+  private static void endPartRequests(DipRequest dipRequest) {
+    Map<Integer, DipRequest> parts =
+        PART_REQUESTS.remove(dipRequest.getJsonPath());
+    if (parts != null) {
+      for (DipRequest partRequest : parts.values()) {
+        DipRequest.DIPStep.endSessionMachineSate(partRequest.step);
+      }
+    }
   }
 
   /**
@@ -0,0 +1,189 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.ingest;
+
+import org.apache.commons.io.input.TeeInputStream;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streaming parser of ATR (ArchiveTransferReply) using StAX, run while the
+ * ATR is copied from Vitam, so with constant memory and without reading
+ * the ATR file again.<br>
+ * <br>
+ * It extracts the ReplyCode, the Outcome of the last Event of the
+ * Operation, and the counts of ArchiveUnit and of data objects
+ * (BinaryDataObject and PhysicalDataObject).
+ */
+final class AtrOutcomeParser {
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(AtrOutcomeParser.class);
+  private static final String REPLY_CODE = "ReplyCode";
+  private static final String OPERATION = "Operation";
+  private static final String OUTCOME = "Outcome";
+  private static final String ARCHIVE_UNIT = "ArchiveUnit";
+  private static final String BINARY_DATA_OBJECT = "BinaryDataObject";
+  private static final String PHYSICAL_DATA_OBJECT = "PhysicalDataObject";
+  private static final int BUFFER_SIZE = 65536;
+  private static final XMLInputFactory INPUT_FACTORY;
+
+  static {
+    INPUT_FACTORY = XMLInputFactory.newInstance();
+    INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    INPUT_FACTORY
+        .setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  private String replyCode;
+  private String outcome;
+  private long archiveUnits;
+  private long dataObjects;
+
+  /**
+   * Copy the ATR into the OutputStream, parsing it on the fly.<br>
+   * <br>
+   * The whole InputStream is copied even if the ATR cannot be parsed.
+   *
+   * @param inputStream the ATR, read until its end
+   * @param outputStream where to copy the ATR, not closed
+   *
+   * @return the number of bytes copied
+   *
+   * @throws IOException if the ATR cannot be read or copied
+   */
+  long copy(final InputStream inputStream, final OutputStream outputStream)
+      throws IOException {
+    final CountingTeeInputStream tee =
+        new CountingTeeInputStream(inputStream, outputStream);
+    try {
+      parse(tee);
+    } catch (XMLStreamException e) {
+      if (e.getNestedException() instanceof IOException) {
+        throw (IOException) e.getNestedException();
+      }
+      // Not a blocking issue, the ATR is forwarded as is
+      logger.warn("ATR not parsable, no outcome: {}", e.getMessage());
+    }
+    // Copy what remains after the end of the document or the error
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    while (tee.read(buffer) >= 0) {
+      // Copied by the tee
+    }
+    return tee.count;
+  }
+
+  /**
+   * @param inputStream
+   *
+   * @throws XMLStreamException
+   */
+  private void parse(final InputStream inputStream)
+      throws XMLStreamException {
+    final XMLStreamReader reader =
+        INPUT_FACTORY.createXMLStreamReader(inputStream);
+    try {
+      boolean inOperation = false;
+      while (reader.hasNext()) {
+        final int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          final String name = reader.getLocalName();
+          if (ARCHIVE_UNIT.equals(name)) {
+            archiveUnits++;
+          } else if (BINARY_DATA_OBJECT.equals(name) ||
+                     PHYSICAL_DATA_OBJECT.equals(name)) {
+            dataObjects++;
+          } else if (REPLY_CODE.equals(name)) {
+            replyCode = reader.getElementText().trim();
+          } else if (OPERATION.equals(name)) {
+            inOperation = true;
+          } else if (inOperation && OUTCOME.equals(name)) {
+            outcome = reader.getElementText().trim();
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT &&
+                   OPERATION.equals(reader.getLocalName())) {
+          inOperation = false;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * @return the ReplyCode of the ATR, null if not found
+   */
+  String getReplyCode() {
+    return replyCode;
+  }
+
+  /**
+   * @return the Outcome of the last Event of the Operation, null if not
+   *     found
+   */
+  String getOutcome() {
+    return outcome;
+  }
+
+  /**
+   * @return the number of ArchiveUnit within the ATR
+   */
+  long getArchiveUnits() {
+    return archiveUnits;
+  }
+
+  /**
+   * @return the number of BinaryDataObject and PhysicalDataObject within
+   *     the ATR
+   */
+  long getDataObjects() {
+    return dataObjects;
+  }
+
+  /**
+   * TeeInputStream counting the bytes read
+   */
+  private static class CountingTeeInputStream extends TeeInputStream {
+    private long count;
+
+    private CountingTeeInputStream(final InputStream inputStream,
+                                   final OutputStream outputStream) {
+      super(inputStream, outputStream, false);
+    }
+
+    @Override
+    protected void afterRead(final int n) {
+      if (n > 0) {
+        count += n;
+      }
+    }
+  }
+}
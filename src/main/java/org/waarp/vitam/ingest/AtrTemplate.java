@@ -0,0 +1,211 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.ingest;
+
+import fr.gouv.vitam.common.PropertiesUtils;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Template of the pseudo ATR, parsed once into literal and placeholder
+ * segments, then rendered in one pass.<br>
+ * <br>
+ * The template is read from {@value #ATR_KO_DEFAULT_XML} once per
+ * ClassLoader. Values are given as an array indexed by
+ * {@link Placeholder#ordinal()}.
+ */
+final class AtrTemplate {
+  /**
+   * Placeholders of the template
+   */
+  enum Placeholder {
+    DATE("#MADATE#"), MESSAGE_IDENTIFIER("#MESSAGE_IDENTIFIER#"),
+    ARCHIVAL_AGENCY("#ARCHIVAL_AGENCY#"),
+    TRANSFERRING_AGENCY("#TRANSFERRING_AGENCY#"), COMMENT("#COMMENT#"),
+    EVENT_TYPE("#EVENT_TYPE#"), EVENT_TYPE_CODE("#EVENT_TYPE_CODE#"),
+    EVENT_DATE_TIME("#EVENT_DATE_TIME#"), OUTCOME("#OUTCOME#"),
+    OUTCOME_DETAIL("#OUTCOME_DETAIL#"),
+    OUTCOME_DETAIL_MESSAGE("#OUTCOME_DETAIL_MESSAGE#");
+
+    private final String token;
+
+    Placeholder(final String token) {
+      this.token = token;
+    }
+
+    /**
+     * @return the token within the template
+     */
+    String getToken() {
+      return token;
+    }
+  }
+
+  static final String ATR_KO_DEFAULT_XML = "ATR_KO_DEFAULT.xml";
+  /**
+   * Internal Logger
+   */
+  private static final WaarpLogger logger =
+      WaarpLoggerFactory.getLogger(AtrTemplate.class);
+  private static final String XML_DEFAULT =
+      "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+      "<ArchiveTransferReply xmlns:xlink=\"http://www.w3.org/1999/xlink\"\n" +
+      " xmlns:pr=\"info:lc/xmlns/premis-v2\"\n" +
+      " xmlns=\"fr:gouv:culture:archivesdefrance:seda:v2.1\"\n" +
+      " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n" +
+      " xsi:schemaLocation=\"fr:gouv:culture:archivesdefrance:seda:v2.1 " +
+      "seda-2.1-main.xsd\">\n" + "    <Comment>#COMMENT#</Comment>\n" +
+      "    <Date>#MADATE#</Date>\n" +
+      "    <MessageIdentifier>#MESSAGE_IDENTIFIER#</MessageIdentifier>\n" +
+      "    \n" + "    <CodeListVersions>\n" +
+      "        <ReplyCodeListVersion>ReplyCodeListVersion0" +
+      "</ReplyCodeListVersion>\n" +
+      "        <MessageDigestAlgorithmCodeListVersion>" +
+      "MessageDigestAlgorithmCodeListVersion0" +
+      "</MessageDigestAlgorithmCodeListVersion>\n" +
+      "        <FileFormatCodeListVersion>FileFormatCodeListVersion0" +
+      "</FileFormatCodeListVersion>\n" + "    </CodeListVersions>\n" + "\n" +
+      "    <ReplyCode>#OUTCOME#</ReplyCode>\n" + "    <Operation>\n" +
+      "        <Event>\n" +
+      "            <EventTypeCode>#EVENT_TYPE_CODE#</EventTypeCode>\n" +
+      "            <EventType>#EVENT_TYPE#</EventType>\n" +
+      "            <EventDateTime>#EVENT_DATE_TIME#</EventDateTime>\n" +
+      "            <Outcome>#OUTCOME#</Outcome>\n" +
+      "            <OutcomeDetail>#OUTCOME_DETAIL#</OutcomeDetail>\n" +
+      "            <OutcomeDetailMessage>#OUTCOME_DETAIL_MESSAGE#" +
+      "</OutcomeDetailMessage>\n" + "        </Event>\n" +
+      "    </Operation>\n" + "\n" +
+      "    <MessageRequestIdentifier>Unknown</MessageRequestIdentifier>\n" +
+      "    <ArchivalAgency>\n" +
+      "        <Identifier>#ARCHIVAL_AGENCY#</Identifier>\n" +
+      "    </ArchivalAgency>\n" + "    <TransferringAgency>\n" +
+      "        <Identifier>#TRANSFERRING_AGENCY#</Identifier>\n" +
+      "    </TransferringAgency>\n" + "</ArchiveTransferReply>\n";
+  private static final Map<ClassLoader, AtrTemplate> TEMPLATES =
+      new WeakHashMap<>();
+  private static final ThreadLocal<StringBuilder> BUFFER =
+      ThreadLocal.withInitial(() -> new StringBuilder(2048));
+
+  /**
+   * Literal segments, the first one before the first placeholder
+   */
+  private final String[] literals;
+  /**
+   * Placeholder following each literal segment except the last one
+   */
+  private final Placeholder[] placeholders;
+
+  private AtrTemplate(final List<String> literals,
+                      final List<Placeholder> placeholders) {
+    this.literals = literals.toArray(new String[0]);
+    this.placeholders = placeholders.toArray(new Placeholder[0]);
+  }
+
+  /**
+   * @return the template of the pseudo ATR for the current ClassLoader
+   */
+  static AtrTemplate getInstance() {
+    ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    if (classLoader == null) {
+      classLoader = AtrTemplate.class.getClassLoader();
+    }
+    synchronized (TEMPLATES) {
+      return TEMPLATES.computeIfAbsent(classLoader, key -> parse(load()));
+    }
+  }
+
+  /**
+   * @return the template read from the resource, or the default one
+   */
+  private static String load() {
+    try (final InputStream inputStream = PropertiesUtils
+        .getResourceAsStream(ATR_KO_DEFAULT_XML);
+         final BufferedReader reader = new BufferedReader(
+             new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+      final StringBuilder builder = new StringBuilder();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        builder.append(line).append('\n');
+      }
+      return builder.toString();
+    } catch (final IOException e) {
+      // Should not be, but in case, get the String equivalent
+      logger.debug("Default ATR template used", e);
+      return XML_DEFAULT;
+    }
+  }
+
+  /**
+   * @param template the text of the template
+   *
+   * @return the parsed template
+   */
+  static AtrTemplate parse(final String template) {
+    final List<String> literals = new ArrayList<>();
+    final List<Placeholder> placeholders = new ArrayList<>();
+    final Placeholder[] all = Placeholder.values();
+    int start = 0;
+    int pos = template.indexOf('#');
+    while (pos >= 0) {
+      Placeholder found = null;
+      for (Placeholder placeholder : all) {
+        if (template.startsWith(placeholder.token, pos)) {
+          found = placeholder;
+          break;
+        }
+      }
+      if (found == null) {
+        pos = template.indexOf('#', pos + 1);
+        continue;
+      }
+      literals.add(template.substring(start, pos));
+      placeholders.add(found);
+      start = pos + found.token.length();
+      pos = template.indexOf('#', start);
+    }
+    literals.add(template.substring(start));
+    return new AtrTemplate(literals, placeholders);
+  }
+
+  /**
+   * @param values indexed by {@link Placeholder#ordinal()}
+   *
+   * @return the rendered ATR
+   */
+  String render(final String[] values) {
+    final StringBuilder builder = BUFFER.get();
+    builder.setLength(0);
+    for (int i = 0; i < placeholders.length; i++) {
+      builder.append(literals[i]).append(values[placeholders[i].ordinal()]);
+    }
+    return builder.append(literals[placeholders.length]).toString();
+  }
+}
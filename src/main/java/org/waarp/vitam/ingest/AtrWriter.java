@@ -0,0 +1,222 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.ingest;
+
+import org.waarp.vitam.ingest.AtrTemplate.Placeholder;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.OutputStream;
+
+/**
+ * Streaming writer of ATR (ArchiveTransferReply) using StAX, so with
+ * proper XML escaping of all values.<br>
+ * <br>
+ * The ATR is written directly into the OutputStream (file or transfer), in
+ * order: {@link #writeHeader}, any number of {@link #writeEvent}, then
+ * {@link #writeFooter}. Nothing is kept in memory between calls, whatever
+ * the number of Events.
+ */
+final class AtrWriter implements AutoCloseable {
+  static final String SEDA_NAMESPACE =
+      "fr:gouv:culture:archivesdefrance:seda:v2.1";
+  private static final String XSI_NAMESPACE =
+      "http://www.w3.org/2001/XMLSchema-instance";
+  private static final String SCHEMA_LOCATION =
+      SEDA_NAMESPACE + " seda-2.1-main.xsd";
+  private static final String UTF_8 = "UTF-8";
+  private static final String UNKNOWN = "Unknown";
+  private static final String INDENT1 = "\n    ";
+  private static final String INDENT2 = "\n        ";
+  private static final String INDENT3 = "\n            ";
+  private static final XMLOutputFactory OUTPUT_FACTORY =
+      XMLOutputFactory.newInstance();
+
+  private final XMLStreamWriter writer;
+
+  /**
+   * @param outputStream where to write the ATR, not closed by this writer
+   *
+   * @throws XMLStreamException
+   */
+  AtrWriter(final OutputStream outputStream) throws XMLStreamException {
+    writer = OUTPUT_FACTORY.createXMLStreamWriter(outputStream, UTF_8);
+  }
+
+  /**
+   * Write the start of the ATR, up to the start of the Operation
+   *
+   * @param comment
+   * @param date
+   * @param messageIdentifier
+   * @param replyCode the global outcome
+   *
+   * @return this
+   *
+   * @throws XMLStreamException
+   */
+  AtrWriter writeHeader(final String comment, final String date,
+                        final String messageIdentifier,
+                        final String replyCode) throws XMLStreamException {
+    writer.writeStartDocument(UTF_8, "1.0");
+    writer.writeCharacters("\n");
+    writer.setDefaultNamespace(SEDA_NAMESPACE);
+    writer.writeStartElement(SEDA_NAMESPACE, "ArchiveTransferReply");
+    writer.writeNamespace("xlink", "http://www.w3.org/1999/xlink");
+    writer.writeNamespace("pr", "info:lc/xmlns/premis-v2");
+    writer.writeDefaultNamespace(SEDA_NAMESPACE);
+    writer.writeNamespace("xsi", XSI_NAMESPACE);
+    writer.writeAttribute("xsi", XSI_NAMESPACE, "schemaLocation",
+                          SCHEMA_LOCATION);
+    writeElement(INDENT1, "Comment", comment);
+    writeElement(INDENT1, "Date", date);
+    writeElement(INDENT1, "MessageIdentifier", messageIdentifier);
+    writer.writeCharacters(INDENT1);
+    writer.writeStartElement(SEDA_NAMESPACE, "CodeListVersions");
+    writeElement(INDENT2, "ReplyCodeListVersion", "ReplyCodeListVersion0");
+    writeElement(INDENT2, "MessageDigestAlgorithmCodeListVersion",
+                 "MessageDigestAlgorithmCodeListVersion0");
+    writeElement(INDENT2, "FileFormatCodeListVersion",
+                 "FileFormatCodeListVersion0");
+    writer.writeCharacters(INDENT1);
+    writer.writeEndElement();
+    writeElement(INDENT1, "ReplyCode", replyCode);
+    writer.writeCharacters(INDENT1);
+    writer.writeStartElement(SEDA_NAMESPACE, "Operation");
+    return this;
+  }
+
+  /**
+   * Write one Event of the Operation
+   *
+   * @param eventTypeCode
+   * @param eventType
+   * @param eventDateTime
+   * @param outcome
+   * @param outcomeDetail
+   * @param outcomeDetailMessage
+   *
+   * @return this
+   *
+   * @throws XMLStreamException
+   */
+  AtrWriter writeEvent(final String eventTypeCode, final String eventType,
+                       final String eventDateTime, final String outcome,
+                       final String outcomeDetail,
+                       final String outcomeDetailMessage)
+      throws XMLStreamException {
+    writer.writeCharacters(INDENT2);
+    writer.writeStartElement(SEDA_NAMESPACE, "Event");
+    writeElement(INDENT3, "EventTypeCode", eventTypeCode);
+    writeElement(INDENT3, "EventType", eventType);
+    writeElement(INDENT3, "EventDateTime", eventDateTime);
+    writeElement(INDENT3, "Outcome", outcome);
+    writeElement(INDENT3, "OutcomeDetail", outcomeDetail);
+    writeElement(INDENT3, "OutcomeDetailMessage", outcomeDetailMessage);
+    writer.writeCharacters(INDENT2);
+    writer.writeEndElement();
+    return this;
+  }
+
+  /**
+   * Write the end of the ATR, from the end of the Operation
+   *
+   * @param messageRequestIdentifier
+   * @param archivalAgency
+   * @param transferringAgency
+   *
+   * @throws XMLStreamException
+   */
+  void writeFooter(final String messageRequestIdentifier,
+                   final String archivalAgency,
+                   final String transferringAgency)
+      throws XMLStreamException {
+    writer.writeCharacters(INDENT1);
+    writer.writeEndElement();
+    writeElement(INDENT1, "MessageRequestIdentifier",
+                 messageRequestIdentifier);
+    writer.writeCharacters(INDENT1);
+    writer.writeStartElement(SEDA_NAMESPACE, "ArchivalAgency");
+    writeElement(INDENT2, "Identifier", archivalAgency);
+    writer.writeCharacters(INDENT1);
+    writer.writeEndElement();
+    writer.writeCharacters(INDENT1);
+    writer.writeStartElement(SEDA_NAMESPACE, "TransferringAgency");
+    writeElement(INDENT2, "Identifier", transferringAgency);
+    writer.writeCharacters(INDENT1);
+    writer.writeEndElement();
+    writer.writeCharacters("\n");
+    writer.writeEndElement();
+    writer.writeCharacters("\n");
+    writer.writeEndDocument();
+    writer.flush();
+  }
+
+  /**
+   * Write a complete ATR with one Event
+   *
+   * @param outputStream not closed
+   * @param values indexed by {@link Placeholder#ordinal()}, as for
+   *     {@link AtrTemplate}
+   *
+   * @throws XMLStreamException
+   */
+  static void writeAtr(final OutputStream outputStream, final String[] values)
+      throws XMLStreamException {
+    try (final AtrWriter atrWriter = new AtrWriter(outputStream)) {
+      atrWriter.writeHeader(values[Placeholder.COMMENT.ordinal()],
+                            values[Placeholder.DATE.ordinal()],
+                            values[Placeholder.MESSAGE_IDENTIFIER.ordinal()],
+                            values[Placeholder.OUTCOME.ordinal()])
+               .writeEvent(values[Placeholder.EVENT_TYPE_CODE.ordinal()],
+                           values[Placeholder.EVENT_TYPE.ordinal()],
+                           values[Placeholder.EVENT_DATE_TIME.ordinal()],
+                           values[Placeholder.OUTCOME.ordinal()],
+                           values[Placeholder.OUTCOME_DETAIL.ordinal()],
+                           values[Placeholder.OUTCOME_DETAIL_MESSAGE
+                               .ordinal()])
+               .writeFooter(UNKNOWN,
+                            values[Placeholder.ARCHIVAL_AGENCY.ordinal()],
+                            values[Placeholder.TRANSFERRING_AGENCY.ordinal()]);
+    }
+  }
+
+  private void writeElement(final String indent, final String name,
+                            final String value) throws XMLStreamException {
+    writer.writeCharacters(indent);
+    writer.writeStartElement(SEDA_NAMESPACE, name);
+    if (value != null) {
+      writer.writeCharacters(value);
+    }
+    writer.writeEndElement();
+  }
+
+  /**
+   * Flush and release the writer, without closing the OutputStream
+   *
+   * @throws XMLStreamException
+   */
+  @Override
+  public void close() throws XMLStreamException {
+    writer.close();
+  }
+}
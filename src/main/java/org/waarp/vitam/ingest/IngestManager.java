@@ -23,7 +23,6 @@ package org.waarp.vitam.ingest;
 import fr.gouv.vitam.access.external.client.AdminExternalClient;
 import fr.gouv.vitam.common.GlobalDataRest;
 import fr.gouv.vitam.common.LocalDateUtil;
-import fr.gouv.vitam.common.PropertiesUtils;
 import fr.gouv.vitam.common.client.VitamContext;
 import fr.gouv.vitam.common.exception.InvalidParseOperationException;
 import fr.gouv.vitam.common.exception.VitamClientException;
@@ -40,26 +39,38 @@ import org.apache.commons.io.FileUtils;
 import org.waarp.common.logging.SysErrLogger;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.SystemPropertyUtil;
 import org.waarp.common.utility.WaarpThreadFactory;
+import org.waarp.vitam.common.FileDownloader;
 import org.waarp.vitam.common.OperationCheck;
+import org.waarp.vitam.common.OperationDurationStatistics;
+import org.waarp.vitam.common.OperationStatusCache;
+import org.waarp.vitam.common.PollingPolicy;
+import org.waarp.vitam.common.StorageTiers;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+import org.waarp.vitam.common.waarp.ForwardLimiter;
+import org.waarp.vitam.common.waarp.ManagerToWaarp;
+import org.waarp.vitam.ingest.AtrTemplate.Placeholder;
 
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
-import java.io.BufferedReader;
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
-import static java.nio.file.StandardCopyOption.*;
 import static org.waarp.vitam.ingest.IngestRequest.*;
 
 /**
@@ -79,26 +90,33 @@ public class IngestManager implements Runnable {
    * Prefix of File Information for INGEST_ID
    */
   public static final String INGEST_ID = "INGEST_ID";
+  /**
+   * True to give the pseudo ATR of step 2 on the standard input of the
+   * script of the Waarp Partner, without local file
+   */
+  public static final String ORG_WAARP_VITAM_INGEST_ID_STREAMING =
+      "org.waarp.vitam.ingest.id.streaming";
   protected static final String ERROR_MESSAGE = "{}\n\t{}";
   /**
    * Internal Logger
    */
   private static final WaarpLogger logger =
       WaarpLoggerFactory.getLogger(IngestManager.class);
+  /**
+   * Metric prefix for ATR received, followed by their ReplyCode
+   */
+  public static final String INGEST_ATR = "ingest.atr.";
+  /**
+   * Metric name for ArchiveUnits reported within ATR received
+   */
+  public static final String INGEST_ATR_UNITS = "ingest.atr.units";
+  /**
+   * Metric name for data objects reported within ATR received
+   */
+  public static final String INGEST_ATR_OBJECTS = "ingest.atr.objects";
   private static final String INGEST_INT_UPLOAD = "STP_UPLOAD_SIP";
-  private static final String ATR_KO_DEFAULT_XML = "ATR_KO_DEFAULT.xml";
-  private static final String DATE = "#MADATE#";
-  private static final String MESSAGE_IDENTIFIER = "#MESSAGE_IDENTIFIER#";
-  private static final String ARCHIVAL_AGENCY = "#ARCHIVAL_AGENCY#";
-  private static final String TRANSFERRING_AGENCY = "#TRANSFERRING_AGENCY#";
-  private static final String COMMENT = "#COMMENT#";
-  private static final String EVENT_TYPE = "#EVENT_TYPE#";
-  private static final String EVENT_TYPE_CODE = "#EVENT_TYPE_CODE#";
-  private static final String EVENT_DATE_TIME = "#EVENT_DATE_TIME#";
-  private static final String OUTCOME = "#OUTCOME#";
-  private static final String OUTCOME_DETAIL = "#OUTCOME_DETAIL#";
-  private static final String OUTCOME_DETAIL_MESSAGE =
-      "#OUTCOME_DETAIL_MESSAGE#";
+  private static boolean idStreaming =
+      SystemPropertyUtil.getBoolean(ORG_WAARP_VITAM_INGEST_ID_STREAMING, false);
   private static final String ISSUE_SINCE_INGEST_PACKET_PRODUCES_AN_ERROR =
       "Issue since ingest packet produces an error";
 
@@ -106,6 +124,7 @@ public class IngestManager implements Runnable {
   private AdminExternalClient adminExternalClient;
   private IngestExternalClient client;
   private IngestRequestFactory ingestRequestFactory;
+  private PollingPolicy pollingPolicy;
 
   IngestManager() {
     // Empty
@@ -114,11 +133,28 @@ public class IngestManager implements Runnable {
   private IngestManager(final IngestRequest ingestRequest,
                         final AdminExternalClient adminExternalClient,
                         final IngestExternalClient client,
-                        final IngestRequestFactory ingestRequestFactory) {
+                        final IngestRequestFactory ingestRequestFactory,
+                        final PollingPolicy pollingPolicy) {
     this.ingestRequest = ingestRequest;
     this.adminExternalClient = adminExternalClient;
     this.client = client;
     this.ingestRequestFactory = ingestRequestFactory;
+    this.pollingPolicy = pollingPolicy;
+  }
+
+  /**
+   * @param pollingPolicy the PollingPolicy for operation checks of this
+   *     Manager, null for the default one
+   */
+  void setPollingPolicy(final PollingPolicy pollingPolicy) {
+    this.pollingPolicy = pollingPolicy;
+  }
+
+  /**
+   * @return the PollingPolicy of this Manager, null for the default one
+   */
+  PollingPolicy getPollingPolicy() {
+    return pollingPolicy;
   }
 
   /**
@@ -139,97 +175,45 @@ public class IngestManager implements Runnable {
                                          String eventType, String addedMessage,
                                          StatusCode code,
                                          LocalDateTime eventDateTime) {
-    String xmlDefault;
-    try {
-      xmlDefault = readInputStream(
-          PropertiesUtils.getResourceAsStream(ATR_KO_DEFAULT_XML));
-    } catch (final IOException e) {
-      // Should not be, but in case, get the String equivalent
-      xmlDefault = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
-                   "<ArchiveTransferReply xmlns:xlink=\"http://www.w3.org/1999/xlink\"\n" +
-                   " xmlns:pr=\"info:lc/xmlns/premis-v2\"\n" +
-                   " xmlns=\"fr:gouv:culture:archivesdefrance:seda:v2.1\"\n" +
-                   " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n" +
-                   " xsi:schemaLocation=\"fr:gouv:culture:archivesdefrance:seda:v2.1 seda-2.1-main.xsd\">\n" +
-                   "    <Comment>#COMMENT#</Comment>\n" +
-                   "    <Date>#MADATE#</Date>\n" +
-                   "    <MessageIdentifier>#MESSAGE_IDENTIFIER#</MessageIdentifier>\n" +
-                   "    \n" + "    <CodeListVersions>\n" +
-                   "        <ReplyCodeListVersion>ReplyCodeListVersion0</ReplyCodeListVersion>\n" +
-                   "        <MessageDigestAlgorithmCodeListVersion>MessageDigestAlgorithmCodeListVersion0</MessageDigestAlgorithmCodeListVersion>\n" +
-                   "        <FileFormatCodeListVersion>FileFormatCodeListVersion0</FileFormatCodeListVersion>\n" +
-                   "    </CodeListVersions>\n" + "\n" +
-                   "    <ReplyCode>#OUTCOME#</ReplyCode>\n" +
-                   "    <Operation>\n" + "        <Event>\n" +
-                   "            <EventTypeCode>#EVENT_TYPE_CODE#</EventTypeCode>\n" +
-                   "            <EventType>#EVENT_TYPE#</EventType>\n" +
-                   "            <EventDateTime>#EVENT_DATE_TIME#</EventDateTime>\n" +
-                   "            <Outcome>#OUTCOME#</Outcome>\n" +
-                   "            <OutcomeDetail>#OUTCOME_DETAIL#</OutcomeDetail>\n" +
-                   "            <OutcomeDetailMessage>#OUTCOME_DETAIL_MESSAGE#</OutcomeDetailMessage>\n" +
-                   "        </Event>\n" + "    </Operation>\n" + "\n" +
-                   "    <MessageRequestIdentifier>Unknown</MessageRequestIdentifier>\n" +
-                   "    <ArchivalAgency>\n" +
-                   "        <Identifier>#ARCHIVAL_AGENCY#</Identifier>\n" +
-                   "    </ArchivalAgency>\n" + "    <TransferringAgency>\n" +
-                   "        <Identifier>#TRANSFERRING_AGENCY#</Identifier>\n" +
-                   "    </TransferringAgency>\n" + "</ArchiveTransferReply>\n";
-    }
-    String detail = VitamLogbookMessages.getCodeOp(eventType, code);
-    if (addedMessage != null) {
-      detail += addedMessage;
-    }
-    String event = VitamLogbookMessages.getLabelOp(eventType);
-    return xmlDefault.replace(DATE, LocalDateUtil.now().toString())
-                     .replace(MESSAGE_IDENTIFIER, messageIdentifier)
-                     .replace(ARCHIVAL_AGENCY, archivalAgency)
-                     .replace(TRANSFERRING_AGENCY, transferringAgency)
-                     .replace(COMMENT, detail)
-                     .replace(EVENT_TYPE_CODE, eventType)
-                     .replace(EVENT_TYPE, event)
-                     .replace(EVENT_DATE_TIME, eventDateTime.toString())
-                     .replaceAll(OUTCOME, code.name())
-                     .replace(OUTCOME_DETAIL, eventType + "." + code.name())
-                     .replace(OUTCOME_DETAIL_MESSAGE, detail);
+    return AtrTemplate.getInstance().render(
+        getAtrValues(messageIdentifier, archivalAgency, transferringAgency,
+                     eventType, addedMessage, code, eventDateTime));
   }
 
   /**
-   * Internal
-   *
-   * @param input to read
-   *
-   * @return String
+   * @param messageIdentifier
+   * @param archivalAgency
+   * @param transferringAgency
+   * @param eventType
+   * @param addedMessage might be null
+   * @param code
+   * @param eventDateTime
    *
-   * @throws IOException
+   * @return the values of the ATR template placeholders
    */
-  private static String readInputStreamLimited(InputStream input, int limit)
-      throws IOException {
-    final StringBuilder builder = new StringBuilder();
-    try (final InputStreamReader reader = new InputStreamReader(input)) {
-      try (final BufferedReader buffered = new BufferedReader(reader)) {
-        String line;
-        while ((line = buffered.readLine()) != null) {
-          builder.append(line).append('\n');
-          if (builder.length() >= limit) {
-            break;
-          }
-        }
-      }
+  static String[] getAtrValues(String messageIdentifier, String archivalAgency,
+                               String transferringAgency, String eventType,
+                               String addedMessage, StatusCode code,
+                               LocalDateTime eventDateTime) {
+    String detail = VitamLogbookMessages.getCodeOp(eventType, code);
+    if (addedMessage != null) {
+      detail += addedMessage;
     }
-    return builder.toString();
-  }
-
-  /**
-   * Internal
-   *
-   * @param input to read
-   *
-   * @return String
-   *
-   * @throws IOException
-   */
-  private static String readInputStream(InputStream input) throws IOException {
-    return readInputStreamLimited(input, Integer.MAX_VALUE);
+    final String[] values = new String[Placeholder.values().length];
+    values[Placeholder.DATE.ordinal()] = LocalDateUtil.now().toString();
+    values[Placeholder.MESSAGE_IDENTIFIER.ordinal()] = messageIdentifier;
+    values[Placeholder.ARCHIVAL_AGENCY.ordinal()] = archivalAgency;
+    values[Placeholder.TRANSFERRING_AGENCY.ordinal()] = transferringAgency;
+    values[Placeholder.COMMENT.ordinal()] = detail;
+    values[Placeholder.EVENT_TYPE_CODE.ordinal()] = eventType;
+    values[Placeholder.EVENT_TYPE.ordinal()] =
+        VitamLogbookMessages.getLabelOp(eventType);
+    values[Placeholder.EVENT_DATE_TIME.ordinal()] = eventDateTime.toString();
+    values[Placeholder.OUTCOME.ordinal()] = code.name();
+    values[Placeholder.OUTCOME_DETAIL.ordinal()] =
+        eventType + "." + code.name();
+    values[Placeholder.OUTCOME_DETAIL_MESSAGE.ordinal()] = detail;
+    return values;
   }
 
   /**
@@ -245,6 +229,8 @@ public class IngestManager implements Runnable {
                              final IngestExternalClient client,
                              final AdminExternalClient adminExternalClient,
                              final IngestMonitor ingestMonitor) {
+    // Next steps of the forwards over, before reading the requests again
+    ForwardLimiter.getInstance().runCompleted(IngestRequest.class);
     List<IngestRequest> ingestRequests =
         ingestRequestFactory.getExistingIngests();
     if (ingestRequests.isEmpty()) {
@@ -259,7 +245,7 @@ public class IngestManager implements Runnable {
       }
       IngestManager task =
           new IngestManager(ingestRequest, adminExternalClient, client,
-                            ingestRequestFactory);
+                            ingestRequestFactory, pollingPolicy);
       executorService.execute(task);
     }
     try {
@@ -412,6 +398,8 @@ public class IngestManager implements Runnable {
       // Ingest sent and accepted
       RequestResponseOK responseOK = (RequestResponseOK) requestResponse;
       ingestRequest.setFromRequestResponse(responseOK);
+      // First check not before the usual duration of such an operation
+      OperationDurationStatistics.getInstance().onSubmitted(ingestRequest);
 
       // Inform back of ID whatever: could be the last step
       return sendBackId(ingestRequestFactory, ingestRequest)? 0 : 1;
@@ -444,44 +432,78 @@ public class IngestManager implements Runnable {
   private boolean sendBackId(final IngestRequestFactory ingestRequestFactory,
                              final IngestRequest ingestRequest)
       throws InvalidParseOperationException {
-    File idMessage = new File("/tmp/" + ingestRequest.getRequestId() + ".xml");
+    final String atr = buildAtrInternal(ingestRequest.getRequestId(),
+                                        "ArchivalAgencyToBeDefined",
+                                        "TransferringAgencyToBeDefined",
+                                        INGEST_INT_UPLOAD,
+                                        "(Accepted by Vitam)",
+                                        StatusCode.STARTED,
+                                        LocalDateUtil.now());
+    ingestRequest.setStep(IngestStep.RETRY_INGEST_ID, 0, ingestRequestFactory);
+    final ManagerToWaarp managerToWaarp =
+        ingestRequestFactory.getManagerToWaarp(ingestRequest);
+    boolean sent = false;
+    if (idStreaming && managerToWaarp.supportsStreaming()) {
+      // No file needed
+      sent = managerToWaarp.sendBackStream(ingestRequestFactory, ingestRequest,
+                                           new ByteArrayInputStream(
+                                               atr.getBytes(
+                                                   StandardCharsets.UTF_8)),
+                                           INGEST_ID);
+      if (!sent) {
+        logger.warn("Pseudo ATR not streamed, so sent as file: {}",
+                    ingestRequest);
+      }
+    }
+    if (!sent) {
+      sent = sendBackIdFile(ingestRequestFactory, ingestRequest,
+                            managerToWaarp, atr);
+    }
+    if (sent) {
+      // Possibly (optional) waiting for ATR back or not
+      if (ingestRequest.isCheckAtr()) {
+        ingestRequest.setStep(IngestStep.RETRY_ATR, 0, ingestRequestFactory);
+      } else {
+        // No ATR Back so Very end of this IngestRequest
+        toDelete(ingestRequestFactory, ingestRequest);
+      }
+      return true;
+    }
+    // Not sent, so retry later on
+    return false;
+  }
+
+  /**
+   * Send the pseudo ATR of step 2 through a spooled file
+   *
+   * @param ingestRequestFactory
+   * @param ingestRequest
+   * @param managerToWaarp
+   * @param atr
+   *
+   * @return True if sent
+   *
+   * @throws InvalidParseOperationException
+   */
+  private boolean sendBackIdFile(
+      final IngestRequestFactory ingestRequestFactory,
+      final IngestRequest ingestRequest, final ManagerToWaarp managerToWaarp,
+      final String atr) throws InvalidParseOperationException {
+    final File idMessage = ingestRequestFactory.getIdMessageFile(ingestRequest);
     try {
-      String atr = buildAtrInternal(ingestRequest.getRequestId(),
-                                    "ArchivalAgencyToBeDefined",
-                                    "TransferringAgencyToBeDefined",
-                                    INGEST_INT_UPLOAD, "(Accepted by Vitam)",
-                                    StatusCode.STARTED, LocalDateUtil.now());
       try {
         FileUtils.write(idMessage, atr, StandardCharsets.UTF_8);
       } catch (IOException e) {
         // very bad, so retry later on
         logger.error("Very bad since cannot save pseudo ATR", e);
-        ingestRequest
-            .setStep(IngestStep.RETRY_INGEST_ID, 0, ingestRequestFactory);
-        return false;
-      }
-      ingestRequest
-          .setStep(IngestStep.RETRY_INGEST_ID, 0, ingestRequestFactory);
-      if (ingestRequestFactory.getManagerToWaarp(ingestRequest)
-                              .sendBackInformation(ingestRequestFactory,
-                                                   ingestRequest,
-                                                   idMessage.getAbsolutePath(),
-                                                   INGEST_ID)) {
-        // Possibly (optional) waiting for ATR back or not
-        if (ingestRequest.isCheckAtr()) {
-          ingestRequest.setStep(IngestStep.RETRY_ATR, 0, ingestRequestFactory);
-        } else {
-          // No ATR Back so Very end of this IngestRequest
-          toDelete(ingestRequestFactory, ingestRequest);
-        }
-        return true;
-      } else {
-        // Not sent, so retry later on
         return false;
       }
+      return managerToWaarp
+          .sendBackInformation(ingestRequestFactory, ingestRequest,
+                               idMessage.getAbsolutePath(), INGEST_ID);
     } finally {
       try {
-        Files.delete(idMessage.toPath());
+        Files.deleteIfExists(idMessage.toPath());
       } catch (IOException e) {
         logger.debug("Temporary file not deleted {}",
                      idMessage.getAbsolutePath());
@@ -489,6 +511,15 @@ public class IngestManager implements Runnable {
     }
   }
 
+  /**
+   * @param enabled True to give the pseudo ATR of step 2 on the standard
+   *     input when possible, overriding
+   *     {@value #ORG_WAARP_VITAM_INGEST_ID_STREAMING}
+   */
+  static void setIdStreaming(final boolean enabled) {
+    idStreaming = enabled;
+  }
+
   /**
    * Get the ATR (step 3 if allowed)
    *
@@ -512,9 +543,20 @@ public class IngestManager implements Runnable {
     try {
 
       ingestRequest.setStep(IngestStep.RETRY_ATR, 0, ingestRequestFactory);
-      OperationCheck operationCheck = new OperationCheck(adminExternalClient);
-      if (operationCheck.checkAvailabilityAtr(ingestRequest.getTenantId(),
-                                              ingestRequest.getRequestId())) {
+      final OperationDurationStatistics statistics =
+          OperationDurationStatistics.getInstance();
+      if (!statistics.isCheckDue(ingestRequest)) {
+        logger.debug("Too early to check {}", ingestRequest);
+        return false;
+      }
+      OperationCheck operationCheck =
+          new OperationCheck(adminExternalClient, pollingPolicy);
+      if (!operationCheck.checkAvailabilityAtr(ingestRequest.getTenantId(),
+                                               ingestRequest.getRequestId())) {
+        statistics.onCheckNotDone(ingestRequest);
+        ingestRequest.save(ingestRequestFactory);
+      } else {
+        statistics.onCheckDone(ingestRequest);
         response = client
             .downloadObjectAsync(vitamContext, ingestRequest.getRequestId(),
                                  IngestCollection.ARCHIVETRANSFERREPLY);
@@ -566,9 +608,26 @@ public class IngestManager implements Runnable {
     try (final InputStream inputStream = response
         .readEntity(InputStream.class)) {
       // Write file to be forwarded
-      File targetFile = ingestRequest.getAtrFile(ingestRequestFactory);
-      Path target = targetFile.toPath();
-      Files.copy(inputStream, target, REPLACE_EXISTING);
+      final long expected = FileDownloader.getContentLength(response);
+      final File targetFile;
+      try {
+        targetFile =
+            ingestRequestFactory.allocateXmlAtrFile(ingestRequest, expected);
+      } catch (StorageTiers.QuotaExceededException e) {
+        // No room yet: will try again on next retry
+        logger.warn("ATR download postponed: {} {}", e.getMessage(),
+                    ingestRequest);
+        return;
+      }
+      final MessageDigest digest = FileDownloader.newDigest();
+      // Parsed while written, to learn the outcome without reading it again
+      final AtrOutcomeParser parser = new AtrOutcomeParser();
+      try (final OutputStream outputStream = FileDownloader.getInstance()
+          .newSink(targetFile, expected, digest)) {
+        parser.copy(inputStream, outputStream);
+      }
+      ingestRequest.setDigest(FileDownloader.getDigestInfo(digest));
+      setAtrOutcome(ingestRequest, parser);
       // Write back the content of the ATR through Waarp
       sendATRFile(ingestRequestFactory, ingestRequest, targetFile);
     } catch (IOException e) {
@@ -577,11 +636,40 @@ public class IngestManager implements Runnable {
       ingestRequest.setStep(IngestStep.ERROR,
                             Status.INTERNAL_SERVER_ERROR.getStatusCode(),
                             ingestRequestFactory);
+    } finally {
+      ingestRequestFactory.releaseXmlAtrFile(ingestRequest);
     }
   }
 
   /**
-   * Step to send ATR before finished (step 4)
+   * Keep the outcome of the ATR within the IngestRequest and the metrics
+   *
+   * @param ingestRequest
+   * @param parser
+   */
+  private static void setAtrOutcome(final IngestRequest ingestRequest,
+                                    final AtrOutcomeParser parser) {
+    if (parser.getReplyCode() == null) {
+      return;
+    }
+    ingestRequest.setAtrReplyCode(parser.getReplyCode())
+                 .setAtrOutcome(parser.getOutcome())
+                 .setAtrUnits(parser.getArchiveUnits())
+                 .setAtrObjects(parser.getDataObjects());
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    metrics.increment(INGEST_ATR + parser.getReplyCode());
+    metrics.add(INGEST_ATR_UNITS, parser.getArchiveUnits());
+    metrics.add(INGEST_ATR_OBJECTS, parser.getDataObjects());
+    logger.info("ATR {} with {} units and {} objects: {}",
+                parser.getReplyCode(), parser.getArchiveUnits(),
+                parser.getDataObjects(), ingestRequest);
+  }
+
+  /**
+   * Step to send ATR before finished (step 4)<br>
+   * <br>
+   * If forwards are asynchronous (see {@link ForwardLimiter}), the step is
+   * kept and the IngestRequest is finalized once the ATR is sent.
    *
    * @param ingestRequestFactory
    * @param ingestRequest
@@ -595,11 +683,40 @@ public class IngestManager implements Runnable {
       throws InvalidParseOperationException {
     ingestRequest
         .setStep(IngestStep.RETRY_ATR_FORWARD, 0, ingestRequestFactory);
-    if (!ingestRequestFactory.getManagerToWaarp(ingestRequest)
-                             .sendBackInformation(ingestRequestFactory,
-                                                  ingestRequest,
-                                                  targetFile.getAbsolutePath(),
-                                                  ATR)) {
+    final ManagerToWaarp managerToWaarp =
+        ingestRequestFactory.getManagerToWaarp(ingestRequest);
+    final String filename = targetFile.getAbsolutePath();
+    final String fileInfo = ingestRequest.getFileInfo(ATR);
+    final ForwardLimiter forwardLimiter = ForwardLimiter.getInstance();
+    if (forwardLimiter.isAsync(managerToWaarp)) {
+      // If not started, will retry later on: keep as is
+      forwardLimiter.forward(ingestRequest, () -> managerToWaarp
+                                 .sendBackInformationAsync(ingestRequestFactory,
+                                                           ingestRequest,
+                                                           filename, fileInfo),
+                             sent -> afterATRFile(ingestRequestFactory,
+                                                  ingestRequest, sent));
+      return;
+    }
+    afterATRFile(ingestRequestFactory, ingestRequest, managerToWaarp
+        .sendBackInformation(ingestRequestFactory, ingestRequest, filename,
+                             fileInfo));
+  }
+
+  /**
+   * Next step once the ATR forward is over
+   *
+   * @param ingestRequestFactory
+   * @param ingestRequest
+   * @param sent
+   *
+   * @throws InvalidParseOperationException
+   */
+  private void afterATRFile(final IngestRequestFactory ingestRequestFactory,
+                            final IngestRequest ingestRequest,
+                            final boolean sent)
+      throws InvalidParseOperationException {
+    if (!sent) {
       // ATR already there but not sent, so retry
       ingestRequest
           .setStep(IngestStep.RETRY_ATR_FORWARD, 0, ingestRequestFactory);
@@ -622,6 +739,9 @@ public class IngestManager implements Runnable {
       throws InvalidParseOperationException {
     // Ensure it will not be reloaded
     ingestRequest.setStep(IngestStep.END, 0, ingestRequestFactory);
+    OperationStatusCache.getInstance()
+                        .remove(ingestRequest.getTenantId(),
+                                ingestRequest.getRequestId());
     if (!ingestRequestFactory.removeIngestRequest(ingestRequest)) {
       logger
           .error("Issue while cleaning this IngestRequest: {}", ingestRequest);
@@ -648,17 +768,20 @@ public class IngestManager implements Runnable {
     File file = ingestRequest.getAtrFile(ingestRequestFactory);
     if (!file.canRead()) {
       // Create a pseudo one
-      String atr = buildAtrInternal(ingestRequest.getRequestId(),
-                                    "ArchivalAgencyToBeDefined",
-                                    "TransferringAgencyToBeDefined",
-                                    INGEST_INT_UPLOAD,
-                                    "(Issue during Ingest Step [" +
-                                    ingestRequest.getStatus() +
-                                    "] while Waarp accessed to Vitam)",
-                                    StatusCode.FATAL, LocalDateUtil.now());
-      try {
-        FileUtils.write(file, atr, StandardCharsets.UTF_8);
-      } catch (IOException e) {
+      final String[] values = getAtrValues(ingestRequest.getRequestId(),
+                                           "ArchivalAgencyToBeDefined",
+                                           "TransferringAgencyToBeDefined",
+                                           INGEST_INT_UPLOAD,
+                                           "(Issue during Ingest Step [" +
+                                           ingestRequest.getStatus() +
+                                           "] while Waarp accessed to Vitam)",
+                                           StatusCode.FATAL,
+                                           LocalDateUtil.now());
+      try (final OutputStream outputStream = new BufferedOutputStream(
+          new FileOutputStream(file))) {
+        // Status within the message, so escaped
+        AtrWriter.writeAtr(outputStream, values);
+      } catch (IOException | XMLStreamException e) {
         // very bad
         logger.error("Very bad since cannot save pseudo ATR", e);
         return;
@@ -70,6 +70,16 @@ public class IngestRequest extends AbstractVitamRequest {
   private String action = RESUME;
   @JsonProperty("checkAtr")
   private boolean checkAtr;
+  @JsonProperty("sipSize")
+  private long sipSize;
+  @JsonProperty("atrReplyCode")
+  private String atrReplyCode;
+  @JsonProperty("atrOutcome")
+  private String atrOutcome;
+  @JsonProperty("atrUnits")
+  private long atrUnits;
+  @JsonProperty("atrObjects")
+  private long atrObjects;
 
   public IngestRequest() {
     // Empty constructor for Json
@@ -102,6 +112,7 @@ public class IngestRequest extends AbstractVitamRequest {
     this.contextId = contextId;
     this.action = action;
     this.checkAtr = checkAtr;
+    this.sipSize = new File(getPath()).length();
     this.status = this.step.getCurrent().getStatusMonitor();
     try {
       factory.saveNewIngestRequest(this);
@@ -254,6 +265,102 @@ public class IngestRequest extends AbstractVitamRequest {
     return this;
   }
 
+  @JsonGetter("sipSize")
+  public long getSipSize() {
+    return sipSize;
+  }
+
+  @JsonSetter("sipSize")
+  public IngestRequest setSipSize(final long sipSize) {
+    this.sipSize = sipSize;
+    return this;
+  }
+
+  /**
+   * @return the ReplyCode of the ATR, once received, else null
+   */
+  @JsonGetter("atrReplyCode")
+  public String getAtrReplyCode() {
+    return atrReplyCode;
+  }
+
+  @JsonSetter("atrReplyCode")
+  public IngestRequest setAtrReplyCode(final String atrReplyCode) {
+    this.atrReplyCode = atrReplyCode;
+    return this;
+  }
+
+  /**
+   * @return the Outcome of the last Event of the ATR, once received, else
+   *     null
+   */
+  @JsonGetter("atrOutcome")
+  public String getAtrOutcome() {
+    return atrOutcome;
+  }
+
+  @JsonSetter("atrOutcome")
+  public IngestRequest setAtrOutcome(final String atrOutcome) {
+    this.atrOutcome = atrOutcome;
+    return this;
+  }
+
+  /**
+   * @return the number of ArchiveUnit within the ATR
+   */
+  @JsonGetter("atrUnits")
+  public long getAtrUnits() {
+    return atrUnits;
+  }
+
+  @JsonSetter("atrUnits")
+  public IngestRequest setAtrUnits(final long atrUnits) {
+    this.atrUnits = atrUnits;
+    return this;
+  }
+
+  /**
+   * @return the number of data objects within the ATR
+   */
+  @JsonGetter("atrObjects")
+  public long getAtrObjects() {
+    return atrObjects;
+  }
+
+  @JsonSetter("atrObjects")
+  public IngestRequest setAtrObjects(final long atrObjects) {
+    this.atrObjects = atrObjects;
+    return this;
+  }
+
+  /**
+   * @param prefix the kind of file sent
+   *
+   * @return the File Information for the Waarp Partner, including the
+   *     digest and the outcome of the ATR if known
+   */
+  @JsonIgnore
+  @Override
+  public String getFileInfo(final String prefix) {
+    final String fileInfo = super.getFileInfo(prefix);
+    if (atrReplyCode == null) {
+      return fileInfo;
+    }
+    return fileInfo + " replyCode=" + atrReplyCode + " outcome=" + atrOutcome +
+           " units=" + atrUnits + " objects=" + atrObjects;
+  }
+
+  /**
+   * @return the kind of operation as INGEST.contextId.tenant.sizeClass
+   *     where sizeClass is the log2 of the size in MB
+   */
+  @Override
+  @JsonIgnore
+  public String getOperationKey() {
+    final int sizeClass = 64 - Long.numberOfLeadingZeros(sipSize >> 20);
+    return "INGEST." + contextId + ".t" + getTenantId() + ".s" + sizeClass;
+  }
+
   /**
    * Set extra information from first response from operation submission
    *
@@ -31,6 +31,8 @@ import org.waarp.common.logging.SysErrLogger;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.common.utility.SystemPropertyUtil;
+import org.waarp.vitam.common.StorageTiers;
+import org.waarp.vitam.common.VitamClientPool;
 import org.waarp.vitam.common.waarp.ManagerToWaarp;
 import org.waarp.vitam.common.waarp.ManagerToWaarpFactory;
 
@@ -58,6 +60,7 @@ public class IngestRequestFactory {
   private static final String BASENAME =
       IngestRequest.class.getSimpleName() + ".";
   private static final String EXTENSION = ".json";
+  private static final String ID_EXTENSION = ".id.xml";
   private static final String RESULT_EXTENSION = ".xml";
   private static final FilenameFilter JSON_ONLY =
       (dir, name) -> name.startsWith(BASENAME) && name.endsWith(EXTENSION);
@@ -71,6 +74,7 @@ public class IngestRequestFactory {
 
   private File baseDir;
   private File workDir;
+  private StorageTiers storageTiers;
   private IngestExternalClientFactory clientFactory =
       IngestExternalClientFactory.getInstance();
 
@@ -120,6 +124,7 @@ public class IngestRequestFactory {
     FACTORY.baseDir.mkdirs();
     FACTORY.workDir = new File(FACTORY.baseDir, WORK);
     FACTORY.workDir.mkdirs();
+    FACTORY.storageTiers = StorageTiers.getStorageTiers(FACTORY.workDir);
   }
 
   /**
@@ -135,6 +140,7 @@ public class IngestRequestFactory {
   void setBaseDir() {
     baseDir = FACTORY.baseDir;
     workDir = FACTORY.workDir;
+    storageTiers = FACTORY.storageTiers;
   }
 
   /**
@@ -145,10 +151,13 @@ public class IngestRequestFactory {
   }
 
   /**
-   * @return the Ingest Vitam client
+   * @return a lease on the shared Ingest Vitam client (see
+   *     {@link VitamClientPool}), to close after use
    */
   public IngestExternalClient getClient() {
-    return clientFactory.getClient();
+    return VitamClientPool.getInstance()
+                          .getClient(clientFactory, IngestExternalClient.class,
+                                     clientFactory::getClient);
   }
 
   /**
@@ -262,7 +271,49 @@ public class IngestRequestFactory {
    * @return the File pointer to the XML ATR file
    */
   File getXmlAtrFile(IngestRequest ingestRequest) {
-    return new File(workDir, ingestRequest.getJsonPath() + RESULT_EXTENSION);
+    return storageTiers
+        .getFile(ingestRequest.getJsonPath() + RESULT_EXTENSION, 0);
+  }
+
+  /**
+   * @param ingestRequest
+   *
+   * @return the File pointer to the pseudo ATR sent back with the Ingest Id,
+   *     unique per request, within the storage tier of small files
+   */
+  File getIdMessageFile(IngestRequest ingestRequest) {
+    return storageTiers
+        .getFile(ingestRequest.getJsonPath() + ID_EXTENSION, 0);
+  }
+
+  /**
+   * Allocate the XML ATR file before its download, within the first storage
+   * tier accepting this size within its quota and free space, reserving this
+   * size until {@link #releaseXmlAtrFile(IngestRequest)}
+   *
+   * @param ingestRequest
+   * @param expectedSize the expected size of the ATR, or
+   *     {@link StorageTiers#UNKNOWN_SIZE}
+   *
+   * @return the File pointer to the XML ATR file
+   *
+   * @throws StorageTiers.QuotaExceededException if no tier has room yet
+   */
+  File allocateXmlAtrFile(IngestRequest ingestRequest, long expectedSize)
+      throws StorageTiers.QuotaExceededException {
+    return storageTiers
+        .allocate(ingestRequest.getJsonPath() + RESULT_EXTENSION,
+                  expectedSize);
+  }
+
+  /**
+   * Release the space reserved by
+   * {@link #allocateXmlAtrFile(IngestRequest, long)}
+   *
+   * @param ingestRequest
+   */
+  void releaseXmlAtrFile(IngestRequest ingestRequest) {
+    storageTiers.release(ingestRequest.getJsonPath() + RESULT_EXTENSION);
   }
 
   /**
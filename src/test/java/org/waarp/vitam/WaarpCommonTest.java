@@ -24,10 +24,15 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 import org.junit.Test;
+import org.waarp.vitam.common.PollingPolicy;
+import org.waarp.vitam.common.VitamClientPool;
 import org.waarp.vitam.common.WaarpCommon.MonitorOption;
 import org.waarp.vitam.common.WaarpCommon.TaskOption;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static junit.framework.TestCase.*;
 
 public class WaarpCommonTest {
@@ -75,7 +80,121 @@ public class WaarpCommonTest {
     assertEquals(1, monitorOption.getElapseInSecond());
     assertEquals("/tmp/test", monitorOption.getWaarpConfiguration());
     assertEquals("/tmp/test2", monitorOption.getStopFilePath());
+    assertNull(monitorOption.getPollingPolicy());
+  }
+
+  /**
+   * Method: gestMonitorOption(CommandLine cmd, String[] args) with polling
+   */
+  @Test
+  public void testGestMonitorOptionPollingPolicy() throws Exception {
+    Options options = new Options();
+    MonitorOption.setStandardMonitorOptions(options);
+    MonitorOption.addRetryMonitorOptions(options);
+    CommandLineParser parser = new DefaultParser();
+    String[] args = new String[] {
+        "-s", "/tmp/test2", "-w", "/tmp/test", "-r", "4", "-d", "60", "-b",
+        "2", "-x", "200", "-l", "1000"
+    };
+    CommandLine cmd = parser.parse(options, args);
+    MonitorOption monitorOption = MonitorOption.gestMonitorOption(cmd, args);
+    PollingPolicy policy = monitorOption.getPollingPolicy();
+    assertNotNull(policy);
+    assertEquals(4, policy.getRetry());
+    assertEquals(60, policy.getDelay(1));
+    assertEquals(120, policy.getDelay(2));
+    assertEquals(200, policy.getDelay(3));
+    assertEquals(1000, policy.getDeadline());
+    assertSame(policy, PollingPolicy.resolve(policy, 99));
+    PollingPolicy tenantPolicy = PollingPolicy.parse("1,50");
+    PollingPolicy.setTenantPolicy(99, tenantPolicy);
+    try {
+      assertSame(tenantPolicy, PollingPolicy.resolve(policy, 99));
+    } finally {
+      PollingPolicy.setTenantPolicy(99, null);
+    }
   }
 
+  /**
+   * Method: gestMonitorOption(CommandLine cmd, String[] args) with backoff
+   * but no maximum delay
+   */
+  @Test
+  public void testGestMonitorOptionBackoffWithoutMaxDelay() throws Exception {
+    Options options = new Options();
+    MonitorOption.setStandardMonitorOptions(options);
+    MonitorOption.addRetryMonitorOptions(options);
+    CommandLineParser parser = new DefaultParser();
+    String[] args = new String[] {
+        "-s", "/tmp/test2", "-w", "/tmp/test", "-d", "60", "-b", "2"
+    };
+    CommandLine cmd = parser.parse(options, args);
+    try {
+      MonitorOption.gestMonitorOption(cmd, args);
+      fail("Should raise a ParseException");
+    } catch (ParseException e) {
+      assertTrue(e.getMessage().contains("-x"));
+    }
+    args = new String[] {
+        "-s", "/tmp/test2", "-w", "/tmp/test", "-d", "60", "-b", "1"
+    };
+    cmd = parser.parse(options, args);
+    PollingPolicy policy =
+        MonitorOption.gestMonitorOption(cmd, args).getPollingPolicy();
+    assertEquals(60, policy.getDelay(3));
+    try {
+      PollingPolicy.parse("3,60,2");
+      fail("Should raise an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+    assertEquals(240, PollingPolicy.parse("3,60,2,500").getDelay(3));
+  }
+
+  /**
+   * Method: VitamClientPool.getClient(Object, Class, Supplier)
+   */
+  @Test
+  public void testVitamClientPool() throws Exception {
+    final AtomicInteger created = new AtomicInteger();
+    final AtomicInteger closed = new AtomicInteger();
+    final Object key = new Object();
+    final VitamClientPool pool = VitamClientPool.getInstance();
+    try (FakeClient client = pool.getClient(key, FakeClient.class, () -> {
+      created.incrementAndGet();
+      return new FakeClient() {
+        @Override
+        public int call() {
+          return created.get();
+        }
+
+        @Override
+        public void close() {
+          closed.incrementAndGet();
+        }
+      };
+    })) {
+      assertEquals(1, client.call());
+    }
+    try (FakeClient client = pool.getClient(key, FakeClient.class, () -> {
+      throw new IllegalStateException("Client should be reused");
+    })) {
+      assertEquals(1, client.call());
+    }
+    assertEquals(1, created.get());
+    assertEquals(0, closed.get());
+    pool.closeAll();
+    assertEquals(1, closed.get());
+  }
+
+  /**
+   * Client interface for VitamClientPool test
+   */
+  public interface FakeClient extends AutoCloseable {
+    int call();
+
+    @Override
+    void close();
+  }
 
-} 
+}
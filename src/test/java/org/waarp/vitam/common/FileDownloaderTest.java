@@ -0,0 +1,257 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.common.digest.FilesystemBasedDigest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.*;
+import static org.junit.Assert.*;
+
+/**
+ * Check the FileDownloader against Files.copy (see FileDownloaderBench in
+ * src/bench for MB/s and CPU/GB)
+ */
+public class FileDownloaderTest {
+  private static final long SIZE = 4L * 1024 * 1024 + 17;
+  private File source;
+  private File target;
+
+  @Before
+  public void setUp() throws IOException {
+    source = File.createTempFile("downloader", ".ref");
+    target = File.createTempFile("downloader", ".zip");
+  }
+
+  @After
+  public void tearDown() {
+    source.delete();
+    target.delete();
+  }
+
+  @Test
+  public void testDownloadSameAsFilesCopy() throws IOException {
+    final long filesCopy = Files
+        .copy(new GeneratedInputStream(SIZE), source.toPath(),
+              REPLACE_EXISTING);
+    final FileDownloader direct =
+        new FileDownloader(FileDownloader.DEFAULT_BUFFER, true, true, false);
+    final long downloaded =
+        direct.download(new GeneratedInputStream(SIZE), target, SIZE);
+    assertEquals(SIZE, filesCopy);
+    assertEquals(SIZE, downloaded);
+    assertEquals(SIZE, target.length());
+    assertEquals(crc(source), crc(target));
+  }
+
+  @Test
+  public void testDownloadWrongExpectedLength() throws IOException {
+    final FileDownloader heap = new FileDownloader(10000, false, true, true);
+    assertEquals(100000, heap.download(new GeneratedInputStream(100000), target,
+                                       SIZE));
+    assertEquals(100000, target.length());
+    assertEquals(5, heap.download(new GeneratedInputStream(5), target, -1));
+    assertEquals(5, target.length());
+  }
+
+  @Test
+  public void testDownloadWithDigest() throws Exception {
+    final FileDownloader downloader = FileDownloader.getInstance();
+    final MessageDigest digest = FileDownloader.newDigest();
+    assertNotNull(digest);
+    assertEquals(1000000, downloader
+        .download(new GeneratedInputStream(1000000), target, -1, digest));
+    final MessageDigest reference = MessageDigest.getInstance("SHA-256");
+    reference.update(Files.readAllBytes(target.toPath()));
+    assertEquals("SHA-256:" + FilesystemBasedDigest.getHex(reference.digest()),
+                 FileDownloader.getDigestInfo(digest));
+    assertNull(FileDownloader.getDigestInfo(null));
+  }
+
+  @Test
+  public void testSinkSameAsDownload() throws Exception {
+    final FileDownloader downloader =
+        new FileDownloader(10000, true, true, false);
+    final MessageDigest reference = FileDownloader.newDigest();
+    assertEquals(SIZE, downloader
+        .download(new GeneratedInputStream(SIZE), source, SIZE, reference));
+    final MessageDigest digest = FileDownloader.newDigest();
+    final GeneratedInputStream inputStream = new GeneratedInputStream(SIZE);
+    // Pushed by single bytes and irregular arrays, more than expected
+    try (final OutputStream outputStream = downloader
+        .newSink(target, SIZE - 1000, digest)) {
+      outputStream.write(inputStream.read());
+      final byte[] buffer = new byte[30000];
+      int read;
+      while ((read = inputStream.read(buffer, 1, buffer.length - 1)) > 0) {
+        outputStream.write(buffer, 1, read);
+      }
+    }
+    assertEquals(SIZE, target.length());
+    assertEquals(crc(source), crc(target));
+    assertEquals(FileDownloader.getDigestInfo(reference),
+                 FileDownloader.getDigestInfo(digest));
+    // Preallocated length larger than the content is removed
+    try (final OutputStream outputStream = downloader
+        .newSink(target, SIZE, null)) {
+      outputStream.write(new byte[10]);
+    }
+    assertEquals(10, target.length());
+  }
+
+  @Test
+  public void testDownloadResumeAfterConnectionLost() throws Exception {
+    final long size = 5L * 1024 * 1024 + 3;
+    final long cut = 3L * 1024 * 1024 + 5;
+    final FileDownloader downloader =
+        new FileDownloader(65536, true, true, false, 100000);
+    final AtomicLong offset = new AtomicLong();
+    MessageDigest digest = FileDownloader.newDigest();
+    try {
+      downloader.download(new CutInputStream(size, cut), target, size, digest,
+                          0, offset::set);
+      fail("Should raise a SourceException");
+    } catch (FileDownloader.SourceException e) {
+      // Ignore
+    }
+    assertTrue(offset.get() > 0);
+    assertTrue(offset.get() <= cut);
+    assertTrue(target.length() >= offset.get());
+    // Resume with a new digest since the previous one is incomplete
+    digest = FileDownloader.newDigest();
+    assertEquals(size, downloader
+        .download(new GeneratedInputStream(size), target, size, digest,
+                  offset.get(), offset::set));
+    assertEquals(size, target.length());
+    final MessageDigest reference = MessageDigest.getInstance("SHA-256");
+    assertEquals(size, downloader
+        .download(new GeneratedInputStream(size), source, size, reference));
+    assertEquals(crc(source), crc(target));
+    assertEquals(FileDownloader.getDigestInfo(reference),
+                 FileDownloader.getDigestInfo(digest));
+  }
+
+  @Test
+  public void testDownloadResumeShorterContent() throws IOException {
+    final FileDownloader downloader = FileDownloader.getInstance();
+    assertEquals(1000, downloader
+        .download(new GeneratedInputStream(1000), target, -1));
+    try {
+      downloader
+          .download(new GeneratedInputStream(500), target, -1, null, 1000,
+                    null);
+      fail("Should raise an IOException");
+    } catch (FileDownloader.SourceException e) {
+      fail("Should not be a SourceException");
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+
+  private static long crc(File file) throws IOException {
+    final CRC32 crc32 = new CRC32();
+    final byte[] buffer = new byte[65536];
+    try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+      int read;
+      while ((read = inputStream.read(buffer)) > 0) {
+        crc32.update(buffer, 0, read);
+      }
+    }
+    return crc32.getValue();
+  }
+
+  /**
+   * InputStream of pseudo random content, returned by small and irregular
+   * reads as a network stream would do
+   */
+  static class GeneratedInputStream extends InputStream {
+    private final long size;
+    private long position;
+
+    GeneratedInputStream(long size) {
+      this.size = size;
+    }
+
+    @Override
+    public int read() {
+      if (position >= size) {
+        return -1;
+      }
+      return (int) (position++ * 31 % 251);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (position >= size) {
+        return -1;
+      }
+      final int max = (int) Math.min(Math.min(len, 16384 + position % 7),
+                                     size - position);
+      for (int i = 0; i < max; i++) {
+        b[off + i] = (byte) (position++ * 31 % 251);
+      }
+      return max;
+    }
+  }
+
+  /**
+   * InputStream whose connection is lost once cut bytes are read
+   */
+  private static class CutInputStream extends InputStream {
+    private final GeneratedInputStream inputStream;
+    private final long cut;
+    private long position;
+
+    private CutInputStream(long size, long cut) {
+      inputStream = new GeneratedInputStream(size);
+      this.cut = cut;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+      return read(b, 0, 1) < 0? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= cut) {
+        throw new SocketException("Connection reset");
+      }
+      final int read =
+          inputStream.read(b, off, (int) Math.min(len, cut - position));
+      position += Math.max(0, read);
+      return read;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.waarp.vitam.common;
+
+import org.junit.Test;
+import org.waarp.vitam.dip.DipRequest;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class OperationDurationStatisticsTest {
+  private static final String KEY = "DIP.t0";
+
+  @Test
+  public void testPercentiles() {
+    final OperationDurationStatistics statistics =
+        new OperationDurationStatistics(5);
+    assertEquals(-1, statistics.getPercentile(KEY, 50));
+    for (int i = 1; i <= 10; i++) {
+      statistics.record(KEY, i * 1000L);
+    }
+    assertEquals(1000, statistics.getPercentile(KEY, 10));
+    assertEquals(5000, statistics.getPercentile(KEY, 50));
+    assertEquals(9000, statistics.getPercentile(KEY, 90));
+    assertEquals(10000, statistics.getPercentile(KEY, 100));
+    assertEquals(-1, statistics.getPercentile("other", 50));
+  }
+
+  @Test
+  public void testBoundedSamples() {
+    final OperationDurationStatistics statistics =
+        new OperationDurationStatistics(1);
+    for (int i = 0; i < OperationDurationStatistics.CAPACITY; i++) {
+      statistics.record(KEY, 1000000);
+    }
+    // Oldest samples replaced by the newest ones
+    for (int i = 0; i < OperationDurationStatistics.CAPACITY; i++) {
+      statistics.record(KEY, 10);
+    }
+    assertEquals(10, statistics.getPercentile(KEY, 100));
+  }
+
+  @Test
+  public void testNextCheckDelay() {
+    final OperationDurationStatistics statistics =
+        new OperationDurationStatistics(5);
+    for (int i = 1; i <= 4; i++) {
+      statistics.record(KEY, i * 1000L);
+    }
+    // Not enough samples, so check at each cycle
+    assertEquals(0, statistics.getNextCheckDelay(KEY, 0));
+    for (int i = 5; i <= 10; i++) {
+      statistics.record(KEY, i * 1000L);
+    }
+    assertEquals(0, statistics.getNextCheckDelay("other", 0));
+    // Before 10th percentile: wait until it
+    assertEquals(800, statistics.getNextCheckDelay(KEY, 200));
+    // Between 10th and 90th percentile: spread in 8 steps
+    assertEquals(1000, statistics.getNextCheckDelay(KEY, 2000));
+    assertEquals(500, statistics.getNextCheckDelay(KEY, 8500));
+    // After 90th percentile: check at each cycle
+    assertEquals(0, statistics.getNextCheckDelay(KEY, 9500));
+  }
+
+  @Test
+  public void testChecks() {
+    final OperationDurationStatistics statistics =
+        new OperationDurationStatistics(1);
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    final long wasted = metrics.get(OperationDurationStatistics.WASTED_CHECKS);
+    final long deferred =
+        metrics.get(OperationDurationStatistics.DEFERRED_CHECKS);
+    final long wastedKey =
+        metrics.get(OperationDurationStatistics.WASTED_CHECKS + '.' + KEY);
+    final DipRequest dipRequest = new DipRequest();
+    dipRequest.setTenantId(0);
+    assertEquals(KEY, dipRequest.getOperationKey());
+    final long now = System.currentTimeMillis();
+    dipRequest.setOperationStartTime(now - 60000);
+    assertTrue(statistics.isCheckDue(dipRequest));
+
+    // Recorded once done
+    statistics.onCheckDone(dipRequest);
+    assertEquals(0, dipRequest.getOperationStartTime());
+    assertEquals(0, dipRequest.getNextCheckTime());
+    final long recorded = statistics.getPercentile(KEY, 50);
+    assertTrue(recorded >= 60000 && recorded < 70000);
+    // Not recorded twice
+    statistics.onCheckDone(dipRequest);
+    assertEquals(recorded, statistics.getPercentile(KEY, 100));
+    assertEquals(recorded, statistics.getPercentile(KEY, 0));
+
+    // Next check delayed until the usual duration
+    dipRequest.setOperationStartTime(System.currentTimeMillis());
+    statistics.onCheckNotDone(dipRequest);
+    assertEquals(wasted + 1,
+                 metrics.get(OperationDurationStatistics.WASTED_CHECKS));
+    assertEquals(wastedKey + 1, metrics.get(
+        OperationDurationStatistics.WASTED_CHECKS + '.' + KEY));
+    assertTrue(dipRequest.getNextCheckTime() >= now + recorded - 1000);
+    assertFalse(statistics.isCheckDue(dipRequest));
+    assertEquals(deferred + 1,
+                 metrics.get(OperationDurationStatistics.DEFERRED_CHECKS));
+  }
+
+  @Test
+  public void testFirstCheckAfterSubmission() {
+    final OperationDurationStatistics statistics =
+        new OperationDurationStatistics(5);
+    final DipRequest dipRequest = new DipRequest();
+    dipRequest.setTenantId(0);
+    // No statistics yet, so checked at next cycle
+    final long before = System.currentTimeMillis();
+    statistics.onSubmitted(dipRequest);
+    assertTrue(dipRequest.getOperationStartTime() >= before);
+    assertEquals(0, dipRequest.getNextCheckTime());
+    assertTrue(statistics.isCheckDue(dipRequest));
+
+    for (int i = 1; i <= 10; i++) {
+      statistics.record(KEY, i * 60000L);
+    }
+    // First check not before the 10th percentile
+    statistics.onSubmitted(dipRequest);
+    final long start = dipRequest.getOperationStartTime();
+    assertEquals(start + 60000, dipRequest.getNextCheckTime());
+    assertFalse(statistics.isCheckDue(dipRequest));
+  }
+
+  @Test
+  public void testSavedAndLoaded() throws IOException {
+    final File file = File.createTempFile("durations", ".json");
+    assertTrue(file.delete());
+    try {
+      final OperationDurationStatistics statistics =
+          new OperationDurationStatistics(1);
+      statistics.setFile(file);
+      for (int i = 0; i < OperationDurationStatistics.CAPACITY + 10; i++) {
+        statistics.record(KEY, i);
+      }
+      statistics.record("other", 1000);
+      assertTrue(file.isFile());
+
+      // As restarted
+      final OperationDurationStatistics loaded =
+          new OperationDurationStatistics(1);
+      loaded.setFile(file);
+      assertEquals(10, loaded.getPercentile(KEY, 0));
+      assertEquals(OperationDurationStatistics.CAPACITY + 9,
+                   loaded.getPercentile(KEY, 100));
+      assertEquals(statistics.getPercentile(KEY, 50),
+                   loaded.getPercentile(KEY, 50));
+      assertEquals(1000, loaded.getPercentile("other", 50));
+      // Only the newest ones kept once more are recorded
+      loaded.record(KEY, OperationDurationStatistics.CAPACITY + 10);
+      assertEquals(11, loaded.getPercentile(KEY, 0));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testBoundedMetricKeys() {
+    final OperationDurationStatistics statistics =
+        new OperationDurationStatistics(1);
+    for (int i = 0; i < OperationDurationStatistics.MAX_METRIC_KEYS; i++) {
+      assertEquals(KEY + i, statistics.getMetricKey(KEY + i));
+    }
+    // Others counted together
+    assertEquals(OperationDurationStatistics.OTHER_KEY,
+                 statistics.getMetricKey(KEY + "new"));
+    assertEquals(KEY + 0, statistics.getMetricKey(KEY + 0));
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.waarp.vitam.common;
+
+import fr.gouv.vitam.common.model.ItemStatus;
+import fr.gouv.vitam.common.model.ProcessState;
+import fr.gouv.vitam.common.model.StatusCode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class OperationStatusCacheTest {
+  private static final String REQUEST_ID = "aeeaaaaaacaltpovaewckal62ukh4ml5a";
+  private static final int TENANT = 0;
+  private File cacheDir;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheDir = Files.createTempDirectory("operationCache").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    final File[] files = cacheDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    cacheDir.delete();
+  }
+
+  private static ItemStatus running() {
+    return new ItemStatus().setGlobalState(ProcessState.RUNNING)
+                           .increment(StatusCode.STARTED);
+  }
+
+  private static ItemStatus completed() {
+    return new ItemStatus().setGlobalState(ProcessState.COMPLETED)
+                           .increment(StatusCode.OK);
+  }
+
+  @Test
+  public void testPutGet() {
+    final OperationStatusCache cache = new OperationStatusCache(10000, 10, 0);
+    assertNull(cache.get(TENANT, REQUEST_ID));
+    final ItemStatus itemStatus = completed();
+    cache.put(TENANT, REQUEST_ID, itemStatus);
+    assertSame(itemStatus, cache.get(TENANT, REQUEST_ID));
+    // Tenant is part of the key
+    assertNull(cache.get(TENANT + 1, REQUEST_ID));
+    assertTrue(OperationStatusCache.isTerminal(itemStatus));
+    assertTrue(OperationStatusCache.isAvailable(itemStatus));
+    assertFalse(OperationStatusCache.isTerminal(running()));
+    assertFalse(OperationStatusCache.isAvailable(running()));
+  }
+
+  @Test
+  public void testExpiry() throws InterruptedException {
+    final OperationStatusCache cache = new OperationStatusCache(50, 10, 0);
+    cache.put(TENANT, REQUEST_ID, running());
+    cache.put(TENANT, "terminal", completed());
+    assertNotNull(cache.get(TENANT, REQUEST_ID));
+    Thread.sleep(100);
+    // Running operations expire, terminal ones are kept
+    assertNull(cache.get(TENANT, REQUEST_ID));
+    assertNotNull(cache.get(TENANT, "terminal"));
+    // No TTL, so running operations are not cached at all
+    cache.setTtl(0);
+    cache.put(TENANT, REQUEST_ID, running());
+    assertNull(cache.get(TENANT, REQUEST_ID));
+  }
+
+  @Test
+  public void testReloadFromDisk() {
+    final OperationStatusCache writer = new OperationStatusCache(10000, 10, 0);
+    writer.setCacheDir(cacheDir);
+    writer.put(TENANT, REQUEST_ID, completed());
+    // Another process sharing the same directory
+    final OperationStatusCache reader = new OperationStatusCache(10000, 10, 0);
+    reader.setCacheDir(cacheDir);
+    final ItemStatus itemStatus = reader.get(TENANT, REQUEST_ID);
+    assertNotNull(itemStatus);
+    assertEquals(ProcessState.COMPLETED, itemStatus.getGlobalState());
+    assertEquals(StatusCode.OK, itemStatus.getGlobalStatus());
+    // Only in memory
+    final OperationStatusCache memory = new OperationStatusCache(10000, 10, 0);
+    assertNull(memory.get(TENANT, REQUEST_ID));
+  }
+
+  @Test
+  public void testPurge() throws InterruptedException {
+    final OperationStatusCache cache = new OperationStatusCache(50, 3, 0);
+    cache.put(TENANT, "r1", running());
+    cache.put(TENANT, "r2", completed());
+    Thread.sleep(100);
+    cache.purge();
+    // Only expired ones removed
+    assertEquals(1, cache.size());
+    cache.put(TENANT, "r3", completed());
+    cache.put(TENANT, "r4", completed());
+    assertEquals(3, cache.size());
+    // Full, so cleared before adding
+    cache.put(TENANT, "r5", completed());
+    assertEquals(1, cache.size());
+    assertNotNull(cache.get(TENANT, "r5"));
+  }
+
+  @Test
+  public void testPurgeDirectory() {
+    final OperationStatusCache cache =
+        new OperationStatusCache(10000, 10, 60000);
+    cache.setCacheDir(cacheDir);
+    cache.put(TENANT, "old", completed());
+    cache.put(TENANT, REQUEST_ID, completed());
+    final File old = new File(cacheDir, TENANT + "_old.json");
+    assertTrue(old.exists());
+    assertTrue(old.setLastModified(System.currentTimeMillis() - 120000));
+    cache.purgeDirectory();
+    assertFalse(old.exists());
+    assertTrue(new File(cacheDir, TENANT + "_" + REQUEST_ID + ".json")
+                   .exists());
+    // Never if no maximum age
+    final OperationStatusCache keep = new OperationStatusCache(10000, 10, 0);
+    keep.setCacheDir(cacheDir);
+    keep.put(TENANT, "old", completed());
+    assertTrue(old.setLastModified(System.currentTimeMillis() - 120000));
+    keep.purgeDirectory();
+    assertTrue(old.exists());
+  }
+
+  @Test
+  public void testRemove() {
+    final OperationStatusCache cache = new OperationStatusCache(10000, 10, 0);
+    cache.setCacheDir(cacheDir);
+    cache.put(TENANT, REQUEST_ID, completed());
+    final File file = new File(cacheDir, TENANT + "_" + REQUEST_ID + ".json");
+    assertTrue(file.exists());
+    cache.remove(TENANT, REQUEST_ID);
+    assertFalse(file.exists());
+    assertNull(cache.get(TENANT, REQUEST_ID));
+    // Ignored
+    cache.remove(TENANT, null);
+  }
+}
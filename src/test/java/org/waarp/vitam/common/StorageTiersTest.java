@@ -0,0 +1,136 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.vitam.common.StorageTiers.QuotaExceededException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class StorageTiersTest {
+  private File small;
+  private File large;
+
+  @Before
+  public void setUp() throws IOException {
+    small = Files.createTempDirectory("tierSmall").toFile();
+    large = Files.createTempDirectory("tierLarge").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    for (File dir : new File[] { small, large }) {
+      final File[] files = dir.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          file.delete();
+        }
+      }
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void testDefaultSingleTier() throws IOException {
+    final StorageTiers tiers = StorageTiers.parse(null, small, 0);
+    assertEquals(new File(small, "a.xml"), tiers.getFile("a.xml", 0));
+    assertEquals(new File(small, "b.zip"),
+                 tiers.allocate("b.zip", StorageTiers.UNKNOWN_SIZE));
+  }
+
+  @Test
+  public void testPlacementAndQuota() throws IOException {
+    final StorageTiers tiers = StorageTiers
+        .parse(small.getAbsolutePath() + ",100,150;" +
+               large.getAbsolutePath() + ",0,1000", null, 0);
+    // Small or unknown sizes
+    assertEquals(new File(small, "a.xml"), tiers.getFile("a.xml", 0));
+    assertEquals(new File(large, "b.zip"),
+                 tiers.getFile("b.zip", StorageTiers.UNKNOWN_SIZE));
+    assertEquals(new File(large, "c.zip"), tiers.allocate("c.zip", 500));
+    // Quota of small tier exceeded, so go to the next tier
+    final File first = tiers.allocate("d.xml", 100);
+    assertEquals(new File(small, "d.xml"), first);
+    Files.write(first.toPath(), new byte[100]);
+    assertEquals(new File(large, "e.xml"), tiers.allocate("e.xml", 100));
+    // Downloads done
+    tiers.release("c.zip");
+    tiers.release("e.xml");
+    // Existing file is kept where it is
+    assertEquals(first, tiers.allocate("d.xml", 100));
+    assertEquals(first, tiers.getFile("d.xml", StorageTiers.UNKNOWN_SIZE));
+    // No room at all
+    Files.write(new File(large, "f.zip").toPath(), new byte[900]);
+    try {
+      tiers.allocate("g.zip", 200);
+      fail("Should raise QuotaExceededException");
+    } catch (QuotaExceededException e) {
+      // Ok
+    }
+  }
+
+  @Test
+  public void testReservations() throws IOException {
+    final StorageTiers tiers =
+        StorageTiers.parse(large.getAbsolutePath() + ",0,1000", null, 0);
+    final File first = tiers.allocate("a.zip", 600);
+    try {
+      tiers.allocate("b.zip", 600);
+      fail("Should raise QuotaExceededException");
+    } catch (QuotaExceededException e) {
+      // Ok
+    }
+    // Preallocated: still fully reserved, and not counted twice
+    Files.write(first.toPath(), new byte[600]);
+    assertEquals(first, tiers.allocate("a.zip", 600));
+    try {
+      tiers.allocate("b.zip", 401);
+      fail("Should raise QuotaExceededException");
+    } catch (QuotaExceededException e) {
+      // Ok
+    }
+    assertEquals(new File(large, "b.zip"), tiers.allocate("b.zip", 400));
+    tiers.release("b.zip");
+    // Partially written then released: only the written bytes are used
+    Files.write(first.toPath(), new byte[300]);
+    tiers.release("a.zip");
+    assertEquals(new File(large, "b.zip"), tiers.allocate("b.zip", 600));
+    tiers.release("b.zip");
+    // Requests are not counted within the quota
+    Files.write(new File(large, "DipRequest.c.json").toPath(), new byte[500]);
+    assertEquals(new File(large, "b.zip"), tiers.allocate("b.zip", 700));
+    // Free space of the volume is checked
+    final StorageTiers full = StorageTiers
+        .parse(small.getAbsolutePath(), null, small.getUsableSpace());
+    try {
+      full.allocate("c.zip", 1);
+      fail("Should raise QuotaExceededException");
+    } catch (QuotaExceededException e) {
+      // Ok
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common.waarp;
+
+import fr.gouv.vitam.common.exception.InvalidParseOperationException;
+import org.junit.Test;
+import org.waarp.vitam.dip.DipRequest;
+import org.waarp.vitam.ingest.IngestRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class ForwardLimiterTest {
+  private static final Class<?> TYPE = DipRequest.class;
+
+  @Test
+  public void testLimits() throws InvalidParseOperationException {
+    final ForwardLimiter forwardLimiter = new ForwardLimiter(true, 3, 2);
+    final List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+    final List<Boolean> done = new ArrayList<>();
+    final ForwardLimiter.AsyncForward sender = () -> {
+      final CompletableFuture<Boolean> future = new CompletableFuture<>();
+      futures.add(future);
+      return future;
+    };
+    assertTrue(forwardLimiter.forward(TYPE, "r1", "p1", sender, done::add));
+    // Same request already in progress
+    assertFalse(forwardLimiter.forward(TYPE, "r1", "p1", sender, done::add));
+    assertTrue(forwardLimiter.forward(TYPE, "r2", "p1", sender, done::add));
+    // Limit per partner
+    assertFalse(forwardLimiter.forward(TYPE, "r3", "p1", sender, done::add));
+    assertTrue(forwardLimiter.forward(TYPE, "r4", "p2", sender, done::add));
+    // Total limit
+    assertFalse(forwardLimiter.forward(TYPE, "r5", "p3", sender, done::add));
+    assertEquals(3, forwardLimiter.getInFlight());
+    assertEquals(3, futures.size());
+    assertTrue(done.isEmpty());
+
+    futures.get(0).complete(true);
+    futures.get(2).complete(false);
+    // Next steps only run by the Manager, still in progress until then
+    assertTrue(done.isEmpty());
+    assertEquals(3, forwardLimiter.getInFlight());
+    assertFalse(forwardLimiter.forward(TYPE, "r1", "p1", sender, done::add));
+    assertEquals(0, forwardLimiter.runCompleted(IngestRequest.class));
+    assertTrue(done.isEmpty());
+    assertEquals(2, forwardLimiter.runCompleted(TYPE));
+    assertEquals(2, done.size());
+    assertTrue(done.get(0));
+    assertFalse(done.get(1));
+    assertEquals(1, forwardLimiter.getInFlight());
+    assertTrue(forwardLimiter.forward(TYPE, "r1", "p1", sender, done::add));
+    assertTrue(forwardLimiter.forward(TYPE, "r5", "p3", sender, done::add));
+
+    // Exceptional completion is a forward not done
+    futures.get(1).completeExceptionally(new IllegalStateException("Test"));
+    assertEquals(3, forwardLimiter.getInFlight());
+    assertEquals(1, forwardLimiter.runCompleted(TYPE));
+    assertFalse(done.get(2));
+    assertEquals(2, forwardLimiter.getInFlight());
+  }
+
+  @Test
+  public void testSenderInError() {
+    final ForwardLimiter forwardLimiter = new ForwardLimiter(true, 1, 1);
+    try {
+      forwardLimiter.forward(TYPE, "r1", "p1", () -> {
+        throw new InvalidParseOperationException("Test");
+      }, sent -> fail("Not started"));
+      fail("Should raise an exception");
+    } catch (InvalidParseOperationException e) {
+      // Ignore
+    }
+    assertEquals(0, forwardLimiter.getInFlight());
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.waarp.vitam.common.waarp;
+
+import org.junit.Test;
+import org.waarp.vitam.common.waarp.ManagerToWaarpFactory.WaarpModel;
+
+import static org.junit.Assert.*;
+
+public class ManagerToWaarpFactoryTest {
+
+  @Test
+  public void testModels() {
+    ManagerToWaarp managerToWaarp =
+        ManagerToWaarpFactory.getManagerToWaarp(null);
+    assertEquals(ManagerToWaarpR66.class, managerToWaarp.getClass());
+    managerToWaarp =
+        ManagerToWaarpFactory.getManagerToWaarp(WaarpModel.R66.name());
+    assertEquals(ManagerToWaarpR66.class, managerToWaarp.getClass());
+    managerToWaarp =
+        ManagerToWaarpFactory.getManagerToWaarp(WaarpModel.R66_DIRECT.name());
+    assertEquals(ManagerToWaarpR66Direct.class, managerToWaarp.getClass());
+    managerToWaarp =
+        ManagerToWaarpFactory.getManagerToWaarp(WaarpModel.OUTBOX.name());
+    assertEquals(ManagerToWaarpOutbox.class, managerToWaarp.getClass());
+    managerToWaarp =
+        ManagerToWaarpFactory.getManagerToWaarp("/waarp/bin/send.sh");
+    assertEquals(ManagerToWaarpScript.class, managerToWaarp.getClass());
+  }
+}
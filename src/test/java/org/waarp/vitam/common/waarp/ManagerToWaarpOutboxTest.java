@@ -0,0 +1,158 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.waarp.vitam.common.waarp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import fr.gouv.vitam.common.exception.InvalidParseOperationException;
+import fr.gouv.vitam.common.json.JsonHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+import org.waarp.vitam.dip.DipRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ManagerToWaarpOutboxTest {
+  private static final String PARTNER = "partner";
+  private File baseDir;
+  private File outbox;
+
+  @Before
+  public void setUp() throws IOException {
+    baseDir = Files.createTempDirectory("outbox").toFile();
+    outbox = new File(baseDir, "outbox");
+  }
+
+  @After
+  public void tearDown() {
+    delete(baseDir);
+  }
+
+  private static void delete(final File dir) {
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        delete(file);
+      }
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void testPublish()
+      throws IOException, InvalidParseOperationException {
+    final File source = new File(baseDir, "request.zip");
+    Files.write(source.toPath(),
+                "DIP content".getBytes(StandardCharsets.UTF_8));
+    final DipRequest dipRequest = new DipRequest();
+    dipRequest.setWaarpPartner(PARTNER);
+    dipRequest.setDigest("SHA-256:0123");
+    final ManagerToWaarpOutbox managerToWaarpOutbox =
+        new ManagerToWaarpOutbox(outbox);
+    final long waarpId = managerToWaarpOutbox
+        .publish(dipRequest, source.getAbsolutePath(),
+                 dipRequest.getFileInfo("DIP"));
+    assertTrue(waarpId != 0);
+    final File target = new File(new File(outbox, PARTNER), source.getName());
+    // Hard linked, so the same file
+    assertTrue(Files.isSameFile(source.toPath(), target.toPath()));
+    final File manifest = new File(target.getParentFile(), source.getName() +
+        ManagerToWaarpOutbox.MANIFEST_EXTENSION);
+    JsonNode node = JsonHandler.getFromFile(manifest);
+    assertEquals(waarpId, node.get("waarpId").asLong());
+    assertEquals(source.getName(), node.get("file").asText());
+    assertEquals(source.length(), node.get("size").asLong());
+    // Digest known from the download
+    assertEquals("SHA-256:0123", node.get("digest").asText());
+
+    // Published again (retry) with the digest of the file
+    final long other = managerToWaarpOutbox
+        .publish(dipRequest, source.getAbsolutePath(), "DIP");
+    assertNotEquals(waarpId, other);
+    node = JsonHandler.getFromFile(manifest);
+    assertEquals(other, node.get("waarpId").asLong());
+    assertNotEquals("SHA-256:0123", node.get("digest").asText());
+    final String[] names = target.getParentFile().list();
+    assertNotNull(names);
+    assertEquals(2, names.length);
+  }
+
+  @Test
+  public void testCacheEntryCopied() throws IOException {
+    final File source = new File(baseDir, "request.zip");
+    final byte[] content = "DIP content".getBytes(StandardCharsets.UTF_8);
+    Files.write(source.toPath(), content);
+    // As the DIP cache does
+    final File cached = new File(baseDir, "hash.zip");
+    Files.createLink(cached.toPath(), source.toPath());
+    final DipRequest dipRequest = new DipRequest();
+    dipRequest.setWaarpPartner(PARTNER);
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    final long copied = metrics.get(ManagerToWaarpOutbox.OUTBOX_COPIED);
+    assertTrue(new ManagerToWaarpOutbox(outbox)
+                   .publish(dipRequest, source.getAbsolutePath(), "DIP") != 0);
+    final File target = new File(new File(outbox, PARTNER), source.getName());
+    // Copied, so the cache entry is not shared with the partner
+    assertFalse(Files.isSameFile(cached.toPath(), target.toPath()));
+    assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    assertTrue(Files.isSameFile(cached.toPath(), source.toPath()));
+    assertEquals(copied + 1, metrics.get(ManagerToWaarpOutbox.OUTBOX_COPIED));
+  }
+
+  @Test
+  public void testWaarpIdsUnique() throws IOException {
+    final int count = ManagerToWaarpOutbox.WAARP_ID_BLOCK * 3 + 1;
+    final Set<Long> waarpIds = new HashSet<>();
+    // As an Ingest and a DIP Monitor sharing the same outbox
+    final ManagerToWaarpOutbox ingest = new ManagerToWaarpOutbox(outbox);
+    final ManagerToWaarpOutbox dip = new ManagerToWaarpOutbox(outbox);
+    long max = 0;
+    for (int i = 0; i < count; i++) {
+      final long first = ingest.nextWaarpId();
+      final long second = dip.nextWaarpId();
+      assertTrue(waarpIds.add(first));
+      assertTrue(waarpIds.add(second));
+      max = Math.max(max, Math.max(first, second));
+    }
+    assertTrue(new File(outbox, ManagerToWaarpOutbox.WAARP_ID_FILE).isFile());
+    // As restarted
+    final long restarted = new ManagerToWaarpOutbox(outbox).nextWaarpId();
+    assertTrue(restarted > max);
+  }
+
+  @Test
+  public void testMissingFile() {
+    final DipRequest dipRequest = new DipRequest();
+    dipRequest.setWaarpPartner(PARTNER);
+    assertEquals(0, new ManagerToWaarpOutbox(outbox)
+        .publish(dipRequest, new File(baseDir, "none").getAbsolutePath(),
+                 "DIP"));
+  }
+}
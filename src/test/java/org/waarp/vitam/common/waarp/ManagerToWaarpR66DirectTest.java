@@ -0,0 +1,121 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.waarp.vitam.common.waarp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.openr66.database.data.DbTaskRunner;
+import org.waarp.vitam.common.AbstractVitamRequest;
+import org.waarp.vitam.dip.DipRequest;
+import org.waarp.vitam.dip.DipRequestFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ManagerToWaarpR66DirectTest {
+  private static final String PARTNER = "hosta";
+  private static final String FILENAME = "/tmp/dip.zip";
+  private static final String FILEINFO = "DIP";
+  private static final long WAARP_ID = 123456L;
+  private final AtomicReference<Thread> transferThread =
+      new AtomicReference<>();
+  private final AtomicInteger transfers = new AtomicInteger();
+  private DbTaskRunner runner;
+  private boolean transferDone;
+  private ManagerToWaarpR66Direct managerToWaarp;
+  private DipRequestFactory dipRequestFactory;
+  private DipRequest dipRequest;
+
+  @Before
+  public void setUp() {
+    transferThread.set(null);
+    transfers.set(0);
+    transferDone = true;
+    runner = mock(DbTaskRunner.class);
+    // Never polling the database within this test
+    final R66ForwardCompletion forwardCompletion =
+        new R66ForwardCompletion(3600000, 0) {
+          @Override
+          DbTaskRunner getRunner(final long waarpId, final String partner) {
+            assertEquals(WAARP_ID, waarpId);
+            return runner;
+          }
+        };
+    managerToWaarp = new ManagerToWaarpR66Direct(forwardCompletion) {
+      @Override
+      boolean transfer(final AbstractVitamRequest abstractVitamRequest,
+                       final String filename, final String fileInfo,
+                       final RequestSaver saver) {
+        transferThread.set(Thread.currentThread());
+        transfers.incrementAndGet();
+        return transferDone;
+      }
+    };
+    dipRequestFactory = mock(DipRequestFactory.class);
+    dipRequest = new DipRequest();
+    dipRequest.setWaarpPartner(PARTNER);
+  }
+
+  @Test
+  public void givenSyncForwardThenTransferInCallingThread()
+      throws Exception {
+    assertTrue(managerToWaarp
+                   .sendBackInformation(dipRequestFactory, dipRequest,
+                                        FILENAME, FILEINFO));
+    assertEquals(1, transfers.get());
+    assertSame(Thread.currentThread(), transferThread.get());
+    transferDone = false;
+    assertFalse(managerToWaarp
+                    .sendBackInformation(dipRequestFactory, dipRequest,
+                                         FILENAME, FILEINFO));
+    assertEquals(2, transfers.get());
+  }
+
+  @Test
+  public void givenAsyncForwardThenTransferInOtherThread() throws Exception {
+    final CompletableFuture<Boolean> future = managerToWaarp
+        .sendBackInformationAsync(dipRequestFactory, dipRequest, FILENAME,
+                                  FILEINFO);
+    assertTrue(future.get(10, TimeUnit.SECONDS));
+    assertEquals(1, transfers.get());
+    assertNotNull(transferThread.get());
+    assertNotSame(Thread.currentThread(), transferThread.get());
+  }
+
+  @Test
+  public void givenPreviousTransferDoneWhenRetriedThenNoTransfer()
+      throws Exception {
+    dipRequest.setWaarpId(WAARP_ID).setWaarpForward(
+        ManagerToWaarpR66.getForwardKey(FILENAME, FILEINFO));
+    when(runner.isAllDone()).thenReturn(true);
+    assertTrue(managerToWaarp
+                   .sendBackInformation(dipRequestFactory, dipRequest,
+                                        FILENAME, FILEINFO));
+    assertEquals(0, transfers.get());
+    verify(runner, never()).restart(anyBoolean());
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.waarp.vitam.common.waarp;
+
+import fr.gouv.vitam.common.exception.InvalidParseOperationException;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.openr66.database.DbConstantR66;
+import org.waarp.openr66.database.data.DbTaskRunner;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+import org.waarp.vitam.dip.DipRequest;
+import org.waarp.vitam.dip.DipRequestFactory;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ManagerToWaarpR66Test {
+  private static final String PARTNER = "hosta";
+  private static final String FILENAME = "/tmp/dip.zip";
+  private static final String FILEINFO = "DIP";
+  private static final long WAARP_ID = 123456L;
+  private DbTaskRunner runner;
+  private R66ForwardCompletion forwardCompletion;
+  private ManagerToWaarpR66 managerToWaarp;
+  private DipRequestFactory dipRequestFactory;
+  private DipRequest dipRequest;
+
+  @Before
+  public void setUp() {
+    runner = mock(DbTaskRunner.class);
+    // Never polling the database within this test
+    forwardCompletion = new R66ForwardCompletion(3600000, 0) {
+      @Override
+      DbTaskRunner getRunner(final long waarpId, final String partner) {
+        assertEquals(WAARP_ID, waarpId);
+        assertEquals(PARTNER, partner);
+        return runner;
+      }
+    };
+    managerToWaarp = new ManagerToWaarpR66(forwardCompletion);
+    dipRequestFactory = mock(DipRequestFactory.class);
+    dipRequest = new DipRequest();
+    dipRequest.setWaarpPartner(PARTNER);
+    dipRequest.setWaarpId(WAARP_ID).setWaarpForward(
+        ManagerToWaarpR66.getForwardKey(FILENAME, FILEINFO));
+  }
+
+  @Test
+  public void givenForwardInErrorWhenRetriedThenRestarted() throws Exception {
+    when(runner.isAllDone()).thenReturn(false);
+    when(runner.isInError()).thenReturn(true);
+    when(runner.restart(true)).thenReturn(true);
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    final long restarted = metrics.get(ManagerToWaarpR66.FORWARD_RESTARTED);
+    final CompletableFuture<Boolean> future = managerToWaarp
+        .sendBackInformationAsync(dipRequestFactory, dipRequest, FILENAME,
+                                  FILEINFO);
+    // Same transfer restarted from its last restart marker, not submitted
+    verify(runner).restart(true);
+    verify(runner).update();
+    verifyNoInteractions(dipRequestFactory);
+    assertEquals(WAARP_ID, dipRequest.getWaarpId());
+    assertEquals(restarted + 1,
+                 metrics.get(ManagerToWaarpR66.FORWARD_RESTARTED));
+    assertFalse(future.isDone());
+    assertEquals(1, forwardCompletion.getPending());
+    assertTrue(forwardCompletion.notifyCompletion(WAARP_ID, true));
+    assertTrue(future.get());
+    assertEquals(0, forwardCompletion.getPending());
+  }
+
+  @Test
+  public void givenForwardRunningWhenRetriedThenWaited() throws Exception {
+    when(runner.isAllDone()).thenReturn(false);
+    when(runner.isInError()).thenReturn(false);
+    final CompletableFuture<Boolean> future = managerToWaarp
+        .sendBackInformationAsync(dipRequestFactory, dipRequest, FILENAME,
+                                  FILEINFO);
+    verify(runner, never()).restart(anyBoolean());
+    verifyNoInteractions(dipRequestFactory);
+    assertFalse(future.isDone());
+    assertTrue(forwardCompletion.notifyCompletion(WAARP_ID, false));
+    assertFalse(future.get());
+  }
+
+  @Test
+  public void givenForwardDoneWhenRetriedThenDone()
+      throws InvalidParseOperationException {
+    when(runner.isAllDone()).thenReturn(true);
+    assertTrue(managerToWaarp
+                   .sendBackInformation(dipRequestFactory, dipRequest,
+                                        FILENAME, FILEINFO));
+    verify(runner, never()).restart(anyBoolean());
+    verifyNoInteractions(dipRequestFactory);
+    assertEquals(0, forwardCompletion.getPending());
+  }
+
+  @Test
+  public void givenOtherFileThenNotRestarted() {
+    assertNull(
+        managerToWaarp.restartForward(dipRequest, FILENAME, "DIP_PART 1"));
+    dipRequest.setWaarpId(DbConstantR66.ILLEGALVALUE);
+    assertNull(managerToWaarp.restartForward(dipRequest, FILENAME, FILEINFO));
+    verifyNoInteractions(runner);
+  }
+}
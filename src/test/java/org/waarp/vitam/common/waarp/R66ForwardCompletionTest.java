@@ -0,0 +1,276 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.waarp.vitam.common.waarp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.openr66.context.R66Session;
+import org.waarp.openr66.dao.TransferDAO;
+import org.waarp.openr66.database.data.DbTaskRunner;
+import org.waarp.openr66.pojo.Transfer;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+import org.waarp.vitam.common.waarp.R66ForwardCompletion.JavaTask;
+import org.waarp.vitam.dip.DipRequest;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class R66ForwardCompletionTest {
+  private static final String PARTNER = "hosta";
+  private static final String HOST_ID = "hostas";
+  private static final long WAARP_ID = 123456L;
+  private final AtomicInteger lookups = new AtomicInteger();
+  private final Map<Long, DbTaskRunner> runners = new HashMap<>();
+  private TransferDAO transferDAO;
+  private R66ForwardCompletion forwardCompletion;
+
+  @Before
+  public void setUp() {
+    lookups.set(0);
+    runners.clear();
+    transferDAO = mock(TransferDAO.class);
+    // Never polling the database within this test
+    forwardCompletion = newForwardCompletion(60000);
+  }
+
+  @Test
+  public void givenRegisteredWhenNotifiedThenCompleted() throws Exception {
+    final CompletableFuture<Boolean> future =
+        forwardCompletion.register(newRequest(WAARP_ID));
+    assertFalse(future.isDone());
+    assertEquals(1, forwardCompletion.getPending());
+    assertTrue(forwardCompletion.notifyCompletion(WAARP_ID, true));
+    assertTrue(future.get());
+    assertEquals(0, forwardCompletion.getPending());
+    // No more waiting
+    assertFalse(forwardCompletion.notifyCompletion(WAARP_ID, false));
+    assertTrue(future.get());
+  }
+
+  @Test
+  public void givenNotRegisteredWhenNotifiedThenIgnored() {
+    assertFalse(forwardCompletion.notifyCompletion(WAARP_ID, true));
+    assertEquals(0, forwardCompletion.getPending());
+  }
+
+  @Test
+  public void givenSeveralForwardsThenOneFuturePerWaarpId() throws Exception {
+    final CompletableFuture<Boolean> first =
+        forwardCompletion.register(newRequest(WAARP_ID));
+    final CompletableFuture<Boolean> second =
+        forwardCompletion.register(newRequest(WAARP_ID + 1));
+    // Same transfer registered again shares the same future
+    assertSame(first, forwardCompletion.register(newRequest(WAARP_ID)));
+    assertNotSame(first, second);
+    assertEquals(2, forwardCompletion.getPending());
+    assertTrue(forwardCompletion.notifyCompletion(WAARP_ID + 1, false));
+    assertFalse(second.get());
+    assertFalse(first.isDone());
+    assertEquals(1, forwardCompletion.getPending());
+    assertTrue(forwardCompletion.notifyCompletion(WAARP_ID, true));
+    assertTrue(first.get());
+    assertEquals(0, forwardCompletion.getPending());
+  }
+
+  @Test
+  public void givenHostIdCachedThenLookedUpOnce() throws Exception {
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    final long cached =
+        metrics.get(R66ForwardCompletion.FORWARD_HOSTAUTH_CACHED);
+    assertEquals(HOST_ID, forwardCompletion.getRequesterHostId(PARTNER));
+    assertEquals(HOST_ID, forwardCompletion.getRequesterHostId(PARTNER));
+    assertEquals(HOST_ID, forwardCompletion.getRequesterHostId(PARTNER));
+    assertEquals(1, lookups.get());
+    assertEquals(cached + 2,
+                 metrics.get(R66ForwardCompletion.FORWARD_HOSTAUTH_CACHED));
+    // Another partner is looked up on its own
+    assertEquals(HOST_ID, forwardCompletion.getRequesterHostId("hostb"));
+    assertEquals(2, lookups.get());
+  }
+
+  @Test
+  public void givenHostIdNotCachedThenLookedUpEachTime() throws Exception {
+    forwardCompletion = newForwardCompletion(0);
+    assertEquals(HOST_ID, forwardCompletion.getRequesterHostId(PARTNER));
+    assertEquals(HOST_ID, forwardCompletion.getRequesterHostId(PARTNER));
+    assertEquals(2, lookups.get());
+  }
+
+  @Test
+  public void givenJavaTaskDoneThenSuccess() throws Exception {
+    final CompletableFuture<Boolean> future =
+        forwardCompletion.register(newRequest(WAARP_ID));
+    final JavaTask javaTask = newJavaTask(WAARP_ID, "done");
+    javaTask.run();
+    assertEquals(0, javaTask.getFinalStatus());
+    assertTrue(future.get());
+    assertEquals(0, forwardCompletion.getPending());
+  }
+
+  @Test
+  public void givenJavaTaskErrorThenFailure() throws Exception {
+    final CompletableFuture<Boolean> future =
+        forwardCompletion.register(newRequest(WAARP_ID));
+    final JavaTask javaTask = newJavaTask(WAARP_ID, "error");
+    javaTask.run();
+    // Never changing the status of the transfer itself
+    assertEquals(0, javaTask.getFinalStatus());
+    assertFalse(future.get());
+    assertEquals(0, forwardCompletion.getPending());
+  }
+
+  @Test
+  public void givenJavaTaskForOtherTransferThenNothing() {
+    final CompletableFuture<Boolean> future =
+        forwardCompletion.register(newRequest(WAARP_ID));
+    final JavaTask javaTask = newJavaTask(WAARP_ID + 1, "done");
+    javaTask.run();
+    assertEquals(0, javaTask.getFinalStatus());
+    assertFalse(future.isDone());
+    assertEquals(1, forwardCompletion.getPending());
+  }
+
+  @Test
+  public void givenOutstandingForwardsWhenCheckedThenCompleted()
+      throws Exception {
+    final CompletableFuture<Boolean> done =
+        forwardCompletion.register(newRequest(WAARP_ID));
+    final CompletableFuture<Boolean> running =
+        forwardCompletion.register(newRequest(WAARP_ID + 1));
+    final CompletableFuture<Boolean> error =
+        forwardCompletion.register(newRequest(WAARP_ID + 2));
+    final CompletableFuture<Boolean> missing =
+        forwardCompletion.register(newRequest(WAARP_ID + 3));
+    when(transferDAO.find(anyList())).thenReturn(
+        Arrays.asList(newTransfer(WAARP_ID, true, false),
+                      newTransfer(WAARP_ID + 1, false, false),
+                      newTransfer(WAARP_ID + 2, false, true)));
+    // Not within the select so checked alone, still running
+    runners.put(WAARP_ID + 3, newRunner(false, false));
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    final long checks = metrics.get(R66ForwardCompletion.FORWARD_DB_CHECKS);
+    forwardCompletion.checkAll();
+    // One select for the outstanding forwards, one check for the missing one
+    verify(transferDAO).find(anyList());
+    assertEquals(checks + 2,
+                 metrics.get(R66ForwardCompletion.FORWARD_DB_CHECKS));
+    assertTrue(done.get());
+    assertFalse(error.get());
+    assertFalse(running.isDone());
+    assertFalse(missing.isDone());
+    assertEquals(2, forwardCompletion.getPending());
+    // Next check once the running transfer is over
+    when(transferDAO.find(anyList())).thenReturn(
+        Arrays.asList(newTransfer(WAARP_ID + 1, true, false),
+                      newTransfer(WAARP_ID + 3, false, true)));
+    forwardCompletion.checkAll();
+    assertTrue(running.get());
+    assertFalse(missing.get());
+    assertEquals(0, forwardCompletion.getPending());
+  }
+
+  @Test
+  public void givenOtherPartnerWhenCheckedThenNotCompleted()
+      throws Exception {
+    final CompletableFuture<Boolean> future =
+        forwardCompletion.register(newRequest(WAARP_ID));
+    final Transfer transfer = newTransfer(WAARP_ID, true, false);
+    when(transfer.getRequested()).thenReturn("hostb");
+    when(transferDAO.find(anyList())).thenReturn(Arrays.asList(transfer));
+    runners.put(WAARP_ID, newRunner(false, false));
+    forwardCompletion.checkAll();
+    assertFalse(future.isDone());
+    assertEquals(1, forwardCompletion.getPending());
+  }
+
+  private R66ForwardCompletion newForwardCompletion(final long hostAuthTtl) {
+    return new R66ForwardCompletion(3600000, hostAuthTtl) {
+      @Override
+      String lookupRequesterHostId(final String partner) {
+        lookups.incrementAndGet();
+        return HOST_ID;
+      }
+
+      @Override
+      TransferDAO getTransferDAO() {
+        return transferDAO;
+      }
+
+      @Override
+      DbTaskRunner getRunner(final Transfer transfer) {
+        return runners.get(transfer.getId());
+      }
+
+      @Override
+      DbTaskRunner getRunner(final long waarpId, final String partner) {
+        assertEquals(PARTNER, partner);
+        return runners.get(waarpId);
+      }
+    };
+  }
+
+  private Transfer newTransfer(final long waarpId, final boolean allDone,
+                               final boolean inError) {
+    final Transfer transfer = mock(Transfer.class);
+    when(transfer.getId()).thenReturn(waarpId);
+    when(transfer.getRequested()).thenReturn(PARTNER);
+    runners.put(waarpId, newRunner(allDone, inError));
+    return transfer;
+  }
+
+  private static DbTaskRunner newRunner(final boolean allDone,
+                                        final boolean inError) {
+    final DbTaskRunner runner = mock(DbTaskRunner.class);
+    when(runner.isAllDone()).thenReturn(allDone);
+    when(runner.isInError()).thenReturn(inError);
+    return runner;
+  }
+
+  private static DipRequest newRequest(final long waarpId) {
+    final DipRequest dipRequest = new DipRequest();
+    dipRequest.setWaarpPartner(PARTNER);
+    dipRequest.setWaarpId(waarpId);
+    return dipRequest;
+  }
+
+  private JavaTask newJavaTask(final long waarpId, final String argument) {
+    final DbTaskRunner runner = mock(DbTaskRunner.class);
+    when(runner.getSpecialId()).thenReturn(waarpId);
+    final R66Session session = mock(R66Session.class);
+    when(session.getRunner()).thenReturn(runner);
+    final JavaTask javaTask = new JavaTask() {
+      @Override
+      R66ForwardCompletion getForwardCompletion() {
+        return forwardCompletion;
+      }
+    };
+    javaTask.setArgs(session, true, false, 0, JavaTask.class.getName(),
+                     argument, false, false);
+    return javaTask;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.common.waarp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.waarp.vitam.common.waarp.ScriptHelperPool.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class ScriptHelperPoolTest {
+  private static final int REQUESTS = 50;
+  /**
+   * Helper answering with the tenant as waarpId, exiting on "crash", not
+   * answering on "hang" and answering a wrong status on "wrong"
+   */
+  private static final String HELPER =
+      "#!/bin/sh\n" + "[ \"$1\" = \"--helper\" ] || exit 2\n" +
+      "TAB=$(printf '\\t')\n" +
+      "while IFS=\"$TAB\" read -r seq partner rule req app tenant file info;" +
+      " do\n" + "  case \"$info\" in\n" + "    crash*) exit 1 ;;\n" +
+      "    hang*) continue ;;\n" +
+      "    wrong*) printf '%s\\tKO\\t%s\\n' \"$seq\" \"$tenant\";" +
+      " continue ;;\n" + "  esac\n" +
+      "  printf '%s\\t0\\t%s\\n' \"$seq\" \"$tenant\"\n" + "done\n";
+  private File script;
+  private ScriptHelperPool scriptHelperPool;
+
+  @Before
+  public void setUp() throws IOException {
+    script = File.createTempFile("helper", ".sh");
+    Files.write(script.toPath(), HELPER.getBytes(StandardCharsets.UTF_8));
+    assertTrue(script.setExecutable(true));
+    scriptHelperPool = new ScriptHelperPool(script.getAbsolutePath(), 2);
+  }
+
+  @After
+  public void tearDown() {
+    scriptHelperPool.close();
+    script.delete();
+  }
+
+  @Test
+  public void testPipelining()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    final List<CompletableFuture<Answer>> futures = new ArrayList<>();
+    for (int i = 0; i < REQUESTS; i++) {
+      // All sent before any answer
+      futures.add(send(Integer.toString(i), "DIP with\ttab"));
+    }
+    for (int i = 0; i < REQUESTS; i++) {
+      final Answer answer = futures.get(i).get(10, TimeUnit.SECONDS);
+      assertNotNull(answer);
+      assertEquals(0, answer.getStatus());
+      assertEquals(i, answer.getWaarpId());
+    }
+  }
+
+  @Test
+  public void testRestartAfterCrash()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    final Answer first = send("1", "ATR").get(10, TimeUnit.SECONDS);
+    assertEquals(1, first.getWaarpId());
+    // The helper crashes, so the waiting request fails
+    assertNull(send("2", "crash").get(10, TimeUnit.SECONDS));
+    assertNull(send("3", "crash").get(10, TimeUnit.SECONDS));
+    // Restarted on next request
+    final Answer next = send("4", "ATR").get(10, TimeUnit.SECONDS);
+    assertNotNull(next);
+    assertEquals(4, next.getWaarpId());
+  }
+
+  @Test
+  public void testKillOnTimeout()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    final CompletableFuture<Answer> hanging = send("1", "hang");
+    try {
+      hanging.get(200, TimeUnit.MILLISECONDS);
+      fail("Should not be answered");
+    } catch (TimeoutException e) {
+      // Ignore
+    }
+    scriptHelperPool.timedOut(hanging);
+    assertNull(hanging.get(10, TimeUnit.SECONDS));
+    final Answer next = send("2", "ATR").get(10, TimeUnit.SECONDS);
+    assertNotNull(next);
+    assertEquals(2, next.getWaarpId());
+  }
+
+  @Test
+  public void testWrongAnswer()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    // Failed at once, not waiting for ever
+    assertNull(send("1", "wrong").get(10, TimeUnit.SECONDS));
+    final Answer next = send("2", "ATR").get(10, TimeUnit.SECONDS);
+    assertNotNull(next);
+    assertEquals(2, next.getWaarpId());
+  }
+
+  private CompletableFuture<Answer> send(final String tenant,
+                                         final String fileInfo) {
+    return scriptHelperPool
+        .send("partner", "rule", "requestId", "session", tenant,
+              "/tmp/file.xml", fileInfo);
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.waarp.vitam.common.waarp;
+
+import org.junit.Test;
+import org.waarp.vitam.common.WaarpVitamMetrics;
+
+import static org.junit.Assert.*;
+
+public class ScriptLimiterTest {
+
+  @Test
+  public void testLimit() {
+    final ScriptLimiter scriptLimiter = new ScriptLimiter(2, 10, 1000);
+    final long throttled =
+        WaarpVitamMetrics.getInstance().get(ScriptLimiter.SCRIPT_THROTTLED);
+    assertEquals(1000, scriptLimiter.getTimeout());
+    assertTrue(scriptLimiter.acquire());
+    assertTrue(scriptLimiter.acquire());
+    // Wait then give up
+    assertFalse(scriptLimiter.acquire());
+    assertEquals(throttled + 1, WaarpVitamMetrics.getInstance().get(
+        ScriptLimiter.SCRIPT_THROTTLED));
+    scriptLimiter.release();
+    assertTrue(scriptLimiter.acquire());
+  }
+
+  @Test
+  public void testNoLimitByDefault() {
+    // Limits only if explicitly set
+    assertEquals(0, ScriptLimiter.DEFAULT_MAX);
+    assertEquals(0, ScriptLimiter.DEFAULT_TIMEOUT);
+    assertEquals(0, ScriptLimiter.getInstance().getTimeout());
+    final ScriptLimiter scriptLimiter = new ScriptLimiter(0, 0, 0);
+    final long throttled =
+        WaarpVitamMetrics.getInstance().get(ScriptLimiter.SCRIPT_THROTTLED);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(scriptLimiter.acquire());
+    }
+    scriptLimiter.release();
+    assertEquals(throttled, WaarpVitamMetrics.getInstance().get(
+        ScriptLimiter.SCRIPT_THROTTLED));
+  }
+
+  @Test
+  public void testMetrics() {
+    final ScriptLimiter scriptLimiter = new ScriptLimiter(1, 0, 0);
+    final WaarpVitamMetrics metrics = WaarpVitamMetrics.getInstance();
+    final long fast = metrics.get(ScriptLimiter.SCRIPT_DURATION + "100");
+    final long slow = metrics.get(ScriptLimiter.SCRIPT_DURATION + "more");
+    final long exit1 = metrics.get(ScriptLimiter.SCRIPT_EXIT + "1");
+    final long timeout = metrics.get(ScriptLimiter.SCRIPT_TIMEOUT);
+    final long now = System.currentTimeMillis();
+    scriptLimiter.ended(now, 1, false);
+    scriptLimiter.ended(now - 120000, 143, true);
+    assertEquals(fast + 1,
+                 metrics.get(ScriptLimiter.SCRIPT_DURATION + "100"));
+    assertEquals(slow + 1,
+                 metrics.get(ScriptLimiter.SCRIPT_DURATION + "more"));
+    assertEquals(exit1 + 1, metrics.get(ScriptLimiter.SCRIPT_EXIT + "1"));
+    // A killed script is counted as timeout, not with its exit value
+    assertEquals(0, metrics.get(ScriptLimiter.SCRIPT_EXIT + "143"));
+    assertEquals(timeout + 1, metrics.get(ScriptLimiter.SCRIPT_TIMEOUT));
+  }
+}
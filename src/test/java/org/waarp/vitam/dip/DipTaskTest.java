@@ -21,6 +21,7 @@
 package org.waarp.vitam.dip;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Charsets;
 import fr.gouv.vitam.access.external.client.AccessExternalClient;
 import fr.gouv.vitam.access.external.client.AccessExternalClientFactory;
@@ -57,8 +58,13 @@ import org.waarp.common.logging.WaarpSlf4JLoggerFactory;
 import org.waarp.openr66.context.R66Session;
 import org.waarp.vitam.CommonUtil;
 import org.waarp.vitam.common.OperationCheck;
+import org.waarp.vitam.common.OperationDurationStatistics;
+import org.waarp.vitam.common.OperationStatusCache;
+import org.waarp.vitam.common.StorageTiers;
 import org.waarp.vitam.common.WaarpCommon.TaskOption;
+import org.waarp.vitam.common.WaarpVitamMetrics;
 import org.waarp.vitam.common.waarp.ManagerToWaarp;
+import org.waarp.vitam.common.waarp.ManagerToWaarpFactory;
 import org.waarp.vitam.dip.DipRequest.DIPStep;
 import org.waarp.vitam.dip.DipTask.JavaTask;
 
@@ -76,8 +82,10 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
@@ -97,6 +105,11 @@ public class DipTaskTest extends ResteasyTestApplication {
   private static final String MOCK_INPUTSTREAM_CONTENT =
       "VITAM-Access External Client Rest Mock InputStream";
   private static final String CONTRACT = "accessContract";
+  /**
+   * Larger than the server buffers, so that the start is received before
+   * the connection is lost
+   */
+  private static final int CUT_CONTENT_SIZE = 1024 * 1024;
   private static final String QUERY_DSQL =
       "{ \"$query\" : [ { \"$eq\" : { \"title\" : \"test\" } } ], \"$projection\" : {} }";
   private static final String RESPONSE_OK =
@@ -156,10 +169,31 @@ public class DipTaskTest extends ResteasyTestApplication {
     doCallRealMethod().when(dipRequestFactory).getExistingDips();
     doCallRealMethod().when(dipRequestFactory)
                       .removeDipRequest(any(DipRequest.class));
+    doCallRealMethod().when(dipRequestFactory).getDipDirs();
     doCallRealMethod().when(dipRequestFactory)
                       .getDipFile(any(DipRequest.class));
+    doCallRealMethod().when(dipRequestFactory)
+                      .allocateDipFile(any(DipRequest.class), anyLong());
+    doCallRealMethod().when(dipRequestFactory)
+                      .releaseDipFile(any(DipRequest.class));
     doCallRealMethod().when(dipRequestFactory)
                       .getErrorFile(any(DipRequest.class));
+    doCallRealMethod().when(dipRequestFactory)
+                      .getDipPartFile(any(DipRequest.class), anyInt());
+    doCallRealMethod().when(dipRequestFactory)
+                      .getDipManifestFile(any(DipRequest.class));
+    doCallRealMethod().when(dipRequestFactory)
+                      .allocateDipPartFile(any(DipRequest.class), anyInt(),
+                                           anyLong());
+    doCallRealMethod().when(dipRequestFactory)
+                      .releaseDipPartFile(any(DipRequest.class), anyInt());
+    doCallRealMethod().when(dipRequestFactory)
+                      .newDipPartRequest(any(DipRequest.class), anyInt(),
+                                         any());
+    doCallRealMethod().when(dipRequestFactory)
+                      .hasDipPartRequest(any(DipRequest.class), anyInt());
+    doCallRealMethod().when(dipRequestFactory)
+                      .getDipPartRequest(any(DipRequest.class), anyInt());
     doCallRealMethod().when(dipRequestFactory)
                       .saveDipRequest(any(DipRequest.class));
     doCallRealMethod().when(dipRequestFactory)
@@ -169,6 +203,7 @@ public class DipTaskTest extends ResteasyTestApplication {
     when(dipRequestFactory.getClient()).thenReturn(client);
     when(adminFactory.getClient()).thenReturn(adminExternalClient);
     OperationCheck.setRetry(1, 10);
+    OperationStatusCache.getInstance().setTtl(10);
     dipRequestFactory.setBaseDir();
     dipManager = new DipManager();
     dipManagerToWaarp = mock(ManagerToWaarp.class);
@@ -204,6 +239,9 @@ public class DipTaskTest extends ResteasyTestApplication {
 
   @Before
   public void cleanDipRequest() {
+    OperationStatusCache.getInstance().clear();
+    // Never deferring the first check from durations of previous tests
+    OperationDurationStatistics.getInstance().clear();
     List<DipRequest> list = dipRequestFactory.getExistingDips();
     if (list != null && !list.isEmpty()) {
       for (DipRequest dipRequest : list) {
@@ -379,6 +417,495 @@ public class DipTaskTest extends ResteasyTestApplication {
                 dipRequest.getVitamContext()));
   }
 
+  @Test
+  @RunWithCustomExecutor
+  public void givenLargeDipWhenDownloadObjectThenSentAsParts()
+      throws InvalidParseOperationException, IOException, VitamClientException,
+             ParseException {
+    doReturn(returnCheckOk(Status.OK)).when(adminExternalClient)
+                                      .getOperationProcessStatus(
+                                          any(VitamContext.class), anyString());
+    when(mock.get()).thenReturn(getObjectStream());
+    setSendMessage(true);
+    File file = new File(dipRequestFactory.getBaseDir(), "testParts");
+    when(dipRequestFactory.getDipFile(any(DipRequest.class))).thenReturn(file);
+    doReturn(file).when(dipRequestFactory)
+                  .allocateDipFile(any(DipRequest.class), anyLong());
+    DipPartForwarder
+        .setPartnerConfiguration("hosta", new DipPartForwarder(2, 10));
+    try {
+      DipRequest dipRequest = newDipRequest();
+      dipRequest.setRequestId(FAKE_X_REQUEST_ID)
+                .setStatus(DIPStep.RETRY_SELECT.getStatusMonitor());
+      dipRequest.setStep(DIPStep.RETRY_DIP, 0, dipRequestFactory);
+      assertEquals(true, dipManager
+          .getDip(dipRequestFactory, dipRequest, client, adminExternalClient,
+                  dipRequest.getVitamContext()));
+      final int parts = (MOCK_INPUTSTREAM_CONTENT.length() + 9) / 10;
+      assertEquals(parts, dipRequest.getDipParts());
+      assertEquals(DIPStep.END.getStatusMonitor(), dipRequest.getStatus());
+      verify(dipManagerToWaarp, atLeast(parts))
+          .sendBackInformation(any(DipRequestFactory.class),
+                               any(DipRequest.class), anyString(),
+                               startsWith(DipPartForwarder.DIP_PART));
+      verify(dipManagerToWaarp, atLeastOnce())
+          .sendBackInformation(any(DipRequestFactory.class),
+                               any(DipRequest.class), anyString(),
+                               startsWith(DipPartForwarder.DIP_MANIFEST + ' ' +
+                                          parts));
+      // All parts cleaned
+      assertFalse(dipRequestFactory.getDipPartFile(dipRequest, 1).exists());
+      assertFalse(dipRequestFactory.getDipManifestFile(dipRequest).exists());
+    } finally {
+      DipPartForwarder.setPartnerConfiguration("hosta", null);
+    }
+  }
+
+  @Test
+  @RunWithCustomExecutor
+  public void givenNoRoomForPartWhenSplitThenPostponedAndResumed()
+      throws Exception {
+    doReturn(returnCheckOk(Status.OK)).when(adminExternalClient)
+                                      .getOperationProcessStatus(
+                                          any(VitamContext.class), anyString());
+    when(mock.get()).thenReturn(getObjectStream());
+    setSendMessage(true);
+    File file = new File(dipRequestFactory.getBaseDir(), "testPartsQuota");
+    file.delete();
+    when(dipRequestFactory.getDipFile(any(DipRequest.class))).thenReturn(file);
+    doReturn(file).when(dipRequestFactory)
+                  .allocateDipFile(any(DipRequest.class), anyLong());
+    doThrow(new StorageTiers.QuotaExceededException("No room"))
+        .when(dipRequestFactory)
+        .allocateDipPartFile(any(DipRequest.class), eq(3), anyLong());
+    final DipPartForwarder forwarder = new DipPartForwarder(2, 10);
+    DipPartForwarder.setPartnerConfiguration("hosta", forwarder);
+    final long queued = WaarpVitamMetrics.getInstance().get(
+        DipPartForwarder.DIP_SPLIT_QUEUED);
+    try {
+      DipRequest dipRequest = newDipRequest();
+      dipRequest.setRequestId(FAKE_X_REQUEST_ID)
+                .setStatus(DIPStep.RETRY_SELECT.getStatusMonitor());
+      dipRequest.setStep(DIPStep.RETRY_DIP, 0, dipRequestFactory);
+      dipManager
+          .getDip(dipRequestFactory, dipRequest, client, adminExternalClient,
+                  dipRequest.getVitamContext());
+      final int parts = (MOCK_INPUTSTREAM_CONTENT.length() + 9) / 10;
+      // Last parts cut, the DIP truncated to the part without room
+      assertEquals(parts, dipRequest.getDipParts());
+      assertEquals(DIPStep.RETRY_DIP_FORWARD.getStatusMonitor(),
+                   dipRequest.getStatus());
+      assertEquals(queued + 1, WaarpVitamMetrics.getInstance().get(
+          DipPartForwarder.DIP_SPLIT_QUEUED));
+      assertEquals(30, file.length());
+      assertTrue(dipRequestFactory.hasDipPartRequest(dipRequest, parts));
+      assertFalse(dipRequestFactory.hasDipPartRequest(dipRequest, 3));
+      assertFalse(dipRequestFactory.getDipManifestFile(dipRequest).exists());
+
+      // Resumed once room is there
+      doCallRealMethod().when(dipRequestFactory)
+                        .allocateDipPartFile(any(DipRequest.class), eq(3),
+                                             anyLong());
+      assertTrue(forwarder.forward(dipRequestFactory, dipRequest, file));
+      assertFalse(file.exists());
+      final StringBuilder builder = new StringBuilder();
+      for (int rank = 1; rank <= parts; rank++) {
+        builder.append(FileUtils.readFileToString(
+            dipRequestFactory.getDipPartFile(dipRequest, rank),
+            Charsets.UTF_8));
+      }
+      assertEquals(MOCK_INPUTSTREAM_CONTENT, builder.toString());
+      assertTrue(dipRequestFactory.getDipManifestFile(dipRequest).exists());
+      dipRequestFactory.removeDipRequest(dipRequest);
+    } finally {
+      doCallRealMethod().when(dipRequestFactory)
+                        .allocateDipPartFile(any(DipRequest.class), anyInt(),
+                                             anyLong());
+      DipPartForwarder.setPartnerConfiguration("hosta", null);
+      file.delete();
+    }
+  }
+
+  @Test
+  @RunWithCustomExecutor
+  public void givenConnectionCutWhenDownloadObjectThenResumed()
+      throws InvalidParseOperationException, IOException, ParseException {
+    doReturn(returnCheckOk(Status.OK)).when(adminExternalClient)
+                                      .getOperationProcessStatus(
+                                          any(VitamContext.class), anyString());
+    final byte[] content = new byte[CUT_CONTENT_SIZE];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) (i % 251);
+    }
+    // First the server drops the connection in the middle of the DIP
+    when(mock.get()).thenReturn(getCutObjectStream(content, content.length / 2),
+                                getCutObjectStream(content, content.length));
+    setSendMessage(true);
+    File file = new File(dipRequestFactory.getBaseDir(), "testResume");
+    when(dipRequestFactory.getDipFile(any(DipRequest.class))).thenReturn(file);
+    doReturn(file).when(dipRequestFactory)
+                  .allocateDipFile(any(DipRequest.class), anyLong());
+    DipRequest dipRequest = newDipRequest();
+    dipRequest.setRequestId(FAKE_X_REQUEST_ID)
+              .setStatus(DIPStep.RETRY_SELECT.getStatusMonitor());
+    dipRequest.setStep(DIPStep.RETRY_DIP, 0, dipRequestFactory);
+    dipManager
+        .getDip(dipRequestFactory, dipRequest, client, adminExternalClient,
+                dipRequest.getVitamContext());
+    final long offset = dipRequest.getDipOffset();
+    assertTrue(offset > 0);
+    assertTrue(offset <= content.length / 2);
+    assertEquals(DIPStep.RETRY_DIP.getStatusMonitor(), dipRequest.getStatus());
+    verify(dipManagerToWaarp, never())
+        .sendBackInformation(any(DipRequestFactory.class),
+                             eq(dipRequest), anyString(), anyString());
+
+    // Next retry resumes from the saved offset
+    assertTrue(dipManager
+                   .getDip(dipRequestFactory, dipRequest, client,
+                           adminExternalClient, dipRequest.getVitamContext()));
+    assertEquals(content.length, dipRequest.getDipOffset());
+    assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+    assertEquals(DIPStep.END.getStatusMonitor(), dipRequest.getStatus());
+    file.delete();
+  }
+
+  @Test
+  @RunWithCustomExecutor
+  public void givenStreamingWhenDownloadObjectThenStreamed()
+      throws InvalidParseOperationException, IOException, ParseException {
+    doReturn(returnCheckOk(Status.OK)).when(adminExternalClient)
+                                      .getOperationProcessStatus(
+                                          any(VitamContext.class), anyString());
+    when(mock.get()).thenReturn(getObjectStream());
+    File file = new File(dipRequestFactory.getBaseDir(), "testStreamed");
+    file.delete();
+    doReturn(file).when(dipRequestFactory)
+                  .allocateDipFile(any(DipRequest.class), anyLong());
+    when(dipManagerToWaarp.supportsStreaming()).thenReturn(true);
+    doAnswer(invocation -> {
+      FileUtils.copyInputStreamToFile(invocation.getArgument(2), file);
+      return true;
+    }).when(dipManagerToWaarp)
+      .sendBackStream(any(DipRequestFactory.class), any(DipRequest.class),
+                      any(InputStream.class), anyString());
+    final long streamed = WaarpVitamMetrics.getInstance().get(
+        DipManager.DIP_STREAMED + ".count");
+    DipManager.setStreaming(true);
+    try {
+      DipRequest dipRequest = newDipRequest();
+      dipRequest.setRequestId(FAKE_X_REQUEST_ID)
+                .setStatus(DIPStep.RETRY_SELECT.getStatusMonitor());
+      dipRequest.setStep(DIPStep.RETRY_DIP, 0, dipRequestFactory);
+      assertTrue(dipManager
+                     .getDip(dipRequestFactory, dipRequest, client,
+                             adminExternalClient,
+                             dipRequest.getVitamContext()));
+      assertEquals(DIPStep.END.getStatusMonitor(), dipRequest.getStatus());
+      assertFalse(dipRequest.isDipSpool());
+      assertEquals(MOCK_INPUTSTREAM_CONTENT,
+                   FileUtils.readFileToString(file, Charsets.UTF_8));
+      assertEquals(streamed + 1, WaarpVitamMetrics.getInstance().get(
+          DipManager.DIP_STREAMED + ".count"));
+      // Never spooled
+      verify(dipManagerToWaarp, never())
+          .sendBackInformation(any(DipRequestFactory.class), eq(dipRequest),
+                               anyString(), anyString());
+    } finally {
+      DipManager.setStreaming(false);
+      reset(dipManagerToWaarp);
+      setSendMessage(true);
+      file.delete();
+    }
+  }
+
+  @Test
+  @RunWithCustomExecutor
+  public void givenStreamingFailedBeforeReadWhenDownloadObjectThenSpooled()
+      throws InvalidParseOperationException, IOException, ParseException {
+    doReturn(returnCheckOk(Status.OK)).when(adminExternalClient)
+                                      .getOperationProcessStatus(
+                                          any(VitamContext.class), anyString());
+    when(mock.get()).thenReturn(getObjectStream());
+    clearInvocations(mock);
+    File file = new File(dipRequestFactory.getBaseDir(), "testSpooled");
+    file.delete();
+    when(dipRequestFactory.getDipFile(any(DipRequest.class))).thenReturn(file);
+    doReturn(file).when(dipRequestFactory)
+                  .allocateDipFile(any(DipRequest.class), anyLong());
+    when(dipManagerToWaarp.supportsStreaming()).thenReturn(true);
+    // Partner not available: nothing read from the response
+    doReturn(false).when(dipManagerToWaarp)
+                   .sendBackStream(any(DipRequestFactory.class),
+                                   any(DipRequest.class),
+                                   any(InputStream.class), anyString());
+    DipManager.setStreaming(true);
+    try {
+      DipRequest dipRequest = newDipRequest();
+      dipRequest.setRequestId(FAKE_X_REQUEST_ID)
+                .setStatus(DIPStep.RETRY_SELECT.getStatusMonitor());
+      dipRequest.setStep(DIPStep.RETRY_DIP, 0, dipRequestFactory);
+      assertTrue(dipManager
+                     .getDip(dipRequestFactory, dipRequest, client,
+                             adminExternalClient,
+                             dipRequest.getVitamContext()));
+      // Spooled from the same response, without asking Vitam again
+      assertTrue(dipRequest.isDipSpool());
+      assertEquals(MOCK_INPUTSTREAM_CONTENT,
+                   FileUtils.readFileToString(file, Charsets.UTF_8));
+      assertEquals(DIPStep.END.getStatusMonitor(), dipRequest.getStatus());
+      verify(mock, times(1)).get();
+      verify(dipManagerToWaarp, times(1))
+          .sendBackStream(any(DipRequestFactory.class), eq(dipRequest),
+                          any(InputStream.class), anyString());
+      verify(dipManagerToWaarp, atLeastOnce())
+          .sendBackInformation(any(DipRequestFactory.class), eq(dipRequest),
+                               anyString(), anyString());
+    } finally {
+      DipManager.setStreaming(false);
+      reset(dipManagerToWaarp);
+      setSendMessage(true);
+      file.delete();
+    }
+  }
+
+  @Test
+  @RunWithCustomExecutor
+  public void givenStreamingFailedMidwayWhenDownloadObjectThenSpooledOnRetry()
+      throws InvalidParseOperationException, IOException, ParseException {
+    doReturn(returnCheckOk(Status.OK)).when(adminExternalClient)
+                                      .getOperationProcessStatus(
+                                          any(VitamContext.class), anyString());
+    when(mock.get()).thenReturn(getObjectStream(), getObjectStream());
+    clearInvocations(mock);
+    File file = new File(dipRequestFactory.getBaseDir(), "testMidway");
+    file.delete();
+    when(dipRequestFactory.getDipFile(any(DipRequest.class))).thenReturn(file);
+    doReturn(file).when(dipRequestFactory)
+                  .allocateDipFile(any(DipRequest.class), anyLong());
+    when(dipManagerToWaarp.supportsStreaming()).thenReturn(true);
+    // Partner fails after reading part of the response
+    doAnswer(invocation -> {
+      final InputStream inputStream = invocation.getArgument(2);
+      inputStream.read(new byte[4]);
+      return false;
+    }).when(dipManagerToWaarp)
+      .sendBackStream(any(DipRequestFactory.class), any(DipRequest.class),
+                      any(InputStream.class), anyString());
+    DipManager.setStreaming(true);
+    try {
+      DipRequest dipRequest = newDipRequest();
+      dipRequest.setRequestId(FAKE_X_REQUEST_ID)
+                .setStatus(DIPStep.RETRY_SELECT.getStatusMonitor());
+      dipRequest.setStep(DIPStep.RETRY_DIP, 0, dipRequestFactory);
+      assertTrue(dipManager
+                     .getDip(dipRequestFactory, dipRequest, client,
+                             adminExternalClient,
+                             dipRequest.getVitamContext()));
+      // Response partially consumed: nothing spooled yet, kept for retry
+      assertTrue(dipRequest.isDipSpool());
+      assertFalse(file.exists());
+      assertEquals(DIPStep.RETRY_DIP.getStatusMonitor(),
+                   dipRequest.getStatus());
+
+      // Next retry asks Vitam again and spools without streaming
+      assertTrue(dipManager
+                     .getDip(dipRequestFactory, dipRequest, client,
+                             adminExternalClient,
+                             dipRequest.getVitamContext()));
+      assertEquals(MOCK_INPUTSTREAM_CONTENT,
+                   FileUtils.readFileToString(file, Charsets.UTF_8));
+      assertEquals(DIPStep.END.getStatusMonitor(), dipRequest.getStatus());
+      verify(mock, times(2)).get();
+      verify(dipManagerToWaarp, times(1))
+          .sendBackStream(any(DipRequestFactory.class), eq(dipRequest),
+                          any(InputStream.class), anyString());
+    } finally {
+      DipManager.setStreaming(false);
+      reset(dipManagerToWaarp);
+      setSendMessage(true);
+      file.delete();
+    }
+  }
+
+  @Test
+  @RunWithCustomExecutor
+  public void givenScriptWhenStreamingThenContentOnStandardInput()
+      throws InvalidParseOperationException, IOException, ParseException {
+    doReturn(returnCheckOk(Status.OK)).when(adminExternalClient)
+                                      .getOperationProcessStatus(
+                                          any(VitamContext.class), anyString());
+    when(mock.get()).thenReturn(getObjectStream());
+    File file = new File(dipRequestFactory.getBaseDir(), "testScriptStream");
+    file.delete();
+    // Script writing its standard input to the file and answering 12
+    File script = File.createTempFile("stream", ".sh");
+    FileUtils.write(script, "#!/bin/sh\n[ \"$6\" = \"-\" ] || exit 2\n" +
+                            "cat > " + file.getAbsolutePath() +
+                            "\nprintf 12\n", Charsets.UTF_8);
+    assertTrue(script.setExecutable(true));
+    doReturn(ManagerToWaarpFactory.getManagerToWaarp(script.getAbsolutePath()))
+        .when(dipRequestFactory).getManagerToWaarp(any(DipRequest.class));
+    DipManager.setStreaming(true);
+    try {
+      DipRequest dipRequest = newDipRequest();
+      dipRequest.setRequestId(FAKE_X_REQUEST_ID)
+                .setStatus(DIPStep.RETRY_SELECT.getStatusMonitor());
+      dipRequest.setStep(DIPStep.RETRY_DIP, 0, dipRequestFactory);
+      assertTrue(dipManager
+                     .getDip(dipRequestFactory, dipRequest, client,
+                             adminExternalClient,
+                             dipRequest.getVitamContext()));
+      assertEquals(DIPStep.END.getStatusMonitor(), dipRequest.getStatus());
+      assertFalse(dipRequest.isDipSpool());
+      assertEquals(12, dipRequest.getWaarpId());
+      assertEquals(MOCK_INPUTSTREAM_CONTENT,
+                   FileUtils.readFileToString(file, Charsets.UTF_8));
+    } finally {
+      DipManager.setStreaming(false);
+      doReturn(dipManagerToWaarp).when(dipRequestFactory)
+                                 .getManagerToWaarp(any(DipRequest.class));
+      script.delete();
+      file.delete();
+    }
+  }
+
+  /**
+   * @param content the full DIP
+   * @param cut the number of bytes sent before the connection is lost
+   *
+   * @return the response sending the DIP up to cut bytes
+   */
+  private static Response getCutObjectStream(final byte[] content,
+                                             final int cut) {
+    MultivaluedHashMap<String, Object> headers = new MultivaluedHashMap();
+    headers.add("Content-Disposition", "filename=\"test.zip\"");
+    headers.add(GlobalDataRest.X_REQUEST_ID, FAKE_X_REQUEST_ID);
+    final InputStream inputStream =
+        new ByteArrayInputStream(content, 0, cut) {
+          @Override
+          public synchronized int read(final byte[] b, final int off,
+                                       final int len) {
+            final int read = super.read(b, off, len);
+            if (read < 0 && cut < content.length) {
+              throw new IllegalStateException("Connection lost");
+            }
+            return read;
+          }
+        };
+    return new FakeInboundResponse(Status.ACCEPTED, inputStream,
+                                   MediaType.APPLICATION_OCTET_STREAM_TYPE,
+                                   headers);
+  }
+
+  @Test
+  public void testSplitSelect() throws InvalidParseOperationException {
+    JsonNode select = JsonHandler.getFromString(QUERY_DSQL);
+    JsonNode first = DipExportSplitter.getSplitSelect(select, 1, 3, 100);
+    assertEquals(0, first.get("$filter").get("$offset").asLong());
+    assertEquals(100, first.get("$filter").get("$limit").asLong());
+    assertEquals(1, first.get("$filter").get("$orderby").get("#id").asInt());
+    JsonNode last = DipExportSplitter.getSplitSelect(select, 3, 3, 100);
+    assertEquals(200, last.get("$filter").get("$offset").asLong());
+    assertFalse(last.get("$filter").has("$limit"));
+    assertEquals(select.get("$query"), last.get("$query"));
+    // Original DSL unchanged
+    assertFalse(select.has("$filter"));
+    // User order kept, #id as last sort key
+    ObjectNode sorted = select.deepCopy();
+    sorted.putObject("$filter").putObject("$orderby").put("Title", -1);
+    JsonNode ordered = DipExportSplitter.getSplitSelect(sorted, 2, 3, 100);
+    JsonNode orderby = ordered.get("$filter").get("$orderby");
+    assertEquals(-1, orderby.get("Title").asInt());
+    Iterator<String> sortKeys = orderby.fieldNames();
+    assertEquals("Title", sortKeys.next());
+    assertEquals("#id", sortKeys.next());
+    assertEquals(100, ordered.get("$filter").get("$offset").asLong());
+    // Beyond the Vitam result window, no split
+    assertEquals(1, DipExportSplitter.getExports(100, 100, 10000));
+    assertEquals(3, DipExportSplitter.getExports(201, 100, 10000));
+    assertEquals(100, DipExportSplitter.getExports(10000, 100, 10000));
+    assertEquals(0, DipExportSplitter.getExports(10001, 100, 10000));
+    DipRequest dipRequest = new DipRequest();
+    assertEquals(DipManager.DIP,
+                 DipExportSplitter.getInfoPrefix(dipRequest, DipManager.DIP));
+    dipRequest.setDipSplit("2/3");
+    assertEquals(DipManager.DIP + " export=2/3",
+                 DipExportSplitter.getInfoPrefix(dipRequest, DipManager.DIP));
+  }
+
+  @Test
+  public void testDipCache()
+      throws InvalidParseOperationException, IOException, ParseException {
+    File cacheDir = new File(dipRequestFactory.getBaseDir(), "testCache");
+    FileUtils.deleteDirectory(cacheDir);
+    DipCache dipCache = new DipCache(100, 60000, cacheDir.getAbsolutePath());
+    File file = new File(dipRequestFactory.getBaseDir(), "testCache1");
+    when(dipRequestFactory.getDipFile(any(DipRequest.class))).thenReturn(file);
+    DipRequest dipRequest = newDipRequest();
+    assertFalse(dipCache.get(dipRequestFactory, dipRequest));
+    assertNotNull(dipRequest.getSelectHash());
+    FileUtils.write(file, MOCK_INPUTSTREAM_CONTENT, Charsets.UTF_8);
+    dipRequest.setDigest("SHA-256:00");
+    dipCache.put(dipRequestFactory, dipRequest, file);
+
+    // Same selection served from cache
+    File file2 = new File(dipRequestFactory.getBaseDir(), "testCache2");
+    when(dipRequestFactory.getDipFile(any(DipRequest.class)))
+        .thenReturn(file2);
+    DipRequest dipRequest2 = newDipRequest();
+    assertTrue(dipCache.get(dipRequestFactory, dipRequest2));
+    assertEquals(dipRequest.getSelectHash(), dipRequest2.getSelectHash());
+    assertEquals("SHA-256:00", dipRequest2.getDigest());
+    assertEquals(MOCK_INPUTSTREAM_CONTENT,
+                 FileUtils.readFileToString(file2, Charsets.UTF_8));
+
+    // Other contract is another selection, and evicts the first one
+    DipRequest dipRequest3 = newDipRequest();
+    dipRequest3.setAccessContract("otherContract");
+    assertFalse(dipCache.get(dipRequestFactory, dipRequest3));
+    assertNotEquals(dipRequest.getSelectHash(), dipRequest3.getSelectHash());
+    // Not through the hard link to the cached DIP
+    assertTrue(file2.delete());
+    FileUtils.write(file2, MOCK_INPUTSTREAM_CONTENT + "-other",
+                    Charsets.UTF_8);
+    assertTrue(new File(cacheDir, dipRequest.getSelectHash() + ".zip")
+                   .setLastModified(System.currentTimeMillis() - 10000));
+    dipCache.put(dipRequestFactory, dipRequest3, file2);
+    assertFalse(dipCache.get(dipRequestFactory, newDipRequest()));
+    assertTrue(dipCache.get(dipRequestFactory, dipRequest3));
+    dipRequestFactory.removeDipRequest(dipRequest);
+    dipRequestFactory.removeDipRequest(dipRequest2);
+    dipRequestFactory.removeDipRequest(dipRequest3);
+    FileUtils.deleteDirectory(cacheDir);
+
+    // Default cache within the storage tier of the DIP, so hard linked
+    doCallRealMethod().when(dipRequestFactory)
+                      .getDipFile(any(DipRequest.class));
+    DipCache tierCache = new DipCache(100, 60000, null);
+    DipRequest dipRequest4 = newDipRequest();
+    assertFalse(tierCache.get(dipRequestFactory, dipRequest4));
+    File file4 = dipRequestFactory.getDipFile(dipRequest4);
+    FileUtils.write(file4, MOCK_INPUTSTREAM_CONTENT, Charsets.UTF_8);
+    final long copies =
+        WaarpVitamMetrics.getInstance().get(DipCache.DIP_CACHE_COPY);
+    tierCache.put(dipRequestFactory, dipRequest4, file4);
+    File tierCacheDir = new File(file4.getParentFile(), "cache");
+    assertTrue(
+        new File(tierCacheDir, dipRequest4.getSelectHash() + ".zip").isFile());
+    DipRequest dipRequest5 = newDipRequest();
+    assertTrue(tierCache.get(dipRequestFactory, dipRequest5));
+    File file5 = dipRequestFactory.getDipFile(dipRequest5);
+    assertEquals(file4.getParentFile(), file5.getParentFile());
+    assertEquals(MOCK_INPUTSTREAM_CONTENT,
+                 FileUtils.readFileToString(file5, Charsets.UTF_8));
+    assertEquals(copies,
+                 WaarpVitamMetrics.getInstance().get(DipCache.DIP_CACHE_COPY));
+    dipRequestFactory.removeDipRequest(dipRequest4);
+    dipRequestFactory.removeDipRequest(dipRequest5);
+    FileUtils.deleteDirectory(tierCacheDir);
+  }
+
   private static Response getObjectStream() {
     MultivaluedHashMap<String, Object> headers = new MultivaluedHashMap();
     headers.add("Content-Disposition", "filename=\"test.zip\"");
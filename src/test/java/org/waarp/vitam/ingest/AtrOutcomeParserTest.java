@@ -0,0 +1,79 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.ingest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class AtrOutcomeParserTest {
+  private static final String ATR =
+      "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+      "<ArchiveTransferReply " +
+      "xmlns=\"fr:gouv:culture:archivesdefrance:seda:v2.1\">\n" +
+      "  <ReplyCode>WARNING</ReplyCode>\n" + "  <Operation>\n" +
+      "    <Event><EventTypeCode>CHECK_SEDA</EventTypeCode>" +
+      "<Outcome>OK</Outcome></Event>\n" +
+      "    <Event><EventTypeCode>PROCESS_SIP_UNITARY</EventTypeCode>" +
+      "<Outcome>WARNING</Outcome></Event>\n" + "  </Operation>\n" +
+      "  <DataObjectPackage>\n" + "    <DataObjectGroup>\n" +
+      "      <BinaryDataObject id=\"ID1\"/>\n" +
+      "      <BinaryDataObject id=\"ID2\"/>\n" +
+      "      <PhysicalDataObject id=\"ID3\"/>\n" +
+      "    </DataObjectGroup>\n" + "    <DescriptiveMetadata>\n" +
+      "      <ArchiveUnit id=\"AU1\"><ArchiveUnit id=\"AU2\"/>" +
+      "</ArchiveUnit>\n" +
+      "      <ArchiveUnit id=\"AU3\"><Event><Outcome>KO</Outcome></Event>" +
+      "</ArchiveUnit>\n" + "    </DescriptiveMetadata>\n" +
+      "  </DataObjectPackage>\n" + "</ArchiveTransferReply>\n";
+
+  @Test
+  public void testCopyAndParse() throws IOException {
+    final byte[] atr = ATR.getBytes(StandardCharsets.UTF_8);
+    final AtrOutcomeParser parser = new AtrOutcomeParser();
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    assertEquals(atr.length,
+                 parser.copy(new ByteArrayInputStream(atr), outputStream));
+    assertArrayEquals(atr, outputStream.toByteArray());
+    assertEquals("WARNING", parser.getReplyCode());
+    // Last Event of the Operation only
+    assertEquals("WARNING", parser.getOutcome());
+    assertEquals(3, parser.getArchiveUnits());
+    assertEquals(3, parser.getDataObjects());
+  }
+
+  @Test
+  public void testCopyNotParsable() throws IOException {
+    final byte[] atr = (ATR.substring(0, 200) + "<<not xml>>" + ATR)
+        .getBytes(StandardCharsets.UTF_8);
+    final AtrOutcomeParser parser = new AtrOutcomeParser();
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    assertEquals(atr.length,
+                 parser.copy(new ByteArrayInputStream(atr), outputStream));
+    // Still fully copied
+    assertArrayEquals(atr, outputStream.toByteArray());
+  }
+}
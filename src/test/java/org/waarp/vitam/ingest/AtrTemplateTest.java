@@ -0,0 +1,125 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.ingest;
+
+import org.junit.Test;
+import org.waarp.vitam.ingest.AtrTemplate.Placeholder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.junit.Assert.*;
+import static org.waarp.vitam.ingest.AtrTemplate.*;
+
+/**
+ * Check the AtrTemplate against the previous chain of String.replace (see
+ * AtrTemplateBenchmark within src/bench/java for their speed)
+ */
+public class AtrTemplateTest {
+
+  @Test
+  public void testByteIdenticalToReplace() throws IOException {
+    final String xml = readTemplate();
+    final AtrTemplate template = AtrTemplate.getInstance();
+    for (String code : new String[] { "STARTED", "OK", "WARNING", "KO",
+                                      "FATAL" }) {
+      final String[] values = getValues(code, "é (détail) & <more>");
+      final String expected = replace(xml, values);
+      assertEquals(expected, template.render(values));
+      // Rendering again gives the same result
+      assertEquals(expected, template.render(values));
+    }
+    // Same instance for the same ClassLoader
+    assertSame(template, AtrTemplate.getInstance());
+  }
+
+  static String[] getValues(String code, String detail) {
+    final String[] values = new String[Placeholder.values().length];
+    values[Placeholder.DATE.ordinal()] = "2019-10-01T10:11:12.123";
+    values[Placeholder.MESSAGE_IDENTIFIER.ordinal()] = "aeeaaaaaacaaaaabab";
+    values[Placeholder.ARCHIVAL_AGENCY.ordinal()] = "ArchivalAgencyToBeDefined";
+    values[Placeholder.TRANSFERRING_AGENCY.ordinal()] =
+        "TransferringAgencyToBeDefined";
+    values[Placeholder.COMMENT.ordinal()] = detail;
+    values[Placeholder.EVENT_TYPE_CODE.ordinal()] = "STP_UPLOAD_SIP";
+    values[Placeholder.EVENT_TYPE.ordinal()] = "Réception dans vitam";
+    values[Placeholder.EVENT_DATE_TIME.ordinal()] =
+        LocalDateTime.of(2019, 10, 1, 10, 11).toString();
+    values[Placeholder.OUTCOME.ordinal()] = code;
+    values[Placeholder.OUTCOME_DETAIL.ordinal()] = "STP_UPLOAD_SIP." + code;
+    values[Placeholder.OUTCOME_DETAIL_MESSAGE.ordinal()] = detail;
+    return values;
+  }
+
+  /**
+   * Previous implementation of IngestManager.buildAtrInternal
+   */
+  static String replace(String xml, String[] values) {
+    return xml.replace(token(Placeholder.DATE), value(values, Placeholder.DATE))
+              .replace(token(Placeholder.MESSAGE_IDENTIFIER),
+                       value(values, Placeholder.MESSAGE_IDENTIFIER))
+              .replace(token(Placeholder.ARCHIVAL_AGENCY),
+                       value(values, Placeholder.ARCHIVAL_AGENCY))
+              .replace(token(Placeholder.TRANSFERRING_AGENCY),
+                       value(values, Placeholder.TRANSFERRING_AGENCY))
+              .replace(token(Placeholder.COMMENT),
+                       value(values, Placeholder.COMMENT))
+              .replace(token(Placeholder.EVENT_TYPE_CODE),
+                       value(values, Placeholder.EVENT_TYPE_CODE))
+              .replace(token(Placeholder.EVENT_TYPE),
+                       value(values, Placeholder.EVENT_TYPE))
+              .replace(token(Placeholder.EVENT_DATE_TIME),
+                       value(values, Placeholder.EVENT_DATE_TIME))
+              .replaceAll(token(Placeholder.OUTCOME),
+                          value(values, Placeholder.OUTCOME))
+              .replace(token(Placeholder.OUTCOME_DETAIL),
+                       value(values, Placeholder.OUTCOME_DETAIL))
+              .replace(token(Placeholder.OUTCOME_DETAIL_MESSAGE),
+                       value(values, Placeholder.OUTCOME_DETAIL_MESSAGE));
+  }
+
+  private static String token(Placeholder placeholder) {
+    return placeholder.getToken();
+  }
+
+  private static String value(String[] values, Placeholder placeholder) {
+    return values[placeholder.ordinal()];
+  }
+
+  static String readTemplate() throws IOException {
+    final StringBuilder builder = new StringBuilder();
+    try (InputStream inputStream = AtrTemplateTest.class.getClassLoader()
+                                                        .getResourceAsStream(
+                                                            ATR_KO_DEFAULT_XML);
+         BufferedReader reader = new BufferedReader(
+             new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        builder.append(line).append('\n');
+      }
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of Waarp Project (named also Waarp or GG).
+ *
+ *  Copyright (c) 2019, Waarp SAS, and individual contributors by the @author
+ *  tags. See the COPYRIGHT.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ *  All Waarp Project is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with
+ * Waarp . If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.waarp.vitam.ingest;
+
+import org.junit.Test;
+import org.waarp.vitam.ingest.AtrTemplate.Placeholder;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AtrWriterTest {
+  private static final int EVENTS = 1000;
+
+  @Test
+  public void testSameContentAsTemplate() throws XMLStreamException {
+    final String[] values = getValues("Agency");
+    values[Placeholder.COMMENT.ordinal()] = "Failure";
+    values[Placeholder.OUTCOME_DETAIL_MESSAGE.ordinal()] = "Failure";
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    AtrWriter.writeAtr(outputStream, values);
+    assertEquals(getContent(AtrTemplate.getInstance().render(values)
+                                       .getBytes(StandardCharsets.UTF_8)),
+                 getContent(outputStream.toByteArray()));
+  }
+
+  @Test
+  public void testEscaping() throws XMLStreamException {
+    final String agency = "A&B <Archives> \"quoted\" 'é'";
+    final String[] values = getValues(agency);
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    AtrWriter.writeAtr(outputStream, values);
+    final List<String> content = getContent(outputStream.toByteArray());
+    assertTrue(content.contains("Identifier=" + agency));
+    assertTrue(content.contains("Comment=" + values[Placeholder.COMMENT
+        .ordinal()]));
+  }
+
+  @Test
+  public void testManyEvents() throws XMLStreamException {
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try (final AtrWriter atrWriter = new AtrWriter(outputStream)) {
+      atrWriter.writeHeader("Many events", "2019-10-01T10:11:12", "id", "OK");
+      for (int i = 0; i < EVENTS; i++) {
+        atrWriter.writeEvent("STP_UNIT", "Unit " + i, "2019-10-01T10:11:12",
+                             "OK", "STP_UNIT.OK", "Unit <" + i + "> stored");
+      }
+      atrWriter.writeFooter("Unknown", "Archival", "Transferring");
+    }
+    final List<String> expected = new ArrayList<>();
+    expected.add("Comment=Many events");
+    expected.add("Date=2019-10-01T10:11:12");
+    expected.add("MessageIdentifier=id");
+    expected.add("ReplyCodeListVersion=ReplyCodeListVersion0");
+    expected.add("MessageDigestAlgorithmCodeListVersion=" +
+                 "MessageDigestAlgorithmCodeListVersion0");
+    expected.add("FileFormatCodeListVersion=FileFormatCodeListVersion0");
+    expected.add("ReplyCode=OK");
+    for (int i = 0; i < EVENTS; i++) {
+      expected.add("EventTypeCode=STP_UNIT");
+      expected.add("EventType=Unit " + i);
+      expected.add("EventDateTime=2019-10-01T10:11:12");
+      expected.add("Outcome=OK");
+      expected.add("OutcomeDetail=STP_UNIT.OK");
+      expected.add("OutcomeDetailMessage=Unit <" + i + "> stored");
+    }
+    expected.add("MessageRequestIdentifier=Unknown");
+    expected.add("Identifier=Archival");
+    expected.add("Identifier=Transferring");
+    assertEquals(expected, getContent(outputStream.toByteArray()));
+  }
+
+  private static String[] getValues(String agency) {
+    final String[] values = new String[Placeholder.values().length];
+    final String detail = "Failure [status <5> & more]";
+    values[Placeholder.DATE.ordinal()] = "2019-10-01T10:11:12.123";
+    values[Placeholder.MESSAGE_IDENTIFIER.ordinal()] = "aeeaaaaaacaaaaabab";
+    values[Placeholder.ARCHIVAL_AGENCY.ordinal()] = agency;
+    values[Placeholder.TRANSFERRING_AGENCY.ordinal()] = agency;
+    values[Placeholder.COMMENT.ordinal()] = detail;
+    values[Placeholder.EVENT_TYPE_CODE.ordinal()] = "STP_UPLOAD_SIP";
+    values[Placeholder.EVENT_TYPE.ordinal()] = "Réception dans vitam";
+    values[Placeholder.EVENT_DATE_TIME.ordinal()] = "2019-10-01T10:11";
+    values[Placeholder.OUTCOME.ordinal()] = "FATAL";
+    values[Placeholder.OUTCOME_DETAIL.ordinal()] = "STP_UPLOAD_SIP.FATAL";
+    values[Placeholder.OUTCOME_DETAIL_MESSAGE.ordinal()] = detail;
+    return values;
+  }
+
+  /**
+   * @return "name=text" of each simple element, in order
+   */
+  private static List<String> getContent(byte[] xml)
+      throws XMLStreamException {
+    final XMLStreamReader reader = XMLInputFactory.newInstance()
+                                                  .createXMLStreamReader(
+                                                      new ByteArrayInputStream(
+                                                          xml));
+    final List<String> content = new ArrayList<>();
+    String name = null;
+    final StringBuilder text = new StringBuilder();
+    while (reader.hasNext()) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          assertEquals(AtrWriter.SEDA_NAMESPACE, reader.getNamespaceURI());
+          name = reader.getLocalName();
+          text.setLength(0);
+          break;
+        case XMLStreamConstants.CHARACTERS:
+          text.append(reader.getText());
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          if (name != null) {
+            content.add(name + '=' + text);
+          }
+          name = null;
+          break;
+        default:
+          break;
+      }
+    }
+    return content;
+  }
+}
@@ -46,6 +46,7 @@ import fr.gouv.vitam.ingest.external.client.IngestExternalClient;
 import fr.gouv.vitam.ingest.external.client.IngestExternalClientFactory;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -57,6 +58,8 @@ import org.waarp.common.logging.WaarpSlf4JLoggerFactory;
 import org.waarp.openr66.context.R66Session;
 import org.waarp.vitam.CommonUtil;
 import org.waarp.vitam.common.OperationCheck;
+import org.waarp.vitam.common.OperationDurationStatistics;
+import org.waarp.vitam.common.OperationStatusCache;
 import org.waarp.vitam.common.WaarpCommon.TaskOption;
 import org.waarp.vitam.common.waarp.ManagerToWaarp;
 import org.waarp.vitam.ingest.IngestRequest.IngestStep;
@@ -77,11 +80,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -128,6 +133,12 @@ public class IngestTaskTest extends ResteasyTestApplication {
                       .removeIngestRequest(any(IngestRequest.class));
     doCallRealMethod().when(ingestRequestFactory)
                       .getXmlAtrFile(any(IngestRequest.class));
+    doCallRealMethod().when(ingestRequestFactory)
+                      .allocateXmlAtrFile(any(IngestRequest.class), anyLong());
+    doCallRealMethod().when(ingestRequestFactory)
+                      .releaseXmlAtrFile(any(IngestRequest.class));
+    doCallRealMethod().when(ingestRequestFactory)
+                      .getIdMessageFile(any(IngestRequest.class));
     doCallRealMethod().when(ingestRequestFactory)
                       .saveIngestRequest(any(IngestRequest.class));
     doCallRealMethod().when(ingestRequestFactory)
@@ -137,6 +148,7 @@ public class IngestTaskTest extends ResteasyTestApplication {
     when(ingestRequestFactory.getClient()).thenReturn(client);
     when(adminFactory.getClient()).thenReturn(adminExternalClient);
     OperationCheck.setRetry(1, 10);
+    OperationStatusCache.getInstance().setTtl(10);
     ingestRequestFactory.setBaseDir();
     assertTrue(ingestRequestFactory.getBaseDir().getAbsolutePath()
                                    .equals("/tmp/IngestFactory"));
@@ -174,6 +186,9 @@ public class IngestTaskTest extends ResteasyTestApplication {
 
   @Before
   public void cleanIngestRequest() {
+    OperationStatusCache.getInstance().clear();
+    // Never deferring the first check from durations of previous tests
+    OperationDurationStatistics.getInstance().clear();
     List<IngestRequest> list = ingestRequestFactory.getExistingIngests();
     if (list != null && !list.isEmpty()) {
       for (IngestRequest ingestRequest : list) {
@@ -359,6 +374,8 @@ public class IngestTaskTest extends ResteasyTestApplication {
     FileUtils.write(file, "testContent");
     when(ingestRequestFactory.getXmlAtrFile(any(IngestRequest.class)))
         .thenReturn(file);
+    doReturn(file).when(ingestRequestFactory)
+                  .allocateXmlAtrFile(any(IngestRequest.class), anyLong());
     IngestRequest ingestRequest = newIngestRequest();
     ingestRequest.setRequestId(FAKE_X_REQUEST_ID)
                  .setStatus(IngestStep.RETRY_INGEST_ID.getStatusMonitor());
@@ -368,6 +385,131 @@ public class IngestTaskTest extends ResteasyTestApplication {
                         adminExternalClient, ingestRequest.getVitamContext()));
   }
 
+  private static void setIngestAccepted() {
+    when(mock.post()).thenReturn(Response.accepted()
+                                         .header(GlobalDataRest.X_REQUEST_ID,
+                                                 "FAKE_X_REQUEST_ID").header(
+            GlobalDataRest.X_GLOBAL_EXECUTION_STATE, ProcessState.PAUSE).header(
+            GlobalDataRest.X_GLOBAL_EXECUTION_STATUS, StatusCode.UNKNOWN)
+                                         .build());
+  }
+
+  @Test
+  @RunWithCustomExecutor
+  public void givenIdStreamingWhenIngestThenIdOnStandardInput()
+      throws InvalidParseOperationException, ParseException {
+    setIngestAccepted();
+    final AtomicReference<String> streamed = new AtomicReference<>();
+    when(ingestManagerToWaarp.supportsStreaming()).thenReturn(true);
+    doAnswer(invocation -> {
+      streamed.set(IOUtils.toString((InputStream) invocation.getArgument(2),
+                                    StandardCharsets.UTF_8));
+      return true;
+    }).when(ingestManagerToWaarp)
+      .sendBackStream(any(IngestRequestFactory.class), any(IngestRequest.class),
+                      any(InputStream.class), eq(IngestManager.INGEST_ID));
+    IngestManager.setIdStreaming(true);
+    try {
+      IngestRequest ingestRequest = newIngestRequest();
+      assertEquals(0, ingestManager
+          .ingestLocally(ingestRequestFactory, ingestRequest, client));
+      assertEquals(IngestStep.RETRY_ATR, ingestRequest.getStep());
+      assertTrue(streamed.get().contains("FAKE_X_REQUEST_ID"));
+      // Never spooled
+      verify(ingestManagerToWaarp, never())
+          .sendBackInformation(any(IngestRequestFactory.class),
+                               any(IngestRequest.class), anyString(),
+                               anyString());
+      assertFalse(
+          ingestRequestFactory.getIdMessageFile(ingestRequest).exists());
+    } finally {
+      IngestManager.setIdStreaming(false);
+      reset(ingestManagerToWaarp);
+      setSendMessage(true);
+    }
+  }
+
+  @Test
+  @RunWithCustomExecutor
+  public void givenIdStreamingFailedWhenIngestThenIdSpooled()
+      throws InvalidParseOperationException, ParseException {
+    setIngestAccepted();
+    final AtomicReference<String> spooled = new AtomicReference<>();
+    when(ingestManagerToWaarp.supportsStreaming()).thenReturn(true);
+    // Partner not available through the standard input
+    doReturn(false).when(ingestManagerToWaarp)
+                   .sendBackStream(any(IngestRequestFactory.class),
+                                   any(IngestRequest.class),
+                                   any(InputStream.class), anyString());
+    doAnswer(invocation -> {
+      spooled.set(FileUtils.readFileToString(
+          new File((String) invocation.getArgument(2)),
+          StandardCharsets.UTF_8));
+      return true;
+    }).when(ingestManagerToWaarp)
+      .sendBackInformation(any(IngestRequestFactory.class),
+                           any(IngestRequest.class), anyString(),
+                           eq(IngestManager.INGEST_ID));
+    IngestManager.setIdStreaming(true);
+    try {
+      IngestRequest ingestRequest = newIngestRequest();
+      assertEquals(0, ingestManager
+          .ingestLocally(ingestRequestFactory, ingestRequest, client));
+      assertEquals(IngestStep.RETRY_ATR, ingestRequest.getStep());
+      verify(ingestManagerToWaarp)
+          .sendBackStream(any(IngestRequestFactory.class),
+                          eq(ingestRequest), any(InputStream.class),
+                          anyString());
+      assertTrue(spooled.get().contains("FAKE_X_REQUEST_ID"));
+      assertFalse(
+          ingestRequestFactory.getIdMessageFile(ingestRequest).exists());
+    } finally {
+      IngestManager.setIdStreaming(false);
+      reset(ingestManagerToWaarp);
+      setSendMessage(true);
+    }
+  }
+
+  @Test
+  @RunWithCustomExecutor
+  public void givenIdFileWhenIngestThenSpoolFileDeleted()
+      throws InvalidParseOperationException, ParseException {
+    setIngestAccepted();
+    final AtomicReference<File> spooled = new AtomicReference<>();
+    // Even streaming capable, the file is used unless enabled
+    when(ingestManagerToWaarp.supportsStreaming()).thenReturn(true);
+    doAnswer(invocation -> {
+      File idMessage = new File((String) invocation.getArgument(2));
+      assertTrue(FileUtils.readFileToString(idMessage, StandardCharsets.UTF_8)
+                          .contains("FAKE_X_REQUEST_ID"));
+      spooled.set(idMessage);
+      return false;
+    }).when(ingestManagerToWaarp)
+      .sendBackInformation(any(IngestRequestFactory.class),
+                           any(IngestRequest.class), anyString(),
+                           eq(IngestManager.INGEST_ID));
+    try {
+      IngestRequest ingestRequest = newIngestRequest();
+      // Not sent, so retried later on
+      assertEquals(1, ingestManager
+          .ingestLocally(ingestRequestFactory, ingestRequest, client));
+      assertEquals(IngestStep.RETRY_INGEST_ID, ingestRequest.getStep());
+      verify(ingestManagerToWaarp, never())
+          .sendBackStream(any(IngestRequestFactory.class),
+                          any(IngestRequest.class), any(InputStream.class),
+                          anyString());
+      assertNotNull(spooled.get());
+      assertEquals(ingestRequestFactory.getIdMessageFile(ingestRequest)
+                                       .getAbsoluteFile(),
+                   spooled.get().getAbsoluteFile());
+      // Deleted whatever the result of the transfer
+      assertFalse(spooled.get().exists());
+    } finally {
+      reset(ingestManagerToWaarp);
+      setSendMessage(true);
+    }
+  }
+
   private IngestRequest newIngestRequest()
       throws ParseException, InvalidParseOperationException {
     TaskOption taskOption =